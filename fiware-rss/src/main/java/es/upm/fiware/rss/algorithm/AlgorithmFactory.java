@@ -16,11 +16,14 @@
  */
 package es.upm.fiware.rss.algorithm;
 
-import java.util.List;
-
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import es.upm.fiware.rss.exception.RSSException;
@@ -28,12 +31,53 @@ import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.Algorithm;
 
 /**
+ * Registry of the available algorithm processors. The processors declared
+ * in Algorithms and the ones found with ServiceLoader are created once when
+ * the factory is built, and the AlgorithmProcessor beans of the application
+ * context are registered on top of them, so new algorithms can be plugged
+ * in as service providers or Spring components.
  *
  * @author fdelavega
  */
 @Component
 public class AlgorithmFactory {
 
+    private volatile Map<String, AlgorithmProcessor> processors;
+
+    public AlgorithmFactory() {
+        Map<String, AlgorithmProcessor> registry = new LinkedHashMap<>();
+
+        for (Algorithms alg: Algorithms.values()) {
+            try {
+                registry.put(alg.toString(), (AlgorithmProcessor) alg.getProcessor().newInstance());
+            } catch (InstantiationException | IllegalAccessException e) {
+                throw new IllegalStateException("The Algorithm Processor for "
+                        + alg.toString() + " cannot be instantiated", e);
+            }
+        }
+
+        // Processors declared in META-INF/services
+        ServiceLoader.load(AlgorithmProcessor.class).forEach((processor) -> {
+            registry.put(processor.getAlgorithmId(), processor);
+        });
+        this.processors = Collections.unmodifiableMap(registry);
+    }
+
+    /**
+     * Registers the given processors, replacing the ones already registered
+     * for the same algorithm
+     * @param beans AlgorithmProcessor instances to be registered
+     */
+    @Autowired(required = false)
+    public void setProcessors(List<AlgorithmProcessor> beans) {
+        Map<String, AlgorithmProcessor> registry = new LinkedHashMap<>(this.processors);
+
+        beans.stream().forEach((processor) -> {
+            registry.put(processor.getAlgorithmId(), processor);
+        });
+        this.processors = Collections.unmodifiableMap(registry);
+    }
+
     /**
      * Returns the AlgorithmProcessor able to handle the concrete algorithm
      * given as parameter
@@ -45,25 +89,25 @@ public class AlgorithmFactory {
     public AlgorithmProcessor getAlgorithmProcessor(String algorithmType) 
         throws RSSException{
 
-        AlgorithmProcessor processor;
-        try {
-             Algorithms algorithm = Algorithms.valueOf(algorithmType);
-             processor = (AlgorithmProcessor) algorithm.getProcessor().newInstance();
-        } catch (IllegalArgumentException e) {
+        AlgorithmProcessor processor = algorithmType != null ?
+                this.processors.get(algorithmType) : null;
+
+        if (processor == null) {
             // There is no implementation for the given algorithm
             String[] args = {"No implementation found for the algorithm: " + algorithmType};
             throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
-
-        } catch (InstantiationException | IllegalAccessException ex) {
-            // The implementation for the given algorithm type cannot be instantiated
-            String[] args = {"The Algorithm Processor for " + algorithmType 
-                    + " cannot be instantiated"};
-            throw new RSSException(UNICAExceptionType.GENERIC_SERVER_FAULT, args);
         }
 
         return processor;
     }
 
+    /**
+     * Notifies all the processors that the RS models have changed
+     */
+    public void invalidateModels() {
+        this.processors.values().stream().forEach(AlgorithmProcessor::invalidateModels);
+    }
+
     /**
      * Returns a list containing all the allowed revenue sharing algorithms
      * @return, List of Algorithm instances containing the valid ones
@@ -71,12 +115,12 @@ public class AlgorithmFactory {
     public List<Algorithm> getAlgorithms() {
         List<Algorithm> algorithms = new ArrayList<>();
 
-        for(Algorithms alg: Algorithms.values()){
+        this.processors.values().stream().forEach((processor) -> {
             Algorithm a = new Algorithm();
-            a.setAlgorithmId(alg.toString());
-            a.setDescription(alg.getDescription());
+            a.setAlgorithmId(processor.getAlgorithmId());
+            a.setDescription(processor.getDescription());
             algorithms.add(a);
-        }
+        });
 
         return algorithms;
     }
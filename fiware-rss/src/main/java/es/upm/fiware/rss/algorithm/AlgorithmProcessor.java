@@ -22,12 +22,68 @@ import es.upm.fiware.rss.model.RSSModel;
 import java.math.BigDecimal;
 
 /**
+ * Processor of a revenue sharing algorithm. Processors are registered once
+ * in the AlgorithmFactory and shared by all the settlement tasks, so they
+ * must be stateless or thread safe.
  *
  * @author fdelavega
  */
 public interface AlgorithmProcessor {
 
+    /**
+     * @return Identifier of the algorithm handled by the processor
+     */
+    public String getAlgorithmId();
+
+    /**
+     * @return Description of the algorithm handled by the processor
+     */
+    public String getDescription();
+
     public void validateModel(RSSModel model) throws RSSException;
 
     public RSSModel calculateRevenue (RSSModel model, BigDecimal value) throws RSSException;
+
+    /**
+     * Called when the RS models have changed, so processors drop anything
+     * they have computed from the previous ones. By default nothing is kept.
+     */
+    public default void invalidateModels() {
+    }
+
+    /**
+     * Calculates the distribution of a value given the volume already
+     * settled for the model in the same currency. Only the new value is
+     * provided, so algorithms depending on the volume do not need to read
+     * the settled transactions. By default the settled volume is ignored.
+     *
+     * @param model Revenue sharing model to be used
+     * @param value Amount to be distributed
+     * @param settled Amount already settled for the model
+     * @return RSSModel with the amount divided according to the model
+     * @throws RSSException
+     */
+    public default RSSModel calculateRevenue(RSSModel model, BigDecimal value,
+            BigDecimal settled) throws RSSException {
+        return this.calculateRevenue(model, value);
+    }
+
+    /**
+     * Calculates the distribution of all the rows of a batch in a single
+     * call. By default each row is calculated with calculateRevenue, so
+     * processors override it to avoid building a model per row.
+     *
+     * @param batch Models and values to be distributed
+     * @return Shares of every row of the batch
+     * @throws RSSException
+     */
+    public default RevenueShares calculateRevenue(RevenueBatch batch) throws RSSException {
+        RevenueShares shares = new RevenueShares(batch);
+
+        for (int i = 0; i < batch.size(); i++) {
+            shares.setRevenue(i, this.calculateRevenue(
+                    batch.getModel(i), batch.getValue(i), batch.getSettled(i)));
+        }
+        return shares;
+    }
 }
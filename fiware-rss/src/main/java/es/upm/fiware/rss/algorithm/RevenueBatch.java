@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2015 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+
+import es.upm.fiware.rss.algorithm.impl.SharePlan;
+import es.upm.fiware.rss.model.RSSModel;
+
+/**
+ * Set of (model, value) pairs whose revenue is calculated in a single call.
+ * Rows are stored in columns, and the stakeholders of all the rows share a
+ * single column where each row takes a range starting at its offset.
+ * Amounts are stored as fixed-point units of SharePlan.SCALE decimals, so
+ * no object is kept per row other than its model.
+ */
+public class RevenueBatch {
+
+    private RSSModel[] models;
+    private long[] values;
+    private long[] settled;
+    private int[] stakeholderOffsets;
+    private int size = 0;
+    private int stakeholders = 0;
+
+    /**
+     *
+     * @param capacity Expected number of rows
+     */
+    public RevenueBatch(int capacity) {
+        int initial = Math.max(capacity, 1);
+        this.models = new RSSModel[initial];
+        this.values = new long[initial];
+        this.settled = new long[initial];
+        this.stakeholderOffsets = new int[initial + 1];
+    }
+
+    private void grow() {
+        int capacity = this.models.length * 2;
+        this.models = Arrays.copyOf(this.models, capacity);
+        this.values = Arrays.copyOf(this.values, capacity);
+        this.settled = Arrays.copyOf(this.settled, capacity);
+        this.stakeholderOffsets = Arrays.copyOf(this.stakeholderOffsets, capacity + 1);
+    }
+
+    /**
+     * Adds a row to the batch
+     * @param model RS model used to distribute the value
+     * @param value Amount to be distributed
+     * @param settled Amount already settled for the model
+     * @return Index of the row
+     */
+    public int add(RSSModel model, BigDecimal value, BigDecimal settled) {
+        if (this.size == this.models.length) {
+            this.grow();
+        }
+
+        int row = this.size++;
+        this.models[row] = model;
+        this.values[row] = SharePlan.toUnits(value);
+        this.settled[row] = settled != null ? SharePlan.toUnits(settled) : 0;
+
+        this.stakeholders += model.getStakeholders() != null ? model.getStakeholders().size() : 0;
+        this.stakeholderOffsets[this.size] = this.stakeholders;
+        return row;
+    }
+
+    /**
+     * Adds a row to the batch with no settled amount
+     * @param model RS model used to distribute the value
+     * @param value Amount to be distributed
+     * @return Index of the row
+     */
+    public int add(RSSModel model, BigDecimal value) {
+        return this.add(model, value, BigDecimal.ZERO);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public RSSModel getModel(int row) {
+        return this.models[row];
+    }
+
+    public BigDecimal getValue(int row) {
+        return SharePlan.toValue(this.values[row]);
+    }
+
+    /**
+     * @param row
+     * @return Amount to be distributed in units of 10^-SharePlan.SCALE
+     */
+    public long getValueUnits(int row) {
+        return this.values[row];
+    }
+
+    public BigDecimal getSettled(int row) {
+        return SharePlan.toValue(this.settled[row]);
+    }
+
+    /**
+     * @param row
+     * @return Position of the first stakeholder of the row in the stakeholders column
+     */
+    public int getStakeholderOffset(int row) {
+        return this.stakeholderOffsets[row];
+    }
+
+    /**
+     * @param row
+     * @return Number of stakeholders of the row
+     */
+    public int getStakeholderCount(int row) {
+        return this.stakeholderOffsets[row + 1] - this.stakeholderOffsets[row];
+    }
+
+    /**
+     * @return Total number of stakeholders of the batch
+     */
+    public int getStakeholders() {
+        return this.stakeholders;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2015 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+import es.upm.fiware.rss.algorithm.impl.SharePlan;
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.StakeholderModel;
+
+/**
+ * Revenue distribution of a RevenueBatch. Shares are stored as fixed-point
+ * units in columns with the same layout as the batch, so no object is
+ * created per row unless it is requested with getRevenue.
+ */
+public class RevenueShares {
+
+    private final RevenueBatch batch;
+    private final long[] aggregatorValues;
+    private final long[] ownerValues;
+    private final long[] stakeholderValues;
+
+    public RevenueShares(RevenueBatch batch) {
+        this.batch = batch;
+        this.aggregatorValues = new long[batch.size()];
+        this.ownerValues = new long[batch.size()];
+        this.stakeholderValues = new long[batch.getStakeholders()];
+    }
+
+    public RevenueBatch getBatch() {
+        return this.batch;
+    }
+
+    public int size() {
+        return this.aggregatorValues.length;
+    }
+
+    public BigDecimal getAggregatorValue(int row) {
+        return SharePlan.toValue(this.aggregatorValues[row]);
+    }
+
+    public void setAggregatorValue(int row, BigDecimal value) {
+        this.aggregatorValues[row] = SharePlan.toUnits(value);
+    }
+
+    /**
+     * @param row
+     * @param units Value in units of 10^-SharePlan.SCALE
+     */
+    public void setAggregatorUnits(int row, long units) {
+        this.aggregatorValues[row] = units;
+    }
+
+    public BigDecimal getOwnerValue(int row) {
+        return SharePlan.toValue(this.ownerValues[row]);
+    }
+
+    public void setOwnerValue(int row, BigDecimal value) {
+        this.ownerValues[row] = SharePlan.toUnits(value);
+    }
+
+    /**
+     * @param row
+     * @param units Value in units of 10^-SharePlan.SCALE
+     */
+    public void setOwnerUnits(int row, long units) {
+        this.ownerValues[row] = units;
+    }
+
+    /**
+     * @param row
+     * @param stakeholder Position of the stakeholder in the model of the row
+     * @return Value of the stakeholder
+     */
+    public BigDecimal getStakeholderValue(int row, int stakeholder) {
+        return SharePlan.toValue(this.stakeholderValues[this.batch.getStakeholderOffset(row) + stakeholder]);
+    }
+
+    public void setStakeholderValue(int row, int stakeholder, BigDecimal value) {
+        this.setStakeholderUnits(row, stakeholder, SharePlan.toUnits(value));
+    }
+
+    /**
+     * @param row
+     * @param stakeholder Position of the stakeholder in the model of the row
+     * @param units Value in units of 10^-SharePlan.SCALE
+     */
+    public void setStakeholderUnits(int row, int stakeholder, long units) {
+        this.stakeholderValues[this.batch.getStakeholderOffset(row) + stakeholder] = units;
+    }
+
+    /**
+     * Copies the distribution of a single row
+     * @param row
+     * @param revenue Distribution returned by calculateRevenue
+     */
+    public void setRevenue(int row, RSSModel revenue) {
+        this.setAggregatorValue(row, revenue.getAggregatorValue());
+        this.setOwnerValue(row, revenue.getOwnerValue());
+
+        int count = this.batch.getStakeholderCount(row);
+        for (int i = 0; i < count; i++) {
+            this.setStakeholderValue(row, i, revenue.getStakeholders().get(i).getModelValue());
+        }
+    }
+
+    /**
+     * Builds the distribution of a row in the format returned by
+     * calculateRevenue
+     * @param row
+     * @return RSSModel with the values of the row
+     */
+    public RSSModel getRevenue(int row) {
+        RSSModel model = this.batch.getModel(row);
+        RSSModel result = new RSSModel();
+
+        result.setProductClass(model.getProductClass());
+        result.setAlgorithmType(model.getAlgorithmType());
+        result.setAggregatorId(model.getAggregatorId());
+        result.setAggregatorShare(this.getAggregatorValue(row));
+        result.setOwnerProviderId(model.getOwnerProviderId());
+        result.setOwnerValue(this.getOwnerValue(row));
+
+        List<StakeholderModel> stRev = new ArrayList<>();
+        int count = this.batch.getStakeholderCount(row);
+        for (int i = 0; i < count; i++) {
+            StakeholderModel m = new StakeholderModel();
+            m.setStakeholderId(model.getStakeholders().get(i).getStakeholderId());
+            m.setModelValue(this.getStakeholderValue(row, i));
+            stRev.add(m);
+        }
+        result.setStakeholders(stRev);
+
+        return result;
+    }
+}
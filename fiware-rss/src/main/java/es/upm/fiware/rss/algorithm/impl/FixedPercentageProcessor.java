@@ -17,20 +17,47 @@
 package es.upm.fiware.rss.algorithm.impl;
 
 import es.upm.fiware.rss.algorithm.AlgorithmProcessor;
+import es.upm.fiware.rss.algorithm.Algorithms;
+import es.upm.fiware.rss.algorithm.RevenueBatch;
+import es.upm.fiware.rss.algorithm.RevenueShares;
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.RSSModel;
 import es.upm.fiware.rss.model.StakeholderModel;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.springframework.stereotype.Component;
 
 /**
  *
  * @author fdelavega
  */
+@Component
 public class FixedPercentageProcessor implements AlgorithmProcessor {
 
+    /**
+     * Share plans compiled for the models in use. Models are looked up as
+     * copies of the model index, so a model changed in the index is a new
+     * key, and plans are dropped with their models or when the models
+     * are invalidated.
+     */
+    private final Map<RSSModel, SharePlan> plans =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public String getAlgorithmId() {
+        return Algorithms.FIXED_PERCENTAGE.toString();
+    }
+
+    @Override
+    public String getDescription() {
+        return Algorithms.FIXED_PERCENTAGE.getDescription();
+    }
+
     private void validatePercent(BigDecimal value) throws RSSException{
         if (value.compareTo(BigDecimal.ZERO) <= 0) {
             String[] args = {"percentage must be greater than 0"};
@@ -41,6 +68,21 @@ public class FixedPercentageProcessor implements AlgorithmProcessor {
         }
     }
 
+    /**
+     * Returns the share plan of a model, compiling it the first time the
+     * model is used
+     * @param model RS model with percentage values
+     * @return Share plan of the model
+     */
+    SharePlan getPlan(RSSModel model) {
+        return this.plans.computeIfAbsent(model, SharePlan::compile);
+    }
+
+    @Override
+    public void invalidateModels() {
+        this.plans.clear();
+    }
+
     /**
      * Validates the RS Model according to the fixed percentage distribution
      * algorithm.
@@ -76,13 +118,11 @@ public class FixedPercentageProcessor implements AlgorithmProcessor {
         }
     }
 
-    private BigDecimal calculatePercentage(BigDecimal value, BigDecimal perc) {
-        return value.multiply(perc).divide(new BigDecimal("100"));
-    }
-
     /**
      * Calculates the distribution of revenues according to a revenue sharing
-     * model and a total amount using the fixed percentage algorithm.
+     * model and a total amount using the fixed percentage algorithm. The
+     * amount is split with the share plan of the model, so the result has
+     * SharePlan.SCALE decimals and the shares add up to the amount.
      * 
      * @param model Revenue sharing model to be used
      * @param value Total amount ot be distributed
@@ -94,35 +134,71 @@ public class FixedPercentageProcessor implements AlgorithmProcessor {
      */
     @Override
     public RSSModel calculateRevenue(RSSModel model, BigDecimal value) throws RSSException {
+        SharePlan plan = this.getPlan(model);
+        long[] shares = new long[plan.size()];
+        plan.split(SharePlan.toUnits(value), shares);
+
         RSSModel result = new RSSModel();
 
         result.setProductClass(model.getProductClass());
         result.setAlgorithmType(model.getAlgorithmType());
 
-        // Calculate aggregator value
+        // Set aggregator value
         result.setAggregatorId(model.getAggregatorId());
-        result.setAggregatorShare(this.calculatePercentage(value, model.getAggregatorValue()));
+        result.setAggregatorShare(SharePlan.toValue(shares[SharePlan.AGGREGATOR]));
 
-        // Calculate provider value
+        // Set provider value
         result.setOwnerProviderId(model.getOwnerProviderId());
-        result.setOwnerValue(this.calculatePercentage(value, model.getOwnerValue()));
+        result.setOwnerValue(SharePlan.toValue(shares[SharePlan.OWNER]));
 
-        // Calculate stakeholders value
+        // Set stakeholders value
         List<StakeholderModel> stRev = new ArrayList<>();
 
         if (model.getStakeholders() != null) {
-            model.getStakeholders().stream().map((st) -> {
+            for (int i = 0; i < model.getStakeholders().size(); i++) {
                 StakeholderModel m = new StakeholderModel();
-                m.setStakeholderId(st.getStakeholderId());
-                m.setModelValue(this.calculatePercentage(value, st.getModelValue()));
-                return m;
-            }).forEach((m) -> {
+                m.setStakeholderId(model.getStakeholders().get(i).getStakeholderId());
+                m.setModelValue(SharePlan.toValue(shares[SharePlan.FIRST_STAKEHOLDER + i]));
                 stRev.add(m);
-            });
+            }
         }
 
         result.setStakeholders(stRev);
 
         return result;
     }
+
+    /**
+     * Calculates the distribution of revenues of all the rows of a batch
+     * using the fixed percentage algorithm. The share plan of each model is
+     * compiled once and the shares are written directly in the
+     * columns of the result, so no model is built per row.
+     *
+     * @param batch Models and values to be distributed
+     * @return Shares of every row of the batch
+     * @throws RSSException
+     */
+    @Override
+    public RevenueShares calculateRevenue(RevenueBatch batch) throws RSSException {
+        RevenueShares shares = new RevenueShares(batch);
+        long[] units = new long[0];
+
+        for (int i = 0; i < batch.size(); i++) {
+            SharePlan plan = this.getPlan(batch.getModel(i));
+
+            if (units.length < plan.size()) {
+                units = new long[plan.size()];
+            }
+            plan.split(batch.getValueUnits(i), units);
+
+            shares.setAggregatorUnits(i, units[SharePlan.AGGREGATOR]);
+            shares.setOwnerUnits(i, units[SharePlan.OWNER]);
+
+            int count = batch.getStakeholderCount(i);
+            for (int j = 0; j < count; j++) {
+                shares.setStakeholderUnits(i, j, units[SharePlan.FIRST_STAKEHOLDER + j]);
+            }
+        }
+        return shares;
+    }
 }
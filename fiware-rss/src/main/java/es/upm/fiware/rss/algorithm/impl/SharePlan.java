@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2015 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm.impl;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import es.upm.fiware.rss.model.RSSModel;
+
+/**
+ * Percentages of a RS model compiled into fixed-point units, used to split
+ * amounts with long arithmetic. Amounts are handled with SCALE decimals, as
+ * stored in the sharing reports, and percentages with SCALE decimals too,
+ * so 100% is 10^6 units.
+ *
+ * Every participant gets its share truncated towards zero. The units left
+ * are given one by one to the participants with the greatest truncated
+ * remainder, ties are resolved in the order aggregator, owner and
+ * stakeholders. If the percentages do not add up to 100% after rounding,
+ * the difference is given to the owner, so the shares always add up to
+ * the amount.
+ */
+public class SharePlan {
+
+    /**
+     * Decimals of the amounts and percentages
+     */
+    public static final int SCALE = 4;
+
+    private static final long TOTAL_UNITS = 1000000L;
+
+    public static final int AGGREGATOR = 0;
+    public static final int OWNER = 1;
+    public static final int FIRST_STAKEHOLDER = 2;
+
+    // Percentages of aggregator, owner and stakeholders
+    private final long[] percentages;
+
+    private SharePlan(long[] percentages) {
+        this.percentages = percentages;
+    }
+
+    /**
+     * Compiles the percentages of a RS model
+     * @param model RS model with percentage values
+     * @return Share plan of the model
+     */
+    public static SharePlan compile(RSSModel model) {
+        int stakeholders = model.getStakeholders() != null ? model.getStakeholders().size() : 0;
+        long[] percentages = new long[FIRST_STAKEHOLDER + stakeholders];
+
+        percentages[AGGREGATOR] = SharePlan.toUnits(model.getAggregatorValue());
+        percentages[OWNER] = SharePlan.toUnits(model.getOwnerValue());
+
+        for (int i = 0; i < stakeholders; i++) {
+            percentages[FIRST_STAKEHOLDER + i] = SharePlan.toUnits(
+                    model.getStakeholders().get(i).getModelValue());
+        }
+        return new SharePlan(percentages);
+    }
+
+    /**
+     * Returns a plan with another aggregator percentage, the difference with
+     * the current one is given to or taken from the owner
+     * @param aggregatorValue Percentage of the aggregator
+     * @return Share plan with the new aggregator percentage
+     */
+    public SharePlan withAggregatorValue(BigDecimal aggregatorValue) {
+        long[] copy = this.percentages.clone();
+        copy[AGGREGATOR] = SharePlan.toUnits(aggregatorValue);
+        copy[OWNER] += this.percentages[AGGREGATOR] - copy[AGGREGATOR];
+        return new SharePlan(copy);
+    }
+
+    /**
+     * Converts a decimal value into fixed-point units
+     * @param value
+     * @return Value in units of 10^-SCALE
+     */
+    public static long toUnits(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts fixed-point units into a decimal value
+     * @param units Value in units of 10^-SCALE
+     * @return Decimal value with SCALE decimals
+     */
+    public static BigDecimal toValue(long units) {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+
+    /**
+     * @return Number of participants, aggregator and owner included
+     */
+    public int size() {
+        return this.percentages.length;
+    }
+
+    /**
+     * Splits an amount between the participants of the plan
+     * @param amount Amount in units of 10^-SCALE
+     * @param shares Array where the share of each participant is written,
+     * with at least size() positions
+     */
+    public void split(long amount, long[] shares) {
+        long abs = Math.abs(amount);
+
+        // amount * perc / TOTAL_UNITS is computed as q * perc + r * perc / TOTAL_UNITS
+        // so the product does not overflow
+        long q = abs / TOTAL_UNITS;
+        long r = abs % TOTAL_UNITS;
+
+        long assigned = 0;
+        for (int i = 0; i < this.percentages.length; i++) {
+            long perc = this.percentages[i];
+            shares[i] = Math.addExact(Math.multiplyExact(q, perc), r * perc / TOTAL_UNITS);
+            assigned += shares[i];
+        }
+
+        // Give the units left to the greatest remainders
+        long left = abs - assigned;
+        if (left > 0) {
+            for (int i = 0; i < this.percentages.length; i++) {
+                long remainder = r * this.percentages[i] % TOTAL_UNITS;
+                if (remainder > 0 && this.getRank(i, remainder, r) < left) {
+                    shares[i]++;
+                    assigned++;
+                }
+            }
+        }
+        shares[OWNER] += abs - assigned;
+
+        if (amount < 0) {
+            for (int i = 0; i < this.percentages.length; i++) {
+                shares[i] = -shares[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of participants whose remainder goes before the
+     * one of the given participant
+     */
+    private int getRank(int participant, long remainder, long r) {
+        int rank = 0;
+        for (int j = 0; j < this.percentages.length; j++) {
+            long other = r * this.percentages[j] % TOTAL_UNITS;
+            if (other > remainder || (other == remainder && j < participant)) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+}
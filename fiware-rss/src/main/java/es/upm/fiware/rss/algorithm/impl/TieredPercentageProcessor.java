@@ -0,0 +1,218 @@
+/**
+ * Copyright (C) 2015 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm.impl;
+
+import es.upm.fiware.rss.algorithm.AlgorithmProcessor;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.StakeholderModel;
+import es.upm.fiware.rss.model.TierModel;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Percentage distribution where the aggregator value depends on the volume
+ * settled for the model. The value of the model applies until the threshold
+ * of the first tier is reached, then the value of each tier applies from
+ * its threshold on. Stakeholders keep their percentage and the owner gets
+ * the rest.
+ *
+ * Thresholds are compared with the volume settled in the currency of the
+ * transactions, which is provided by the settlement, so only the new value
+ * is processed in each settlement. The part of the value in each tier is
+ * split with a share plan as in the fixed percentage algorithm.
+ */
+public class TieredPercentageProcessor implements AlgorithmProcessor {
+
+    public static final String ALGORITHM_ID = "TIERED_PERCENTAGE";
+
+    private final FixedPercentageProcessor baseProcessor = new FixedPercentageProcessor();
+
+    @Override
+    public String getAlgorithmId() {
+        return TieredPercentageProcessor.ALGORITHM_ID;
+    }
+
+    @Override
+    public String getDescription() {
+        return "Percentage distribution of revenues with aggregator value tiers by settled volume";
+    }
+
+    private void throwInvalidTier(String msg) throws RSSException {
+        String[] args = {msg};
+        throw new RSSException(UNICAExceptionType.INVALID_INPUT_VALUE, args);
+    }
+
+    /**
+     * Validates the RS Model according to the tiered percentage algorithm.
+     *
+     * The values of the model must be valid for the fixed percentage
+     * algorithm. At least a tier is required, thresholds must be greater
+     * than 0 and increasing, and the owner must keep a share in every tier.
+     *
+     * @param model RSSModel to be validated
+     * @throws RSSException if the model is not valid
+     */
+    @Override
+    public void validateModel(RSSModel model) throws RSSException {
+        this.baseProcessor.validateModel(model);
+
+        if (model.getTiers() == null || model.getTiers().isEmpty()) {
+            this.throwInvalidTier("The tiered percentage algorithm requires at least a volume tier");
+        }
+
+        BigDecimal stakeholdersValue = BigDecimal.ZERO;
+        if (model.getStakeholders() != null) {
+            for (StakeholderModel st: model.getStakeholders()) {
+                stakeholdersValue = stakeholdersValue.add(st.getModelValue());
+            }
+        }
+        BigDecimal maxValue = new BigDecimal("100").subtract(stakeholdersValue);
+
+        BigDecimal lastThreshold = BigDecimal.ZERO;
+        for (TierModel tier: model.getTiers()) {
+            if (tier.getThreshold() == null || tier.getAggregatorValue() == null) {
+                this.throwInvalidTier("Volume tiers require threshold and aggregatorValue");
+            }
+
+            if (tier.getThreshold().compareTo(lastThreshold) <= 0) {
+                this.throwInvalidTier("Tier thresholds must be greater than 0 and increasing");
+            }
+
+            if (tier.getAggregatorValue().compareTo(BigDecimal.ZERO) <= 0
+                    || tier.getAggregatorValue().compareTo(maxValue) >= 0) {
+                this.throwInvalidTier("Tier aggregatorValue must be greater than 0 and lower than "
+                        + maxValue + " so the owner keeps a share");
+            }
+            lastThreshold = tier.getThreshold();
+        }
+    }
+
+    /**
+     * Share plans of a model, one for the volume below the first threshold
+     * and one for each tier
+     */
+    private static final class TierPlans {
+        private final long[] thresholds;
+        private final SharePlan[] plans;
+
+        private TierPlans(RSSModel model) {
+            List<TierModel> tiers = model.getTiers() != null ? model.getTiers() : new ArrayList<>();
+            SharePlan base = SharePlan.compile(model);
+
+            this.thresholds = new long[tiers.size()];
+            this.plans = new SharePlan[tiers.size() + 1];
+            this.plans[0] = base;
+
+            for (int i = 0; i < tiers.size(); i++) {
+                this.thresholds[i] = SharePlan.toUnits(tiers.get(i).getThreshold());
+                this.plans[i + 1] = base.withAggregatorValue(tiers.get(i).getAggregatorValue());
+            }
+        }
+    }
+
+    private final Map<RSSModel, TierPlans> plans =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    @Override
+    public void invalidateModels() {
+        this.plans.clear();
+    }
+
+    @Override
+    public RSSModel calculateRevenue(RSSModel model, BigDecimal value) throws RSSException {
+        return this.calculateRevenue(model, value, BigDecimal.ZERO);
+    }
+
+    /**
+     * Calculates the distribution of revenues of a value given the volume
+     * already settled for the model. When the value crosses a threshold,
+     * each part of it is distributed with the value of its tier. Refunds
+     * move the volume back through the tiers. The shares have
+     * SharePlan.SCALE decimals and add up to the value.
+     *
+     * @param model Revenue sharing model to be used
+     * @param value Amount to be distributed
+     * @param settled Amount already settled for the model
+     * @return RSSModel with the amount divided according to the model
+     * @throws RSSException
+     */
+    @Override
+    public RSSModel calculateRevenue(RSSModel model, BigDecimal value,
+            BigDecimal settled) throws RSSException {
+
+        TierPlans tierPlans = this.plans.computeIfAbsent(model, TierPlans::new);
+
+        long amount = SharePlan.toUnits(value);
+        long start = SharePlan.toUnits(settled);
+        long from = Math.min(start, start + amount);
+        long to = Math.max(start, start + amount);
+
+        // Split the part of the value in each tier with the plan of the tier
+        long[] shares = new long[tierPlans.plans[0].size()];
+        long[] part = new long[shares.length];
+        long lower = from;
+
+        for (int i = 0; i < tierPlans.plans.length; i++) {
+            long upper = i < tierPlans.thresholds.length ? tierPlans.thresholds[i] : to;
+            long overlap = Math.min(to, upper) - Math.max(from, lower);
+
+            if (overlap > 0) {
+                tierPlans.plans[i].split(overlap, part);
+                for (int j = 0; j < shares.length; j++) {
+                    shares[j] += part[j];
+                }
+            }
+            lower = Math.max(lower, upper);
+        }
+
+        if (amount < 0) {
+            for (int j = 0; j < shares.length; j++) {
+                shares[j] = -shares[j];
+            }
+        }
+
+        RSSModel result = new RSSModel();
+        result.setProductClass(model.getProductClass());
+        result.setAlgorithmType(model.getAlgorithmType());
+
+        result.setAggregatorId(model.getAggregatorId());
+        result.setAggregatorShare(SharePlan.toValue(shares[SharePlan.AGGREGATOR]));
+
+        result.setOwnerProviderId(model.getOwnerProviderId());
+        result.setOwnerValue(SharePlan.toValue(shares[SharePlan.OWNER]));
+
+        List<StakeholderModel> stRev = new ArrayList<>();
+
+        if (model.getStakeholders() != null) {
+            for (int i = 0; i < model.getStakeholders().size(); i++) {
+                StakeholderModel m = new StakeholderModel();
+                m.setStakeholderId(model.getStakeholders().get(i).getStakeholderId());
+                m.setModelValue(SharePlan.toValue(shares[SharePlan.FIRST_STAKEHOLDER + i]));
+                stRev.add(m);
+            }
+        }
+        result.setStakeholders(stRev);
+
+        return result;
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of a list of CDRs saved in partial mode, including the errors of
+ * the rejected CDRs by their index in the list
+ */
+public class CdrBatchResult {
+
+    private Integer created = 0;
+    private List<CdrError> errors = new ArrayList<>();
+
+    public Integer getCreated() {
+        return created;
+    }
+
+    public void setCreated(Integer created) {
+        this.created = created;
+    }
+
+    public List<CdrError> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(List<CdrError> errors) {
+        this.errors = errors;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summary of a streamed CDR upload, including the result of every
+ * processed chunk
+ */
+public class CdrUploadResult {
+
+    private Integer created = 0;
+    private List<CdrChunkResult> chunks = new ArrayList<>();
+
+    public Integer getCreated() {
+        return created;
+    }
+
+    public void setCreated(Integer created) {
+        this.created = created;
+    }
+
+    public List<CdrChunkResult> getChunks() {
+        return chunks;
+    }
+
+    public void setChunks(List<CdrChunkResult> chunks) {
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns whether every chunk of the upload has been created
+     * @return
+     */
+    public boolean isCompleted() {
+        return this.chunks.stream().allMatch((chunk) ->
+                CdrChunkResult.CREATED.equals(chunk.getStatus()));
+    }
+}
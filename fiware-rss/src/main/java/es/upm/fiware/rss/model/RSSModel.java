@@ -33,6 +33,7 @@ public class RSSModel {
     private String aggregatorId;
     private BigDecimal aggregatorValue;
     private List<StakeholderModel> stakeholders;
+    private List<TierModel> tiers;
 
     public String getOwnerProviderId() {
         return ownerProviderId;
@@ -89,4 +90,12 @@ public class RSSModel {
     public void setStakeholders(List<StakeholderModel> stakeholders) {
         this.stakeholders = stakeholders;
     }
+
+    public List<TierModel> getTiers() {
+        return tiers;
+    }
+
+    public void setTiers(List<TierModel> tiers) {
+        this.tiers = tiers;
+    }
 }
@@ -26,6 +26,9 @@ public class SettlementJob {
     private String productClass;
     private String callbackUrl;
 
+    // Cron expression, if given the job is launched periodically
+    private String schedule;
+
     public String getAggregatorId() {
         return aggregatorId;
     }
@@ -57,4 +60,12 @@ public class SettlementJob {
     public void setCallbackUrl(String callbackUrl) {
         this.callbackUrl = callbackUrl;
     }
+
+    public String getSchedule() {
+        return schedule;
+    }
+
+    public void setSchedule(String schedule) {
+        this.schedule = schedule;
+    }
 }
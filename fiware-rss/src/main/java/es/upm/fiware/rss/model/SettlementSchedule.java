@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.model;
+
+import java.util.Date;
+
+/**
+ * Settlement job launched periodically following a cron expression
+ */
+public class SettlementSchedule {
+    private String id;
+    private String aggregatorId;
+    private String providerId;
+    private String productClass;
+    private String callbackUrl;
+    private String schedule;
+
+    // Next time the job is launched
+    private Date nextExecution;
+
+    // Identifier of the latest launched job
+    private String lastJobId;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getAggregatorId() {
+        return aggregatorId;
+    }
+
+    public void setAggregatorId(String aggregatorId) {
+        this.aggregatorId = aggregatorId;
+    }
+
+    public String getProviderId() {
+        return providerId;
+    }
+
+    public void setProviderId(String providerId) {
+        this.providerId = providerId;
+    }
+
+    public String getProductClass() {
+        return productClass;
+    }
+
+    public void setProductClass(String productClass) {
+        this.productClass = productClass;
+    }
+
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    public void setCallbackUrl(String callbackUrl) {
+        this.callbackUrl = callbackUrl;
+    }
+
+    public String getSchedule() {
+        return schedule;
+    }
+
+    public void setSchedule(String schedule) {
+        this.schedule = schedule;
+    }
+
+    public Date getNextExecution() {
+        return nextExecution;
+    }
+
+    public void setNextExecution(Date nextExecution) {
+        this.nextExecution = nextExecution;
+    }
+
+    public String getLastJobId() {
+        return lastJobId;
+    }
+
+    public void setLastJobId(String lastJobId) {
+        this.lastJobId = lastJobId;
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.dao.DbeAppProviderDao;
+import es.upm.fiware.rss.model.DbeAppProvider;
+import es.upm.fiware.rss.model.RSSModel;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Providers referenced by a RS model, owner and stakeholders, loaded
+ * with a single query. An instance is built for each create or update
+ * request, so validating and building the model does not query the
+ * database once per stakeholder.
+ */
+class AppProviderResolver {
+
+    private final Map<String, DbeAppProvider> providers =
+            new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     *
+     * @param appProviderDao
+     * @param rssModel Model whose owner and stakeholders are resolved
+     */
+    AppProviderResolver(DbeAppProviderDao appProviderDao, RSSModel rssModel) {
+        Set<String> ids = new LinkedHashSet<>();
+
+        if (rssModel.getOwnerProviderId() != null && !rssModel.getOwnerProviderId().isEmpty()) {
+            ids.add(rssModel.getOwnerProviderId());
+        }
+
+        if (rssModel.getStakeholders() != null) {
+            rssModel.getStakeholders().stream()
+                    .filter((st) -> st.getStakeholderId() != null && !st.getStakeholderId().isEmpty())
+                    .forEach((st) -> {
+                        ids.add(st.getStakeholderId());
+                    });
+        }
+
+        this.load(appProviderDao, rssModel.getAggregatorId(), ids);
+    }
+
+    private void load(DbeAppProviderDao appProviderDao, String aggregatorId,
+            Collection<String> ids) {
+
+        if (aggregatorId == null || aggregatorId.isEmpty() || ids.isEmpty()) {
+            return;
+        }
+
+        appProviderDao.getProviders(aggregatorId, ids).stream().forEach((provider) -> {
+            this.providers.put(provider.getId().getTxAppProviderId(), provider);
+        });
+    }
+
+    /**
+     * Returns the provider with the given id
+     * @param providerId
+     * @return The provider or null if it does not exist in the aggregator
+     */
+    DbeAppProvider getProvider(String providerId) {
+        return providerId == null ? null : this.providers.get(providerId);
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import es.upm.fiware.rss.dao.CdrImportDao;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrImport;
+
+/**
+ * Manages the state of bulk CDR imports
+ */
+@Service
+@Transactional(rollbackFor = Exception.class)
+public class CdrImportManager {
+
+    public static final String RUNNING = "running";
+    public static final String COMPLETED = "completed";
+    public static final String FAILED = "failed";
+
+    @Autowired
+    private CdrImportDao importDao;
+
+    @Autowired
+    private CdrsManager cdrsManager;
+
+    /**
+     * Saves a new running import
+     * @param path, Server path of the file to be imported
+     * @param format, ndjson or csv
+     * @param owner, Email of the user importing the file, null for admins
+     * @param uploaded, Whether the file has been uploaded
+     * @return The saved import
+     */
+    public CdrImport createImport(String path, String format, String owner, boolean uploaded) {
+        CdrImport cdrImport = new CdrImport();
+        cdrImport.setPath(path);
+        cdrImport.setFormat(format);
+        cdrImport.setOwner(owner);
+        cdrImport.setUploaded(uploaded);
+        cdrImport.setState(RUNNING);
+        cdrImport.setPosition(0);
+        cdrImport.setCdrs(0);
+        cdrImport.setCreated(new Date());
+
+        this.importDao.create(cdrImport);
+        return cdrImport;
+    }
+
+    /**
+     * Returns a given import
+     * @param id
+     * @return
+     * @throws RSSException, If the import does not exist
+     */
+    public CdrImport getImport(int id) throws RSSException {
+        CdrImport cdrImport = this.importDao.getById(id);
+
+        if (cdrImport == null) {
+            String[] args = {"CDR import " + id};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+        return cdrImport;
+    }
+
+    /**
+     * Returns the imports not finished yet
+     * @return
+     */
+    public List<CdrImport> getRunningImports() {
+        return this.importDao.getImportsByState(RUNNING);
+    }
+
+    /**
+     * Saves a chunk of CDRs of an import together with the file position
+     * following them, so the position is never ahead or behind the saved CDRs
+     * @param id
+     * @param cdrs
+     * @param position
+     * @throws RSSException, If the CDR information is not valid
+     */
+    public void saveChunk(int id, List<CDR> cdrs, long position) throws RSSException {
+        CdrImport cdrImport = this.getImport(id);
+
+        this.cdrsManager.createCDRs(cdrs, cdrImport.getOwner());
+        cdrImport.setPosition(position);
+        cdrImport.setCdrs(cdrImport.getCdrs() + cdrs.size());
+    }
+
+    /**
+     * Updates the state of an import
+     * @param id
+     * @param state
+     * @param error, Reason of the failure, null if the import has not failed
+     * @throws RSSException, If the import does not exist
+     */
+    public void updateState(int id, String state, String error) throws RSSException {
+        CdrImport cdrImport = this.getImport(id);
+        cdrImport.setState(state);
+        cdrImport.setError(error != null && error.length() > 1024 ? error.substring(0, 1024) : error);
+    }
+}
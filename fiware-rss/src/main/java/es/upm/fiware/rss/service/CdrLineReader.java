@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the lines of a file through a file channel keeping track of the
+ * byte position following the last line read, so the reading can be resumed
+ * from that position
+ */
+class CdrLineReader implements Closeable {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private long position = 0;
+
+    CdrLineReader(Path path, int bufferSize) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+    }
+
+    /**
+     * Moves the reader to a given byte position of the file
+     * @param position
+     * @throws IOException
+     */
+    void seek(long position) throws IOException {
+        this.channel.position(position);
+        this.buffer.clear();
+        this.buffer.flip();
+        this.position = position;
+    }
+
+    /**
+     * Returns the byte position following the last line read
+     * @return
+     */
+    long getPosition() {
+        return this.position;
+    }
+
+    /**
+     * Reads the next line of the file
+     * @return The line without the line terminator or null if the end of
+     * the file has been reached
+     * @throws IOException
+     */
+    String readLine() throws IOException {
+        this.line.reset();
+        boolean found = false;
+
+        while (!found) {
+            if (!this.buffer.hasRemaining()) {
+                this.buffer.clear();
+                int read = this.channel.read(this.buffer);
+                this.buffer.flip();
+
+                if (read < 0) {
+                    if (this.line.size() == 0) {
+                        return null;
+                    }
+                    break;
+                }
+                continue;
+            }
+
+            byte[] bytes = this.buffer.array();
+            int start = this.buffer.position();
+            int end = start;
+
+            while (end < this.buffer.limit() && bytes[end] != '\n') {
+                end++;
+            }
+
+            found = end < this.buffer.limit();
+            this.line.write(bytes, start, end - start);
+
+            int consumed = end - start + (found ? 1 : 0);
+            this.buffer.position(start + consumed);
+            this.position += consumed;
+        }
+
+        byte[] bytes = this.line.toByteArray();
+        int length = bytes.length;
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrBatchResult;
+import es.upm.fiware.rss.model.CdrError;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Saves lists of CDRs in partial mode. The list is split in sub-batches,
+ * each saved in its own database transaction, and the invalid CDRs are
+ * reported by index instead of rejecting the whole list, so clients only
+ * need to resend the failed CDRs.
+ */
+@Service
+public class CdrsBatchManager {
+
+    private final Logger logger = LoggerFactory.getLogger(CdrsBatchManager.class);
+
+    @Autowired
+    private CdrsManager cdrsManager;
+
+    @Autowired
+    private UserManager userManager;
+
+    /**
+     * Maximum number of CDRs saved in a single database transaction
+     */
+    @Value("${cdrs.batch.size:100}")
+    private int batchSize = 100;
+
+    private SortedMap<Integer, String> rejectAll(int size, String error) {
+        SortedMap<Integer, String> errors = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            errors.put(i, error);
+        }
+        return errors;
+    }
+
+    /**
+     * Saves the valid CDRs of a list
+     * @param cdrs, CDRs containing transaction information
+     * @return The number of saved CDRs and the errors of the rejected ones
+     * @throws RSSException, If the CDRs cannot be saved
+     */
+    public CdrBatchResult createCDRs(List<CDR> cdrs) throws RSSException {
+        String owner = this.userManager.isAdmin() ? null : this.userManager.getCurrentUser().getEmail();
+        CdrBatchResult result = new CdrBatchResult();
+
+        for (int offset = 0; offset < cdrs.size(); offset += this.batchSize) {
+            List<CDR> batch = cdrs.subList(offset, Math.min(offset + this.batchSize, cdrs.size()));
+            Map<Integer, String> errors;
+
+            // A failing sub-batch is rolled back, so all its CDRs are rejected
+            // while the sub-batches already saved are still reported
+            try {
+                errors = this.cdrsManager.createValidCDRs(batch, owner);
+            } catch (Exception e) {
+                this.logger.error("CDR sub-batch could not be saved: " + e.getMessage());
+                errors = this.rejectAll(batch.size(), "The CDR could not be saved");
+            }
+
+            for (Map.Entry<Integer, String> error: errors.entrySet()) {
+                result.getErrors().add(new CdrError(offset + error.getKey(), error.getValue()));
+            }
+            result.setCreated(result.getCreated() + batch.size() - errors.size());
+        }
+        return result;
+    }
+}
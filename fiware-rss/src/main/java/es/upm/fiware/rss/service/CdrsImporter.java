@@ -0,0 +1,388 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrImport;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Imports files of CDRs in background. The files contain a CDR per line,
+ * either as a JSON document (ndjson) or as a CSV record whose columns are
+ * named in a header line. The CDRs are saved in chunks with the validation
+ * of the CdrsManager, and every chunk stores the position of the file
+ * following it, so an interrupted import is resumed from there.
+ */
+@Service
+public class CdrsImporter {
+
+    public static final String NDJSON = "ndjson";
+    public static final String CSV = "csv";
+
+    private final Logger logger = LoggerFactory.getLogger(CdrsImporter.class);
+
+    @Autowired
+    private CdrImportManager importManager;
+
+    @Autowired
+    private UserManager userManager;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    /**
+     * Directory where uploaded files are saved and from where admins can
+     * import server files, the rss-imports directory of the user home if
+     * not provided
+     */
+    @Value("${cdrs.import.directory:}")
+    private String directory = "";
+
+    /**
+     * Maximum number of CDRs saved in a single database transaction
+     */
+    @Value("${cdrs.import.chunkSize:500}")
+    private int chunkSize = 500;
+
+    @Value("${cdrs.import.bufferSize:65536}")
+    private int bufferSize = 65536;
+
+    @Value("${cdrs.import.threads:1}")
+    private int threads = 1;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(this.getDirectory());
+        } catch (IOException e) {
+            this.logger.error("CDR import directory could not be created: " + e.getMessage());
+        }
+
+        AtomicInteger counter = new AtomicInteger(0);
+        this.executor = Executors.newFixedThreadPool(this.threads, (r) -> {
+            Thread thread = new Thread(r, "cdr-import-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Resume the imports interrupted in a previous execution
+        try {
+            this.importManager.getRunningImports().stream().forEach((cdrImport) -> {
+                this.submit(cdrImport.getId());
+            });
+        } catch (Exception e) {
+            this.logger.error("Running CDR imports could not be loaded: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        this.executor.shutdownNow();
+    }
+
+    protected void submit(int id) {
+        this.executor.submit(() -> this.runImport(id));
+    }
+
+    private Path getDirectory() {
+        Path dir = this.directory == null || this.directory.isEmpty()
+                ? Paths.get(System.getProperty("user.home"), "rss-imports") : Paths.get(this.directory);
+
+        return dir.toAbsolutePath().normalize();
+    }
+
+    // Imports store paths relative to the import directory, so the server
+    // directory layout is not exposed
+    private String getImportPath(Path file) {
+        return this.getDirectory().relativize(file).toString();
+    }
+
+    private String getOwner() throws RSSException {
+        return this.userManager.isAdmin() ? null : this.userManager.getCurrentUser().getEmail();
+    }
+
+    private void checkFormat(String format) throws RSSException {
+        if (!NDJSON.equals(format) && !CSV.equals(format)) {
+            String[] args = {"format", NDJSON + ", " + CSV};
+            throw new RSSException(UNICAExceptionType.INVALID_INPUT_LIST_VALUE, args);
+        }
+    }
+
+    /**
+     * Starts the import of a file located in the import directory of the
+     * server, only admins are allowed to import server files
+     * @param path, Path of the file
+     * @param format, ndjson or csv
+     * @return The started import
+     * @throws RSSException, If the file cannot be imported
+     */
+    public CdrImport importFile(String path, String format) throws RSSException {
+        if (!this.userManager.isAdmin()) {
+            String[] args = {"You are not allowed to import server files"};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+        this.checkFormat(format);
+
+        Path file = this.getDirectory().resolve(path).normalize();
+        if (!file.startsWith(this.getDirectory())) {
+            String[] args = {"Files can only be imported from the import directory"};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+
+        if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+            String[] args = {"file (" + path + ")"};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+
+        CdrImport cdrImport = this.importManager.createImport(
+                this.getImportPath(file), format, null, false);
+
+        this.submit(cdrImport.getId());
+        return cdrImport;
+    }
+
+    /**
+     * Saves an uploaded file in the import directory and starts its import
+     * @param in, Content of the file
+     * @param format, ndjson or csv
+     * @return The started import
+     * @throws RSSException, If the format is not supported
+     * @throws IOException, If the file cannot be saved
+     */
+    public CdrImport importUpload(InputStream in, String format) throws RSSException, IOException {
+        this.checkFormat(format);
+        String owner = this.getOwner();
+
+        Path file = Files.createTempFile(this.getDirectory(), "cdrs-", "." + format);
+        try {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        CdrImport cdrImport = this.importManager.createImport(
+                this.getImportPath(file), format, owner, true);
+
+        this.submit(cdrImport.getId());
+        return cdrImport;
+    }
+
+    /**
+     * Returns an import started by the current user
+     * @param id
+     * @return
+     * @throws RSSException, If the import does not exist or it has been
+     * started by other user
+     */
+    public CdrImport getImport(int id) throws RSSException {
+        CdrImport cdrImport = this.importManager.getImport(id);
+        String owner = this.getOwner();
+
+        if (owner != null && !owner.equalsIgnoreCase(cdrImport.getOwner())) {
+            String[] args = {"You are not allowed to access the CDR import " + id};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+        return cdrImport;
+    }
+
+    /**
+     * Resumes a failed import from the position of the last saved chunk
+     * @param id
+     * @return The resumed import
+     * @throws RSSException, If the import cannot be resumed
+     */
+    public CdrImport resume(int id) throws RSSException {
+        CdrImport cdrImport = this.getImport(id);
+
+        if (!CdrImportManager.FAILED.equals(cdrImport.getState())) {
+            String[] args = {"Only failed CDR imports can be resumed"};
+            throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        }
+
+        this.importManager.updateState(id, CdrImportManager.RUNNING, null);
+        cdrImport.setState(CdrImportManager.RUNNING);
+        cdrImport.setError(null);
+
+        this.submit(id);
+        return cdrImport;
+    }
+
+    /**
+     * Splits a CSV record, values can be quoted with double quotes to
+     * include commas, line breaks are not supported within values
+     * @param line
+     * @return
+     */
+    protected List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append(c);
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString().trim());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString().trim());
+        return values;
+    }
+
+    private CDR parseCdr(String line, List<String> header) throws IOException {
+        if (header == null) {
+            return this.mapper.readValue(line, CDR.class);
+        }
+
+        List<String> values = this.parseCsvLine(line);
+        if (values.size() != header.size()) {
+            throw new IllegalArgumentException("Expected " + header.size()
+                    + " values but found " + values.size());
+        }
+
+        Map<String, String> fields = new HashMap<>();
+        for (int i = 0; i < header.size(); i++) {
+            if (!values.get(i).isEmpty()) {
+                fields.put(header.get(i), values.get(i));
+            }
+        }
+        return this.mapper.convertValue(fields, CDR.class);
+    }
+
+    // The cause is only logged, as it may include contents of the file
+    private void fail(int id, String error, Exception cause) {
+        this.logger.error("CDR import " + id + " failed: " + error + " " + cause.getMessage());
+        try {
+            this.importManager.updateState(id, CdrImportManager.FAILED, error);
+        } catch (Exception e) {
+            this.logger.error("CDR import " + id + " could not be updated: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Imports the CDRs of a file from the position saved in the import
+     * @param id
+     */
+    protected void runImport(int id) {
+        CdrImport cdrImport;
+        try {
+            cdrImport = this.importManager.getImport(id);
+        } catch (RSSException e) {
+            this.logger.error(e.getMessage());
+            return;
+        }
+
+        Path file = this.getDirectory().resolve(cdrImport.getPath());
+        try (CdrLineReader reader = new CdrLineReader(file, this.bufferSize)) {
+            List<String> header = null;
+
+            if (CSV.equals(cdrImport.getFormat())) {
+                String line = reader.readLine();
+                header = line != null ? this.parseCsvLine(line) : new ArrayList<>();
+            }
+
+            if (cdrImport.getPosition() > reader.getPosition()) {
+                reader.seek(cdrImport.getPosition());
+            }
+
+            List<CDR> chunk = new ArrayList<>(this.chunkSize);
+            long start = reader.getPosition();
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // The import is kept running to be resumed in the next execution
+                    return;
+                }
+
+                if (!line.trim().isEmpty()) {
+                    try {
+                        chunk.add(this.parseCdr(line, header));
+                    } catch (IOException | IllegalArgumentException e) {
+                        // Save the valid CDRs so the import can be resumed from the invalid one
+                        if (!chunk.isEmpty()) {
+                            this.importManager.saveChunk(id, chunk, start);
+                        }
+                        this.fail(id, "Invalid CDR at byte " + start, e);
+                        return;
+                    }
+                }
+
+                if (chunk.size() == this.chunkSize) {
+                    this.importManager.saveChunk(id, chunk, reader.getPosition());
+                    chunk.clear();
+                }
+                start = reader.getPosition();
+            }
+
+            if (!chunk.isEmpty()) {
+                this.importManager.saveChunk(id, chunk, reader.getPosition());
+            }
+            this.importManager.updateState(id, CdrImportManager.COMPLETED, null);
+
+            if (cdrImport.isUploaded()) {
+                Files.deleteIfExists(file);
+            }
+        } catch (ClosedByInterruptException e) {
+            this.logger.info("CDR import " + id + " interrupted");
+        } catch (RSSException e) {
+            this.fail(id, e.getMessage(), e);
+        } catch (Exception e) {
+            this.fail(id, "Unexpected error reading the file", e);
+        }
+    }
+}
@@ -37,11 +37,20 @@ import es.upm.fiware.rss.model.ProductClasses;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -76,8 +85,16 @@ public class CdrsManager {
     private UserManager userManager;
 
     @Autowired
-    private RSSModelsManager modelsManager;
-
+    private TransactionIdAllocator idAllocator;
+
+    @PostConstruct
+    public void init() {
+        try {
+            this.idAllocator.createSequence();
+        } catch (Exception e) {
+            this.logger.error("Transaction id sequence could not be created: " + e.getMessage());
+        }
+    }
 
     private List<CDR> getCDRsAPIFormat(List<DbeTransaction> txs) {
         List<CDR> result = new ArrayList<>();
@@ -165,106 +182,294 @@ public class CdrsManager {
     }
 
     /**
-     * Saves a list of CDRs in the database as transactionss
+     * Correlation numbers of a provider used by a list of CDRs
+     */
+    private static class CorrelationRange {
+        private final String aggregatorId;
+        private final String providerId;
+        private final Integer first;
+        private Integer next;
+        private Date timestamp;
+        private final List<Integer> indexes = new ArrayList<>();
+
+        CorrelationRange(String aggregatorId, DbeAppProvider provider) {
+            this.aggregatorId = aggregatorId;
+            this.providerId = provider.getId().getTxAppProviderId();
+            this.first = provider.getTxCorrelationNumber();
+            this.next = provider.getTxCorrelationNumber();
+            this.timestamp = provider.getTxTimeStamp();
+        }
+    }
+
+    private Map<String, DbeAggregator> getAggregators(List<CDR> cdrs) {
+        Map<String, DbeAggregator> aggregators = new HashMap<>();
+
+        cdrs.stream()
+                .map(CDR::getCdrSource)
+                .filter(Objects::nonNull)
+                .distinct()
+                .forEach((source) -> {
+                    aggregators.put(source, this.aggregatorDao.getById(source));
+                });
+        return aggregators;
+    }
+
+    private Map<String, Map<String, DbeAppProvider>> getProviders(List<CDR> cdrs,
+            Map<String, DbeAggregator> aggregators) {
+
+        Map<String, Set<String>> providerIds = new HashMap<>();
+        cdrs.stream()
+                .filter((cdr) -> aggregators.get(cdr.getCdrSource()) != null
+                        && cdr.getAppProvider() != null)
+                .forEach((cdr) -> {
+                    providerIds.computeIfAbsent(cdr.getCdrSource(), (source) -> new HashSet<>())
+                            .add(cdr.getAppProvider());
+                });
+
+        // A single query per aggregator loads every provider of the CDRs
+        Map<String, Map<String, DbeAppProvider>> providers = new HashMap<>();
+        providerIds.forEach((source, ids) -> {
+            Map<String, DbeAppProvider> aggProviders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+            this.appProviderDao.getProviders(source, ids).stream().forEach((provider) -> {
+                aggProviders.put(provider.getId().getTxAppProviderId(), provider);
+            });
+            providers.put(source, aggProviders);
+        });
+        return providers;
+    }
+
+    private Map<String, BmCurrency> getCurrencies(List<CDR> cdrs) {
+        Map<String, BmCurrency> currencies = new HashMap<>();
+
+        cdrs.stream()
+                .map(CDR::getCurrency)
+                .filter(Objects::nonNull)
+                .distinct()
+                .forEach((code) -> {
+                    currencies.put(code, this.currencyDao.getByIso4217StringCode(code));
+                });
+        return currencies;
+    }
+
+    /**
+     * Saves a list of CDRs in the database as transactions. The aggregators,
+     * providers and currencies of the CDRs are loaded once for the whole
+     * list and the CDRs are validated in memory, then the transactions are
+     * inserted in JDBC batches with a block of reserved ids. The correlation
+     * numbers of each provider are advanced with a conditional update, so
+     * lists of different providers can be saved in parallel while concurrent
+     * lists of the same provider are rejected instead of overwritten.
      * @param cdrs, CDRs containing transaction information
      * @throws RSSException, If the CDR information is not valid
      */
     public void createCDRs(List<CDR> cdrs) throws RSSException {
+        // Check if the user has permission to create the transactions
+        String owner = userManager.isAdmin() ? null : userManager.getCurrentUser().getEmail();
+        this.createCDRs(cdrs, owner);
+    }
 
-        // Process CDRs one by one
-        for (CDR cdr: cdrs) {
-            // Check if the user has permission to create a new transaction
-            if (!userManager.isAdmin() && 
-                !userManager.getCurrentUser().getEmail().equalsIgnoreCase(cdr.getCdrSource())) {
-                String[] args = {"You are not allowed to register a transaction for the Store owned by " + cdr.getCdrSource()};
-                throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
-            }
+    /**
+     * Saves a list of CDRs on behalf of a given user, used when the CDRs are
+     * not processed within the request of the user
+     * @param cdrs, CDRs containing transaction information
+     * @param owner, email of the user registering the CDRs, null if the user
+     * is an admin
+     * @throws RSSException, If the CDR information is not valid
+     */
+    public void createCDRs(List<CDR> cdrs, String owner) throws RSSException {
+        this.saveCDRs(cdrs, owner, null);
+    }
 
-            // Check that the aggregator (CDR Source) exists
-            DbeAggregator aggregator = this.aggregatorDao.getById(cdr.getCdrSource());
+    /**
+     * Saves the valid CDRs of a list and skips the invalid ones. As the
+     * correlation numbers are sequential, the CDRs of a provider following
+     * an invalid one are rejected too.
+     * @param cdrs, CDRs containing transaction information
+     * @param owner, email of the user registering the CDRs, null if the user
+     * is an admin
+     * @return The errors of the rejected CDRs by index in the list
+     * @throws RSSException, If the CDRs cannot be saved
+     */
+    public SortedMap<Integer, String> createValidCDRs(List<CDR> cdrs, String owner) throws RSSException {
+        SortedMap<Integer, String> errors = new TreeMap<>();
+        this.saveCDRs(cdrs, owner, errors);
+        return errors;
+    }
 
-            if (aggregator ==  null) {
-                String[] args = {"Aggregator (" + cdr.getCdrSource() + ")"};
-                throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
-            }
+    private DbeTransaction buildTransaction(int index, CDR cdr, String owner,
+            Map<String, DbeAggregator> aggregators,
+            Map<String, Map<String, DbeAppProvider>> providers,
+            Map<String, BmCurrency> currencies,
+            Map<String, CorrelationRange> ranges) throws RSSException {
 
-            // Validate the provider
-            this.modelsManager.checkValidAppProvider(cdr.getCdrSource(), cdr.getAppProvider());
-            DbeAppProvider provider = this.appProviderDao.getProvider(cdr.getCdrSource(), cdr.getAppProvider());
+        // Check if the user has permission to create the transaction
+        if (owner != null && !owner.equalsIgnoreCase(cdr.getCdrSource())) {
+            String[] args = {"You are not allowed to register a transaction for the Store owned by " + cdr.getCdrSource()};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
 
-            // Validate the currency
-            BmCurrency currency = this.currencyDao.getByIso4217StringCode(cdr.getCurrency());
+        // Check that the aggregator (CDR Source) exists
+        DbeAggregator aggregator = aggregators.get(cdr.getCdrSource());
 
-            if (currency == null)  {
-                String[] args = {"currency (" + cdr.getCurrency() + ")"};
-                throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
-            }
+        if (aggregator ==  null) {
+            String[] args = {"Aggregator (" + cdr.getCdrSource() + ")"};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
 
-            // Validate correlation number and timestamp
-            Integer nextCorr = provider.getTxCorrelationNumber();
-            if (!nextCorr.equals(cdr.getCorrelationNumber())) {
-                String[] args = {"Invalid correlation number, expected " + nextCorr};
-                throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
-            }
+        // Validate the provider
+        DbeAppProvider provider = cdr.getAppProvider() != null
+                ? providers.get(cdr.getCdrSource()).get(cdr.getAppProvider()) : null;
 
-            provider.setTxCorrelationNumber(nextCorr + 1);
+        if (provider == null) {
+            String[] args = {"provider"};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
 
-            Date prevTime = provider.getTxTimeStamp();
-            if (cdr.getTimestamp() == null || prevTime.after(cdr.getTimestamp())) {
-                String[] args = {"Invalid timestamp, the given time is earlier that the prevoius one"};
-                throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
-            }
+        // Validate the currency
+        BmCurrency currency = cdr.getCurrency() != null ? currencies.get(cdr.getCurrency()) : null;
 
-            provider.setTxTimeStamp(cdr.getTimestamp());
+        if (currency == null)  {
+            String[] args = {"currency (" + cdr.getCurrency() + ")"};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
 
-            // Validate transaction type
-            if (!cdr.getTransactionType().equalsIgnoreCase("C") &&
-                    !cdr.getTransactionType().equalsIgnoreCase("R")) {
+        // Validate correlation number and timestamp against the previous
+        // CDR of the provider, which can be included in the same list
+        CorrelationRange range = ranges.computeIfAbsent(
+                cdr.getCdrSource() + " " + provider.getId().getTxAppProviderId(),
+                (key) -> new CorrelationRange(cdr.getCdrSource(), provider));
 
-                String[] args = {"The transaction type " + cdr.getTransactionType()
-                        + " is not supported, must be C (charge) or R (refund)"};
-                throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
-            }
+        if (range.first == null) {
+            String[] args = {"The correlation number of the provider "
+                    + range.providerId + " has not been initialized"};
+            throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        }
+
+        if (!range.next.equals(cdr.getCorrelationNumber())) {
+            String[] args = {"Invalid correlation number, expected " + range.next};
+            throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        }
+
+        // Providers without previous CDRs may not have a timestamp
+        if (cdr.getTimestamp() == null
+                || (range.timestamp != null && range.timestamp.after(cdr.getTimestamp()))) {
+            String[] args = {"Invalid timestamp, the given time is earlier that the prevoius one"};
+            throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        }
+
+        // Validate transaction type
+        if (cdr.getTransactionType() == null) {
+            String[] args = {"transactionType"};
+            throw new RSSException(UNICAExceptionType.MISSING_MANDATORY_PARAMETER, args);
+        }
+
+        if (!cdr.getTransactionType().equalsIgnoreCase("C") &&
+                !cdr.getTransactionType().equalsIgnoreCase("R")) {
+
+            String[] args = {"The transaction type " + cdr.getTransactionType()
+                    + " is not supported, must be C (charge) or R (refund)"};
+            throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        }
+
+        if (cdr.getProductClass() == null || cdr.getProductClass().isEmpty()) {
+            String[] args = {"productClass"};
+            throw new RSSException(UNICAExceptionType.MISSING_MANDATORY_PARAMETER, args);
+        }
+
+        if (cdr.getReferenceCode() == null || cdr.getReferenceCode().isEmpty()) {
+            String[] args = {"referenceCode"};
+            throw new RSSException(UNICAExceptionType.MISSING_MANDATORY_PARAMETER, args);
+        }
+
+        // Build the transaction
+        DbeTransaction tx = new DbeTransaction();
+        tx.setTxProductClass(cdr.getProductClass());
+        tx.setState("pending");
+        tx.setCdrSource(aggregator);
+        tx.setTxPbCorrelationId(cdr.getCorrelationNumber());
+        tx.setTsClientDate(cdr.getTimestamp());
+        tx.setTxApplicationId(cdr.getApplication());
+        tx.setTcTransactionType(cdr.getTransactionType());
+        tx.setTxEvent(cdr.getEvent());
+        tx.setTxReferenceCode(cdr.getReferenceCode());
+        tx.setTxOperationNature(cdr.getDescription());
+        tx.setFtChargedAmount(cdr.getChargedAmount());
+        tx.setFtChargedTaxAmount(cdr.getChargedTaxAmount());
+        tx.setBmCurrency(currency);
+        tx.setTxEndUserId(cdr.getCustomerId());
+        tx.setAppProvider(provider);
+
+        // The correlation number is only consumed by valid CDRs
+        range.next = range.next + 1;
+        range.timestamp = cdr.getTimestamp();
+        range.indexes.add(index);
+        return tx;
+    }
+
+    /**
+     * Validates and saves a list of CDRs. If an error map is provided the
+     * invalid CDRs are included in it and skipped, otherwise the first
+     * invalid CDR aborts the whole list.
+     */
+    private void saveCDRs(List<CDR> cdrs, String owner, Map<Integer, String> errors)
+            throws RSSException {
+
+        Map<String, DbeAggregator> aggregators = this.getAggregators(cdrs);
+        Map<String, Map<String, DbeAppProvider>> providers = this.getProviders(cdrs, aggregators);
+        Map<String, BmCurrency> currencies = this.getCurrencies(cdrs);
+
+        SortedMap<Integer, DbeTransaction> valid = new TreeMap<>();
 
-            // Save CDR to the database
-            DbeTransaction tx = new DbeTransaction();
+        // Sorted so concurrent lists lock the providers in the same order
+        Map<String, CorrelationRange> ranges = new TreeMap<>();
 
-            if (cdr.getProductClass() == null || cdr.getProductClass().isEmpty()) {
-                String[] args = {"productClass"};
-                throw new RSSException(UNICAExceptionType.MISSING_MANDATORY_PARAMETER, args);
+        // Validate CDRs one by one, in order as correlation numbers are sequential
+        for (int i = 0; i < cdrs.size(); i++) {
+            try {
+                valid.put(i, this.buildTransaction(
+                        i, cdrs.get(i), owner, aggregators, providers, currencies, ranges));
+            } catch (RSSException e) {
+                if (errors == null) {
+                    throw e;
+                }
+                errors.put(i, e.getMessage());
             }
+        }
 
-            if (cdr.getReferenceCode() == null || cdr.getReferenceCode().isEmpty()) {
-                String[] args = {"referenceCode"};
-                throw new RSSException(UNICAExceptionType.MISSING_MANDATORY_PARAMETER, args);
+        // Advance the correlation numbers of the providers, the update fails if
+        // other CDRs of the same provider have been registered concurrently
+        for (CorrelationRange range: ranges.values()) {
+            if (range.indexes.isEmpty() || this.appProviderDao.advanceCorrelationNumber(
+                    range.aggregatorId, range.providerId, range.first, range.next, range.timestamp)) {
+                continue;
             }
 
-            tx.setTxProductClass(cdr.getProductClass());
-            tx.setState("pending");
-            tx.setCdrSource(aggregator);
-            tx.setTxPbCorrelationId(cdr.getCorrelationNumber());
-            tx.setTsClientDate(cdr.getTimestamp());
-            tx.setTxApplicationId(cdr.getApplication());
-            tx.setTcTransactionType(cdr.getTransactionType());
-            tx.setTxEvent(cdr.getEvent());
-            tx.setTxReferenceCode(cdr.getReferenceCode());
-            tx.setTxOperationNature(cdr.getDescription());
-            tx.setFtChargedAmount(cdr.getChargedAmount());
-            tx.setFtChargedTaxAmount(cdr.getChargedTaxAmount());
-            tx.setBmCurrency(currency);
-            tx.setTxEndUserId(cdr.getCustomerId());
-            tx.setAppProvider(provider);
+            String[] args = {"Invalid correlation number, other transactions of the provider "
+                    + range.providerId + " have been registered concurrently"};
+            RSSException e = new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
 
-            try {
-                this.transactionDao.create(tx);
-            } catch (org.hibernate.NonUniqueObjectException e) {
-                String msg = "This transaction has been already registered:" +
-                        "For a given transaction the provider, the reference, " +
-                        " and the correlation number must be unique";
-
-                String[] args = {msg};
-                throw new RSSException(UNICAExceptionType.RESOURCE_ALREADY_EXISTS, args);
+            if (errors == null) {
+                throw e;
             }
+            range.indexes.stream().forEach((index) -> {
+                valid.remove(index);
+                errors.put(index, e.getMessage());
+            });
+        }
+
+        if (valid.isEmpty()) {
+            return;
+        }
+
+        // Save the transactions with consecutive ids in the order of the CDRs, the
+        // ids are reserved last as concurrent lists wait for this one to commit
+        List<DbeTransaction> txs = new ArrayList<>(valid.values());
+        int nextId = this.idAllocator.reserve(txs.size());
+        for (DbeTransaction tx: txs) {
+            tx.setTxTransactionId(nextId++);
         }
+
+        this.transactionDao.createTransactions(txs);
     }
 }
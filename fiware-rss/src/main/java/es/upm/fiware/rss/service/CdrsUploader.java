@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrChunkResult;
+import es.upm.fiware.rss.model.CdrUploadResult;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Imports a JSON array of CDRs without loading the whole document. The array
+ * is parsed incrementally and the CDRs are saved in chunks, each of them in
+ * its own database transaction.
+ */
+@Service
+public class CdrsUploader {
+
+    private final Logger logger = LoggerFactory.getLogger(CdrsUploader.class);
+
+    @Autowired
+    private CdrsManager cdrsManager;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    /**
+     * Maximum number of CDRs saved in a single database transaction
+     */
+    @Value("${cdrs.upload.chunkSize:500}")
+    private int chunkSize = 500;
+
+    private CdrChunkResult buildChunkResult(int offset, int size, String status) {
+        CdrChunkResult result = new CdrChunkResult();
+        result.setOffset(offset);
+        result.setSize(size);
+        result.setStatus(status);
+        return result;
+    }
+
+    private boolean saveChunk(List<CDR> chunk, int offset, CdrUploadResult result) {
+        CdrChunkResult chunkResult;
+        try {
+            this.cdrsManager.createCDRs(chunk);
+            chunkResult = this.buildChunkResult(offset, chunk.size(), CdrChunkResult.CREATED);
+            result.setCreated(result.getCreated() + chunk.size());
+        } catch (RSSException e) {
+            logger.info("CDR chunk starting at {} rejected: {}", offset, e.getMessage());
+            chunkResult = this.buildChunkResult(offset, chunk.size(), CdrChunkResult.FAILED);
+            chunkResult.setError(e.getMessage());
+        }
+        result.getChunks().add(chunkResult);
+        return CdrChunkResult.CREATED.equals(chunkResult.getStatus());
+    }
+
+    /**
+     * Saves the CDRs included in a JSON array read from the given stream.
+     * The upload stops at the first chunk that cannot be saved, as the
+     * correlation numbers of the following CDRs would not be valid, the
+     * chunks saved before it are kept.
+     * @param in, Stream containing a JSON array of CDRs
+     * @return The result of every processed chunk
+     * @throws RSSException, If the stream does not contain a JSON array
+     * @throws IOException, If the stream cannot be read
+     */
+    public CdrUploadResult upload(InputStream in) throws RSSException, IOException {
+        CdrUploadResult result = new CdrUploadResult();
+
+        try (JsonParser parser = this.mapper.getFactory().createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                String[] args = {"CDR list"};
+                throw new RSSException(UNICAExceptionType.CONTENT_NOT_WELL_FORMED, args);
+            }
+
+            List<CDR> chunk = new ArrayList<>(this.chunkSize);
+            int offset = 0;
+
+            try {
+                JsonToken token;
+                while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if (token != JsonToken.START_OBJECT) {
+                        throw new JsonParseException("CDR object expected",
+                                parser.getCurrentLocation());
+                    }
+                    chunk.add(this.mapper.readValue(parser, CDR.class));
+
+                    if (chunk.size() == this.chunkSize) {
+                        if (!this.saveChunk(chunk, offset, result)) {
+                            return result;
+                        }
+                        offset += chunk.size();
+                        chunk.clear();
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                // The CDRs parsed since the last saved chunk are discarded
+                CdrChunkResult chunkResult = this.buildChunkResult(
+                        offset, chunk.size(), CdrChunkResult.FAILED);
+
+                chunkResult.setError("Invalid CDR document: " + e.getOriginalMessage());
+                result.getChunks().add(chunkResult);
+                return result;
+            }
+
+            if (!chunk.isEmpty()) {
+                this.saveChunk(chunk, offset, result);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.StakeholderModel;
+import es.upm.fiware.rss.model.TierModel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * In memory index of the RS models keyed by aggregator, owner provider and
+ * product class. The models of each aggregator are tagged with the version
+ * of the aggregator models in the database, which is increased by every
+ * change. Versions are checked again once checkInterval ms have passed,
+ * so changes made by other nodes are seen, and only the aggregators whose
+ * version has changed are loaded again. Changes made by this node are
+ * seen by the next lookup, and a load that races with them is never kept.
+ *
+ * Lookups return copies, since the algorithm processors write the computed
+ * revenue into the models they receive.
+ */
+class RSSModelIndex {
+
+    /**
+     * Source of the indexed models
+     */
+    interface Source {
+
+        /**
+         * @return Version of the models of each aggregator in the database,
+         * keyed by lower case aggregator id. Aggregators whose models have
+         * never changed may be missing.
+         */
+        Map<String, Long> getVersions();
+
+        /**
+         * @param aggregatorId Aggregator whose models are loaded, all the
+         * models are loaded if null
+         * @return List of models
+         */
+        List<RSSModel> getModels(String aggregatorId);
+    }
+
+    private static final class Snapshot {
+        private final long generation;
+        private final long checked;
+        private final Map<String, Long> versions;
+        private final Map<String, Map<List<String>, RSSModel>> models;
+
+        private Snapshot(long generation, long checked, Map<String, Long> versions,
+                Map<String, Map<List<String>, RSSModel>> models) {
+            this.generation = generation;
+            this.checked = checked;
+            this.versions = versions;
+            this.models = models;
+        }
+    }
+
+    // Increased by every invalidation made by this node
+    private final AtomicLong generation = new AtomicLong();
+    private final Set<String> invalidated = ConcurrentHashMap.newKeySet();
+    private volatile Snapshot snapshot;
+
+    private volatile long checkInterval = 5000;
+
+    /**
+     * @param checkInterval Milliseconds the versions of the models are
+     * trusted before checking them again in the database
+     */
+    void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Discards the loaded models of an aggregator, so the next lookup
+     * loads them again
+     * @param aggregatorId
+     */
+    void invalidate(String aggregatorId) {
+        // Registered before the generation changes, so a refresh seeing the
+        // new generation always sees the aggregator
+        this.invalidated.add(normalize(aggregatorId));
+        this.generation.incrementAndGet();
+    }
+
+    private static String normalize(String value) {
+        return value == null ? "" : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> getKey(String aggregatorId, String providerId, String productClass) {
+        return Arrays.asList(normalize(aggregatorId), normalize(providerId), normalize(productClass));
+    }
+
+    private static void put(Map<String, Map<List<String>, RSSModel>> models, RSSModel model) {
+        models.computeIfAbsent(normalize(model.getAggregatorId()), (a) -> new LinkedHashMap<>())
+                .put(getKey(model.getAggregatorId(), model.getOwnerProviderId(),
+                        model.getProductClass()), model);
+    }
+
+    private boolean isFresh(Snapshot current) {
+        return current != null && current.generation == this.generation.get()
+                && System.currentTimeMillis() - current.checked < this.checkInterval;
+    }
+
+    private Snapshot getSnapshot(Source source) {
+        Snapshot current = this.snapshot;
+
+        if (this.isFresh(current)) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = this.snapshot;
+            if (this.isFresh(current)) {
+                return current;
+            }
+
+            long loadGeneration = this.generation.get();
+            Set<String> stale = new HashSet<>(this.invalidated);
+            this.invalidated.removeAll(stale);
+
+            // Versions are read before the models, so a change committed
+            // in between is loaded again on the next check
+            long checked = System.currentTimeMillis();
+            Map<String, Long> versions = source.getVersions();
+            Map<String, Map<List<String>, RSSModel>> models = new LinkedHashMap<>();
+
+            if (current == null) {
+                source.getModels(null).stream().forEach((model) -> put(models, model));
+            } else {
+                models.putAll(current.models);
+
+                Set<String> aggregators = new HashSet<>(versions.keySet());
+                aggregators.addAll(current.versions.keySet());
+                aggregators.addAll(stale);
+
+                for (String aggregator: aggregators) {
+                    Long version = versions.getOrDefault(aggregator, 0L);
+
+                    if (stale.contains(aggregator)
+                            || !version.equals(current.versions.getOrDefault(aggregator, 0L))) {
+                        models.remove(aggregator);
+                        source.getModels(aggregator).stream().forEach((model) -> put(models, model));
+                    }
+                }
+            }
+
+            current = new Snapshot(loadGeneration, checked,
+                    versions, Collections.unmodifiableMap(models));
+
+            // If the models changed while loading, the snapshot is used for
+            // this lookup only
+            if (this.generation.get() == loadGeneration) {
+                this.snapshot = current;
+            } else {
+                this.invalidated.addAll(stale);
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Returns the RS model identified by aggregator, owner provider and product class
+     * @param aggregatorId
+     * @param providerId
+     * @param productClass
+     * @param source Source of the models if they need to be loaded
+     * @return A copy of the model if it exists
+     */
+    Optional<RSSModel> getModel(String aggregatorId, String providerId,
+            String productClass, Source source) {
+
+        return Optional.ofNullable(this.getSnapshot(source).models.get(normalize(aggregatorId)))
+                .map((models) -> models.get(getKey(aggregatorId, providerId, productClass)))
+                .map(RSSModelIndex::copy);
+    }
+
+    /**
+     * Returns the RS models that fit the filters. As with the database queries,
+     * the provider is only used when the aggregator is given and the product
+     * class only when the provider is given.
+     * @param aggregatorId
+     * @param providerId
+     * @param productClass
+     * @param source Source of the models if they need to be loaded
+     * @return List with a copy of each model
+     */
+    List<RSSModel> getModels(String aggregatorId, String providerId,
+            String productClass, Source source) {
+
+        Map<String, Map<List<String>, RSSModel>> models = this.getSnapshot(source).models;
+        boolean byAggregator = aggregatorId != null && !aggregatorId.isEmpty();
+        boolean byProvider = byAggregator && providerId != null && !providerId.isEmpty();
+        boolean byClass = byProvider && productClass != null && !productClass.isEmpty();
+
+        if (byClass) {
+            return Optional.ofNullable(models.get(normalize(aggregatorId)))
+                    .map((aggregatorModels) -> aggregatorModels.get(
+                            getKey(aggregatorId, providerId, productClass)))
+                    .map((model) -> Collections.singletonList(copy(model)))
+                    .orElse(Collections.emptyList());
+        }
+
+        Collection<Map<List<String>, RSSModel>> selected = models.values();
+        if (byAggregator) {
+            selected = Optional.ofNullable(models.get(normalize(aggregatorId)))
+                    .map(Collections::singleton)
+                    .orElse(Collections.emptySet());
+        }
+
+        String provider = normalize(providerId);
+
+        return selected.stream()
+                .flatMap((aggregatorModels) -> aggregatorModels.entrySet().stream())
+                .filter((e) -> !byProvider || e.getKey().get(1).equals(provider))
+                .map((e) -> copy(e.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    private static RSSModel copy(RSSModel model) {
+        RSSModel copy = new RSSModel();
+        copy.setAggregatorId(model.getAggregatorId());
+        copy.setAggregatorShare(model.getAggregatorValue());
+        copy.setOwnerProviderId(model.getOwnerProviderId());
+        copy.setOwnerValue(model.getOwnerValue());
+        copy.setAlgorithmType(model.getAlgorithmType());
+        copy.setProductClass(model.getProductClass());
+
+        if (model.getStakeholders() != null) {
+            copy.setStakeholders(model.getStakeholders().stream().map((st) -> {
+                StakeholderModel stCopy = new StakeholderModel();
+                stCopy.setStakeholderId(st.getStakeholderId());
+                stCopy.setModelValue(st.getModelValue());
+                return stCopy;
+            }).collect(Collectors.toList()));
+        }
+
+        if (model.getTiers() != null) {
+            copy.setTiers(model.getTiers().stream().map((tier) -> {
+                TierModel tierCopy = new TierModel();
+                tierCopy.setThreshold(tier.getThreshold());
+                tierCopy.setAggregatorValue(tier.getAggregatorValue());
+                return tierCopy;
+            }).collect(Collectors.toList()));
+        }
+        return copy;
+    }
+}
@@ -27,16 +27,23 @@ import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import javax.annotation.PostConstruct;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import es.upm.fiware.rss.dao.DbeAggregatorDao;
 import es.upm.fiware.rss.dao.DbeAppProviderDao;
+import es.upm.fiware.rss.dao.IdSequenceDao;
 import es.upm.fiware.rss.dao.ModelProviderDao;
 import es.upm.fiware.rss.dao.SetRevenueShareConfDao;
 import es.upm.fiware.rss.exception.RSSException;
@@ -47,9 +54,11 @@ import es.upm.fiware.rss.model.DbeAppProvider;
 import es.upm.fiware.rss.model.ModelProvider;
 import es.upm.fiware.rss.model.ModelProviderId;
 import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.RevenueShareTier;
 import es.upm.fiware.rss.model.SetRevenueShareConf;
 import es.upm.fiware.rss.model.SetRevenueShareConfId;
 import es.upm.fiware.rss.model.StakeholderModel;
+import es.upm.fiware.rss.model.TierModel;
 import java.util.Collections;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -81,6 +90,91 @@ public class RSSModelsManager {
     @Autowired
     private ModelProviderDao modelProviderDao;
 
+    @Autowired
+    private AlgorithmFactory algorithmFactory;
+
+    @Autowired
+    private IdSequenceDao sequenceDao;
+
+    /**
+     * Prefix of the sequences counting the changes of the RS models of each
+     * aggregator, used as version of the models in the index
+     */
+    static final String MODELS_VERSION = "rs_models:";
+
+    /**
+     * Milliseconds the RS models in memory are used before checking in the
+     * database whether they have been changed by other nodes
+     */
+    @Value("${models.index.checkInterval:5000}")
+    private long indexCheckInterval = 5000;
+
+    /**
+     * RS models kept in memory for settlement and validation lookups
+     */
+    private final RSSModelIndex modelIndex = new RSSModelIndex();
+
+    private final RSSModelIndex.Source modelSource = new RSSModelIndex.Source() {
+        @Override
+        public Map<String, Long> getVersions() {
+            return sequenceDao.getSequences(MODELS_VERSION).stream().collect(Collectors.toMap(
+                    (seq) -> seq.getName().substring(MODELS_VERSION.length()),
+                    (seq) -> (long) seq.getNextValue()));
+        }
+
+        @Override
+        public List<RSSModel> getModels(String aggregatorId) {
+            return revenueShareConfDao.getRevenueModelsByParameters(aggregatorId, null, null)
+                    .map(res -> res.stream().map((model) -> {
+                        return convertIntoApiModel(model);
+                    }).collect(Collectors.toList()))
+                    .orElse(Collections.emptyList());
+        }
+    };
+
+    @PostConstruct
+    public void init() {
+        this.modelIndex.setCheckInterval(this.indexCheckInterval);
+    }
+
+    private void invalidateModels(String aggregatorId) {
+        this.modelIndex.invalidate(aggregatorId);
+        this.algorithmFactory.invalidateModels();
+
+        // Other nodes load the models of the aggregator again once they see
+        // the new version. The version row is locked until the commit, so
+        // the changes of the models of an aggregator are serialized.
+        this.sequenceDao.reserve(MODELS_VERSION + aggregatorId.toLowerCase(Locale.ROOT), 1, () -> 1);
+
+        // Lookups made by other requests before the commit would still load
+        // the previous models, so the index is invalidated again afterwards
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(
+                    new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    modelIndex.invalidate(aggregatorId);
+                    algorithmFactory.invalidateModels();
+                }
+            });
+        }
+    }
+
+    /**
+     * Retrieves the revenue sharing models filtered by aggregator, provider
+     * and product class from the in memory index, without validating the
+     * given provider
+     *
+     * @param aggregatorId, Id of the aggregator
+     * @param appProviderId, Id if the provider owener of the revenue sharing models
+     * @param productClass, Product class where the models are applied
+     * @return List with a copy of the matching models
+     */
+    public List<RSSModel> getIndexedModels(String aggregatorId, String appProviderId,
+            String productClass) {
+        return this.modelIndex.getModels(aggregatorId, appProviderId, productClass, this.modelSource);
+    }
+
     /**
      * Check whether a given revenue sharing model exists in the database
      * identified by it aggregator, provider owner and product class
@@ -90,10 +184,7 @@ public class RSSModelsManager {
      * @return true if the model identified by aggregatorId, providerId and productClass exists
      */
     public boolean existModel(String aggregatorId, String providerId, String productClass) {
-        Optional<List<SetRevenueShareConf>> result = revenueShareConfDao.getRevenueModelsByParameters(aggregatorId,
-            providerId, productClass);
-
-        return result.isPresent();
+        return !this.getIndexedModels(aggregatorId, providerId, productClass).isEmpty();
     }
 
     /**
@@ -155,23 +246,23 @@ public class RSSModelsManager {
         ).orElse(Collections.emptyList());
     }
 
-    private SetRevenueShareConfId buildRSModelId(RSSModel rssModel) {
+    private SetRevenueShareConfId buildRSModelId(RSSModel rssModel,
+            AppProviderResolver resolver) {
         // Create new model id
         SetRevenueShareConfId id = new SetRevenueShareConfId();
-        DbeAppProvider provider = this.appProviderDao.
-                getProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
+        DbeAppProvider provider = resolver.getProvider(rssModel.getOwnerProviderId());
 
         id.setModelOwner(provider);
         id.setProductClass(rssModel.getProductClass());
         return id;
     }
 
-    private Set<ModelProvider> buildStakeholdersModel(RSSModel rssModel, SetRevenueShareConf model) {
+    private Set<ModelProvider> buildStakeholdersModel(RSSModel rssModel,
+            SetRevenueShareConf model, AppProviderResolver resolver) {
         Set<ModelProvider> stakeholders =  new HashSet<>();
 
         rssModel.getStakeholders().stream().map((stakeholderModel) -> {
-            DbeAppProvider stakeholder = this.appProviderDao.
-                    getProvider(rssModel.getAggregatorId(), stakeholderModel.getStakeholderId());
+            DbeAppProvider stakeholder = resolver.getProvider(stakeholderModel.getStakeholderId());
             // Build stakeholder id
             ModelProviderId stModelId = new ModelProviderId();
             stModelId.setStakeholder(stakeholder);
@@ -190,7 +281,7 @@ public class RSSModelsManager {
     }
 
     private SetRevenueShareConf fillRSModelInfo(RSSModel rssModel,
-            SetRevenueShareConf model) {
+            SetRevenueShareConf model, AppProviderResolver resolver) {
 
         model.setAlgorithmType(rssModel.getAlgorithmType());
 
@@ -204,22 +295,32 @@ public class RSSModelsManager {
 
         // Set stakeholders
         if (rssModel.getStakeholders() != null) {
-            Set<ModelProvider> stakeholders = this.buildStakeholdersModel(rssModel, model);
+            Set<ModelProvider> stakeholders = this.buildStakeholdersModel(rssModel, model, resolver);
 
             model.setStakeholders(stakeholders);
         }
+
+        // Set volume tiers
+        List<RevenueShareTier> tiers = new ArrayList<>();
+        if (rssModel.getTiers() != null) {
+            rssModel.getTiers().stream().forEach((tier) -> {
+                tiers.add(new RevenueShareTier(tier.getThreshold(), tier.getAggregatorValue()));
+            });
+        }
+        model.setTiers(tiers);
         return model;
     }
 
-    private SetRevenueShareConf buildRSModel(RSSModel rssModel) {
+    private SetRevenueShareConf buildRSModel(RSSModel rssModel,
+            AppProviderResolver resolver) {
 
-        SetRevenueShareConfId id = this.buildRSModelId(rssModel);
+        SetRevenueShareConfId id = this.buildRSModelId(rssModel, resolver);
 
         // Create new model
         SetRevenueShareConf model = new SetRevenueShareConf();
         model.setId(id);
 
-        return this.fillRSModelInfo(rssModel, model);
+        return this.fillRSModelInfo(rssModel, model, resolver);
     }
 
     /**
@@ -232,8 +333,11 @@ public class RSSModelsManager {
     public RSSModel createRssModel(RSSModel rssModel) throws RSSException {
         logger.debug("Into createRssModel() method");
 
+        // Load owner and stakeholders at once
+        AppProviderResolver resolver = new AppProviderResolver(this.appProviderDao, rssModel);
+
         // check valid rssModel
-        checkValidRSSModel(rssModel);
+        checkValidRSSModel(rssModel, resolver);
 
         if (this.existModel(
                 rssModel.getAggregatorId(), rssModel.getOwnerProviderId(), rssModel.getProductClass())) {
@@ -243,7 +347,7 @@ public class RSSModelsManager {
         }
 
         // Build database model for RS Model
-        SetRevenueShareConf model = this.buildRSModel(rssModel);
+        SetRevenueShareConf model = this.buildRSModel(rssModel, resolver);
 
         if (model.getStakeholders() == null) {
             model.setStakeholders(new HashSet<>());
@@ -264,6 +368,8 @@ public class RSSModelsManager {
         model.getStakeholders().stream().forEach((st) -> {
             this.modelProviderDao.create(st);
         });
+        this.invalidateModels(rssModel.getAggregatorId());
+
         // return model
         return rssModel;
     }
@@ -277,11 +383,15 @@ public class RSSModelsManager {
      */
     public RSSModel updateRssModel(RSSModel rssModel) throws Exception {
         logger.debug("Into updateRssModel() method");
+
+        // Load owner and stakeholders at once
+        AppProviderResolver resolver = new AppProviderResolver(this.appProviderDao, rssModel);
+
         // check valid rssModel
-        checkValidRSSModel(rssModel);
+        checkValidRSSModel(rssModel, resolver);
 
         // Get exisintg RS model
-        SetRevenueShareConfId id = this.buildRSModelId(rssModel);
+        SetRevenueShareConfId id = this.buildRSModelId(rssModel, resolver);
         SetRevenueShareConf model = revenueShareConfDao.getById(id);
 
         // Check if the model does not exists
@@ -299,12 +409,14 @@ public class RSSModelsManager {
         });
 
         // Save model into database
-        revenueShareConfDao.update(this.fillRSModelInfo(rssModel, model));
+        revenueShareConfDao.update(this.fillRSModelInfo(rssModel, model, resolver));
 
         // Save model provider relationships for stakeholders
         model.getStakeholders().stream().forEach((st) -> {
             this.modelProviderDao.create(st);
         });
+        this.invalidateModels(rssModel.getAggregatorId());
+
         // return model
         return rssModel;
     }
@@ -350,6 +462,10 @@ public class RSSModelsManager {
         models.stream().forEach((model) -> {
             revenueShareConfDao.delete(model);
         });
+
+        if (!models.isEmpty()) {
+            this.invalidateModels(aggregatorId);
+        }
     }
 
     /**
@@ -370,6 +486,15 @@ public class RSSModelsManager {
         }
     }
 
+    private void checkValidAppProvider(AppProviderResolver resolver, String appProviderId)
+            throws RSSException {
+
+        if (null == resolver.getProvider(appProviderId)) {
+            String[] args = {"provider"};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+    }
+
     private void checkField (String field, String name) throws RSSException{
         if (null == field || field.isEmpty()) {
             String[] args = {name};
@@ -391,6 +516,12 @@ public class RSSModelsManager {
      * @throws RSSException
      */
     public void checkValidRSSModel(RSSModel rssModel) throws RSSException {
+        this.checkValidRSSModel(rssModel, new AppProviderResolver(this.appProviderDao, rssModel));
+    }
+
+    private void checkValidRSSModel(RSSModel rssModel, AppProviderResolver resolver)
+            throws RSSException {
+
         logger.debug("Into checkValidRSSModel mehtod");
 
         // Validate basic fields
@@ -404,7 +535,7 @@ public class RSSModelsManager {
 
         this.checkField(rssModel.getProductClass(), "productClass");
         // Check valid provider owner
-        this.checkValidAppProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
+        this.checkValidAppProvider(resolver, rssModel.getOwnerProviderId());
 
         // Check stakeholders fields if existing
         if (rssModel.getStakeholders() != null) {
@@ -412,7 +543,7 @@ public class RSSModelsManager {
                 this.checkField(stModel.getStakeholderId(), "stakeholderId");
                 this.checkNumberField(stModel.getModelValue(), "modelValue");
 
-                this.checkValidAppProvider(rssModel.getAggregatorId(), stModel.getStakeholderId());
+                this.checkValidAppProvider(resolver, stModel.getStakeholderId());
 
                 // Check that the stakeholder is not the owner provider
                 if (stModel.getStakeholderId().equalsIgnoreCase(rssModel.getOwnerProviderId())) {
@@ -423,8 +554,7 @@ public class RSSModelsManager {
         }
 
         // Check algorithm specific restrictions
-        AlgorithmFactory algorithmFactory = new AlgorithmFactory();
-        AlgorithmProcessor processor = algorithmFactory.
+        AlgorithmProcessor processor = this.algorithmFactory.
                 getAlgorithmProcessor(rssModel.getAlgorithmType());
 
         processor.validateModel(rssModel);
@@ -461,6 +591,21 @@ public class RSSModelsManager {
             stakeholdersList.add(stModel);
         });
         rssModel.setStakeholders(stakeholdersList);
+
+        // Fill volume tiers list
+        List<TierModel> tiersList = new ArrayList<>();
+
+        if (model.getTiers() != null) {
+            model.getTiers().stream().map((tier) -> {
+                TierModel tierModel = new TierModel();
+                tierModel.setThreshold(tier.getThreshold());
+                tierModel.setAggregatorValue(tier.getAggregatorValue());
+                return tierModel;
+            }).forEach((tierModel) -> {
+                tiersList.add(tierModel);
+            });
+        }
+        rssModel.setTiers(tiersList);
         return rssModel;
     }
 }
@@ -21,21 +21,30 @@
 
 package es.upm.fiware.rss.service;
 
+import es.upm.fiware.rss.algorithm.AlgorithmFactory;
+import es.upm.fiware.rss.algorithm.AlgorithmProcessor;
+import es.upm.fiware.rss.algorithm.RevenueBatch;
+import es.upm.fiware.rss.algorithm.RevenueShares;
 import es.upm.fiware.rss.dao.*;
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.*;
-import es.upm.fiware.rss.settlement.ProductSettlementTask;
+import es.upm.fiware.rss.settlement.SettlementReport;
 import es.upm.fiware.rss.settlement.SettlementTaskFactory;
+import es.upm.fiware.rss.settlement.SettlementUnit;
+import es.upm.fiware.rss.settlement.TaskPool;
 import es.upm.fiware.rss.settlement.ThreadPoolManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.io.IOException;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.stream.Collectors;
 
 
@@ -67,13 +76,16 @@ public class SettlementManager {
     private CurrencyDao currencyDao;
 
     @Autowired
-    private SettlementTaskFactory taskFactory;
+    private SetRevenueShareConfDao revenueShareConfDao;
 
     @Autowired
-    private AggregatorManager aggregatorManager;
+    private SettlementVolumeDao volumeDao;
+
+    @Autowired
+    private SettlementTaskFactory taskFactory;
 
     @Autowired
-    private ProviderManager providerManager;
+    private AggregatorManager aggregatorManager;
 
     @Autowired
     private RSSModelsManager modelsManager;
@@ -81,48 +93,54 @@ public class SettlementManager {
     @Autowired
     private ThreadPoolManager poolManager;
 
-    private List<Aggregator> getAggregators(String aggregatorId)
-            throws RSSException{
+    @Autowired
+    private AlgorithmFactory algorithmFactory;
 
-        // Get given aggregators if needed
-        List<Aggregator> aggregators;
-        if (aggregatorId == null || aggregatorId.isEmpty()) {
-            aggregators = this.aggregatorManager.getAPIAggregators();
-        } else {
-            aggregators = new ArrayList<>();
-            aggregators.add(this.aggregatorManager.getAggregator(aggregatorId));
-        }
-        return aggregators;
-    }
+    /**
+     * Number of transactions read at once during the settlement
+     */
+    @Value("${settlement.chunk.size:1000}")
+    private int chunkSize = 1000;
 
-    private List<RSSProvider> getProviders(String aggregatorId,
-            String providerId) throws RSSException {
+    /**
+     * Transaction ids below the watermark that are scanned again, so
+     * transactions committed late are not skipped
+     */
+    @Value("${settlement.watermark.margin:1000}")
+    private int watermarkMargin = 1000;
 
-        List<RSSProvider> providers;
-        if (providerId == null || providerId.isEmpty()) {
-            providers = this.providerManager.getAPIProviders(aggregatorId);
-        } else {
-            providers = new ArrayList<>();
-            providers.add(this.providerManager.getProvider(aggregatorId, providerId));
-        }
+    /**
+     * Milliseconds a settlement task holds its claim on the transactions
+     * before they can be recovered
+     */
+    @Value("${settlement.claim.lease:600000}")
+    private long claimLease = 600000;
 
-        return providers;
-    }
+    /**
+     * Launch settlement process.
+     *
+     * @param job
+     * @return Identifier of the launched settlement job
+     * @throws RSSException
+     */
+    public String runSettlement(SettlementJob job) throws RSSException {
+        this.validateSettlementJob(job);
 
-    private List<RSSModel> getModels(String aggregatorId,
-            String providerId, String productClass) throws RSSException {
+        // Tasks are planned in background, so the job id is returned right away
+        String jobId = poolManager.openTaskPool(job);
+        poolManager.planTaskPool(this.taskFactory.getPlanningTask(job, jobId));
 
-        return this.modelsManager.getRssModels(aggregatorId, providerId, productClass, 0, -1);
+        return jobId;
     }
 
     /**
-     * Launch settlement process.
+     * Checks that the aggregator, provider and product class of a settlement
+     * job exist
      *
      * @param job
      * @throws RSSException
      */
-    public void runSettlement(SettlementJob job) throws RSSException {
-
+    public void validateSettlementJob(SettlementJob job) throws RSSException {
         // Validate fields
         if (job.getAggregatorId() != null && !job.getAggregatorId().isEmpty()) {
             if (job.getProviderId() != null && !job.getProviderId().isEmpty()) {
@@ -138,122 +156,549 @@ public class SettlementManager {
                     String[] args = {job.getProductClass()};
                     throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
                 }
+            } else {
+                // Check that the aggregator exists
+                this.aggregatorManager.getAggregator(job.getAggregatorId());
             }
         }
+    }
 
-        // Launch settlement for the given transactions
-        for (Aggregator ag: this.getAggregators(job.getAggregatorId())) {
-            List<RSSProvider> providers = this.getProviders(ag.getAggregatorId(), job.getProviderId());
+    /**
+     * Rows of a settlement preview calculated together, all of them use
+     * the same algorithm
+     */
+    private static class PreviewBatch {
+        private final AlgorithmProcessor processor;
+        private final RevenueBatch batch;
+        private final List<String> currencies = new ArrayList<>();
+
+        PreviewBatch(AlgorithmProcessor processor, int capacity) {
+            this.processor = processor;
+            this.batch = new RevenueBatch(capacity);
+        }
 
-            for(RSSProvider pv: providers) {
-                List<RSSModel> models =
-                        this.getModels(ag.getAggregatorId(), pv.getProviderId(), job.getProductClass());
+        List<RSSReport> calculate() {
+            RevenueShares shares;
+            try {
+                shares = this.processor.calculateRevenue(this.batch);
+            } catch (RSSException e) {
+                throw new CompletionException(e);
+            }
 
-                models.stream().forEach((m) -> {
-                    // Get related transactions
-                    Optional<List<DbeTransaction>> txs = this.transactionDao.
-                            getTransactions(m.getAggregatorId(), m.getOwnerProviderId(), m.getProductClass());
+            Date now = new Date();
+            List<RSSReport> reports = new ArrayList<>(shares.size());
+
+            for (int i = 0; i < shares.size(); i++) {
+                RSSModel revenue = shares.getRevenue(i);
+                RSSReport report = new RSSReport();
+
+                report.setAggregatorId(revenue.getAggregatorId());
+                report.setAggregatorValue(revenue.getAggregatorValue());
+                report.setOwnerProviderId(revenue.getOwnerProviderId());
+                report.setOwnerValue(revenue.getOwnerValue());
+                report.setProductClass(revenue.getProductClass());
+                report.setAlgorithmType(revenue.getAlgorithmType());
+                report.setStakeholders(revenue.getStakeholders());
+                report.setCurrency(this.currencies.get(i));
+                report.setTimestamp(now);
+                report.setPaid(false);
+
+                reports.add(report);
+            }
+            return reports;
+        }
+    }
+
+    /**
+     * Calculates the revenue sharing of the pending transactions of a
+     * settlement job without settling them. The pending value of every RS
+     * model and the settled volumes are read with a query each, so no
+     * transaction is claimed or locked, and nothing is written. The shares
+     * are calculated in parallel by the settlement workers in batches of
+     * the settlement chunk size, so the reports can be streamed once the
+     * database transaction has been closed.
+     *
+     * @param job Settlement job to be previewed
+     * @return The projected reports of each batch, in order. A future fails
+     * with an RSSException cause if the shares of some model cannot be
+     * calculated
+     * @throws RSSException If the algorithm of some model is not supported
+     */
+    @Transactional(readOnly = true, rollbackFor = Exception.class)
+    public List<CompletableFuture<List<RSSReport>>> previewSettlement(SettlementJob job)
+            throws RSSException {
 
-                    // Set transactions as processing
-                    if (txs.isPresent() && !txs.get().isEmpty()) {
-                        this.setTxState(txs.get(), "processing", true);
+        Map<List<String>, RSSModel> models = this.getJobModels(job);
 
-                        // Create processing task
-                        ProductSettlementTask settlementTask
-                                = this.taskFactory.getSettlementTask(m, txs.get(), job.getCallbackUrl());
+        // Settled volumes by model and currency
+        Map<List<String>, BigDecimal> volumes = new HashMap<>();
+        this.volumeDao.getVolumes(job.getAggregatorId(), job.getProviderId(), job.getProductClass())
+                .stream().forEach((volume) -> {
 
-                        poolManager.submitTask(settlementTask, job.getCallbackUrl());
-                    }
-                });
+            volumes.put(Arrays.asList(volume.getAggregatorId(), volume.getProviderId(),
+                    volume.getProductClass(), volume.getCurrency()), volume.getVolume());
+        });
+
+        // Everything is read before calculating, since the calculation
+        // runs outside the database session
+        Map<String, PreviewBatch> open = new HashMap<>();
+        List<PreviewBatch> batches = new ArrayList<>();
+
+        for (TransactionSummary summary: this.transactionDao.getSettlementSummaries(
+                job.getAggregatorId(), job.getProviderId(), job.getProductClass(), "pending", 0)) {
+
+            RSSModel model = models.get(this.getModelKey(summary));
+
+            // Transactions without RS model are not settled
+            if (model == null) {
+                continue;
+            }
+
+            PreviewBatch batch = open.get(model.getAlgorithmType());
+            if (batch == null || batch.batch.size() == this.chunkSize) {
+                batch = new PreviewBatch(this.algorithmFactory
+                        .getAlgorithmProcessor(model.getAlgorithmType()), this.chunkSize);
+
+                open.put(model.getAlgorithmType(), batch);
+                batches.add(batch);
             }
+
+            batch.batch.add(model, summary.getValue(), volumes.getOrDefault(
+                    Arrays.asList(model.getAggregatorId(), model.getOwnerProviderId(),
+                            model.getProductClass(), summary.getCurrency()), BigDecimal.ZERO));
+            batch.currencies.add(summary.getCurrency());
         }
-        poolManager.closeTaskPool(job.getCallbackUrl());
+
+        return batches.stream()
+                .map((batch) -> CompletableFuture.supplyAsync(batch::calculate, this.poolManager.getExecutor()))
+                .collect(Collectors.toList());
+    }
+
+    private Map<List<String>, RSSModel> getJobModels(SettlementJob job) {
+        Map<List<String>, RSSModel> models = new HashMap<>();
+
+        this.modelsManager.getIndexedModels(job.getAggregatorId(),
+                job.getProviderId(), job.getProductClass()).stream().forEach((model) -> {
+
+            models.put(Arrays.asList(model.getAggregatorId(),
+                    model.getOwnerProviderId(), model.getProductClass()), model);
+        });
+        return models;
+    }
+
+    private List<String> getModelKey(TransactionSummary summary) {
+        return Arrays.asList(summary.getAggregatorId(),
+                summary.getProviderId(), summary.getProductClass());
+    }
+
+    /**
+     * Returns the work units of a settlement job, one for each RS model and
+     * currency with pending transactions. Models and pending transactions
+     * are read with a query each instead of walking aggregators and
+     * providers. The units with more transactions come first, so they do
+     * not delay the end of the job.
+     *
+     * @param job Settlement job
+     * @return List of units to be settled
+     * @throws RSSException
+     */
+    public List<SettlementUnit> getSettlementUnits(SettlementJob job) throws RSSException {
+        List<TransactionSummary> pending = this.transactionDao.getSettlementSummaries(
+                job.getAggregatorId(), job.getProviderId(), job.getProductClass(), "pending", 0);
+
+        if (pending.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Map<List<String>, RSSModel> models = this.getJobModels(job);
+
+        return pending.stream()
+                .filter(s -> models.containsKey(this.getModelKey(s)))
+                .sorted(Comparator.comparingLong(TransactionSummary::getTransactions).reversed())
+                .map(s -> new SettlementUnit(models.get(this.getModelKey(s)), s.getCurrency(), s.getTransactions()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get the progress of a running or recently finished settlement job
+     *
+     * @param jobId Identifier of the settlement job
+     * @return Status of the job
+     * @throws RSSException If the job does not exist
+     */
+    public SettlementJobStatus getSettlementJob(String jobId) throws RSSException {
+        TaskPool pool = this.poolManager.findTaskPool(jobId);
+
+        if (pool == null) {
+            String[] args = {jobId};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+
+        SettlementJobStatus status = new SettlementJobStatus();
+        status.setId(pool.getJobId());
+        status.setAggregatorId(pool.getAggregatorId());
+        status.setProviderId(pool.getProviderId());
+        status.setProductClass(pool.getProductClass());
+        status.setState(pool.getState().toString());
+
+        // Read completions first, so running tasks are never negative
+        int completed = pool.getCompleted();
+        int failed = pool.getFailed();
+        int started = pool.getStarted();
+
+        status.setQueued(pool.getSize() - started);
+        status.setRunning(Math.max(0, started - completed));
+        status.setCompleted(completed - failed);
+        status.setFailed(failed);
+
+        long elapsed = pool.getElapsedTime();
+        status.setTransactions(pool.getTransactions());
+        status.setElapsedTime(elapsed);
+        status.setThroughput(elapsed > 0 ? pool.getTransactions() * 1000.0 / elapsed : 0);
+
+        return status;
+    }
+
+    private Optional<SetRevenueShareConf> getRevenueShareConf(RSSModel model) {
+        return this.revenueShareConfDao.getRevenueModelsByParameters(model.getAggregatorId(),
+                model.getOwnerProviderId(), model.getProductClass()).map(l -> l.get(0));
+    }
+
+    /**
+     * Returns the first transaction id to be settled for a RS model. The
+     * transactions up to the watermark of the model have already been
+     * settled, so they are not scanned again.
+     *
+     * @param model RS model to be settled
+     * @return First transaction id to be read
+     */
+    public int getSettlementStart(RSSModel model) {
+        int watermark = this.getRevenueShareConf(model)
+                .map(SetRevenueShareConf::getLastSettledTxId)
+                .orElse(0);
+
+        return Math.max(0, watermark + 1 - this.watermarkMargin);
+    }
+
+    /**
+     * Advances the watermark of a RS model after settling its transactions.
+     * The transactions of a model are settled by a task per currency, so the
+     * watermark stops before the transactions of the model that are still
+     * pending or being processed by other tasks.
+     *
+     * @param model Settled RS model
+     * @param settledTxId Greatest settled transaction id
+     */
+    public void setSettlementWatermark(RSSModel model, int settledTxId) {
+        // Transactions below the settlement start are never claimed again
+        int lastTxId = this.transactionDao.getFirstUnsettledId(model.getAggregatorId(),
+                model.getOwnerProviderId(), model.getProductClass(), this.getSettlementStart(model))
+                .map(firstId -> Math.min(settledTxId, firstId - 1))
+                .orElse(settledTxId);
+
+        this.getRevenueShareConf(model).ifPresent((conf) -> {
+            if (conf.getLastSettledTxId() == null || conf.getLastSettledTxId() < lastTxId) {
+                conf.setLastSettledTxId(lastTxId);
+            }
+            conf.setLastSettlementDate(new Date());
+        });
+    }
+
+    private Date getClaimExpiry() {
+        return new Date(System.currentTimeMillis() + this.claimLease);
+    }
+
+    /**
+     * Claims a chunk of pending transactions of a RS model in a currency for
+     * a settlement task. Each call runs in its own database transaction, so
+     * callers loop until no transaction is claimed.
+     *
+     * @param model RS model whose transactions are claimed
+     * @param currency ISO 4217 code of the claimed transactions
+     * @param owner Token of the settlement task
+     * @param fromId First transaction id to be claimed
+     * @return Number of claimed transactions
+     */
+    public int claimTransactions(RSSModel model, String currency, String owner, int fromId) {
+        return this.transactionDao.claimTransactions(model.getAggregatorId(),
+                model.getOwnerProviderId(), model.getProductClass(), currency,
+                owner, this.getClaimExpiry(), fromId, this.chunkSize);
+    }
+
+    /**
+     * Returns the aggregated value per currency of the transactions claimed
+     * by a settlement task. The aggregation is computed by the database, so
+     * no transaction is loaded for it.
+     *
+     * @param owner Token of the settlement task
+     * @return List of summaries, one per currency
+     */
+    public List<TransactionSummary> aggregateTransactions(String owner) {
+        return this.transactionDao.getClaimSummaries(owner);
+    }
+
+    /**
+     * Extends the lease of the transactions claimed by a settlement task
+     *
+     * @param owner Token of the settlement task
+     * @return Number of transactions still claimed by the task
+     */
+    public int renewClaim(String owner) {
+        return this.transactionDao.renewClaim(owner, this.getClaimExpiry());
     }
 
     /**
+     * Sets a chunk of the transactions claimed by a settlement task to a new
+     * state. Each call runs in its own database transaction, so callers loop
+     * until no transaction is updated.
      *
-     * @param transactions
-     * @param state
-     * @param toFlush
+     * @param owner Token of the settlement task
+     * @param newState New state of the transactions
+     * @return Number of updated transactions
      */
-    public void setTxState(List<DbeTransaction> transactions,
-            String state, boolean toFlush) {
-
-        transactions.stream().map((tx) -> {
-            tx.setState(state);
-            return tx;
-        }).forEach((tx) -> {
-            this.transactionDao.update(tx);
+    public int releaseClaim(String owner, String newState) {
+        return this.transactionDao.releaseClaim(owner, newState, this.chunkSize);
+    }
+
+    /**
+     * Moves back the watermark of the RS models with expired claims, so the
+     * recovered transactions are scanned by the next settlement even if
+     * another settlement advanced the watermark past them
+     *
+     * @param now Time used to decide if a claim has expired
+     */
+    public void rewindExpiredClaims(Date now) {
+        this.transactionDao.getExpiredClaimSummaries(now).stream().forEach((summary) -> {
+            this.revenueShareConfDao.getRevenueModelsByParameters(summary.getAggregatorId(),
+                    summary.getProviderId(), summary.getProductClass()).ifPresent((confs) -> {
+
+                SetRevenueShareConf conf = confs.get(0);
+                int watermark = summary.getMinTransactionId() - 1 + this.watermarkMargin;
+
+                if (conf.getLastSettledTxId() != null && conf.getLastSettledTxId() > watermark) {
+                    conf.setLastSettledTxId(watermark);
+                }
+            });
         });
-        // Flush state to the database
-        if (toFlush) {
-            this.transactionDao.flush();
+    }
+
+    /**
+     * Sets a chunk of transactions whose claim has expired back to pending,
+     * so they are settled again by the next settlement. Each call runs in
+     * its own database transaction, so callers loop until no transaction
+     * is recovered.
+     *
+     * @param now Time used to decide if a claim has expired
+     * @return Number of recovered transactions
+     */
+    public int recoverExpiredClaims(Date now) {
+        return this.transactionDao.recoverExpiredClaims(now, this.chunkSize);
+    }
+
+    private DbeAppProvider getReportProvider(Map<String, DbeAppProvider> providers,
+            String aggregatorId, String providerId) {
+
+        DbeAppProvider provider = providers.get(providerId);
+        if (provider == null) {
+            throw new IllegalStateException("The provider " + providerId
+                    + " of the aggregator " + aggregatorId + " does not exist");
         }
+        return provider;
     }
 
-    public void generateReport(RSSModel sharingRes, String curr) throws IOException {
-        this.logger.info("Generating report: "
-                    + sharingRes.getAggregatorId() + " "
+    private Map<String, Map<String, DbeAppProvider>> getReportProviders(
+            List<SettlementReport> reports) {
+
+        Map<String, Set<String>> providerIds = new HashMap<>();
+        reports.stream().map(SettlementReport::getRevenue).forEach((revenue) -> {
+            Set<String> ids = providerIds.computeIfAbsent(
+                    revenue.getAggregatorId(), (aggregator) -> new HashSet<>());
+
+            ids.add(revenue.getOwnerProviderId());
+            if (revenue.getStakeholders() != null) {
+                revenue.getStakeholders().stream().forEach((st) -> {
+                    ids.add(st.getStakeholderId());
+                });
+            }
+        });
+
+        // A single query per aggregator loads every provider of the batch
+        Map<String, Map<String, DbeAppProvider>> providers = new HashMap<>();
+        providerIds.forEach((aggregator, ids) -> {
+            Map<String, DbeAppProvider> aggProviders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+            this.appProviderDao.getProviders(aggregator, ids).stream().forEach((provider) -> {
+                aggProviders.put(provider.getId().getTxAppProviderId(), provider);
+            });
+            providers.put(aggregator, aggProviders);
+        });
+        return providers;
+    }
+
+    /**
+     * Stores a batch of revenue sharing reports and adds the distributed
+     * values to the volumes settled in the same database transaction.
+     * Providers and currencies are resolved once for the whole batch, and
+     * the volume of each model is updated once per currency. The
+     * transactions claimed by the tasks of the reports are set as processed
+     * in the same database transaction, so they are never recovered as
+     * pending once they have been reported.
+     *
+     * The volumes are locked until the end of the database transaction, so
+     * overlapping jobs settling the same model and currency store their
+     * reports in turn. A report calculated with a volume that has changed
+     * since is rejected, so its transactions are settled again with the
+     * right tiers.
+     *
+     * @param reports Reports to be stored
+     * @throws IllegalStateException If the claim of some task has expired
+     * or the volume used by some report has changed
+     */
+    public void generateReports(List<SettlementReport> reports) {
+        Map<String, Map<String, DbeAppProvider>> providers = this.getReportProviders(reports);
+        Map<String, BmCurrency> currencies = new HashMap<>();
+        Map<List<String>, SettlementVolume> volumes = this.lockVolumes(reports);
+        Date date = new Date();
+
+        for (SettlementReport pending: reports) {
+            RSSModel sharingRes = pending.getRevenue();
+            String aggregatorId = sharingRes.getAggregatorId();
+            Map<String, DbeAppProvider> aggProviders = providers.get(aggregatorId);
+
+            this.logger.info("Generating report: "
+                    + aggregatorId + " "
                     + sharingRes.getOwnerProviderId() + " "
                     + sharingRes.getProductClass());
 
-        // Fill basic report information
-        SharingReport report = new SharingReport();
-        report.setAlgorithmType(sharingRes.getAlgorithmType());
-        report.setProductClass(sharingRes.getProductClass());
-        report.setDate(new Date());
-        report.setAggregatorValue(sharingRes.getAggregatorValue());
-        report.setOwnerValue(sharingRes.getOwnerValue());
-        report.setPaid(false);
-
-        // Get provider object
-        report.setOwner(this.appProviderDao.getProvider(
-                sharingRes.getAggregatorId(), sharingRes.getOwnerProviderId()));
-
-        // Set currency
-        BmCurrency currency = this.currencyDao.getByIso4217StringCode(curr);
-        report.setCurrency(currency);
-
-        // Include stakeholders info
-        if (sharingRes.getStakeholders() != null) {
+            // Fill basic report information
+            SharingReport report = new SharingReport();
+            report.setAlgorithmType(sharingRes.getAlgorithmType());
+            report.setProductClass(sharingRes.getProductClass());
+            report.setDate(date);
+            report.setAggregatorValue(sharingRes.getAggregatorValue());
+            report.setOwnerValue(sharingRes.getOwnerValue());
+            report.setPaid(false);
+            report.setOwner(this.getReportProvider(
+                    aggProviders, aggregatorId, sharingRes.getOwnerProviderId()));
+            report.setCurrency(currencies.computeIfAbsent(
+                    pending.getCurrency(), this.currencyDao::getByIso4217StringCode));
+
+            // Include stakeholders info
             Set<ReportProvider> stakeholders = new HashSet<>();
+            if (sharingRes.getStakeholders() != null) {
+                for (StakeholderModel stakeholderModel: sharingRes.getStakeholders()) {
+                    ReportProviderId stModelId = new ReportProviderId();
+                    stModelId.setStakeholder(this.getReportProvider(
+                            aggProviders, aggregatorId, stakeholderModel.getStakeholderId()));
+                    stModelId.setReport(report);
+
+                    ReportProvider stModel = new ReportProvider();
+                    stModel.setId(stModelId);
+                    stModel.setModelValue(stakeholderModel.getModelValue());
+                    stakeholders.add(stModel);
+                }
+            }
+            report.setStakeholders(stakeholders);
 
-            sharingRes.getStakeholders().stream().map((stakeholderModel) -> {
-                DbeAppProvider stakeholder = this.appProviderDao.
-                        getProvider(sharingRes.getAggregatorId(), stakeholderModel.getStakeholderId());
-                // Build stakeholder id
-                ReportProviderId stModelId = new ReportProviderId();
-                stModelId.setStakeholder(stakeholder);
-                stModelId.setReport(report);
-                // Build stakeholder
-                ReportProvider stModel = new ReportProvider();
-                stModel.setId(stModelId);
-                stModel.setModelValue(stakeholderModel.getModelValue());
-                return stModel;
-            }).forEach((stModel) -> {
-                // Add stakeholder to the set
-                stakeholders.add(stModel);
+            // The reports collection of the owner is not loaded, it is the
+            // inverse side of the relationship
+            this.sharingReportDao.create(report);
+            stakeholders.stream().forEach((st) -> {
+                this.reportProviderDao.create(st);
             });
 
-            report.setStakeholders(stakeholders);
-        }
+            if (pending.getValue() != null) {
+                SettlementVolume volume = volumes.get(this.getVolumeKey(pending));
 
-        Set<SharingReport> reports = report.getOwner().getReports();
-
-        if (null == reports) {
-            reports = new HashSet<>();
+                if (pending.getSettled() != null
+                        && pending.getSettled().compareTo(volume.getVolume()) != 0) {
+                    throw new IllegalStateException("The volume settled for "
+                            + aggregatorId + " " + sharingRes.getOwnerProviderId() + " "
+                            + sharingRes.getProductClass() + " has changed");
+                }
+                volume.setVolume(volume.getVolume().add(pending.getValue()));
+            }
         }
-        reports.add(report);
 
-        // Save new report
-        this.sharingReportDao.create(report);
+        // The whole batch is rolled back if some task has lost its claim
+        Map<String, Long> claims = new HashMap<>();
+        reports.stream().filter((report) -> report.getOwner() != null).forEach((report) -> {
+            claims.merge(report.getOwner(), report.getTransactions(), Long::sum);
+        });
 
-        // Save stakeholders info
-        report.getStakeholders().stream().forEach((st) -> {
-            this.reportProviderDao.create(st);
+        claims.forEach((owner, transactions) -> {
+            if (this.transactionDao.settleClaim(owner) != transactions) {
+                throw new IllegalStateException("The claim on the transactions has expired");
+            }
         });
     }
 
+    private List<String> getVolumeKey(SettlementReport report) {
+        RSSModel model = report.getRevenue();
+        return Arrays.asList(model.getAggregatorId(), model.getOwnerProviderId(),
+                model.getProductClass(), report.getCurrency());
+    }
+
+    /**
+     * Locks the volumes updated by a batch of reports, in the same order in
+     * every batch so concurrent batches do not deadlock. Missing volumes are
+     * created, concurrent creations fail on the unique constraint of the
+     * volume instead of overwriting each other.
+     */
+    private Map<List<String>, SettlementVolume> lockVolumes(List<SettlementReport> reports) {
+        Map<List<String>, SettlementVolume> volumes = new LinkedHashMap<>();
+
+        reports.stream()
+                .filter((report) -> report.getValue() != null)
+                .map(this::getVolumeKey)
+                .distinct()
+                .sorted(Comparator.comparing((List<String> key) -> String.join("\n", key)))
+                .forEach((key) -> {
+                    SettlementVolume volume = this.volumeDao.lockVolume(
+                            key.get(0), key.get(1), key.get(2), key.get(3)).orElseGet(() -> {
+
+                        SettlementVolume created = new SettlementVolume();
+                        created.setAggregatorId(key.get(0));
+                        created.setProviderId(key.get(1));
+                        created.setProductClass(key.get(2));
+                        created.setCurrency(key.get(3));
+                        created.setVolume(BigDecimal.ZERO);
+
+                        this.volumeDao.create(created);
+                        return created;
+                    });
+                    volumes.put(key, volume);
+                });
+        return volumes;
+    }
+
+    /**
+     * Generates a revenue sharing report and adds the distributed value to
+     * the volume settled for the model in the same database transaction
+     *
+     * @param sharingRes Distribution of the value
+     * @param curr Currency of the value
+     * @param value Distributed value
+     */
+    public void generateReport(RSSModel sharingRes, String curr, BigDecimal value) {
+        this.generateReports(Collections.singletonList(
+                new SettlementReport(sharingRes, curr, value)));
+    }
+
+    /**
+     * Returns the value settled for a RS model in a currency
+     *
+     * @param model RS model
+     * @param curr Currency of the value
+     * @return Settled value, 0 if nothing has been settled
+     */
+    public BigDecimal getSettledVolume(RSSModel model, String curr) {
+        return this.volumeDao.getVolume(model.getAggregatorId(),
+                model.getOwnerProviderId(), model.getProductClass(), curr)
+                .map(SettlementVolume::getVolume)
+                .orElse(BigDecimal.ZERO);
+    }
+
     /**
      * Get the number of revenue sharing reports that fit the provided filters
      *
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import es.upm.fiware.rss.dao.SettlementNotificationDao;
+import es.upm.fiware.rss.model.SettlementNotification;
+
+/**
+ * Manages the outbox of settlement callback notifications
+ */
+@Service
+@Transactional(rollbackFor = Exception.class)
+public class SettlementNotificationManager {
+
+    public static final String PENDING = "pending";
+    public static final String FAILED = "failed";
+
+    @Autowired
+    private SettlementNotificationDao notificationDao;
+
+    /**
+     * Saves a new notification pending to be delivered
+     * @param jobId
+     * @param callbackUrl
+     * @param payload
+     * @return The saved notification
+     */
+    public SettlementNotification createNotification(String jobId, String callbackUrl, String payload) {
+        SettlementNotification notification = new SettlementNotification();
+        notification.setJobId(jobId);
+        notification.setCallbackUrl(callbackUrl);
+        notification.setPayload(payload);
+        notification.setState(PENDING);
+        notification.setAttempts(0);
+        notification.setCreated(new Date());
+
+        this.notificationDao.create(notification);
+        return notification;
+    }
+
+    /**
+     * Returns the notifications not delivered yet
+     * @return
+     */
+    public List<SettlementNotification> getPendingNotifications() {
+        return this.notificationDao.getNotificationsByState(PENDING);
+    }
+
+    /**
+     * Removes a delivered notification
+     * @param id
+     */
+    public void deleteNotification(int id) {
+        SettlementNotification notification = this.notificationDao.getById(id);
+
+        if (notification != null) {
+            this.notificationDao.delete(notification);
+        }
+    }
+
+    /**
+     * Saves the number of failed deliveries of a notification
+     * @param id
+     * @param attempts
+     * @param failed If true, the notification is not retried anymore
+     */
+    public void updateAttempts(int id, int attempts, boolean failed) {
+        SettlementNotification notification = this.notificationDao.getById(id);
+
+        if (notification != null) {
+            notification.setAttempts(attempts);
+            if (failed) {
+                notification.setState(FAILED);
+            }
+        }
+    }
+}
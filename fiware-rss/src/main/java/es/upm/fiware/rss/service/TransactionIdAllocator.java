@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import es.upm.fiware.rss.dao.DbeTransactionDao;
+import es.upm.fiware.rss.dao.IdSequenceDao;
+
+/**
+ * Reserves the ids of new transactions in blocks. The row of the sequence
+ * stays locked until the transaction inserting the reserved ids commits,
+ * so concurrent lists are committed in the order of their ids and the
+ * settlement watermark never skips ids of a list still being inserted.
+ */
+@Service
+@Transactional(rollbackFor = Exception.class)
+public class TransactionIdAllocator {
+
+    public static final String SEQUENCE = "dbe_transaction";
+
+    @Autowired
+    private IdSequenceDao sequenceDao;
+
+    @Autowired
+    private DbeTransactionDao transactionDao;
+
+    /**
+     * Creates the sequence if it does not exist. The lock taken by a
+     * reservation does not cover a missing row, so the sequence is created
+     * before transactions are received, otherwise concurrent first
+     * reservations would try to create it twice.
+     */
+    public void createSequence() {
+        this.sequenceDao.reserve(SEQUENCE, 0,
+                () -> this.transactionDao.getMaxTransactionId() + 1);
+    }
+
+    /**
+     * Reserves a block of consecutive transaction ids within the transaction
+     * inserting them. The sequence starts after the ids generated by the
+     * database before it existed.
+     * @param count Number of ids to be reserved
+     * @return First reserved id
+     */
+    @Transactional(propagation = Propagation.MANDATORY, rollbackFor = Exception.class)
+    public int reserve(int count) {
+        return this.sequenceDao.reserve(SEQUENCE, count,
+                () -> this.transactionDao.getMaxTransactionId() + 1);
+    }
+}
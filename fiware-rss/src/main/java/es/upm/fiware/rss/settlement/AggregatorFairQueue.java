@@ -0,0 +1,316 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Bounded blocking queue used as the work queue of the settlement executor.
+ * Tasks are kept in a sub-queue per aggregator and taken in round robin, so a
+ * settlement job of a big aggregator does not starve the rest of them.
+ */
+public class AggregatorFairQueue extends AbstractQueue<Runnable>
+        implements BlockingQueue<Runnable> {
+
+    private static final String DEFAULT_KEY = "";
+
+    private final int capacity;
+    private final Map<String, Deque<Runnable>> queues = new HashMap<>();
+    private final Deque<String> turns = new ArrayDeque<>();
+    private int count = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    private final Condition notFull = this.lock.newCondition();
+
+    /**
+     *
+     * @param capacity Maximum number of tasks waiting in the queue
+     */
+    public AggregatorFairQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The queue capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the key used to group the given task
+     * @param task
+     * @return The aggregator of the task model
+     */
+    protected String getKey(Runnable task) {
+        String key = null;
+
+        if (task instanceof ProductSettlementTask
+                && ((ProductSettlementTask) task).getModel() != null) {
+            key = ((ProductSettlementTask) task).getModel().getAggregatorId();
+        }
+        return key != null ? key : DEFAULT_KEY;
+    }
+
+    private void enqueue(Runnable task) {
+        String key = this.getKey(task);
+        Deque<Runnable> queue = this.queues.get(key);
+
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            this.queues.put(key, queue);
+            this.turns.addLast(key);
+        }
+        queue.addLast(task);
+        this.count++;
+        this.notEmpty.signal();
+    }
+
+    private Runnable dequeue() {
+        String key = this.turns.pollFirst();
+        Deque<Runnable> queue = this.queues.get(key);
+        Runnable task = queue.pollFirst();
+
+        // The aggregator goes to the end of the round if it has more tasks
+        if (queue.isEmpty()) {
+            this.queues.remove(key);
+        } else {
+            this.turns.addLast(key);
+        }
+        this.count--;
+        this.notFull.signal();
+        return task;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lock();
+        try {
+            if (this.count == this.capacity) {
+                return false;
+            }
+            this.enqueue(task);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException {
+
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == this.capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = this.notFull.awaitNanos(nanos);
+            }
+            this.enqueue(task);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == this.capacity) {
+                this.notFull.await();
+            }
+            this.enqueue(task);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            return this.count == 0 ? null : this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.count == 0) {
+                this.notEmpty.await();
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            return this.count == 0 ? null : this.queues.get(this.turns.peekFirst()).peekFirst();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Runnable)) {
+            return false;
+        }
+        this.lock.lock();
+        try {
+            String key = this.getKey((Runnable) o);
+            Deque<Runnable> queue = this.queues.get(key);
+
+            if (queue == null || !queue.remove(o)) {
+                return false;
+            }
+
+            if (queue.isEmpty()) {
+                this.queues.remove(key);
+                this.turns.remove(key);
+            }
+            this.count--;
+            this.notFull.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        this.lock.lock();
+        try {
+            return this.capacity - this.count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        this.lock.lock();
+        try {
+            int n = 0;
+            while (this.count > 0 && n < maxElements) {
+                c.add(this.dequeue());
+                n++;
+            }
+            return n;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the queue in round robin order,
+     * the iterator does not support removal
+     * @return
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        this.lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(this.count);
+            List<Iterator<Runnable>> its = new ArrayList<>();
+
+            this.turns.stream().forEach((key) -> {
+                its.add(this.queues.get(key).iterator());
+            });
+
+            boolean pending = true;
+            while (pending) {
+                pending = false;
+                for (Iterator<Runnable> it: its) {
+                    if (it.hasNext()) {
+                        snapshot.add(it.next());
+                        pending = true;
+                    }
+                }
+            }
+            return Collections.unmodifiableList(snapshot).iterator();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
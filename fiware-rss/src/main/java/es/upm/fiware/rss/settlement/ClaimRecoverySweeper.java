@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import es.upm.fiware.rss.service.SettlementManager;
+
+/**
+ * Returns to pending the transactions claimed by settlement tasks that did
+ * not finish before their lease expired, for example because the server was
+ * stopped in the middle of a settlement. The first sweep runs on start up.
+ */
+@Component
+public class ClaimRecoverySweeper {
+
+    private final Logger logger = LoggerFactory.getLogger(ClaimRecoverySweeper.class);
+
+    @Autowired
+    private SettlementManager settlementManager;
+
+    /**
+     * Milliseconds between sweeps
+     */
+    @Value("${settlement.claim.sweepInterval:60000}")
+    private long sweepInterval = 60000;
+
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        this.executor = Executors.newSingleThreadScheduledExecutor((r) -> {
+            Thread thread = new Thread(r, "settlement-claim-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.executor.scheduleWithFixedDelay(() -> {
+            try {
+                this.sweep();
+            } catch (Exception e) {
+                // Tried again in the next sweep
+                this.logger.error("Error recovering expired settlement claims: " + e.getMessage());
+            }
+        }, 0, this.sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Recovers the transactions whose claim has expired
+     * @return Number of recovered transactions
+     */
+    public long sweep() {
+        Date now = new Date();
+        this.settlementManager.rewindExpiredClaims(now);
+
+        long recovered = 0;
+        int updated;
+        do {
+            updated = this.settlementManager.recoverExpiredClaims(now);
+            recovered += updated;
+        } while (updated > 0);
+
+        if (recovered > 0) {
+            this.logger.info("Recovered " + recovered + " transactions with expired settlement claims");
+        }
+        return recovered;
+    }
+}
@@ -17,17 +17,18 @@
 
 package es.upm.fiware.rss.settlement;
 
-import java.util.List;
-
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import es.upm.fiware.rss.algorithm.AlgorithmFactory;
 import es.upm.fiware.rss.algorithm.AlgorithmProcessor;
-import es.upm.fiware.rss.model.DbeTransaction;
 import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.TransactionSummary;
 import es.upm.fiware.rss.service.SettlementManager;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,58 +52,197 @@ public class ProductSettlementTask implements Runnable {
     @Autowired
     private AlgorithmFactory factory;
 
-    private List<DbeTransaction> transactions;
+    @Autowired
+    private SharingReportWriter reportWriter;
+
+    @Autowired
+    private SettlementThrottle throttle;
+
     private RSSModel model;
-    private String callbackUrl;
+    private String currency;
+    private String jobId;
+    private long transactions = 0;
 
     public ProductSettlementTask() {
     }
 
-    public ProductSettlementTask(RSSModel model, List<DbeTransaction> transactions, String callbackUrl) {
+    public ProductSettlementTask(RSSModel model, String currency, String jobId) {
         this.model = model;
-        this.transactions = transactions;
-        this.callbackUrl = callbackUrl;
+        this.currency = currency;
+        this.jobId = jobId;
+    }
+
+    private void logError(Exception e) {
+        this.logger.info("Error processing transactions of: "
+                + this.model.getAggregatorId() + " "
+                + this.model.getOwnerProviderId() + " "
+                + this.model.getProductClass() + " "
+                + this.currency + " "
+                + e.getMessage());
+    }
+
+    private void claimTransactions(String owner, int fromId) throws InterruptedException {
+        // Every chunk is committed on its own to keep transaction locks short
+        int updated;
+        do {
+            // No chunk is claimed while settlement is paused, the claim on
+            // the chunks already taken is renewed so it does not expire
+            while (!this.throttle.awaitResume()) {
+                this.settlementManager.renewClaim(owner);
+            }
+
+            updated = this.settlementManager.claimTransactions(
+                    this.model, this.currency, owner, fromId);
+
+            // The claim is also renewed while waiting for the claim rate
+            long until = this.throttle.acquireTransactions(updated);
+            while (!this.throttle.awaitTransactions(until)) {
+                this.settlementManager.renewClaim(owner);
+            }
+        } while (updated > 0);
+    }
+
+    private void releaseClaim(String owner, String newState) {
+        int updated;
+        do {
+            updated = this.settlementManager.releaseClaim(owner, newState);
+        } while (updated > 0);
+    }
+
+    private void abort(String owner, Exception e) {
+        this.logError(e);
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Set transactions as pending, if this fails they are recovered
+        // once the claim expires
+        try {
+            this.releaseClaim(owner, "pending");
+        } catch (Exception ex) {
+            this.logError(ex);
+        }
     }
 
     @Override
     public void run() {
-        this.logger.info("Processing class " + this.model.getProductClass());
+        // Wait for the throttle before claiming anything
+        try {
+            this.throttle.acquireTask();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.logError(e);
+            this.poolManager.startTask(this, this.jobId);
+            this.poolManager.completeTask(this, this.jobId, false);
+            return;
+        }
 
-        // Aggregate value
-        String curr = this.transactions.get(0).getBmCurrency().getTxIso4217Code();
-        BigDecimal value = new BigDecimal("0");
+        // The pool is always completed, otherwise the job never finishes
+        boolean success = false;
+        try {
+            success = this.settle();
+        } catch (RuntimeException e) {
+            this.logError(e);
+        } finally {
+            this.throttle.releaseTask();
+            this.poolManager.completeTask(this, this.jobId, success);
+        }
+    }
 
-        for (DbeTransaction tx: this.transactions) {
-            if (tx.getTcTransactionType().equalsIgnoreCase("c")) {
-                value = value.add(tx.getFtChargedAmount());
-            } else {
-                value = value.subtract(tx.getFtChargedAmount());
-            }
+    /**
+     * Settles the transactions of the model in the currency
+     * @return true if the transactions have been settled
+     */
+    private boolean settle() {
+        this.logger.info("Processing class " + this.model.getProductClass()
+                + " in " + this.currency);
+        this.poolManager.startTask(this, this.jobId);
+
+        // Transactions are claimed with a token of this execution, so they
+        // are not taken by other tasks and can be recovered if it dies
+        String owner = UUID.randomUUID().toString();
+
+        // Claim transactions and aggregate their value
+        // Only transactions past the watermark of the model are read
+        List<TransactionSummary> summaries;
+        try {
+            int startId = this.settlementManager.getSettlementStart(this.model);
+
+            this.claimTransactions(owner, startId);
+            summaries = this.settlementManager.aggregateTransactions(owner);
+
+        } catch (Exception e) {
+            this.abort(owner, e);
+            return false;
+        }
+
+        int toId = 0;
+        long aggregated = 0;
+        for (TransactionSummary summary: summaries) {
+            toId = Math.max(toId, summary.getMaxTransactionId());
+            aggregated += summary.getTransactions();
         }
 
-        // Calculate RS
+        // Calculate RS, a report is generated for each currency
         try {
+            // Renew the lease before generating reports, if some transaction
+            // has been recovered in the meantime the task must not report it
+            if (aggregated > 0 && this.settlementManager.renewClaim(owner) != aggregated) {
+                throw new IllegalStateException("The claim on the transactions has expired");
+            }
+
             AlgorithmProcessor processor = this.factory.getAlgorithmProcessor(this.model.getAlgorithmType());
 
-            this.settlementManager
-                    .generateReport(processor.calculateRevenue(model, value), curr);
+            // Only the new value is processed, volume based algorithms get
+            // the volume already settled for the model in the currency
+            List<SettlementReport> reports = new ArrayList<>();
+            for (TransactionSummary summary: summaries) {
+                BigDecimal settled = this.settlementManager
+                        .getSettledVolume(this.model, summary.getCurrency());
+
+                reports.add(new SettlementReport(
+                        processor.calculateRevenue(this.model, summary.getValue(), settled),
+                        summary.getCurrency(), summary.getValue(), settled, owner,
+                        summary.getTransactions()));
+            }
+
+            // Reports are stored together with the ones of other tasks, the
+            // claimed transactions are set as processed with them
+            if (!reports.isEmpty()) {
+                this.reportWriter.write(reports);
+            }
 
         } catch (Exception e) {
-            this.logger.info("Error processing transactions of: "
-                    + this.model.getAggregatorId() + " "
-                    + this.model.getOwnerProviderId() + " "
-                    + this.model.getProductClass() + " "
-                    + e.getMessage());
-
-            // Set transactions as pending
-            this.settlementManager.setTxState(transactions, "pending", true);
-            this.poolManager.completeTask(this, callbackUrl, false);
-            return;
+            this.abort(owner, e);
+            return false;
+        }
+
+        // Advance the watermark
+        if (!summaries.isEmpty()) {
+            try {
+                this.settlementManager.setSettlementWatermark(this.model, toId);
+            } catch (Exception e) {
+                // Next settlement scans the transactions again
+                this.logError(e);
+            }
         }
+        this.transactions = aggregated;
+        return true;
+    }
+
+    public RSSModel getModel() {
+        return model;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
 
-        // Set transactions as processed
-        this.settlementManager.setTxState(transactions, "processed", true);
-        
-        this.poolManager.completeTask(this, callbackUrl, true);
+    /**
+     * 
+     * @return Number of transactions settled by the task
+     */
+    public long getTransactions() {
+        return transactions;
     }
 }
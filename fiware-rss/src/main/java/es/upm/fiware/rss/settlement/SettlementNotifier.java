@@ -1,69 +1,215 @@
 /**
- * Copyright (C) 2016 CoNWeT Lab., Universidad Politécnica de Madrid
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Affero General Public License as
  * published by the Free Software Foundation, either version 3 of the
  * License, or (at your option) any later version.
- * 
+ *
  * This program is distributed in the hope that it will be useful,
  * but WITHOUT ANY WARRANTY; without even the implied warranty of
  * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
  * GNU Affero General Public License for more details.
- * 
+ *
  * You should have received a copy of the GNU Affero General Public License
  * along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
-
 package es.upm.fiware.rss.settlement;
 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.ws.rs.core.MediaType;
 
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import es.upm.fiware.rss.model.SettlementNotification;
+import es.upm.fiware.rss.service.SettlementNotificationManager;
 
 /**
+ * Notifies the callback URL of a settlement job when it finishes. The
+ * notifications are saved in an outbox and delivered in background with a
+ * shared HTTP client, so a slow callback does not block settlement workers.
+ * Failed deliveries are retried with exponential back-off.
  *
  * @author fdelavega
  */
+@Component
 public class SettlementNotifier {
-    
-    private TaskPool pool;
 
-    public SettlementNotifier(TaskPool pool) {
-        this.pool = pool;
+    private final Logger logger = LoggerFactory.getLogger(SettlementNotifier.class);
+
+    @Autowired
+    private SettlementNotificationManager notificationManager;
+
+    @Value("${settlement.notification.connectTimeout:5000}")
+    private int connectTimeout = 5000;
+
+    @Value("${settlement.notification.socketTimeout:10000}")
+    private int socketTimeout = 10000;
+
+    @Value("${settlement.notification.maxConnections:20}")
+    private int maxConnections = 20;
+
+    @Value("${settlement.notification.threads:2}")
+    private int threads = 2;
+
+    /**
+     * Maximum number of deliveries of a notification
+     */
+    @Value("${settlement.notification.maxAttempts:5}")
+    private int maxAttempts = 5;
+
+    /**
+     * Milliseconds before the first retry, doubled in each new retry
+     */
+    @Value("${settlement.notification.retryDelay:1000}")
+    private long retryDelay = 1000;
+
+    private HttpClient client;
+    private ScheduledExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, this.connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, this.socketTimeout);
+        ConnManagerParams.setTimeout(params, this.connectTimeout);
+        ConnManagerParams.setMaxTotalConnections(params, this.maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(this.maxConnections));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        this.client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+
+        AtomicInteger counter = new AtomicInteger(0);
+        this.executor = Executors.newScheduledThreadPool(this.threads, (r) -> {
+            Thread thread = new Thread(r, "settlement-notifier-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // Deliver the notifications pending from a previous execution
+        try {
+            this.notificationManager.getPendingNotifications().stream().forEach((n) -> {
+                this.schedule(n, 0);
+            });
+        } catch (Exception e) {
+            this.logger.error("Pending settlement notifications could not be loaded: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        this.executor.shutdownNow();
+        this.client.getConnectionManager().shutdown();
     }
-    
-    public void notifyProvider() {
-        // Makes a POST request to the specified callback URL
-        HttpClient client = new DefaultHttpClient();
-        HttpPost post = new HttpPost(this.pool.getCallbackUrl());
-        post.setHeader("Content-type", MediaType.APPLICATION_JSON);
-        
+
+    /**
+     * Saves the notification of a finished pool and delivers it in background
+     * @param pool
+     */
+    public void notifyProvider(TaskPool pool) {
+        if (pool.getCallbackUrl() == null || pool.getCallbackUrl().isEmpty()) {
+            return;
+        }
+
         Map<String, String> data = new HashMap<>();
+        data.put("jobId", pool.getJobId());
         data.put("status", pool.getState().toString());
 
+        SettlementNotification notification = this.notificationManager.createNotification(
+                pool.getJobId(), pool.getCallbackUrl(), new JSONObject(data).toString());
+
+        this.schedule(notification, 0);
+    }
+
+    private void schedule(SettlementNotification notification, long delay) {
+        this.executor.schedule(() -> {
+            try {
+                this.deliver(notification);
+            } catch (Exception e) {
+                // The notification remains in the outbox
+                this.logger.error("Error delivering settlement notification: " + e.getMessage());
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deliver(SettlementNotification notification) {
+        if (this.post(notification)) {
+            this.notificationManager.deleteNotification(notification.getId());
+            return;
+        }
+
+        int attempts = notification.getAttempts() + 1;
+        notification.setAttempts(attempts);
+
+        boolean failed = attempts >= this.maxAttempts;
+        this.notificationManager.updateAttempts(notification.getId(), attempts, failed);
+
+        if (failed) {
+            this.logger.error("Settlement notification of job " + notification.getJobId()
+                    + " failed after " + attempts + " attempts");
+        } else {
+            this.schedule(notification, this.retryDelay << (attempts - 1));
+        }
+    }
+
+    /**
+     * Makes a POST request to the callback URL of the notification
+     * @param notification
+     * @return true if the notification has been accepted
+     */
+    protected boolean post(SettlementNotification notification) {
         try {
-            HttpEntity entity = new StringEntity(new JSONObject(data).toString());
-            post.setEntity(entity);
-            
+            HttpPost post = new HttpPost(notification.getCallbackUrl());
+            post.setHeader("Content-type", MediaType.APPLICATION_JSON);
+            post.setEntity(new StringEntity(notification.getPayload()));
+
+            HttpResponse response = this.client.execute(post);
+
+            // Release the connection
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                entity.consumeContent();
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            return status >= 200 && status < 300;
+
+        } catch (Exception e) {
             // A failure in the notification must not block the system
-            client.execute(post);
-        } catch (UnsupportedEncodingException ex) {
-            Logger.getLogger(SettlementNotifier.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(SettlementNotifier.class.getName()).log(Level.SEVERE, null, ex);
+            this.logger.warn("Error notifying " + notification.getCallbackUrl() + ": " + e.getMessage());
+            return false;
         }
     }
 }
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.service.SettlementManager;
+
+/**
+ * Plans a settlement job in background, submitting a settlement task for
+ * each RS model and currency with pending transactions
+ */
+@Component
+public class SettlementPlanningTask implements Runnable {
+
+    private final Logger logger = LoggerFactory.getLogger(SettlementPlanningTask.class);
+
+    @Autowired
+    private SettlementManager settlementManager;
+
+    @Autowired
+    private ThreadPoolManager poolManager;
+
+    @Autowired
+    private SettlementTaskFactory taskFactory;
+
+    private SettlementJob job;
+    private String jobId;
+
+    public SettlementPlanningTask() {
+    }
+
+    public SettlementPlanningTask(SettlementJob job, String jobId) {
+        this.job = job;
+        this.jobId = jobId;
+    }
+
+    @Override
+    public void run() {
+        boolean planned = false;
+        try {
+            for (SettlementUnit unit: this.settlementManager.getSettlementUnits(this.job)) {
+                this.poolManager.submitTask(this.taskFactory.getSettlementTask(
+                        unit.getModel(), unit.getCurrency(), this.jobId), this.jobId);
+            }
+            planned = true;
+
+        } catch (Exception e) {
+            this.logger.error("Error planning settlement job " + this.jobId + ": " + e.getMessage());
+        } finally {
+            // The job finishes once all its tasks have been processed
+            this.poolManager.closeTaskPool(this.jobId, planned);
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.math.BigDecimal;
+
+import es.upm.fiware.rss.model.RSSModel;
+
+/**
+ * Revenue sharing report pending to be stored: the distribution calculated
+ * for a RS model and the value settled in a currency.
+ */
+public class SettlementReport {
+
+    private final RSSModel revenue;
+    private final String currency;
+    private final BigDecimal value;
+    private final BigDecimal settled;
+    private final String owner;
+    private final long transactions;
+
+    /**
+     *
+     * @param revenue Distribution of the value
+     * @param currency ISO 4217 code of the value
+     * @param value Distributed value
+     */
+    public SettlementReport(RSSModel revenue, String currency, BigDecimal value) {
+        this(revenue, currency, value, null, null, 0);
+    }
+
+    /**
+     *
+     * @param revenue Distribution of the value
+     * @param currency ISO 4217 code of the value
+     * @param value Distributed value
+     * @param settled Volume settled for the RS model in the currency when
+     * the distribution was calculated, the report is rejected if it has
+     * changed before storing it
+     * @param owner Claim token of the settlement task whose transactions
+     * are settled by the report
+     * @param transactions Number of transactions settled by the report
+     */
+    public SettlementReport(RSSModel revenue, String currency, BigDecimal value,
+            BigDecimal settled, String owner, long transactions) {
+        this.revenue = revenue;
+        this.currency = currency;
+        this.value = value;
+        this.settled = settled;
+        this.owner = owner;
+        this.transactions = transactions;
+    }
+
+    public RSSModel getRevenue() {
+        return revenue;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    public BigDecimal getSettled() {
+        return settled;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+}
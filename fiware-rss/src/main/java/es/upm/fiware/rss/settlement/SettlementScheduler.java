@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.scheduling.support.CronTrigger;
+import org.springframework.stereotype.Component;
+
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.model.SettlementSchedule;
+import es.upm.fiware.rss.service.SettlementManager;
+
+/**
+ * Launches settlement jobs periodically following cron expressions in
+ * server local time. Schedules are kept in memory, so they have to be
+ * created again when the server is restarted.
+ */
+@Component
+public class SettlementScheduler {
+
+    private final Logger logger = LoggerFactory.getLogger(SettlementScheduler.class);
+
+    @Autowired
+    private SettlementManager settlementManager;
+
+    @Autowired
+    private ThreadPoolManager poolManager;
+
+    private ThreadPoolTaskScheduler scheduler;
+
+    private final Map<String, ScheduledJob> schedules = new ConcurrentHashMap<>();
+
+    /**
+     * Settlement job registered in the scheduler
+     */
+    private static class ScheduledJob {
+        private final String id;
+        private final SettlementJob job;
+        private final CronSequenceGenerator cron;
+        private ScheduledFuture<?> future;
+        private volatile String lastJobId;
+
+        ScheduledJob(String id, SettlementJob job, CronSequenceGenerator cron) {
+            this.id = id;
+            this.job = job;
+            this.cron = cron;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        this.scheduler = new ThreadPoolTaskScheduler();
+        this.scheduler.setPoolSize(1);
+        this.scheduler.setThreadNamePrefix("settlement-scheduler-");
+        this.scheduler.setDaemon(true);
+        this.scheduler.initialize();
+    }
+
+    @PreDestroy
+    public void cleanUp() {
+        this.scheduler.shutdown();
+    }
+
+    private SettlementSchedule toSchedule(ScheduledJob scheduled) {
+        SettlementSchedule schedule = new SettlementSchedule();
+        schedule.setId(scheduled.id);
+        schedule.setAggregatorId(scheduled.job.getAggregatorId());
+        schedule.setProviderId(scheduled.job.getProviderId());
+        schedule.setProductClass(scheduled.job.getProductClass());
+        schedule.setCallbackUrl(scheduled.job.getCallbackUrl());
+        schedule.setSchedule(scheduled.job.getSchedule());
+        schedule.setNextExecution(scheduled.cron.next(new Date()));
+        schedule.setLastJobId(scheduled.lastJobId);
+        return schedule;
+    }
+
+    /**
+     * Launches the settlement job of a schedule, unless the job launched
+     * previously is still running
+     * @param scheduled
+     */
+    private void launch(ScheduledJob scheduled) {
+        String lastJobId = scheduled.lastJobId;
+        if (lastJobId != null) {
+            TaskPool pool = this.poolManager.findTaskPool(lastJobId);
+
+            if (pool != null && !pool.isFinished()) {
+                this.logger.info("Skipping scheduled settlement " + scheduled.id
+                        + ", job " + lastJobId + " is still running");
+                return;
+            }
+        }
+
+        SettlementJob job = new SettlementJob();
+        job.setAggregatorId(scheduled.job.getAggregatorId());
+        job.setProviderId(scheduled.job.getProviderId());
+        job.setProductClass(scheduled.job.getProductClass());
+        job.setCallbackUrl(scheduled.job.getCallbackUrl());
+
+        try {
+            scheduled.lastJobId = this.settlementManager.runSettlement(job);
+        } catch (Exception e) {
+            // Launched again in the next execution
+            this.logger.error("Error launching scheduled settlement "
+                    + scheduled.id + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Schedules a settlement job following the cron expression of its
+     * schedule field
+     * @param job Validated settlement job
+     * @return The created schedule
+     * @throws RSSException If the cron expression is not valid
+     */
+    public SettlementSchedule schedule(SettlementJob job) throws RSSException {
+        CronTrigger trigger;
+        try {
+            trigger = new CronTrigger(job.getSchedule());
+        } catch (IllegalArgumentException e) {
+            String[] args = {"schedule"};
+            throw new RSSException(UNICAExceptionType.CONTENT_NOT_WELL_FORMED, args);
+        }
+
+        ScheduledJob scheduled = new ScheduledJob(UUID.randomUUID().toString(),
+                job, new CronSequenceGenerator(job.getSchedule()));
+
+        scheduled.future = this.scheduler.schedule(() -> this.launch(scheduled), trigger);
+        this.schedules.put(scheduled.id, scheduled);
+
+        this.logger.info("Scheduled settlement " + scheduled.id + " at " + job.getSchedule());
+        return this.toSchedule(scheduled);
+    }
+
+    /**
+     * Returns the schedules matching the given filters
+     * @param aggregatorId If not null, only schedules of the aggregator
+     * @param providerId If not null, only schedules of the provider
+     * @return
+     */
+    public List<SettlementSchedule> getSchedules(String aggregatorId, String providerId) {
+        return this.schedules.values().stream()
+                .filter((scheduled) -> aggregatorId == null
+                        || aggregatorId.equals(scheduled.job.getAggregatorId()))
+                .filter((scheduled) -> providerId == null
+                        || providerId.equals(scheduled.job.getProviderId()))
+                .map(this::toSchedule)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * @param id Identifier of the schedule
+     * @return The schedule
+     * @throws RSSException If the schedule does not exist
+     */
+    public SettlementSchedule getSchedule(String id) throws RSSException {
+        ScheduledJob scheduled = this.schedules.get(id);
+
+        if (scheduled == null) {
+            String[] args = {id};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+        return this.toSchedule(scheduled);
+    }
+
+    /**
+     * Removes a schedule, running jobs launched by it are not stopped
+     * @param id Identifier of the schedule
+     * @throws RSSException If the schedule does not exist
+     */
+    public void cancel(String id) throws RSSException {
+        ScheduledJob scheduled = this.schedules.remove(id);
+
+        if (scheduled == null) {
+            String[] args = {id};
+            throw new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, args);
+        }
+        scheduled.future.cancel(false);
+        this.logger.info("Cancelled scheduled settlement " + id);
+    }
+}
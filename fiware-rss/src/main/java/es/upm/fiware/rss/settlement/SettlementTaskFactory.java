@@ -17,9 +17,8 @@
 
 package es.upm.fiware.rss.settlement;
 
-import es.upm.fiware.rss.model.DbeTransaction;
 import es.upm.fiware.rss.model.RSSModel;
-import java.util.List;
+import es.upm.fiware.rss.model.SettlementJob;
 
 
 /**
@@ -27,5 +26,7 @@ import java.util.List;
  * @author fdelavega
  */
 public abstract class SettlementTaskFactory {
-    public abstract ProductSettlementTask getSettlementTask(RSSModel model, List<DbeTransaction> transactions, String callbackUrl);
+    public abstract ProductSettlementTask getSettlementTask(RSSModel model, String currency, String jobId);
+
+    public abstract SettlementPlanningTask getPlanningTask(SettlementJob job, String jobId);
 }
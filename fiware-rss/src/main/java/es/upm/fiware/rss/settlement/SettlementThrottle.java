@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the load settlement puts on the database, so it does not compete
+ * with the CDR ingestion. It bounds the number of settlement tasks running
+ * at the same time and the rate at which transactions are claimed, and
+ * pauses settlement during the configured daily windows, usually the
+ * ingestion peaks.
+ */
+@Component
+public class SettlementThrottle {
+
+    private final Logger logger = LoggerFactory.getLogger(SettlementThrottle.class);
+
+    /**
+     * Maximum number of settlement tasks running at the same time, if not
+     * positive tasks are only limited by the settlement workers
+     */
+    @Value("${settlement.throttle.maxTasks:0}")
+    private int maxTasks = 0;
+
+    /**
+     * Maximum number of transactions claimed per second by all tasks, if
+     * not positive the rate is not limited
+     */
+    @Value("${settlement.throttle.transactionsPerSecond:0}")
+    private double transactionsPerSecond = 0;
+
+    /**
+     * Comma separated daily windows in which settlement is paused, in
+     * HH:mm-HH:mm format and server local time. A window ending before
+     * its start spans midnight
+     */
+    @Value("${settlement.throttle.pauseWindows:}")
+    private String pauseWindows = "";
+
+    /**
+     * Milliseconds a settlement task holds its claim on the transactions,
+     * paused tasks wake up before it expires to renew their claim
+     */
+    @Value("${settlement.claim.lease:600000}")
+    private long claimLease = 600000;
+
+    private Clock clock = Clock.systemDefaultZone();
+
+    private final List<PauseWindow> windows = new ArrayList<>();
+    private final AtomicBoolean paused = new AtomicBoolean(false);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = this.lock.newCondition();
+    private int running = 0;
+
+    // Time in milliseconds from which new transactions can be claimed
+    private long nextClaim = 0;
+
+    /**
+     * Daily time window
+     */
+    private static class PauseWindow {
+        private final LocalTime start;
+        private final LocalTime end;
+
+        PauseWindow(LocalTime start, LocalTime end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        static PauseWindow parse(String window) {
+            String[] times = window.split("-");
+
+            if (times.length != 2) {
+                throw new IllegalArgumentException("Invalid settlement pause window: " + window);
+            }
+            try {
+                return new PauseWindow(
+                        LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid settlement pause window: " + window, e);
+            }
+        }
+
+        boolean contains(LocalTime time) {
+            if (this.start.isAfter(this.end)) {
+                return !time.isBefore(this.start) || time.isBefore(this.end);
+            }
+            return !time.isBefore(this.start) && time.isBefore(this.end);
+        }
+
+        long getRemaining(LocalTime time) {
+            long remaining = Duration.between(time, this.end).toMillis();
+            return remaining > 0 ? remaining : remaining + Duration.ofDays(1).toMillis();
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        this.windows.clear();
+
+        if (this.pauseWindows != null) {
+            for (String window: this.pauseWindows.split(",")) {
+                if (!window.trim().isEmpty()) {
+                    this.windows.add(PauseWindow.parse(window));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the time until settlement can be resumed
+     * @return Milliseconds until the end of the current pause window, 0 if
+     * settlement is not paused
+     */
+    public long getPauseRemaining() {
+        LocalTime now = LocalTime.now(this.clock);
+        long remaining = 0;
+
+        for (PauseWindow window: this.windows) {
+            if (window.contains(now)) {
+                remaining = Math.max(remaining, window.getRemaining(now));
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Waits while settlement is paused, at most half the claim lease so
+     * the caller can renew its claim before it expires
+     * @return true if settlement is not paused
+     * @throws InterruptedException
+     */
+    public boolean awaitResume() throws InterruptedException {
+        long remaining = this.getPauseRemaining();
+
+        if (remaining > 0) {
+            if (this.paused.compareAndSet(false, true)) {
+                this.logger.info("Settlement paused for " + remaining + " ms");
+            }
+            Thread.sleep(Math.max(1, Math.min(remaining, this.claimLease / 2)));
+            remaining = this.getPauseRemaining();
+        }
+
+        if (remaining == 0 && this.paused.compareAndSet(true, false)) {
+            this.logger.info("Settlement resumed");
+        }
+        return remaining == 0;
+    }
+
+    /**
+     * Waits until a settlement task can start, out of the pause windows
+     * and below the limit of running tasks
+     * @throws InterruptedException
+     */
+    public void acquireTask() throws InterruptedException {
+        while (true) {
+            // Nothing has been claimed yet, so there is no claim to renew
+            boolean resumed = false;
+            while (!resumed) {
+                resumed = this.awaitResume();
+            }
+
+            this.lock.lockInterruptibly();
+            try {
+                if (this.maxTasks <= 0 || this.running < this.maxTasks) {
+                    this.running++;
+                    return;
+                }
+                this.released.await();
+            } finally {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Releases the slot of a finished settlement task
+     */
+    public void releaseTask() {
+        this.lock.lock();
+        try {
+            this.running--;
+            this.released.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves the claim of the given transactions at the configured rate
+     * @param transactions Number of claimed transactions
+     * @return Milliseconds to wait before claiming more transactions
+     */
+    protected synchronized long reserveTransactions(int transactions) {
+        if (this.transactionsPerSecond <= 0 || transactions <= 0) {
+            return 0;
+        }
+
+        long now = this.clock.millis();
+        long wait = Math.max(0, this.nextClaim - now);
+
+        this.nextClaim = Math.max(this.nextClaim, now)
+                + (long) Math.ceil(transactions * 1000 / this.transactionsPerSecond);
+        return wait;
+    }
+
+    /**
+     * Accounts the transactions claimed by a task at the configured rate
+     * @param transactions Number of claimed transactions
+     * @return Time in milliseconds until which the task must wait before
+     * claiming more transactions
+     */
+    public long acquireTransactions(int transactions) {
+        return this.clock.millis() + this.reserveTransactions(transactions);
+    }
+
+    /**
+     * Waits until more transactions can be claimed, at most half the claim
+     * lease so the caller can renew its claim before it expires
+     * @param until Time in milliseconds returned by acquireTransactions
+     * @return true if more transactions can be claimed
+     * @throws InterruptedException
+     */
+    public boolean awaitTransactions(long until) throws InterruptedException {
+        long remaining = until - this.clock.millis();
+
+        if (remaining > 0) {
+            Thread.sleep(Math.max(1, Math.min(remaining, this.claimLease / 2)));
+            remaining = until - this.clock.millis();
+        }
+        return remaining <= 0;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import es.upm.fiware.rss.model.RSSModel;
+
+/**
+ * Work unit of a settlement job: the pending transactions of a RS model in
+ * a single currency. Each unit is settled by its own task and generates its
+ * own report.
+ */
+public class SettlementUnit {
+
+    private final RSSModel model;
+    private final String currency;
+    private final long transactions;
+
+    /**
+     *
+     * @param model RS model of the transactions
+     * @param currency ISO 4217 code of the transactions
+     * @param transactions Number of pending transactions when the job was planned
+     */
+    public SettlementUnit(RSSModel model, String currency, long transactions) {
+        this.model = model;
+        this.currency = currency;
+        this.transactions = transactions;
+    }
+
+    public RSSModel getModel() {
+        return model;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+}
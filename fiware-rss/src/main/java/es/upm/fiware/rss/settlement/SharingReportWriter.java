@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import es.upm.fiware.rss.service.SettlementManager;
+
+/**
+ * Stores the reports generated by the settlement tasks. Reports submitted
+ * concurrently are buffered and the first task finding the writer idle
+ * stores the reports queued so far in batches, so many reports share a
+ * single database transaction and the providers are resolved once. Tasks
+ * enqueuing reports meanwhile wait for it, renewing their claim, and then
+ * store their own ones if no other task has done it.
+ */
+@Component
+public class SharingReportWriter {
+
+    private final Logger logger = LoggerFactory.getLogger(SharingReportWriter.class);
+
+    @Autowired
+    private SettlementManager settlementManager;
+
+    /**
+     * Maximum number of reports stored in a single database transaction
+     */
+    @Value("${settlement.report.batchSize:100}")
+    private int batchSize = 100;
+
+    /**
+     * Milliseconds a settlement task holds its claim on the transactions,
+     * waiting tasks wake up before it expires to renew their claim
+     */
+    @Value("${settlement.claim.lease:600000}")
+    private long claimLease = 600000;
+
+    private final Queue<PendingReport> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean(false);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = this.lock.newCondition();
+
+    /**
+     * Reports of a settlement task, they are always stored together as they
+     * set the claimed transactions of the task as processed
+     */
+    private static class PendingReport {
+        private final List<SettlementReport> reports;
+        private final CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        PendingReport(List<SettlementReport> reports) {
+            this.reports = reports;
+        }
+    }
+
+    private List<PendingReport> pollBatch(int max) {
+        List<PendingReport> batch = new ArrayList<>();
+        PendingReport pending;
+        int size = 0;
+
+        while (size < Math.max(this.batchSize, 1) && batch.size() < max
+                && (pending = this.queue.poll()) != null) {
+            batch.add(pending);
+            size += pending.reports.size();
+        }
+        return batch;
+    }
+
+    private void store(List<PendingReport> batch) {
+        try {
+            this.settlementManager.generateReports(batch.stream()
+                    .flatMap((pending) -> pending.reports.stream())
+                    .collect(Collectors.toList()));
+
+            batch.stream().forEach((pending) -> pending.stored.complete(null));
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                batch.get(0).stored.completeExceptionally(e);
+                return;
+            }
+            // A failing task must not discard the reports of other tasks
+            this.logger.info("Error storing a batch of reports, storing them one by one: "
+                    + e.getMessage());
+
+            batch.stream().forEach((pending) -> {
+                this.store(Collections.singletonList(pending));
+            });
+        }
+    }
+
+    private void signalWaiters() {
+        this.lock.lock();
+        try {
+            this.flushed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void flush() {
+        if (this.queue.isEmpty() || !this.flushing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            // Only the reports queued so far are stored, the ones enqueued
+            // later are stored by their tasks once this flush finishes
+            int queued = this.queue.size();
+            List<PendingReport> batch;
+
+            while (queued > 0 && !(batch = this.pollBatch(queued)).isEmpty()) {
+                queued -= batch.size();
+                this.store(batch);
+                this.signalWaiters();
+            }
+        } finally {
+            this.flushing.set(false);
+            this.signalWaiters();
+        }
+    }
+
+    private void renewClaims(PendingReport pending) {
+        pending.reports.stream()
+                .map(SettlementReport::getOwner)
+                .filter(Objects::nonNull)
+                .distinct()
+                .forEach((owner) -> {
+                    try {
+                        this.settlementManager.renewClaim(owner);
+                    } catch (Exception e) {
+                        this.logger.info("Error renewing claim " + owner + ": " + e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Waits until the reports are stored, storing them if the writer is
+     * idle. The claim of the task is renewed while other tasks are storing
+     * reports, so it does not expire before its reports are stored.
+     */
+    private void awaitStored(PendingReport pending) throws InterruptedException {
+        while (!pending.stored.isDone()) {
+            this.flush();
+
+            boolean signalled = true;
+            this.lock.lockInterruptibly();
+            try {
+                if (!pending.stored.isDone() && this.flushing.get()) {
+                    signalled = this.flushed.await(
+                            Math.max(1, this.claimLease / 2), TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                this.lock.unlock();
+            }
+
+            if (!signalled) {
+                this.renewClaims(pending);
+            }
+        }
+    }
+
+    /**
+     * Stores the reports of a settlement task in the same database
+     * transaction, returning once all of them are stored
+     *
+     * @param reports Reports to be stored
+     * @throws Exception If the reports cannot be stored
+     */
+    public void write(List<SettlementReport> reports) throws Exception {
+        if (reports.isEmpty()) {
+            return;
+        }
+        PendingReport pending = new PendingReport(reports);
+
+        this.queue.add(pending);
+        this.awaitStored(pending);
+
+        try {
+            pending.stored.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+}
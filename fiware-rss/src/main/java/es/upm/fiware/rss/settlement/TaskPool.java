@@ -16,61 +16,120 @@
  */
 package es.upm.fiware.rss.settlement;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
+ * Tracks the tasks of a settlement job. Workers complete tasks concurrently,
+ * so the counters and the state are atomic and the pool finishes exactly once
+ * whatever the order of the last completion and the close.
  *
  * @author fdelavega
  */
 public class TaskPool {
-    private TaskPoolState state = TaskPoolState.LOADING;
-    private List<ProductSettlementTask> tasks = new ArrayList<>();
-    private int failed = 0;
-    private int completed = 0;
+    private final AtomicReference<TaskPoolState> state =
+            new AtomicReference<>(TaskPoolState.LOADING);
 
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicInteger started = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private final AtomicInteger completed = new AtomicInteger(0);
+    private final AtomicLong transactions = new AtomicLong(0);
+
+    private final long created = System.currentTimeMillis();
+    private volatile boolean planned = true;
+    private volatile long finished = 0;
+
+    private String jobId;
     private String callbackUrl;
+    private String aggregatorId;
+    private String providerId;
+    private String productClass;
 
     /**
      * 
      * @param task 
      */
     public void addTask(ProductSettlementTask task) {
-        if (this.state == TaskPoolState.LOADING) {
-            this.tasks.add(task);
+        if (this.state.get() == TaskPoolState.LOADING) {
+            this.size.incrementAndGet();
         }
     }
 
+    /**
+     * 
+     * @param task 
+     */
+    public void startTask(ProductSettlementTask task) {
+        this.started.incrementAndGet();
+    }
+
     /**
      * 
      * @param task
      * @param status 
+     * @return true if the pool has finished with this task
      */
-    public void completeTask(ProductSettlementTask task, boolean status) {
-        this.completed++;
-
+    public boolean completeTask(ProductSettlementTask task, boolean status) {
         if (!status) {
-            this.failed++;
+            this.failed.incrementAndGet();
         }
+        this.transactions.addAndGet(task.getTransactions());
+        this.completed.incrementAndGet();
 
-        if (this.state == TaskPoolState.PENDING && this.completed == this.tasks.size()) {
-            // All the tasks has been processed
-            this.state = TaskPoolState.COMPLETED;
-
-            if (this.failed > 0) {
-                this.state = this.failed == this.tasks.size() ? TaskPoolState.FAILED : TaskPoolState.PARTIAL;
-            }
-        }
+        return this.finish();
     }
     
     /**
      * 
+     * @return true if the pool has finished when closed
      */
-    public void close() {
-        if (this.state == TaskPoolState.LOADING) {
-            this.state = this.tasks.isEmpty() ? TaskPoolState.COMPLETED : TaskPoolState.PENDING;
+    public boolean close() {
+        return this.close(true);
+    }
+
+    /**
+     * 
+     * @param planned false if some tasks of the job could not be loaded
+     * @return true if the pool has finished when closed
+     */
+    public boolean close(boolean planned) {
+        this.planned = planned;
+
+        if (this.size.get() == 0) {
+            return this.setFinalState(TaskPoolState.LOADING,
+                    planned ? TaskPoolState.COMPLETED : TaskPoolState.FAILED);
+        }
+
+        this.state.compareAndSet(TaskPoolState.LOADING, TaskPoolState.PENDING);
+        return this.finish();
+    }
+
+    private boolean finish() {
+        // Tasks may complete before the pool is closed
+        if (this.state.get() != TaskPoolState.PENDING
+                || this.completed.get() < this.size.get()) {
+            return false;
+        }
+
+        TaskPoolState finalState = TaskPoolState.COMPLETED;
+        if (this.failed.get() > 0 || !this.planned) {
+            finalState = this.failed.get() == this.size.get() ? TaskPoolState.FAILED : TaskPoolState.PARTIAL;
         }
+
+        // Only one of the concurrent callers finishes the pool
+        return this.setFinalState(TaskPoolState.PENDING, finalState);
+    }
+
+    private boolean setFinalState(TaskPoolState expected, TaskPoolState finalState) {
+        boolean updated = this.state.compareAndSet(expected, finalState);
+
+        if (updated) {
+            this.finished = System.currentTimeMillis();
+        }
+        return updated;
     }
 
     /**
@@ -78,19 +137,53 @@ public class TaskPool {
      * @return 
      */
     public boolean isFinished() {
-        return this.state == TaskPoolState.COMPLETED ||
-                this.state == TaskPoolState.FAILED ||
-                this.state == TaskPoolState.PARTIAL;
+        TaskPoolState current = this.state.get();
+        return current == TaskPoolState.COMPLETED ||
+                current == TaskPoolState.FAILED ||
+                current == TaskPoolState.PARTIAL;
     }
 
     // ============================================
 
     public TaskPoolState getState() {
-        return state;
+        return state.get();
     }
 
-    public List<ProductSettlementTask> getTasks() {
-        return tasks;
+    public int getSize() {
+        return size.get();
+    }
+
+    public int getStarted() {
+        return started.get();
+    }
+
+    public int getCompleted() {
+        return completed.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    public long getTransactions() {
+        return transactions.get();
+    }
+
+    /**
+     * 
+     * @return Milliseconds since the pool was created until it finished
+     */
+    public long getElapsedTime() {
+        long end = this.finished > 0 ? this.finished : System.currentTimeMillis();
+        return end - this.created;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
     }
 
     public String getCallbackUrl() {
@@ -100,4 +193,28 @@ public class TaskPool {
     public void setCallbackUrl(String callbackUrl) {
         this.callbackUrl = callbackUrl;
     }
+
+    public String getAggregatorId() {
+        return aggregatorId;
+    }
+
+    public void setAggregatorId(String aggregatorId) {
+        this.aggregatorId = aggregatorId;
+    }
+
+    public String getProviderId() {
+        return providerId;
+    }
+
+    public void setProviderId(String providerId) {
+        this.providerId = providerId;
+    }
+
+    public String getProductClass() {
+        return productClass;
+    }
+
+    public void setProductClass(String productClass) {
+        this.productClass = productClass;
+    }
 }
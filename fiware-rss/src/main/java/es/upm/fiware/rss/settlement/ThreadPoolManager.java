@@ -16,14 +16,31 @@
  */
 package es.upm.fiware.rss.settlement;
 
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
 
+import es.upm.fiware.rss.model.SettlementJob;
+import org.apache.commons.dbcp.BasicDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Scope;
 import org.springframework.stereotype.Component;
 
@@ -34,62 +51,269 @@ import org.springframework.stereotype.Component;
 @Component
 @Scope("singleton")
 public class ThreadPoolManager {
+
+    private final Logger logger = LoggerFactory.getLogger(ThreadPoolManager.class);
+
     private Map<String, TaskPool> pendingTasks;
+
+    /**
+     * Latest finished pools, kept so the status of the job can be queried
+     */
+    private final Map<String, TaskPool> finishedTasks = Collections.synchronizedMap(
+            new LinkedHashMap<String, TaskPool>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TaskPool> eldest) {
+                    return this.size() > historySize;
+                }
+            });
+
     private ExecutorService executorService;
+    private ExecutorService plannerService;
+
+    @Autowired(required = false)
+    private DataSource dataSource;
+
+    @Autowired
+    private SettlementNotifier notifier;
+
+    /**
+     * Number of settlement workers, if not positive it is derived from
+     * the maximum number of connections of the data source
+     */
+    @Value("${settlement.pool.size:0}")
+    private int poolSize = 0;
+
+    /**
+     * Database connections not used by settlement workers, so the API
+     * can still be served during a settlement
+     */
+    @Value("${settlement.pool.reservedConnections:10}")
+    private int reservedConnections = 10;
+
+    /**
+     * Maximum number of tasks waiting for a worker
+     */
+    @Value("${settlement.queue.capacity:1000}")
+    private int queueCapacity = 1000;
+
+    /**
+     * Number of finished jobs whose status is kept
+     */
+    @Value("${settlement.jobs.history:100}")
+    private int historySize = 100;
+
+    /**
+     * Number of settlement jobs planned at the same time
+     */
+    @Value("${settlement.planner.threads:2}")
+    private int plannerThreads = 2;
 
     @PostConstruct
     public void init() {
-        this.executorService = Executors.newCachedThreadPool();
-        this.pendingTasks = new HashMap<>();
+        int workers = this.getWorkers();
+        this.logger.info("Starting settlement executor with " + workers + " workers");
+
+        this.executorService = new ThreadPoolExecutor(workers, workers,
+                0L, TimeUnit.MILLISECONDS,
+                new AggregatorFairQueue(this.queueCapacity),
+                new SettlementThreadFactory("settlement-worker-"),
+                new BlockingSubmitPolicy());
+
+        // Planners block while the work queue is full, so they do not
+        // share the executor with the workers
+        this.plannerService = Executors.newFixedThreadPool(this.plannerThreads,
+                new SettlementThreadFactory("settlement-planner-"));
+
+        this.pendingTasks = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the executor of the settlement workers, so other settlement
+     * calculations do not run outside the worker pool
+     * @return Settlement executor
+     */
+    public Executor getExecutor() {
+        return this.executorService;
     }
 
     @PreDestroy
     public void cleanUp() {
+        this.plannerService.shutdownNow();
         this.executorService.shutdownNow();
     }
 
+    /**
+     * Returns the number of workers of the settlement executor. Each worker
+     * holds a database connection while processing a task, so the number
+     * is limited by the connections available in the data source
+     * @return Number of workers
+     */
+    protected int getWorkers() {
+        if (this.poolSize > 0) {
+            return this.poolSize;
+        }
+
+        int maxActive = -1;
+        if (this.dataSource instanceof BasicDataSource) {
+            maxActive = ((BasicDataSource) this.dataSource).getMaxActive();
+        }
+
+        if (maxActive <= 0) {
+            // Unknown or unlimited connections
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return Math.max(1, maxActive - this.reservedConnections);
+    }
+
+    /**
+     * Creates the task pool of a new settlement job
+     * @param job Settlement job, its callback URL is notified when it finishes
+     * @return Generated identifier of the job
+     */
+    public String openTaskPool(SettlementJob job) {
+        String jobId = UUID.randomUUID().toString();
+
+        TaskPool tp = new TaskPool();
+        tp.setJobId(jobId);
+        tp.setCallbackUrl(job.getCallbackUrl());
+        tp.setAggregatorId(job.getAggregatorId());
+        tp.setProviderId(job.getProviderId());
+        tp.setProductClass(job.getProductClass());
+
+        this.pendingTasks.put(jobId, tp);
+        return jobId;
+    }
+
+    /**
+     * Plans a settlement job in background
+     * @param task Planning task of the job
+     */
+    public void planTaskPool(SettlementPlanningTask task) {
+        this.getTaskPool(task.getJobId());
+        this.plannerService.execute(task);
+    }
+
     /**
      * 
      * @param task
-     * @param callbackUrl 
+     * @param jobId 
      */
-    public synchronized void submitTask(ProductSettlementTask task, String callbackUrl) {
-        // Save the task with its callback url
-        if (!this.pendingTasks.containsKey(callbackUrl)) {
-            TaskPool tp = new TaskPool();
-            tp.setCallbackUrl(callbackUrl);
+    public void submitTask(ProductSettlementTask task, String jobId) {
+        this.getTaskPool(jobId).addTask(task);
 
-            this.pendingTasks.put(callbackUrl, tp);
-        }
-        this.pendingTasks.get(callbackUrl).addTask(task);
+        // Submit the task to the executor service, it blocks while the
+        // queue is full
+        this.executorService.execute(task);
+    }
 
-        // Submit the tasks to the executor service
-        this.executorService.submit(task);
+    /**
+     * Registers that a worker has started processing a task
+     * @param task
+     * @param jobId
+     */
+    public void startTask(ProductSettlementTask task, String jobId) {
+        this.getTaskPool(jobId).startTask(task);
     }
 
     /**
      * 
      * @param task
-     * @param callbackUrl 
+     * @param jobId
+     * @param status
      */
-    public synchronized void completeTask(ProductSettlementTask task, String callbackUrl, boolean status) {
-        TaskPool pool = this.pendingTasks.get(callbackUrl);
-        pool.completeTask(task, status);
+    public void completeTask(ProductSettlementTask task, String jobId, boolean status) {
+        TaskPool pool = this.getTaskPool(jobId);
 
-        // Check taskpool status
-        if (pool.isFinished()) {
-            SettlementNotifier notifier = new SettlementNotifier(pool);
-            notifier.notifyProvider();
+        if (pool.completeTask(task, status)) {
+            this.finishTaskPool(pool);
         }
     }
 
     /**
      * 
-     * @param callbackUrl 
+     * @param jobId 
+     */
+    public void closeTaskPool(String jobId) {
+        this.closeTaskPool(jobId, true);
+    }
+
+    /**
+     * 
+     * @param jobId
+     * @param planned false if some tasks of the job could not be submitted
      */
-    public synchronized void closeTaskPool(String callbackUrl) {
-        if (this.pendingTasks.containsKey(callbackUrl)) {
-            this.pendingTasks.get(callbackUrl).close();
+    public void closeTaskPool(String jobId, boolean planned) {
+        TaskPool pool = this.pendingTasks.get(jobId);
+
+        if (pool != null && pool.close(planned)) {
+            this.finishTaskPool(pool);
+        }
+    }
+
+    /**
+     * Returns the pool of a running or recently finished job
+     * @param jobId
+     * @return The task pool of the job or null if it does not exist
+     */
+    public TaskPool findTaskPool(String jobId) {
+        TaskPool pool = this.pendingTasks.get(jobId);
+        return pool != null ? pool : this.finishedTasks.get(jobId);
+    }
+
+    private TaskPool getTaskPool(String jobId) {
+        TaskPool pool = this.pendingTasks.get(jobId);
+
+        if (pool == null) {
+            throw new IllegalStateException("The settlement job " + jobId + " does not exist");
+        }
+        return pool;
+    }
+
+    private void finishTaskPool(TaskPool pool) {
+        this.finishedTasks.put(pool.getJobId(), pool);
+        this.pendingTasks.remove(pool.getJobId());
+
+        this.notifier.notifyProvider(pool);
+    }
+
+    /**
+     * Names the settlement threads
+     */
+    private static class SettlementThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger counter = new AtomicInteger(0);
+        private final String prefix;
+
+        public SettlementThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, this.prefix + this.counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Blocks the submitter until there is room in the queue instead of
+     * rejecting the task
+     */
+    private static class BlockingSubmitPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("The settlement executor has been shut down");
+            }
+
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
         }
     }
 }
@@ -26,6 +26,8 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.MediaType;
 
+import org.springframework.beans.factory.annotation.Autowired;
+
 import es.upm.fiware.rss.algorithm.AlgorithmFactory;
 import es.upm.fiware.rss.model.Algorithm;
 
@@ -37,12 +39,14 @@ import es.upm.fiware.rss.model.Algorithm;
 @WebService(serviceName = "algorithms", name="algorithms")
 public class AlgorithmService {
 
+    @Autowired
+    private AlgorithmFactory algorithmFactory;
+
     @WebMethod
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public Response getAlgoritms() throws Exception {
-        AlgorithmFactory factory = new AlgorithmFactory();
-        List<Algorithm> algorithms = factory.getAlgorithms();
+        List<Algorithm> algorithms = this.algorithmFactory.getAlgorithms();
 
         Response.ResponseBuilder rb = Response.status(Response.Status.OK.getStatusCode());
         rb.entity(algorithms);
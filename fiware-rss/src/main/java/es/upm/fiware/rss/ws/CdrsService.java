@@ -21,6 +21,7 @@
 
 package es.upm.fiware.rss.ws;
 
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -29,6 +30,7 @@ import javax.jws.WebService;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.GET;
 import javax.ws.rs.Produces;
@@ -39,11 +41,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import es.upm.fiware.rss.service.CdrsBatchManager;
+import es.upm.fiware.rss.service.CdrsImporter;
 import es.upm.fiware.rss.service.CdrsManager;
+import es.upm.fiware.rss.service.CdrsUploader;
 import es.upm.fiware.rss.service.UserManager;
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrBatchResult;
+import es.upm.fiware.rss.model.CdrImport;
+import es.upm.fiware.rss.model.CdrUploadResult;
 import es.upm.fiware.rss.model.Count;
 import es.upm.fiware.rss.model.ProductClasses;
 import javax.ws.rs.DefaultValue;
@@ -61,9 +69,26 @@ public class CdrsService {
     @Autowired
     private CdrsManager cdrsManager;
 
+    @Autowired
+    private CdrsUploader cdrsUploader;
+
+    @Autowired
+    private CdrsBatchManager batchManager;
+
+    @Autowired
+    private CdrsImporter cdrsImporter;
+
     @Autowired
     private UserManager userManager;
 
+    private void checkCreatePermissions() throws RSSException {
+        // Validate user permissions (Sellers cannot create CDRs)
+        if (!userManager.isAdmin() && !userManager.isAggregator()) {
+            String[] args = {"You are not allowed to create transactions"};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+    }
+
     /**
      * Web service used to receive new CDRs defining a set of transactions.
      * 
@@ -76,18 +101,138 @@ public class CdrsService {
     @Consumes(MediaType.APPLICATION_JSON)
     public Response createCdr(List<CDR> cdrs) throws Exception {
         logger.info("createCdr POST Start.");
-
-        // Validate user permissions (Sellers cannot create CDRs)
-        if (!userManager.isAdmin() && !userManager.isAggregator()) {
-            String[] args = {"You are not allowed to create transactions"};
-            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
-        }
+        this.checkCreatePermissions();
 
         this.cdrsManager.createCDRs(cdrs);
         Response.ResponseBuilder rb = Response.status(Response.Status.CREATED.getStatusCode());
         return rb.build();
     }
 
+    /**
+     * Web service used to receive a list of CDRs in partial mode, the valid
+     * CDRs are saved and the invalid ones are reported by their index.
+     *
+     * @param cdrs, List of CDR document defining different transactions
+     * @return, A CREATED response if every CDR has been saved, an OK one if
+     * some of them have been rejected or a BAD_REQUEST one if all of them
+     * have been rejected, including the errors of the rejected CDRs
+     * @throws Exception, When a problem occur saving the transactions
+     */
+    @WebMethod
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createCdrBatch(List<CDR> cdrs) throws Exception {
+        logger.info("createCdrBatch POST Start.");
+        this.checkCreatePermissions();
+
+        CdrBatchResult result = this.batchManager.createCDRs(cdrs);
+
+        Response.Status status = Response.Status.OK;
+        if (result.getErrors().isEmpty()) {
+            status = Response.Status.CREATED;
+        } else if (result.getCreated() == 0) {
+            status = Response.Status.BAD_REQUEST;
+        }
+
+        Response.ResponseBuilder rb = Response.status(status.getStatusCode());
+        rb.entity(result);
+        return rb.build();
+    }
+
+    /**
+     * Web service used to upload a large list of CDRs. The JSON array is
+     * read as a stream and saved in chunks, so the chunks already saved are
+     * kept when a later one is rejected.
+     *
+     * @param body, JSON array of CDR documents
+     * @return, A CREATED response or a BAD_REQUEST one if a chunk has been
+     * rejected, both including the result of every processed chunk
+     * @throws Exception, When the body is not a JSON array
+     */
+    @WebMethod
+    @POST
+    @Path("/upload")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response uploadCdrs(InputStream body) throws Exception {
+        logger.info("uploadCdrs POST Start.");
+        this.checkCreatePermissions();
+
+        CdrUploadResult result = this.cdrsUploader.upload(body);
+        Response.Status status = result.isCompleted()
+                ? Response.Status.CREATED : Response.Status.BAD_REQUEST;
+
+        Response.ResponseBuilder rb = Response.status(status.getStatusCode());
+        rb.entity(result);
+        return rb.build();
+    }
+
+    /**
+     * Web service used to start the bulk import of a file of CDRs, either
+     * uploaded in the body of the request or located in the import
+     * directory of the server. Only admins can import server files.
+     *
+     * @param path, Path of a server file, relative to the import directory
+     * @param format, Format of the file, ndjson or csv
+     * @param body, Content of the file when the path is not provided
+     * @return, An ACCEPTED response including the started import
+     * @throws Exception, When the import cannot be started
+     */
+    @WebMethod
+    @POST
+    @Path("/imports")
+    @Consumes(MediaType.WILDCARD)
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response importCdrs(
+            @QueryParam("path") String path,
+            @DefaultValue("ndjson") @QueryParam("format") String format,
+            InputStream body) throws Exception {
+
+        logger.info("importCdrs POST Start.");
+        this.checkCreatePermissions();
+
+        CdrImport cdrImport = path != null
+                ? this.cdrsImporter.importFile(path, format)
+                : this.cdrsImporter.importUpload(body, format);
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.ACCEPTED.getStatusCode());
+        rb.entity(cdrImport);
+        return rb.build();
+    }
+
+    @WebMethod
+    @GET
+    @Path("/imports/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getImport(@PathParam("id") int id) throws Exception {
+        CdrImport cdrImport = this.cdrsImporter.getImport(id);
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.OK.getStatusCode());
+        rb.entity(cdrImport);
+        return rb.build();
+    }
+
+    /**
+     * Web service used to resume a failed import from the last saved chunk
+     * @param id, Id of the import
+     * @return, An ACCEPTED response including the resumed import
+     * @throws Exception, When the import cannot be resumed
+     */
+    @WebMethod
+    @POST
+    @Path("/imports/{id}/resume")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response resumeImport(@PathParam("id") int id) throws Exception {
+        this.checkCreatePermissions();
+        CdrImport cdrImport = this.cdrsImporter.resume(id);
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.ACCEPTED.getStatusCode());
+        rb.entity(cdrImport);
+        return rb.build();
+    }
+
     @WebMethod
     @GET
     @Produces(MediaType.APPLICATION_JSON)
@@ -22,10 +22,15 @@ import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.RSSReport;
 import es.upm.fiware.rss.model.Count;
 import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.model.SettlementJobStatus;
+import es.upm.fiware.rss.model.SettlementSchedule;
 import es.upm.fiware.rss.service.SettlementManager;
 import es.upm.fiware.rss.service.UserManager;
+import es.upm.fiware.rss.settlement.SettlementScheduler;
 import es.upm.fiware.rss.ws.patch.PATCH;
 import es.upm.fiware.rss.ws.patch.PatchAction;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import javax.jws.WebMethod;
@@ -33,10 +38,13 @@ import javax.jws.WebService;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 /**
  *
@@ -52,6 +60,12 @@ public class SettlementService {
     @Autowired
     UserManager userManager;
 
+    @Autowired
+    ObjectMapper mapper;
+
+    @Autowired
+    SettlementScheduler scheduler;
+
     private boolean isValidURL(String urlStr) {
         boolean res = true;
         try {
@@ -81,9 +95,138 @@ public class SettlementService {
             throw new RSSException(UNICAExceptionType.CONTENT_NOT_WELL_FORMED, args);
         }
 
-        // Launch process
-        settlementManager.runSettlement(task);
+        // Scheduled jobs are launched periodically instead of now
+        if (task.getSchedule() != null && !task.getSchedule().isEmpty()) {
+            this.settlementManager.validateSettlementJob(task);
+
+            Response.ResponseBuilder rb = Response.status(Response.Status.CREATED.getStatusCode());
+            rb.entity(this.scheduler.schedule(task));
+            return rb.build();
+        }
+
+        // Launch process, the job is planned in background
+        String jobId = settlementManager.runSettlement(task);
         Response.ResponseBuilder rb = Response.status(Response.Status.ACCEPTED.getStatusCode());
+        rb.entity(settlementManager.getSettlementJob(jobId));
+        return rb.build();
+    }
+
+    @WebMethod
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/jobs/{id}")
+    public Response getSettlementJob(@PathParam("id") String id) throws Exception {
+        SettlementJobStatus job = this.settlementManager.getSettlementJob(id);
+
+        // Check that the user can manage the settlement of the job
+        Map<String, String> ids = this.userManager.getAllowedIds(
+                job.getAggregatorId(), job.getProviderId(), "settlement jobs");
+
+        if (job.getProviderId() == null && ids.get("provider") != null) {
+            String[] args = {"You are not allowed to access settlement jobs of other providers"};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.OK.getStatusCode());
+        rb.entity(job);
+        return rb.build();
+    }
+
+    @WebMethod
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/schedules")
+    public Response getSettlementSchedules(
+            @QueryParam("aggregatorId") String aggregatorId,
+            @QueryParam("providerId") String providerId)
+            throws Exception {
+
+        // Check basic permissions
+        Map<String, String> ids = this.userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement schedules");
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.OK.getStatusCode());
+        rb.entity(this.scheduler.getSchedules(ids.get("aggregator"), ids.get("provider")));
+        return rb.build();
+    }
+
+    @WebMethod
+    @DELETE
+    @Path("/schedules/{id}")
+    public Response deleteSettlementSchedule(@PathParam("id") String id) throws Exception {
+        SettlementSchedule schedule = this.scheduler.getSchedule(id);
+
+        // Check that the user can manage the settlement of the schedule
+        Map<String, String> ids = this.userManager.getAllowedIds(
+                schedule.getAggregatorId(), schedule.getProviderId(), "settlement schedules");
+
+        if (schedule.getProviderId() == null && ids.get("provider") != null) {
+            String[] args = {"You are not allowed to manage settlement schedules of other providers"};
+            throw new RSSException(UNICAExceptionType.NON_ALLOWED_OPERATION, args);
+        }
+
+        this.scheduler.cancel(id);
+        return Response.status(Response.Status.NO_CONTENT.getStatusCode()).build();
+    }
+
+    /**
+     * Returns the revenue sharing that a settlement would generate for the
+     * pending transactions, without settling them. Reports are written as
+     * they are calculated, so errors after the first report truncate the
+     * returned list.
+     */
+    @WebMethod
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/preview")
+    public Response previewSettlement(
+            @QueryParam("aggregatorId") String aggregatorId,
+            @QueryParam("providerId") String providerId,
+            @QueryParam("productClass") String productClass)
+            throws Exception {
+
+        // Check basic permissions
+        Map<String, String> ids = this.userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement preview");
+
+        SettlementJob job = new SettlementJob();
+        job.setAggregatorId(ids.get("aggregator"));
+        job.setProviderId(ids.get("provider"));
+        job.setProductClass(productClass);
+
+        this.settlementManager.validateSettlementJob(job);
+
+        // The database is read before streaming, so the response is not
+        // written within the database transaction
+        List<CompletableFuture<List<RSSReport>>> previews =
+                this.settlementManager.previewSettlement(job);
+
+        StreamingOutput stream = (output) -> {
+            JsonGenerator generator = this.mapper.getFactory().createGenerator(output);
+            generator.writeStartArray();
+
+            for (CompletableFuture<List<RSSReport>> preview: previews) {
+                List<RSSReport> reports;
+                try {
+                    reports = preview.join();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof RSSException) {
+                        throw new WebApplicationException(e.getCause());
+                    }
+                    throw e;
+                }
+
+                for (RSSReport report: reports) {
+                    generator.writeObject(report);
+                }
+            }
+
+            generator.writeEndArray();
+            generator.close();
+        };
+
+        Response.ResponseBuilder rb = Response.status(Response.Status.OK.getStatusCode());
+        rb.entity(stream);
         return rb.build();
     }
 
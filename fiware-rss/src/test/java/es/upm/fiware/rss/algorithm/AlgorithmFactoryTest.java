@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm;
+
+import es.upm.fiware.rss.algorithm.impl.FixedPercentageProcessor;
+import es.upm.fiware.rss.algorithm.impl.TieredPercentageProcessor;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.Algorithm;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AlgorithmFactoryTest {
+
+    private AlgorithmFactory toTest;
+
+    @Before
+    public void setUp() {
+        this.toTest = new AlgorithmFactory();
+    }
+
+    @Test
+    public void getAlgorithmProcessor() throws RSSException {
+        AlgorithmProcessor processor = this.toTest.getAlgorithmProcessor("FIXED_PERCENTAGE");
+
+        Assert.assertTrue(processor instanceof FixedPercentageProcessor);
+        // Processors are created once and reused
+        Assert.assertSame(processor, this.toTest.getAlgorithmProcessor("FIXED_PERCENTAGE"));
+    }
+
+    @Test
+    public void getServiceLoaderProcessor() throws RSSException {
+        AlgorithmProcessor processor = this.toTest.getAlgorithmProcessor("TIERED_PERCENTAGE");
+
+        Assert.assertTrue(processor instanceof TieredPercentageProcessor);
+    }
+
+    private void testNotExistingProcessor(String algorithmType) {
+        try {
+            this.toTest.getAlgorithmProcessor(algorithmType);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, e.getExceptionType());
+        }
+    }
+
+    @Test
+    public void getAlgorithmProcessorNotExisting() {
+        this.testNotExistingProcessor("UNKNOWN");
+    }
+
+    @Test
+    public void getAlgorithmProcessorNull() {
+        this.testNotExistingProcessor(null);
+    }
+
+    @Test
+    public void setProcessors() throws RSSException {
+        AlgorithmProcessor fixed = new FixedPercentageProcessor();
+        AlgorithmProcessor custom = mock(AlgorithmProcessor.class);
+        when(custom.getAlgorithmId()).thenReturn("CUSTOM");
+        when(custom.getDescription()).thenReturn("Custom algorithm");
+
+        List<AlgorithmProcessor> beans = new ArrayList<>();
+        beans.add(fixed);
+        beans.add(custom);
+        this.toTest.setProcessors(beans);
+
+        Assert.assertSame(fixed, this.toTest.getAlgorithmProcessor("FIXED_PERCENTAGE"));
+        Assert.assertSame(custom, this.toTest.getAlgorithmProcessor("CUSTOM"));
+
+        List<Algorithm> algorithms = this.toTest.getAlgorithms();
+        Assert.assertEquals(3, algorithms.size());
+        Assert.assertEquals("FIXED_PERCENTAGE", algorithms.get(0).getAlgorithmId());
+        Assert.assertEquals("TIERED_PERCENTAGE", algorithms.get(1).getAlgorithmId());
+        Assert.assertEquals("CUSTOM", algorithms.get(2).getAlgorithmId());
+        Assert.assertEquals("Custom algorithm", algorithms.get(2).getDescription());
+    }
+}
@@ -17,6 +17,8 @@
 package es.upm.fiware.rss.algorithm.impl;
 
 import es.upm.fiware.rss.algorithm.Algorithms;
+import es.upm.fiware.rss.algorithm.RevenueBatch;
+import es.upm.fiware.rss.algorithm.RevenueShares;
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.RSSModel;
@@ -150,7 +152,7 @@ public class FixedPercentageProcessorTest {
                 result.getStakeholders().get(1).getStakeholderId());
 
         Assert.assertEquals(
-                new BigDecimal("135.063"),
+                new BigDecimal("135.0630"),
                 result.getStakeholders().get(1).getModelValue());
     }
 
@@ -161,9 +163,114 @@ public class FixedPercentageProcessorTest {
         setNoStakeholders();
         RSSModel result = toTest.calculateRevenue(model, new BigDecimal("1000"));
 
-        Assert.assertEquals(new BigDecimal("500"), result.getAggregatorValue());
-        Assert.assertEquals(new BigDecimal("500"), result.getOwnerValue());
+        Assert.assertEquals(new BigDecimal("500.0000"), result.getAggregatorValue());
+        Assert.assertEquals(new BigDecimal("500.0000"), result.getOwnerValue());
 
         Assert.assertEquals(0, result.getStakeholders().size());
     }
+
+    @Test
+    public void shouldCalculateBatchRevenueDistribution() throws RSSException {
+        RSSModel noStakeholders = new RSSModel();
+        noStakeholders.setAggregatorId("aggregator@email.com");
+        noStakeholders.setAggregatorShare(new BigDecimal("50"));
+        noStakeholders.setOwnerProviderId("provider2");
+        noStakeholders.setOwnerValue(new BigDecimal("50"));
+
+        // The batch grows beyond its initial capacity
+        RevenueBatch batch = new RevenueBatch(1);
+        batch.add(model, new BigDecimal("1500.7"));
+        batch.add(noStakeholders, new BigDecimal("10"));
+        batch.add(model, new BigDecimal("-20"));
+
+        RevenueShares shares = toTest.calculateRevenue(batch);
+
+        Assert.assertEquals(3, shares.size());
+        for (int i = 0; i < batch.size(); i++) {
+            RSSModel expected = toTest.calculateRevenue(batch.getModel(i), batch.getValue(i));
+            RSSModel result = shares.getRevenue(i);
+
+            Assert.assertEquals(expected.getAggregatorValue(), shares.getAggregatorValue(i));
+            Assert.assertEquals(expected.getOwnerValue(), shares.getOwnerValue(i));
+            Assert.assertEquals(expected.getOwnerProviderId(), result.getOwnerProviderId());
+            Assert.assertEquals(expected.getStakeholders().size(), result.getStakeholders().size());
+
+            for (int j = 0; j < expected.getStakeholders().size(); j++) {
+                Assert.assertEquals(expected.getStakeholders().get(j).getStakeholderId(),
+                        result.getStakeholders().get(j).getStakeholderId());
+                Assert.assertEquals(expected.getStakeholders().get(j).getModelValue(),
+                        shares.getStakeholderValue(i, j));
+            }
+        }
+    }
+
+    @Test
+    public void shouldAllocateRoundingRemainder() throws RSSException {
+        setNoStakeholders();
+        model.setAggregatorShare(new BigDecimal("33.3333"));
+        model.setOwnerValue(new BigDecimal("66.6667"));
+
+        // 0.0001 units cannot be split, it goes to the greatest remainder
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("0.0001"));
+
+        Assert.assertEquals(new BigDecimal("0.0000"), result.getAggregatorValue());
+        Assert.assertEquals(new BigDecimal("0.0001"), result.getOwnerValue());
+    }
+
+    @Test
+    public void shouldSplitWithoutLosingUnits() throws RSSException {
+        // The two quarters of 100.0002 leave a unit with equal remainders,
+        // given to the aggregator by order
+        setNoStakeholders();
+        model.setAggregatorShare(new BigDecimal("25"));
+        model.setOwnerValue(new BigDecimal("25"));
+
+        List<StakeholderModel> stakeholders = new ArrayList<>();
+        StakeholderModel st = new StakeholderModel();
+        st.setStakeholderId("provider1");
+        st.setModelValue(new BigDecimal("50"));
+        stakeholders.add(st);
+        model.setStakeholders(stakeholders);
+
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("100.0002"));
+        BigDecimal total = result.getAggregatorValue().add(result.getOwnerValue())
+                .add(result.getStakeholders().get(0).getModelValue());
+
+        Assert.assertEquals(new BigDecimal("100.0002"), total);
+        Assert.assertEquals(new BigDecimal("25.0001"), result.getAggregatorValue());
+        Assert.assertEquals(new BigDecimal("25.0000"), result.getOwnerValue());
+        Assert.assertEquals(new BigDecimal("50.0001"), result.getStakeholders().get(0).getModelValue());
+    }
+
+    @Test
+    public void shouldCalculateRefundsSymmetrically() throws RSSException {
+        RSSModel charge = toTest.calculateRevenue(model, new BigDecimal("1500.7"));
+        RSSModel refund = toTest.calculateRevenue(model, new BigDecimal("-1500.7"));
+
+        Assert.assertEquals(charge.getAggregatorValue().negate(), refund.getAggregatorValue());
+        Assert.assertEquals(charge.getOwnerValue().negate(), refund.getOwnerValue());
+        Assert.assertEquals(charge.getStakeholders().get(1).getModelValue().negate(),
+                refund.getStakeholders().get(1).getModelValue());
+    }
+
+    @Test
+    public void shouldCompilePlanOncePerModel() throws RSSException {
+        SharePlan plan = toTest.getPlan(model);
+        toTest.calculateRevenue(model, new BigDecimal("10"));
+
+        Assert.assertSame(plan, toTest.getPlan(model));
+    }
+
+    @Test
+    public void shouldDropPlansWhenModelsAreInvalidated() throws RSSException {
+        SharePlan plan = toTest.getPlan(model);
+
+        model.setAggregatorShare(new BigDecimal("30.5"));
+        model.setOwnerValue(new BigDecimal("55.4"));
+        toTest.invalidateModels();
+
+        Assert.assertNotSame(plan, toTest.getPlan(model));
+        Assert.assertEquals(new BigDecimal("30.5000"),
+                toTest.calculateRevenue(model, new BigDecimal("100")).getAggregatorValue());
+    }
 }
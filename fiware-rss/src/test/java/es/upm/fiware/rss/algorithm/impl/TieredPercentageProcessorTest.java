@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2015 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.algorithm.impl;
+
+import es.upm.fiware.rss.algorithm.RevenueBatch;
+import es.upm.fiware.rss.algorithm.RevenueShares;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.StakeholderModel;
+import es.upm.fiware.rss.model.TierModel;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TieredPercentageProcessorTest {
+
+    private TieredPercentageProcessor toTest;
+    private RSSModel model;
+
+    private TierModel buildTier(String threshold, String value) {
+        TierModel tier = new TierModel();
+        tier.setThreshold(new BigDecimal(threshold));
+        tier.setAggregatorValue(new BigDecimal(value));
+        return tier;
+    }
+
+    @Before
+    public void setUp() {
+        toTest = new TieredPercentageProcessor();
+        model = new RSSModel();
+
+        model.setAggregatorId("aggregator@email.com");
+        model.setAggregatorShare(new BigDecimal("30"));
+        model.setAlgorithmType(TieredPercentageProcessor.ALGORITHM_ID);
+        model.setOwnerProviderId("provider");
+        model.setOwnerValue(new BigDecimal("60"));
+        model.setProductClass("productClass");
+
+        List<StakeholderModel> stakeholders = new ArrayList<>();
+        StakeholderModel st = new StakeholderModel();
+        st.setStakeholderId("provider1");
+        st.setModelValue(new BigDecimal("10"));
+        stakeholders.add(st);
+        model.setStakeholders(stakeholders);
+
+        List<TierModel> tiers = new ArrayList<>();
+        tiers.add(this.buildTier("1000", "20"));
+        tiers.add(this.buildTier("5000", "10"));
+        model.setTiers(tiers);
+    }
+
+    @Test
+    public void shouldValidateValidRSModel() throws RSSException {
+        toTest.validateModel(model);
+    }
+
+    private void testValidateModelException(String message) {
+        try {
+            toTest.validateModel(model);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(
+                    UNICAExceptionType.INVALID_INPUT_VALUE, e.getExceptionType());
+
+            Assert.assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void throwsRssExceptionNoTiers() {
+        model.setTiers(new ArrayList<>());
+        testValidateModelException(
+                "Invalid parameter value: The tiered percentage algorithm requires at least a volume tier");
+    }
+
+    @Test
+    public void throwsRssExceptionTiersNotIncreasing() {
+        model.getTiers().add(this.buildTier("3000", "5"));
+        testValidateModelException(
+                "Invalid parameter value: Tier thresholds must be greater than 0 and increasing");
+    }
+
+    @Test
+    public void throwsRssExceptionTierWithoutOwnerShare() {
+        model.getTiers().get(0).setAggregatorValue(new BigDecimal("90"));
+        testValidateModelException(
+                "Invalid parameter value: Tier aggregatorValue must be greater than 0 and lower than 90 so the owner keeps a share");
+    }
+
+    @Test
+    public void throwsRssExceptionInvalidBaseModel() {
+        model.setOwnerValue(new BigDecimal("70"));
+        testValidateModelException(
+                "Invalid parameter value: The fixed percentage algorithm requires percentage values in the RS model to equals 100%, Current value: 110");
+    }
+
+    private void assertValues(RSSModel result, String aggregator, String owner, String stakeholder) {
+        Assert.assertEquals(0, new BigDecimal(aggregator).compareTo(result.getAggregatorValue()));
+        Assert.assertEquals(0, new BigDecimal(owner).compareTo(result.getOwnerValue()));
+        Assert.assertEquals(0, new BigDecimal(stakeholder).compareTo(
+                result.getStakeholders().get(0).getModelValue()));
+    }
+
+    @Test
+    public void shouldCalculateFirstTier() throws RSSException {
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("500"), BigDecimal.ZERO);
+
+        Assert.assertEquals(model.getAggregatorId(), result.getAggregatorId());
+        Assert.assertEquals(model.getOwnerProviderId(), result.getOwnerProviderId());
+        Assert.assertEquals("provider1", result.getStakeholders().get(0).getStakeholderId());
+        this.assertValues(result, "150", "300", "50");
+    }
+
+    @Test
+    public void shouldCalculateCrossingThreshold() throws RSSException {
+        // 200 at 30% and 200 at 20%
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("400"), new BigDecimal("800"));
+        this.assertValues(result, "100", "260", "40");
+    }
+
+    @Test
+    public void shouldCalculateAllTiers() throws RSSException {
+        // 1000 at 30%, 4000 at 20% and 1000 at 10%
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("6000"));
+        this.assertValues(result, "1200", "4200", "600");
+    }
+
+    @Test
+    public void shouldCalculateLastTier() throws RSSException {
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("100"), new BigDecimal("6000"));
+        this.assertValues(result, "10", "80", "10");
+    }
+
+    @Test
+    public void shouldCalculateRefund() throws RSSException {
+        // Volume goes back from 1100 to 900
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("-200"), new BigDecimal("1100"));
+        this.assertValues(result, "-50", "-130", "-20");
+    }
+
+    @Test
+    public void shouldCalculateBatchWithSettledVolume() throws RSSException {
+        RevenueBatch batch = new RevenueBatch(2);
+        batch.add(model, new BigDecimal("500"), BigDecimal.ZERO);
+        batch.add(model, new BigDecimal("400"), new BigDecimal("800"));
+
+        RevenueShares shares = toTest.calculateRevenue(batch);
+
+        this.assertValues(shares.getRevenue(0), "150", "300", "50");
+        this.assertValues(shares.getRevenue(1), "100", "260", "40");
+    }
+
+    @Test
+    public void shouldRoundTiersAsFixedPercentage() throws RSSException {
+        model.setAggregatorShare(new BigDecimal("33.3333"));
+        model.setOwnerValue(new BigDecimal("56.6667"));
+
+        // Below the first threshold the shares are the fixed percentage ones
+        RSSModel fixed = new FixedPercentageProcessor().calculateRevenue(model, new BigDecimal("10.0001"));
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("10.0001"), BigDecimal.ZERO);
+
+        Assert.assertEquals(fixed.getAggregatorValue(), result.getAggregatorValue());
+        Assert.assertEquals(fixed.getOwnerValue(), result.getOwnerValue());
+        Assert.assertEquals(fixed.getStakeholders().get(0).getModelValue(),
+                result.getStakeholders().get(0).getModelValue());
+    }
+
+    @Test
+    public void shouldSplitTiersWithoutLosingUnits() throws RSSException {
+        model.getTiers().get(0).setAggregatorValue(new BigDecimal("17.7777"));
+
+        // 0.0003 at 30% and 100.0004 at 17.7777%
+        RSSModel result = toTest.calculateRevenue(model, new BigDecimal("100.0007"), new BigDecimal("999.9997"));
+        BigDecimal total = result.getAggregatorValue().add(result.getOwnerValue())
+                .add(result.getStakeholders().get(0).getModelValue());
+
+        Assert.assertEquals(new BigDecimal("100.0007"), total);
+        Assert.assertEquals(4, result.getAggregatorValue().scale());
+        this.assertValues(result, "17.7779", "72.2228", "10.0000");
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.dao.CdrImportDao;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrImport;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CdrImportManagerTest {
+
+    @Mock private CdrImportDao importDao;
+    @Mock private CdrsManager cdrsManager;
+    @InjectMocks private CdrImportManager toTest;
+
+    private CdrImport cdrImport;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+
+        this.cdrImport = new CdrImport();
+        this.cdrImport.setId(1);
+        this.cdrImport.setOwner("aggregator@mail.com");
+        this.cdrImport.setPosition(10);
+        this.cdrImport.setCdrs(3);
+
+        when(this.importDao.getById(1)).thenReturn(this.cdrImport);
+    }
+
+    @Test
+    public void createImport() {
+        CdrImport result = this.toTest.createImport("/tmp/cdrs.csv", "csv", null, true);
+
+        verify(this.importDao).create(result);
+        Assert.assertEquals("/tmp/cdrs.csv", result.getPath());
+        Assert.assertEquals(CdrImportManager.RUNNING, result.getState());
+        Assert.assertTrue(result.isUploaded());
+        Assert.assertEquals(0, result.getPosition());
+        Assert.assertNotNull(result.getCreated());
+    }
+
+    @Test
+    public void saveChunk() throws Exception {
+        List<CDR> cdrs = Arrays.asList(new CDR(), new CDR());
+
+        this.toTest.saveChunk(1, cdrs, 100);
+
+        verify(this.cdrsManager).createCDRs(cdrs, "aggregator@mail.com");
+        Assert.assertEquals(100, this.cdrImport.getPosition());
+        Assert.assertEquals(5, this.cdrImport.getCdrs());
+    }
+
+    @Test
+    public void saveChunkRejected() throws Exception {
+        doThrow(new RSSException("error")).when(this.cdrsManager).createCDRs(anyList(), anyString());
+
+        try {
+            this.toTest.saveChunk(1, Arrays.asList(new CDR()), 100);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(10, this.cdrImport.getPosition());
+            Assert.assertEquals(3, this.cdrImport.getCdrs());
+        }
+    }
+
+    @Test
+    public void getImportNotFound() {
+        try {
+            this.toTest.getImport(2);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, e.getExceptionType());
+        }
+    }
+}
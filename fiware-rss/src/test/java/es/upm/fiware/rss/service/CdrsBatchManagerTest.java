@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrBatchResult;
+import es.upm.fiware.rss.model.RSUser;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CdrsBatchManagerTest {
+
+    @Mock private CdrsManager cdrsManager;
+    @Mock private UserManager userManager;
+    @InjectMocks private CdrsBatchManager toTest;
+
+    private List<List<CDR>> batches;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(this.toTest, "batchSize", 2);
+
+        RSUser user = new RSUser();
+        user.setEmail("aggregator@mail.com");
+        when(this.userManager.getCurrentUser()).thenReturn(user);
+
+        this.batches = new ArrayList<>();
+
+        // The second CDR of the second batch is rejected
+        doAnswer((invocation) -> {
+            List<CDR> batch = (List<CDR>) invocation.getArguments()[0];
+            this.batches.add(new ArrayList<>(batch));
+
+            SortedMap<Integer, String> errors = new TreeMap<>();
+            if (this.batches.size() == 2) {
+                errors.put(1, "Invalid parameter: Invalid correlation number, expected 3");
+            }
+            return errors;
+        }).when(this.cdrsManager).createValidCDRs(anyList(), eq("aggregator@mail.com"));
+    }
+
+    private List<CDR> buildCDRs(int size) {
+        List<CDR> cdrs = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            CDR cdr = new CDR();
+            cdr.setCorrelationNumber(i);
+            cdrs.add(cdr);
+        }
+        return cdrs;
+    }
+
+    @Test
+    public void createCDRsInBatches() throws Exception {
+        CdrBatchResult result = this.toTest.createCDRs(this.buildCDRs(5));
+
+        Assert.assertEquals(3, this.batches.size());
+        Assert.assertEquals(2, this.batches.get(0).size());
+        Assert.assertEquals(1, this.batches.get(2).size());
+        Assert.assertEquals(Integer.valueOf(4), this.batches.get(2).get(0).getCorrelationNumber());
+
+        Assert.assertEquals(Integer.valueOf(4), result.getCreated());
+        Assert.assertEquals(1, result.getErrors().size());
+        Assert.assertEquals(Integer.valueOf(3), result.getErrors().get(0).getIndex());
+        Assert.assertEquals("Invalid parameter: Invalid correlation number, expected 3",
+                result.getErrors().get(0).getError());
+    }
+
+    @Test
+    public void createCDRsFailingBatch() throws Exception {
+        doAnswer((invocation) -> {
+            List<CDR> batch = (List<CDR>) invocation.getArguments()[0];
+            this.batches.add(new ArrayList<>(batch));
+
+            if (this.batches.size() == 2) {
+                throw new IllegalStateException("Database error");
+            }
+            return new TreeMap<>();
+        }).when(this.cdrsManager).createValidCDRs(anyList(), eq("aggregator@mail.com"));
+
+        CdrBatchResult result = this.toTest.createCDRs(this.buildCDRs(5));
+
+        // Every CDR of the failing batch is reported and the next batch is saved
+        Assert.assertEquals(3, this.batches.size());
+        Assert.assertEquals(Integer.valueOf(3), result.getCreated());
+        Assert.assertEquals(2, result.getErrors().size());
+        Assert.assertEquals(Integer.valueOf(2), result.getErrors().get(0).getIndex());
+        Assert.assertEquals(Integer.valueOf(3), result.getErrors().get(1).getIndex());
+        Assert.assertEquals("The CDR could not be saved", result.getErrors().get(0).getError());
+    }
+
+    @Test
+    public void createCDRsEmptyList() throws Exception {
+        CdrBatchResult result = this.toTest.createCDRs(Collections.emptyList());
+
+        verify(this.cdrsManager, never()).createValidCDRs(anyList(), eq("aggregator@mail.com"));
+        Assert.assertEquals(Integer.valueOf(0), result.getCreated());
+        Assert.assertTrue(result.getErrors().isEmpty());
+    }
+}
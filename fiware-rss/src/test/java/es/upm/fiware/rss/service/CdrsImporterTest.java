@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrImport;
+import es.upm.fiware.rss.model.RSUser;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class CdrsImporterTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock private CdrImportManager importManager;
+    @Mock private UserManager userManager;
+    @Mock private ExecutorService executor;
+    @InjectMocks private CdrsImporter toTest;
+
+    private final int importId = 1;
+    private List<List<CDR>> chunks;
+    private List<Long> positions;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(this.toTest, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(this.toTest, "chunkSize", 2);
+        ReflectionTestUtils.setField(this.toTest, "bufferSize", 16);
+        ReflectionTestUtils.setField(this.toTest, "directory", this.folder.getRoot().getPath());
+        ReflectionTestUtils.setField(this.toTest, "executor", this.executor);
+
+        RSUser user = new RSUser();
+        user.setEmail("aggregator@mail.com");
+        when(this.userManager.getCurrentUser()).thenReturn(user);
+
+        this.chunks = new ArrayList<>();
+        this.positions = new ArrayList<>();
+
+        doAnswer((invocation) -> {
+            this.chunks.add(new ArrayList<>((List<CDR>) invocation.getArguments()[1]));
+            this.positions.add((Long) invocation.getArguments()[2]);
+            return null;
+        }).when(this.importManager).saveChunk(eq(this.importId), anyList(), anyLong());
+    }
+
+    private String buildNdjsonLine(int correlation) {
+        return "{\"cdrSource\": \"aggregator@mail.com\", \"correlationNumber\": " + correlation + "}\n";
+    }
+
+    private CdrImport mockImport(String content, String format, long position) throws Exception {
+        File file = this.folder.newFile();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+
+        CdrImport cdrImport = new CdrImport();
+        cdrImport.setId(this.importId);
+        cdrImport.setPath(file.getName());
+        cdrImport.setFormat(format);
+        cdrImport.setPosition(position);
+        cdrImport.setState(CdrImportManager.RUNNING);
+
+        when(this.importManager.getImport(this.importId)).thenReturn(cdrImport);
+        return cdrImport;
+    }
+
+    @Test
+    public void runImportNdjson() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            content.append(this.buildNdjsonLine(i));
+        }
+        content.append("\r\n");
+        int lineSize = this.buildNdjsonLine(0).length();
+
+        this.mockImport(content.toString(), CdrsImporter.NDJSON, 0);
+        this.toTest.runImport(this.importId);
+
+        Assert.assertEquals(3, this.chunks.size());
+        Assert.assertEquals(2, this.chunks.get(0).size());
+        Assert.assertEquals(2, this.chunks.get(1).size());
+        Assert.assertEquals(1, this.chunks.get(2).size());
+        Assert.assertEquals(Integer.valueOf(4), this.chunks.get(2).get(0).getCorrelationNumber());
+
+        Assert.assertEquals(Long.valueOf(2 * lineSize), this.positions.get(0));
+        Assert.assertEquals(Long.valueOf(4 * lineSize), this.positions.get(1));
+        Assert.assertEquals(Long.valueOf(content.length()), this.positions.get(2));
+
+        verify(this.importManager).updateState(this.importId, CdrImportManager.COMPLETED, null);
+    }
+
+    @Test
+    public void runImportResumesFromPosition() throws Exception {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            content.append(this.buildNdjsonLine(i));
+        }
+        int lineSize = this.buildNdjsonLine(0).length();
+
+        this.mockImport(content.toString(), CdrsImporter.NDJSON, 2 * lineSize);
+        this.toTest.runImport(this.importId);
+
+        Assert.assertEquals(2, this.chunks.size());
+        Assert.assertEquals(Integer.valueOf(2), this.chunks.get(0).get(0).getCorrelationNumber());
+        Assert.assertEquals(Integer.valueOf(4), this.chunks.get(1).get(0).getCorrelationNumber());
+        verify(this.importManager).updateState(this.importId, CdrImportManager.COMPLETED, null);
+    }
+
+    @Test
+    public void runImportCsv() throws Exception {
+        String header = "cdrSource,correlationNumber,chargedAmount,description\n";
+        String first = "aggregator@mail.com,1,10.5,\"Monthly, premium\"\n";
+        String content = header + first
+                + "aggregator@mail.com,2,3,\n"
+                + "aggregator@mail.com,3,4,\"Quoted \"\"name\"\"\"\n";
+
+        this.mockImport(content, CdrsImporter.CSV, header.length() + first.length());
+        this.toTest.runImport(this.importId);
+
+        Assert.assertEquals(1, this.chunks.size());
+        CDR cdr = this.chunks.get(0).get(0);
+        Assert.assertEquals("aggregator@mail.com", cdr.getCdrSource());
+        Assert.assertEquals(Integer.valueOf(2), cdr.getCorrelationNumber());
+        Assert.assertEquals(new BigDecimal("3"), cdr.getChargedAmount());
+        Assert.assertNull(cdr.getDescription());
+        Assert.assertEquals("Quoted \"name\"", this.chunks.get(0).get(1).getDescription());
+
+        verify(this.importManager).updateState(this.importId, CdrImportManager.COMPLETED, null);
+    }
+
+    @Test
+    public void parseCsvLine() {
+        List<String> values = this.toTest.parseCsvLine("a, \"b, c\",,d");
+
+        Assert.assertEquals(4, values.size());
+        Assert.assertEquals("a", values.get(0));
+        Assert.assertEquals("b, c", values.get(1));
+        Assert.assertEquals("", values.get(2));
+        Assert.assertEquals("d", values.get(3));
+    }
+
+    @Test
+    public void runImportInvalidLine() throws Exception {
+        String content = this.buildNdjsonLine(0) + this.buildNdjsonLine(1)
+                + this.buildNdjsonLine(2) + "{\"unknown\": 1}\n" + this.buildNdjsonLine(3);
+        int lineSize = this.buildNdjsonLine(0).length();
+
+        this.mockImport(content, CdrsImporter.NDJSON, 0);
+        this.toTest.runImport(this.importId);
+
+        Assert.assertEquals(2, this.chunks.size());
+        Assert.assertEquals(1, this.chunks.get(1).size());
+        Assert.assertEquals(Long.valueOf(3 * lineSize), this.positions.get(1));
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(this.importManager).updateState(
+                eq(this.importId), eq(CdrImportManager.FAILED), captor.capture());
+        // The error does not include the content of the file
+        Assert.assertEquals("Invalid CDR at byte " + (3 * lineSize), captor.getValue());
+    }
+
+    @Test
+    public void runImportRejectedChunk() throws Exception {
+        String[] args = {"Invalid correlation number, expected 5"};
+        RSSException error = new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+        doAnswer((invocation) -> {
+            throw error;
+        }).when(this.importManager).saveChunk(eq(this.importId), anyList(), anyLong());
+
+        this.mockImport(this.buildNdjsonLine(0), CdrsImporter.NDJSON, 0);
+        this.toTest.runImport(this.importId);
+
+        verify(this.importManager).updateState(this.importId, CdrImportManager.FAILED, error.getMessage());
+        verify(this.importManager, never()).updateState(this.importId, CdrImportManager.COMPLETED, null);
+    }
+
+    @Test
+    public void runImportRemovesUploadedFile() throws Exception {
+        CdrImport cdrImport = this.mockImport(this.buildNdjsonLine(0), CdrsImporter.NDJSON, 0);
+        cdrImport.setUploaded(true);
+
+        this.toTest.runImport(this.importId);
+
+        Assert.assertEquals(1, this.chunks.size());
+        Assert.assertFalse(new File(this.folder.getRoot(), cdrImport.getPath()).exists());
+    }
+
+    @Test
+    public void importUpload() throws Exception {
+        CdrImport cdrImport = new CdrImport();
+        cdrImport.setId(this.importId);
+        when(this.importManager.createImport(
+                anyString(), eq(CdrsImporter.CSV), eq("aggregator@mail.com"), eq(true)))
+                .thenReturn(cdrImport);
+
+        CdrImport result = this.toTest.importUpload(
+                new ByteArrayInputStream("content".getBytes(StandardCharsets.UTF_8)), CdrsImporter.CSV);
+
+        Assert.assertEquals(cdrImport, result);
+
+        ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+        verify(this.importManager).createImport(
+                captor.capture(), eq(CdrsImporter.CSV), eq("aggregator@mail.com"), eq(true));
+
+        // The path is stored relative to the import directory
+        Path file = this.folder.getRoot().toPath().resolve(captor.getValue());
+        Assert.assertEquals(this.folder.getRoot().toPath(), file.getParent());
+        Assert.assertFalse(new File(captor.getValue()).isAbsolute());
+        Assert.assertEquals("content", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        verify(this.executor).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void importFile() throws Exception {
+        this.folder.newFile("cdrs.ndjson");
+        when(this.userManager.isAdmin()).thenReturn(true);
+
+        CdrImport cdrImport = new CdrImport();
+        when(this.importManager.createImport(
+                "cdrs.ndjson", CdrsImporter.NDJSON, null, false)).thenReturn(cdrImport);
+
+        Assert.assertEquals(cdrImport, this.toTest.importFile("./cdrs.ndjson", CdrsImporter.NDJSON));
+        verify(this.executor).submit(any(Runnable.class));
+    }
+
+    private void testImportFileError(String path, String format, UNICAExceptionType type)
+            throws Exception {
+        when(this.userManager.isAdmin()).thenReturn(true);
+        try {
+            this.toTest.importFile(path, format);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(type, e.getExceptionType());
+        }
+        verify(this.importManager, never()).createImport(
+                anyString(), anyString(), anyString(), eq(false));
+    }
+
+    @Test
+    public void importFileNotAdmin() throws Exception {
+        this.folder.newFile("cdrs.ndjson");
+
+        try {
+            this.toTest.importFile("cdrs.ndjson", CdrsImporter.NDJSON);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_ALLOWED_OPERATION, e.getExceptionType());
+        }
+        verify(this.executor, never()).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void importFileOutsideDirectory() throws Exception {
+        this.testImportFileError("../cdrs.ndjson", CdrsImporter.NDJSON,
+                UNICAExceptionType.NON_ALLOWED_OPERATION);
+    }
+
+    @Test
+    public void importFileNotFound() throws Exception {
+        this.testImportFileError("cdrs.ndjson", CdrsImporter.NDJSON,
+                UNICAExceptionType.NON_EXISTENT_RESOURCE_ID);
+    }
+
+    @Test
+    public void importFileInvalidFormat() throws Exception {
+        this.testImportFileError("cdrs.ndjson", "xml",
+                UNICAExceptionType.INVALID_INPUT_LIST_VALUE);
+    }
+
+    @Test
+    public void resumeFailedImport() throws Exception {
+        CdrImport cdrImport = this.mockImport("", CdrsImporter.NDJSON, 0);
+        cdrImport.setOwner("aggregator@mail.com");
+        cdrImport.setState(CdrImportManager.FAILED);
+        cdrImport.setError("error");
+
+        CdrImport result = this.toTest.resume(this.importId);
+
+        Assert.assertEquals(CdrImportManager.RUNNING, result.getState());
+        Assert.assertNull(result.getError());
+        verify(this.importManager).updateState(this.importId, CdrImportManager.RUNNING, null);
+        verify(this.executor).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void resumeRunningImport() throws Exception {
+        CdrImport cdrImport = this.mockImport("", CdrsImporter.NDJSON, 0);
+        cdrImport.setOwner("aggregator@mail.com");
+
+        try {
+            this.toTest.resume(this.importId);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.INVALID_PARAMETER, e.getExceptionType());
+        }
+        verify(this.executor, never()).submit(any(Runnable.class));
+    }
+
+    @Test
+    public void getImportOtherOwner() throws Exception {
+        CdrImport cdrImport = this.mockImport("", CdrsImporter.NDJSON, 0);
+        cdrImport.setOwner("other@mail.com");
+
+        try {
+            this.toTest.getImport(this.importId);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_ALLOWED_OPERATION, e.getExceptionType());
+        }
+    }
+}
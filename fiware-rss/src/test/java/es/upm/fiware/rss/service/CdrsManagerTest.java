@@ -41,14 +41,17 @@ import es.upm.fiware.rss.model.RSUser;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import org.junit.Assert;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import static org.mockito.Mockito.*;
@@ -68,6 +71,7 @@ public class CdrsManagerTest {
     @Mock Properties rssProps;
     @Mock Logger logger;
     @Mock DbeTransactionDao transactionDao;
+    @Mock TransactionIdAllocator idAllocator;
     @InjectMocks private CdrsManager cdrsManager;
 
     private RSUser user;
@@ -93,6 +97,10 @@ public class CdrsManagerTest {
         this.providerId = "appProvider1";
         this.currency = "EUR";
         this.correlation = 10;
+
+        when(idAllocator.reserve(anyInt())).thenReturn(1000);
+        when(dbeAppProviderMock.advanceCorrelationNumber(
+                anyString(), anyString(), anyInt(), anyInt(), any(Date.class))).thenReturn(true);
     }
 
     private CDR buildTestCDR() {
@@ -129,8 +137,13 @@ public class CdrsManagerTest {
     }
 
     private DbeAppProvider mockProvider() {
+        DbeAppProviderId id = new DbeAppProviderId();
+        id.setTxAppProviderId(this.providerId);
+
         DbeAppProvider dbeAppProvider = mock(DbeAppProvider.class);
-        when(dbeAppProviderMock.getProvider(this.aggregatorId, this.providerId)).thenReturn(dbeAppProvider);
+        when(dbeAppProvider.getId()).thenReturn(id);
+        when(dbeAppProviderMock.getProviders(eq(this.aggregatorId), anyCollection()))
+                .thenReturn(Collections.singletonList(dbeAppProvider));
         when(dbeAppProvider.getTxCorrelationNumber()).thenReturn(this.correlation);
 
         return dbeAppProvider;
@@ -141,6 +154,12 @@ public class CdrsManagerTest {
         when(currencyDao.getByIso4217StringCode(this.currency)).thenReturn(currencyObj);
         return currencyObj;
     }
+    @Test
+    public void shouldCreateIdSequenceOnInit() {
+        cdrsManager.init();
+        verify(idAllocator).createSequence();
+    }
+
     @Test
     public void shouldCreateATransaction() throws RSSException {
 
@@ -157,11 +176,13 @@ public class CdrsManagerTest {
         cdrs.add(cdr);
 
         cdrsManager.createCDRs(cdrs);
-        ArgumentCaptor<DbeTransaction> captor = ArgumentCaptor
-                .forClass(DbeTransaction.class);
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+
+        verify(this.transactionDao).createTransactions(captor.capture());
+        Assert.assertEquals(1, captor.getValue().size());
+        DbeTransaction result = (DbeTransaction) captor.getValue().get(0);
 
-        verify(this.transactionDao).create(captor.capture());
-        DbeTransaction result = captor.getValue();
+        Assert.assertEquals(1000, result.getTxTransactionId());
 
         Assert.assertEquals(cdr.getProductClass(), result.getTxProductClass());
         Assert.assertEquals("pending", result.getState());
@@ -178,6 +199,10 @@ public class CdrsManagerTest {
         Assert.assertEquals(currencyObj, result.getBmCurrency());
         Assert.assertEquals(cdr.getCustomerId(), result.getTxEndUserId());
         Assert.assertEquals(dbeAppProvider, result.getAppProvider());
+
+        verify(dbeAppProviderMock).advanceCorrelationNumber(
+                this.aggregatorId, this.providerId, this.correlation, this.correlation + 1, cdr.getTimestamp());
+        verify(dbeAppProvider, never()).setTxCorrelationNumber(anyInt());
     }
 
     private void testErrorCreation(
@@ -217,6 +242,249 @@ public class CdrsManagerTest {
                 cdrs, UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, msg);
     }
 
+    /*
+     * Validates that the references of a list of CDRs are loaded once and
+     * that the transactions get consecutive ids in the order of the CDRs
+     */
+    @Test
+    public void shouldCreateTransactionsInBulk() throws RSSException {
+        this.mockUser();
+        this.mockAggregator();
+        this.mockCurrency();
+
+        DbeAppProviderId id = new DbeAppProviderId();
+        id.setTxAppProviderId(this.providerId);
+        DbeAppProvider provider = new DbeAppProvider();
+        provider.setId(id);
+        provider.setTxCorrelationNumber(this.correlation);
+        provider.setTxTimeStamp(new Date(0));
+
+        when(dbeAppProviderMock.getProviders(eq(this.aggregatorId), anyCollection()))
+                .thenReturn(Collections.singletonList(provider));
+
+        List<CDR> cdrs = new LinkedList<>();
+        for (int i = 0; i < 3; i++) {
+            CDR cdr = this.buildTestCDR();
+            cdr.setAppProvider(this.providerId.toUpperCase());
+            cdr.setCorrelationNumber(this.correlation + i);
+            cdrs.add(cdr);
+        }
+
+        cdrsManager.createCDRs(cdrs);
+
+        verify(dbeAggregatorDaoMock, times(1)).getById(this.aggregatorId);
+        verify(dbeAppProviderMock, times(1)).getProviders(eq(this.aggregatorId), anyCollection());
+        verify(dbeAppProviderMock, never()).getProvider(anyString(), anyString());
+        verify(currencyDao, times(1)).getByIso4217StringCode(this.currency);
+        verify(idAllocator).reserve(3);
+
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(this.transactionDao).createTransactions(captor.capture());
+
+        List<DbeTransaction> txs = captor.getValue();
+        Assert.assertEquals(3, txs.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(1000 + i, txs.get(i).getTxTransactionId());
+            Assert.assertEquals(Integer.valueOf(this.correlation + i), txs.get(i).getTxPbCorrelationId());
+        }
+
+        verify(dbeAppProviderMock).advanceCorrelationNumber(this.aggregatorId, this.providerId,
+                this.correlation, this.correlation + 3, cdrs.get(2).getTimestamp());
+        Assert.assertEquals(this.correlation, provider.getTxCorrelationNumber());
+    }
+
+    /*
+     * Validates that the correlation numbers are sequenced per provider when
+     * a list includes CDRs of several providers
+     */
+    @Test
+    public void shouldSequenceCorrelationPerProvider() throws RSSException {
+        this.mockUser();
+        this.mockAggregator();
+        this.mockCurrency();
+
+        List<DbeAppProvider> providers = new LinkedList<>();
+        for (String id: new String[] {"provider2", "provider1"}) {
+            DbeAppProviderId providerId = new DbeAppProviderId();
+            providerId.setTxAppProviderId(id);
+            DbeAppProvider provider = new DbeAppProvider();
+            provider.setId(providerId);
+            provider.setTxCorrelationNumber(id.equals("provider1") ? 5 : 20);
+            provider.setTxTimeStamp(new Date(0));
+            providers.add(provider);
+        }
+
+        when(dbeAppProviderMock.getProviders(eq(this.aggregatorId), anyCollection()))
+                .thenReturn(providers);
+
+        List<CDR> cdrs = new LinkedList<>();
+        int[][] values = {{2, 20}, {1, 5}, {2, 21}, {1, 6}};
+        for (int[] value: values) {
+            CDR cdr = this.buildTestCDR();
+            cdr.setAppProvider("provider" + value[0]);
+            cdr.setCorrelationNumber(value[1]);
+            cdrs.add(cdr);
+        }
+
+        cdrsManager.createCDRs(cdrs);
+
+        // Providers are advanced in a stable order to avoid deadlocks
+        InOrder inOrder = inOrder(dbeAppProviderMock);
+        inOrder.verify(dbeAppProviderMock).advanceCorrelationNumber(
+                this.aggregatorId, "provider1", 5, 7, cdrs.get(3).getTimestamp());
+        inOrder.verify(dbeAppProviderMock).advanceCorrelationNumber(
+                this.aggregatorId, "provider2", 20, 22, cdrs.get(2).getTimestamp());
+        verify(this.transactionDao).createTransactions(anyList());
+    }
+
+    @Test
+    public void throwsRSSExceptionConcurrentCorrelation() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+        when(dbeAppProviderMock.advanceCorrelationNumber(
+                anyString(), anyString(), anyInt(), anyInt(), any(Date.class))).thenReturn(false);
+
+        String msg = "Invalid parameter: Invalid correlation number, other transactions of the provider "
+                + this.providerId + " have been registered concurrently";
+        this.testErrorCreation(cdrs, UNICAExceptionType.INVALID_PARAMETER, msg);
+
+        verify(idAllocator, never()).reserve(anyInt());
+        verify(this.transactionDao, never()).createTransactions(anyList());
+    }
+
+    @Test
+    public void shouldCreateValidCDRs() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+
+        CDR unknownCurrency = this.buildTestCDR();
+        unknownCurrency.setCorrelationNumber(this.correlation + 1);
+        unknownCurrency.setCurrency("XXX");
+        cdrs.add(unknownCurrency);
+
+        CDR invalidType = this.buildTestCDR();
+        invalidType.setCorrelationNumber(this.correlation + 1);
+        invalidType.setTransactionType("X");
+        cdrs.add(invalidType);
+
+        CDR valid = this.buildTestCDR();
+        valid.setCorrelationNumber(this.correlation + 1);
+        cdrs.add(valid);
+
+        CDR gap = this.buildTestCDR();
+        gap.setCorrelationNumber(this.correlation + 3);
+        cdrs.add(gap);
+
+        Map<Integer, String> errors = cdrsManager.createValidCDRs(cdrs, null);
+
+        Assert.assertEquals(3, errors.size());
+        Assert.assertEquals("Resource currency (XXX) does not exist", errors.get(1));
+        Assert.assertEquals("Invalid parameter: The transaction type X is not supported, must be C (charge) or R (refund)",
+                errors.get(2));
+        Assert.assertEquals("Invalid parameter: Invalid correlation number, expected " + (this.correlation + 2),
+                errors.get(4));
+
+        ArgumentCaptor<List> captor = ArgumentCaptor.forClass(List.class);
+        verify(this.transactionDao).createTransactions(captor.capture());
+
+        List<DbeTransaction> txs = captor.getValue();
+        Assert.assertEquals(2, txs.size());
+        Assert.assertEquals(this.correlation, txs.get(0).getTxPbCorrelationId());
+        Assert.assertEquals(Integer.valueOf(this.correlation + 1), txs.get(1).getTxPbCorrelationId());
+        verify(idAllocator).reserve(2);
+        verify(dbeAppProviderMock).advanceCorrelationNumber(this.aggregatorId, this.providerId,
+                this.correlation, this.correlation + 2, valid.getTimestamp());
+    }
+
+    @Test
+    public void shouldRejectValidCDRsConcurrentCorrelation() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+        CDR cdr = this.buildTestCDR();
+        cdr.setCorrelationNumber(this.correlation + 1);
+        cdrs.add(cdr);
+
+        when(dbeAppProviderMock.advanceCorrelationNumber(
+                anyString(), anyString(), anyInt(), anyInt(), any(Date.class))).thenReturn(false);
+
+        Map<Integer, String> errors = cdrsManager.createValidCDRs(cdrs, null);
+
+        Assert.assertEquals(2, errors.size());
+        Assert.assertTrue(errors.get(0).endsWith("have been registered concurrently"));
+        Assert.assertTrue(errors.get(1).endsWith("have been registered concurrently"));
+        verify(this.transactionDao, never()).createTransactions(anyList());
+    }
+
+    @Test
+    public void shouldRejectValidCDRsOfOtherOwner() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+
+        Map<Integer, String> errors = cdrsManager.createValidCDRs(cdrs, "other@mail.com");
+
+        Assert.assertEquals(1, errors.size());
+        Assert.assertTrue(errors.get(0).startsWith("Operation is not allowed"));
+        verify(this.transactionDao, never()).createTransactions(anyList());
+        verify(dbeAppProviderMock, never()).advanceCorrelationNumber(
+                anyString(), anyString(), anyInt(), anyInt(), any(Date.class));
+    }
+
+    @Test
+    public void shouldRejectValidCDRsMissingType() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+        cdrs.get(0).setTransactionType(null);
+
+        CDR valid = this.buildTestCDR();
+        cdrs.add(valid);
+
+        Map<Integer, String> errors = cdrsManager.createValidCDRs(cdrs, null);
+
+        Assert.assertEquals(1, errors.size());
+        Assert.assertEquals("Missing mandatory parameter: transactionType", errors.get(0));
+        verify(idAllocator).reserve(1);
+    }
+
+    @Test
+    public void shouldRejectValidCDRsUninitializedProvider() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+        cdrs.add(this.buildTestCDR());
+
+        DbeAppProvider provider = this.mockProvider();
+        when(provider.getTxCorrelationNumber()).thenReturn(null);
+
+        Map<Integer, String> errors = cdrsManager.createValidCDRs(cdrs, null);
+
+        Assert.assertEquals(2, errors.size());
+        Assert.assertEquals("Invalid parameter: The correlation number of the provider "
+                + this.providerId + " has not been initialized", errors.get(1));
+        verify(this.transactionDao, never()).createTransactions(anyList());
+    }
+
+    @Test
+    public void throwsRSSExceptionInvalidCorrelationInList() throws RSSException {
+        List<CDR> cdrs = this.mockCDRCreationCalls();
+        CDR cdr = this.buildTestCDR();
+        cdr.setCorrelationNumber(this.correlation + 2);
+        cdrs.add(cdr);
+
+        String msg = "Invalid parameter: Invalid correlation number, expected " + (this.correlation + 1);
+        this.testErrorCreation(cdrs, UNICAExceptionType.INVALID_PARAMETER, msg);
+        verify(dbeAppProviderMock, never()).advanceCorrelationNumber(
+                anyString(), anyString(), anyInt(), anyInt(), any(Date.class));
+    }
+
+    @Test
+    public void throwsRSSExceptionInvalidProvider() throws RSSException {
+        List <CDR> cdrs = new LinkedList<>();
+        cdrs.add(this.buildTestCDR());
+
+        this.mockUser();
+        this.mockAggregator();
+        when(dbeAppProviderMock.getProviders(eq(this.aggregatorId), anyCollection()))
+                .thenReturn(Collections.emptyList());
+
+        String msg = "Resource provider does not exist";
+        this.testErrorCreation(
+                cdrs, UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, msg);
+        verify(this.transactionDao, never()).createTransactions(anyList());
+    }
+
     @Test
     public void throwsRSSEceptionInvalidCurrency() throws RSSException {
         List <CDR> cdrs = new LinkedList<>();
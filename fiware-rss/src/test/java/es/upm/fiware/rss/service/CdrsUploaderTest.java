@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrChunkResult;
+import es.upm.fiware.rss.model.CdrUploadResult;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Matchers.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class CdrsUploaderTest {
+
+    @Mock private CdrsManager cdrsManager;
+    @InjectMocks private CdrsUploader toTest;
+
+    private List<List<CDR>> chunks;
+    private int rejectedChunk;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(this.toTest, "mapper", new ObjectMapper());
+        ReflectionTestUtils.setField(this.toTest, "chunkSize", 2);
+
+        this.chunks = new ArrayList<>();
+        this.rejectedChunk = -1;
+
+        doAnswer((invocation) -> {
+            if (this.chunks.size() == this.rejectedChunk) {
+                String[] args = {"Invalid correlation number, expected 3"};
+                throw new RSSException(UNICAExceptionType.INVALID_PARAMETER, args);
+            }
+            this.chunks.add(new ArrayList<>((List<CDR>) invocation.getArguments()[0]));
+            return null;
+        }).when(this.cdrsManager).createCDRs(anyList());
+    }
+
+    private InputStream buildBody(int size, String tail) {
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                body.append(",");
+            }
+            body.append("{\"cdrSource\": \"aggregator@mail.com\", \"correlationNumber\": ")
+                    .append(i).append("}");
+        }
+        body.append(tail);
+        return new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void assertChunk(CdrChunkResult chunk, int offset, int size, String status) {
+        Assert.assertEquals(Integer.valueOf(offset), chunk.getOffset());
+        Assert.assertEquals(Integer.valueOf(size), chunk.getSize());
+        Assert.assertEquals(status, chunk.getStatus());
+    }
+
+    @Test
+    public void uploadInChunks() throws Exception {
+        CdrUploadResult result = this.toTest.upload(this.buildBody(5, "]"));
+
+        Assert.assertEquals(3, this.chunks.size());
+        Assert.assertEquals(2, this.chunks.get(0).size());
+        Assert.assertEquals(2, this.chunks.get(1).size());
+        Assert.assertEquals(1, this.chunks.get(2).size());
+        Assert.assertEquals(Integer.valueOf(4), this.chunks.get(2).get(0).getCorrelationNumber());
+
+        Assert.assertTrue(result.isCompleted());
+        Assert.assertEquals(Integer.valueOf(5), result.getCreated());
+        Assert.assertEquals(3, result.getChunks().size());
+        this.assertChunk(result.getChunks().get(0), 0, 2, CdrChunkResult.CREATED);
+        this.assertChunk(result.getChunks().get(1), 2, 2, CdrChunkResult.CREATED);
+        this.assertChunk(result.getChunks().get(2), 4, 1, CdrChunkResult.CREATED);
+    }
+
+    @Test
+    public void uploadEmptyList() throws Exception {
+        CdrUploadResult result = this.toTest.upload(this.buildBody(0, "]"));
+
+        verify(this.cdrsManager, never()).createCDRs(anyList());
+        Assert.assertTrue(result.isCompleted());
+        Assert.assertEquals(Integer.valueOf(0), result.getCreated());
+        Assert.assertTrue(result.getChunks().isEmpty());
+    }
+
+    @Test
+    public void uploadStopsAtRejectedChunk() throws Exception {
+        this.rejectedChunk = 1;
+
+        CdrUploadResult result = this.toTest.upload(this.buildBody(6, "]"));
+
+        Assert.assertEquals(1, this.chunks.size());
+        Assert.assertFalse(result.isCompleted());
+        Assert.assertEquals(Integer.valueOf(2), result.getCreated());
+        Assert.assertEquals(2, result.getChunks().size());
+        this.assertChunk(result.getChunks().get(0), 0, 2, CdrChunkResult.CREATED);
+        this.assertChunk(result.getChunks().get(1), 2, 2, CdrChunkResult.FAILED);
+        Assert.assertEquals("Invalid parameter: Invalid correlation number, expected 3",
+                result.getChunks().get(1).getError());
+    }
+
+    @Test
+    public void uploadMalformedCdr() throws Exception {
+        CdrUploadResult result = this.toTest.upload(this.buildBody(3, ", 5]"));
+
+        Assert.assertEquals(1, this.chunks.size());
+        Assert.assertFalse(result.isCompleted());
+        Assert.assertEquals(Integer.valueOf(2), result.getCreated());
+        Assert.assertEquals(2, result.getChunks().size());
+        this.assertChunk(result.getChunks().get(1), 2, 1, CdrChunkResult.FAILED);
+        Assert.assertEquals("Invalid CDR document: CDR object expected",
+                result.getChunks().get(1).getError());
+    }
+
+    @Test
+    public void uploadNotAList() throws Exception {
+        InputStream body = new ByteArrayInputStream("{}".getBytes(StandardCharsets.UTF_8));
+        try {
+            this.toTest.upload(body);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.CONTENT_NOT_WELL_FORMED, e.getExceptionType());
+        }
+        verify(this.cdrsManager, never()).createCDRs(anyList());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.model.RSSModel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RSSModelIndexTest {
+
+    private RSSModelIndex toTest;
+    private List<RSSModel> models;
+    private Map<String, Long> versions;
+    private AtomicInteger loads;
+    private List<String> loaded;
+    private RSSModelIndex.Source source;
+
+    private RSSModel buildModel(String aggregatorId, String providerId, String productClass) {
+        RSSModel model = new RSSModel();
+        model.setAggregatorId(aggregatorId);
+        model.setOwnerProviderId(providerId);
+        model.setProductClass(productClass);
+        return model;
+    }
+
+    /**
+     * Source reading the models and versions of the test, as stored in
+     * the database
+     */
+    private class TestSource implements RSSModelIndex.Source {
+
+        @Override
+        public Map<String, Long> getVersions() {
+            return new HashMap<>(versions);
+        }
+
+        @Override
+        public List<RSSModel> getModels(String aggregatorId) {
+            loads.incrementAndGet();
+            loaded.add(aggregatorId);
+            return models.stream()
+                    .filter((m) -> aggregatorId == null || m.getAggregatorId().equalsIgnoreCase(aggregatorId))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Before
+    public void setUp() {
+        this.toTest = new RSSModelIndex();
+        this.models = new ArrayList<>();
+        this.models.add(this.buildModel("aggregator@mail.com", "provider1", "class1"));
+        this.models.add(this.buildModel("aggregator@mail.com", "provider1", "class2"));
+        this.models.add(this.buildModel("aggregator@mail.com", "provider2", "class1"));
+        this.models.add(this.buildModel("other@mail.com", "provider3", "class1"));
+
+        this.versions = new HashMap<>();
+        this.loads = new AtomicInteger();
+        this.loaded = new ArrayList<>();
+        this.source = new TestSource();
+    }
+
+    @Test
+    public void getModelIgnoresCase() {
+        RSSModel model = this.toTest.getModel("Aggregator@mail.com", "PROVIDER1", "class2", this.source).get();
+
+        Assert.assertEquals("provider1", model.getOwnerProviderId());
+        Assert.assertEquals("class2", model.getProductClass());
+        Assert.assertFalse(this.toTest.getModel("aggregator@mail.com", "provider2", "class2", this.source).isPresent());
+        Assert.assertEquals(1, this.loads.get());
+    }
+
+    @Test
+    public void getModelsFilters() {
+        Assert.assertEquals(4, this.toTest.getModels(null, null, null, this.source).size());
+        Assert.assertEquals(3, this.toTest.getModels("aggregator@mail.com", null, null, this.source).size());
+        Assert.assertEquals(2, this.toTest.getModels("aggregator@mail.com", "provider1", null, this.source).size());
+        Assert.assertEquals(1, this.toTest.getModels("aggregator@mail.com", "provider1", "class1", this.source).size());
+
+        // As in the database queries, the product class requires a provider
+        Assert.assertEquals(3, this.toTest.getModels("aggregator@mail.com", null, "class1", this.source).size());
+        Assert.assertEquals(0, this.toTest.getModels("unknown@mail.com", null, null, this.source).size());
+        Assert.assertEquals(1, this.loads.get());
+    }
+
+    @Test
+    public void reloadedAfterInvalidation() {
+        this.toTest.getModels(null, null, null, this.source);
+
+        this.models.add(this.buildModel("other@mail.com", "provider3", "class2"));
+        this.toTest.invalidate("Other@mail.com");
+
+        Assert.assertEquals(5, this.toTest.getModels(null, null, null, this.source).size());
+        Assert.assertEquals(2, this.loads.get());
+
+        // Only the models of the invalidated aggregator are loaded again
+        Assert.assertEquals("other@mail.com", this.loaded.get(1));
+    }
+
+    @Test
+    public void reloadedOnVersionChange() {
+        this.toTest.setCheckInterval(0);
+        this.toTest.getModels(null, null, null, this.source);
+        this.toTest.getModels(null, null, null, this.source);
+        Assert.assertEquals(1, this.loads.get());
+
+        // Other node adds a model for a new aggregator
+        this.models.add(this.buildModel("new@mail.com", "provider4", "class1"));
+        this.versions.put("new@mail.com", 1L);
+
+        Assert.assertEquals(1, this.toTest.getModels("new@mail.com", null, null, this.source).size());
+        Assert.assertEquals(2, this.loads.get());
+        Assert.assertEquals("new@mail.com", this.loaded.get(1));
+
+        // And removes the models of another one
+        this.models.removeIf((m) -> m.getAggregatorId().equals("other@mail.com"));
+        this.versions.put("other@mail.com", 3L);
+
+        Assert.assertEquals(4, this.toTest.getModels(null, null, null, this.source).size());
+        Assert.assertEquals(3, this.loads.get());
+        Assert.assertEquals("other@mail.com", this.loaded.get(2));
+    }
+
+    @Test
+    public void versionsNotCheckedWithinInterval() {
+        this.toTest.setCheckInterval(60000);
+        this.toTest.getModels(null, null, null, this.source);
+
+        this.models.add(this.buildModel("new@mail.com", "provider4", "class1"));
+        this.versions.put("new@mail.com", 1L);
+
+        Assert.assertEquals(4, this.toTest.getModels(null, null, null, this.source).size());
+        Assert.assertEquals(1, this.loads.get());
+    }
+
+    @Test
+    public void staleLoadNotKept() {
+        // The models change while they are being loaded
+        RSSModelIndex.Source racingSource = new TestSource() {
+            @Override
+            public List<RSSModel> getModels(String aggregatorId) {
+                List<RSSModel> read = super.getModels(aggregatorId);
+                toTest.invalidate("other@mail.com");
+                return read;
+            }
+        };
+
+        Assert.assertEquals(4, this.toTest.getModels(null, null, null, racingSource).size());
+
+        this.models.add(this.buildModel("other@mail.com", "provider3", "class2"));
+        Assert.assertEquals(5, this.toTest.getModels(null, null, null, this.source).size());
+        Assert.assertEquals(2, this.loads.get());
+    }
+}
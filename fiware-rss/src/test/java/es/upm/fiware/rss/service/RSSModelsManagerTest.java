@@ -28,6 +28,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import es.upm.fiware.rss.dao.DbeAggregatorDao;
 import es.upm.fiware.rss.dao.DbeAppProviderDao;
+import es.upm.fiware.rss.dao.IdSequenceDao;
 import es.upm.fiware.rss.dao.ModelProviderDao;
 import es.upm.fiware.rss.dao.SetRevenueShareConfDao;
 import es.upm.fiware.rss.exception.InterfaceExceptionType;
@@ -37,6 +38,7 @@ import es.upm.fiware.rss.model.Count;
 import es.upm.fiware.rss.model.DbeAggregator;
 import es.upm.fiware.rss.model.DbeAppProvider;
 import es.upm.fiware.rss.model.DbeAppProviderId;
+import es.upm.fiware.rss.algorithm.AlgorithmFactory;
 import es.upm.fiware.rss.model.ModelProvider;
 import es.upm.fiware.rss.model.ModelProviderId;
 import es.upm.fiware.rss.model.RSSModel;
@@ -45,18 +47,21 @@ import es.upm.fiware.rss.model.SetRevenueShareConfId;
 import es.upm.fiware.rss.model.StakeholderModel;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Optional;
 import java.util.Set;
+import java.util.stream.Collectors;
 import org.junit.Assert;
 import org.junit.Before;
 import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Matchers;
 import org.mockito.Mock;
-import static org.mockito.Mockito.mock;
+import org.mockito.Spy;
+import org.mockito.Mockito;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.when;
@@ -73,9 +78,12 @@ public class RSSModelsManagerTest {
     @Mock private SetRevenueShareConfDao revenueShareConfDao;
     @Mock private DbeAggregatorDao aggregatorDao;
     @Mock private ModelProviderDao modelProviderDao;
+    @Mock private IdSequenceDao sequenceDao;
+    @Spy private AlgorithmFactory algorithmFactory = new AlgorithmFactory();
     @InjectMocks private RSSModelsManager toTest;
 
     private RSSModel rssModel;
+    private List<DbeAppProvider> providers;
 
     @Before
     public void setUp() throws Exception {
@@ -106,6 +114,20 @@ public class RSSModelsManagerTest {
         Optional<List<SetRevenueShareConf>> optional = Optional.empty();
         when(revenueShareConfDao.getRevenueModelsByParameters(
                 isA(String.class), isA(String.class), isA(String.class))).thenReturn(optional);
+        when(revenueShareConfDao.getRevenueModelsByParameters(null, null, null)).thenReturn(optional);
+
+        // Providers are loaded in a single query from the mocked ones
+        providers = new ArrayList<>();
+        when(appProviderDao.getProviders(isA(String.class), Matchers.anyCollectionOf(String.class)))
+                .thenAnswer((invocation) -> {
+                    String aggregator = (String) invocation.getArguments()[0];
+                    Collection<String> ids = (Collection<String>) invocation.getArguments()[1];
+
+                    return providers.stream().filter((provider) ->
+                        aggregator.equals(provider.getId().getAggregator().getTxEmail())
+                                && ids.contains(provider.getId().getTxAppProviderId())
+                    ).collect(Collectors.toList());
+                });
     }
 
     private DbeAppProvider mockGetProvider(String aggregatorId, String providerId) {
@@ -123,6 +145,7 @@ public class RSSModelsManagerTest {
         provModel.setTxTimeStamp(new Date());
 
         when(appProviderDao.getProvider(aggregatorId, providerId)).thenReturn(provModel);
+        providers.add(provModel);
         return provModel;
     }
     
@@ -154,11 +177,8 @@ public class RSSModelsManagerTest {
     public void rssModelValidated() throws RSSException {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
 
-        // Mock getProvider method for stakeholders
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(new DbeAppProvider());
+        // Mock provider for stakeholders
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         toTest.checkValidRSSModel(rssModel);
     }
@@ -226,10 +246,7 @@ public class RSSModelsManagerTest {
     @Test
     public void throwsRSSExceptionOwnerIncludedAsStakeholder() {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(new DbeAppProvider());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         StakeholderModel stakeholderModel = new StakeholderModel();
         stakeholderModel.setModelValue(BigDecimal.valueOf(20));
@@ -314,11 +331,8 @@ public class RSSModelsManagerTest {
     public void revenueSharingModelCorrectlyCreated() throws RSSException {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
 
-        DbeAppProvider dbStakeholder = new DbeAppProvider();
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(dbStakeholder);
+        DbeAppProvider dbStakeholder = this.mockGetProvider(
+                rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         DbeAggregator dBAggregator = new DbeAggregator();
         when(this.aggregatorDao.getById(rssModel.getAggregatorId())).thenReturn(dBAggregator);
@@ -355,19 +369,14 @@ public class RSSModelsManagerTest {
     @Test
     public void throwsRSSExceptionAlreadyExistingModel() {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(new DbeAppProvider());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         List<SetRevenueShareConf> models = new ArrayList<>();
         models.add(this.buildDatabaseRSModel());
 
         Optional<List<SetRevenueShareConf>> modelsOpt = Optional.of(models);
 
-        when(this.revenueShareConfDao.getRevenueModelsByParameters(
-                rssModel.getAggregatorId(), rssModel.getOwnerProviderId(),
-                rssModel.getProductClass())).thenReturn(modelsOpt);
+        when(this.revenueShareConfDao.getRevenueModelsByParameters(null, null, null)).thenReturn(modelsOpt);
 
         try {
             this.toTest.createRssModel(rssModel);
@@ -381,11 +390,8 @@ public class RSSModelsManagerTest {
     @Test
     public void revenueSharingModelDeleted() throws Exception {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
-        DbeAppProvider dbStakeholder = new DbeAppProvider();
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(dbStakeholder);
+        DbeAppProvider dbStakeholder = this.mockGetProvider(
+                rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         List<SetRevenueShareConf> models = new ArrayList<>();
         SetRevenueShareConf dbModel = this.buildDatabaseRSModel();
@@ -418,10 +424,7 @@ public class RSSModelsManagerTest {
     @Test
     public void emptyListRSModelsToBeRemoved() throws Exception {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(new DbeAppProvider());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         toTest.deleteRssModel(rssModel.getAggregatorId(), rssModel.getOwnerProviderId(), rssModel.getProductClass());
 
@@ -453,13 +456,12 @@ public class RSSModelsManagerTest {
 
     @Test
     public void rsModelExist() {
-        List <SetRevenueShareConf> revenueShareConfs = mock(LinkedList.class);
-        when(revenueShareConfs.isEmpty()).thenReturn(false);
+        List <SetRevenueShareConf> revenueShareConfs = new LinkedList<>();
+        revenueShareConfs.add(this.buildDatabaseRSModel());
 
         Optional<List<SetRevenueShareConf>> modelsOpt = Optional.of(revenueShareConfs);
 
-        when(revenueShareConfDao.getRevenueModelsByParameters(rssModel.getAggregatorId(),
-                rssModel.getOwnerProviderId(), rssModel.getProductClass())).thenReturn(modelsOpt);
+        when(revenueShareConfDao.getRevenueModelsByParameters(null, null, null)).thenReturn(modelsOpt);
 
         boolean returned = toTest.existModel(rssModel.getAggregatorId(),
                 rssModel.getOwnerProviderId(), rssModel.getProductClass());
@@ -552,16 +554,13 @@ public class RSSModelsManagerTest {
     @Test
     public void shouldUpdateRssModel() throws Exception {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
-        DbeAppProvider providerModel = new DbeAppProvider();
-
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(providerModel);
+        DbeAppProvider providerModel = this.mockGetProvider(
+                rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         SetRevenueShareConf dbModel = this.buildDatabaseRSModel();
 
         when(this.revenueShareConfDao.getById(Matchers.isA(SetRevenueShareConfId.class))).thenReturn(dbModel);
+        ModelProvider expSt = dbModel.getStakeholders().iterator().next();
 
         // Update model values
         rssModel.setOwnerValue(new BigDecimal(40));
@@ -582,7 +581,6 @@ public class RSSModelsManagerTest {
         ArgumentCaptor<ModelProvider> stCaptor = ArgumentCaptor.forClass(ModelProvider.class);
         verify(this.modelProviderDao).delete(stCaptor.capture());
 
-        ModelProvider expSt = dbModel.getStakeholders().iterator().next();
         Assert.assertEquals(expSt.getStakeholder().getTxName(), stCaptor.getValue().getStakeholder().getTxName());
 
         ArgumentCaptor<SetRevenueShareConf> modelCaptor = ArgumentCaptor.forClass(SetRevenueShareConf.class);
@@ -603,10 +601,7 @@ public class RSSModelsManagerTest {
     public void throwsExceptionRSModelNotExists () throws Exception {
         this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
 
-        when(appProviderDao.getProvider(
-                rssModel.getAggregatorId(),
-                rssModel.getStakeholders().get(0).getStakeholderId()))
-                .thenReturn(new DbeAppProvider());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
 
         try {
             toTest.updateRssModel(rssModel);
@@ -616,4 +611,100 @@ public class RSSModelsManagerTest {
             Assert.assertEquals("Resource RSS Model does not exist", e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    @Test
+    public void providersLoadedInSingleQuery() throws RSSException {
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
+
+        StakeholderModel stakeholderModel = new StakeholderModel();
+        stakeholderModel.setModelValue(BigDecimal.valueOf(10));
+        stakeholderModel.setStakeholderId("stakeholder2@mail.com");
+        rssModel.getStakeholders().get(0).setModelValue(BigDecimal.valueOf(10));
+        rssModel.getStakeholders().add(stakeholderModel);
+        this.mockGetProvider(rssModel.getAggregatorId(), stakeholderModel.getStakeholderId());
+
+        when(this.aggregatorDao.getById(rssModel.getAggregatorId())).thenReturn(new DbeAggregator());
+
+        toTest.createRssModel(rssModel);
+
+        ArgumentCaptor<Collection> idsCaptor = ArgumentCaptor.forClass(Collection.class);
+        verify(this.appProviderDao).getProviders(Matchers.eq(rssModel.getAggregatorId()), idsCaptor.capture());
+        verify(this.appProviderDao, never()).getProvider(isA(String.class), isA(String.class));
+
+        Assert.assertEquals(3, idsCaptor.getValue().size());
+        Assert.assertTrue(idsCaptor.getValue().contains(rssModel.getOwnerProviderId()));
+        Assert.assertTrue(idsCaptor.getValue().contains(stakeholderModel.getStakeholderId()));
+        verify(this.modelProviderDao, Mockito.times(2)).create(isA(ModelProvider.class));
+    }
+
+    @Test
+    public void throwsRSSExceptionStakeholderNotExists() {
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
+        testCheckRSSModelException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, "Resource provider does not exist");
+    }
+
+    @Test
+    public void indexedModelsLoadedOnce() {
+        List<SetRevenueShareConf> models = new ArrayList<>();
+        models.add(this.buildDatabaseRSModel());
+        when(revenueShareConfDao.getRevenueModelsByParameters(null, null, null)).thenReturn(Optional.of(models));
+
+        Assert.assertTrue(toTest.existModel(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), rssModel.getProductClass()));
+        Assert.assertFalse(toTest.existModel(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), "otherClass"));
+
+        List<RSSModel> indexed = toTest.getIndexedModels(rssModel.getAggregatorId(), null, null);
+        Assert.assertEquals(1, indexed.size());
+        Assert.assertEquals(rssModel.getProductClass(), indexed.get(0).getProductClass());
+
+        verify(revenueShareConfDao, Mockito.times(1)).getRevenueModelsByParameters(null, null, null);
+    }
+
+    @Test
+    public void indexedModelsAreCopies() {
+        List<SetRevenueShareConf> models = new ArrayList<>();
+        models.add(this.buildDatabaseRSModel());
+        when(revenueShareConfDao.getRevenueModelsByParameters(null, null, null)).thenReturn(Optional.of(models));
+
+        RSSModel indexed = toTest.getIndexedModels(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), rssModel.getProductClass()).get(0);
+        indexed.setAggregatorShare(BigDecimal.ZERO);
+        indexed.getStakeholders().get(0).setModelValue(BigDecimal.ZERO);
+
+        RSSModel other = toTest.getIndexedModels(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), rssModel.getProductClass()).get(0);
+
+        Assert.assertNotSame(indexed, other);
+        Assert.assertEquals(rssModel.getAggregatorValue(), other.getAggregatorValue());
+        Assert.assertEquals(rssModel.getStakeholders().get(0).getModelValue(),
+                other.getStakeholders().get(0).getModelValue());
+    }
+
+    @Test
+    public void indexInvalidatedOnCreate() throws RSSException {
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getOwnerProviderId());
+        this.mockGetProvider(rssModel.getAggregatorId(), rssModel.getStakeholders().get(0).getStakeholderId());
+        when(this.aggregatorDao.getById(rssModel.getAggregatorId())).thenReturn(new DbeAggregator());
+
+        Assert.assertFalse(toTest.existModel(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), rssModel.getProductClass()));
+
+        toTest.createRssModel(rssModel);
+
+        // Other nodes see the change through the version of the aggregator models
+        verify(sequenceDao).reserve(Mockito.eq(RSSModelsManager.MODELS_VERSION
+                + rssModel.getAggregatorId().toLowerCase()), Mockito.eq(1), Mockito.any());
+
+        // Only the models of the aggregator are loaded again
+        List<SetRevenueShareConf> models = new ArrayList<>();
+        models.add(this.buildDatabaseRSModel());
+        when(revenueShareConfDao.getRevenueModelsByParameters(rssModel.getAggregatorId(), null, null))
+                .thenReturn(Optional.of(models));
+
+        Assert.assertTrue(toTest.existModel(rssModel.getAggregatorId(),
+                rssModel.getOwnerProviderId(), rssModel.getProductClass()));
+        verify(revenueShareConfDao, Mockito.times(1)).getRevenueModelsByParameters(null, null, null);
+    }
+}
@@ -21,19 +21,33 @@
 
 package es.upm.fiware.rss.service;
 
+import es.upm.fiware.rss.algorithm.AlgorithmFactory;
+import es.upm.fiware.rss.dao.CurrencyDao;
+import es.upm.fiware.rss.dao.DbeAppProviderDao;
 import es.upm.fiware.rss.dao.DbeTransactionDao;
+import es.upm.fiware.rss.dao.ReportProviderDao;
+import es.upm.fiware.rss.dao.SetRevenueShareConfDao;
+import es.upm.fiware.rss.dao.SettlementVolumeDao;
 import es.upm.fiware.rss.dao.SharingReportDao;
 import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.*;
-import es.upm.fiware.rss.settlement.ProductSettlementTask;
+import es.upm.fiware.rss.settlement.SettlementPlanningTask;
+import es.upm.fiware.rss.settlement.SettlementReport;
 import es.upm.fiware.rss.settlement.SettlementTaskFactory;
+import es.upm.fiware.rss.settlement.SettlementUnit;
+import es.upm.fiware.rss.settlement.TaskPool;
+import es.upm.fiware.rss.settlement.TaskPoolState;
 import es.upm.fiware.rss.settlement.ThreadPoolManager;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
 import java.util.*;
@@ -47,19 +61,23 @@ public class SettlementManagerTest {
     @Mock private DbeTransactionDao transactionDao;
     @Mock private SettlementTaskFactory taskFactory;
     @Mock private AggregatorManager aggregatorManager;
-    @Mock private ProviderManager providerManager;
     @Mock private RSSModelsManager modelsManager;
     @Mock private ThreadPoolManager poolManager;
     @Mock private SharingReportDao sharingReportDao;
+    @Mock private ReportProviderDao reportProviderDao;
+    @Mock private DbeAppProviderDao appProviderDao;
+    @Mock private CurrencyDao currencyDao;
+    @Mock private SetRevenueShareConfDao revenueShareConfDao;
+    @Mock private SettlementVolumeDao volumeDao;
+    @Spy private AlgorithmFactory algorithmFactory = new AlgorithmFactory();
     @InjectMocks private SettlementManager toTest;
 
     private String aggregatorId;
     private String providerId;
     private String productClass;
     private String callbackUrl;
+    private String jobId;
     private SettlementJob job;
-    private Aggregator aggregator;
-    private RSSProvider rSSProvider;
     private RSSModel model;
     private List <RSSModel> models;
     
@@ -72,6 +90,7 @@ public class SettlementManagerTest {
         this.providerId = "provider@mail.com";
         this.productClass = "productClass";
         this.callbackUrl = "http://callback.com";
+        this.jobId = "job";
         
         this.job = new SettlementJob();
         
@@ -79,48 +98,21 @@ public class SettlementManagerTest {
         this.job.setProviderId(providerId);
         this.job.setProductClass(productClass);
         this.job.setCallbackUrl(callbackUrl);
+
+        when(poolManager.openTaskPool(job)).thenReturn(jobId);
+        when(revenueShareConfDao.getRevenueModelsByParameters(anyString(), anyString(), anyString()))
+                .thenReturn(Optional.empty());
+        when(transactionDao.getFirstUnsettledId(anyString(), anyString(), anyString(), anyInt()))
+                .thenReturn(Optional.empty());
+        when(volumeDao.lockVolume(anyString(), anyString(), anyString(), anyString()))
+                .thenReturn(Optional.empty());
         
-        this.aggregator = this.buildAggregator(aggregatorId);
-        this.rSSProvider = this.buildProvider(aggregatorId, providerId);
         this.model = this.buildModel(aggregatorId, providerId, productClass);
         
         this.models = new LinkedList<>();
         this.models.add(model);
     }
 
-    private Aggregator buildAggregator (String aggregatorId) {
-        Aggregator agg = new Aggregator();
-        agg.setAggregatorId(aggregatorId);
-        agg.setAggregatorName(aggregatorId);
-        
-        return agg;
-    }
-
-    private List<Aggregator> buildAggregatorList(String... aggs) {
-        List<Aggregator> aggregators = new ArrayList<>();
-        for (String agg: aggs) {
-            aggregators.add(this.buildAggregator(agg));
-        }
-        return aggregators;
-    }
-
-    private RSSProvider buildProvider(String aggregatorId, String providerId) {
-        RSSProvider provider = new RSSProvider();
-        provider.setAggregatorId(aggregatorId);
-        provider.setProviderId(providerId);
-        provider.setProviderName(providerId);
-        
-        return provider;
-    }
-
-    private List<RSSProvider> buildProviders(String aggregatorId, String... providerIds) {
-        List<RSSProvider> providers = new ArrayList<>();
-        for (String prov: providerIds) {
-            providers.add(this.buildProvider(aggregatorId, prov));
-        }
-        return providers;
-    }
-
     private RSSModel buildModel(String aggregatorId, String providerId, String productClass) {
         RSSModel mod = new RSSModel();
         mod.setAggregatorId(aggregatorId);
@@ -143,127 +135,125 @@ public class SettlementManagerTest {
         return mods;
     }
 
-    private Optional<List<DbeTransaction>> buildTransactions() {
-        List <DbeTransaction> transactions = new LinkedList<>();
-        DbeTransaction transaction = new DbeTransaction();
-        transactions.add(transaction);
-
-        return Optional.of(transactions);
+    private TransactionSummary buildSummary(RSSModel model) {
+        return this.buildSummary(model, "EUR", 1);
     }
 
-    private ProductSettlementTask buildTask(RSSModel model) {
-        Optional<List<DbeTransaction>> tx1 = this.buildTransactions();
-        when(transactionDao.getTransactions(model.getAggregatorId(), model.getOwnerProviderId(), model.getProductClass()))
-                .thenReturn(tx1);
-        
-        ProductSettlementTask t1 = new ProductSettlementTask();
-        when(taskFactory.getSettlementTask(model, tx1.get(), callbackUrl)).thenReturn(t1);
-        
-        return t1;
+    private TransactionSummary buildSummary(RSSModel model, String currency, long transactions) {
+        return new TransactionSummary(model.getAggregatorId(), model.getOwnerProviderId(),
+                model.getProductClass(), currency, BigDecimal.ONE, transactions, 1, 1);
     }
 
     private void mockSingleModel() throws RSSException {
         when(modelsManager.existModel(aggregatorId, providerId, productClass)).thenReturn(Boolean.TRUE);
-        when(aggregatorManager.getAggregator(aggregatorId)).thenReturn(aggregator);
-        when(providerManager.getProvider(aggregatorId, providerId)).thenReturn(rSSProvider);
-        when(modelsManager.getRssModels(aggregatorId, providerId, productClass, 0, -1)).thenReturn(models);
+        when(modelsManager.getIndexedModels(aggregatorId, providerId, productClass)).thenReturn(models);
     }
 
     @Test
     /**
-     * Validates the run settlement process for the specific transactions of a 
-     * provider product class
+     * Validates that the settlement job is planned in background
      */
-    public void testRunSettlementProviderTx() throws RSSException {
-        Optional<List <DbeTransaction>> transactions = this.buildTransactions();
-
-        // Create Mocks
+    public void testRunSettlement() throws RSSException {
         this.mockSingleModel();
-        when(transactionDao.getTransactions(aggregatorId, providerId, productClass)).thenReturn(transactions);
 
-        ProductSettlementTask settlementTask = new ProductSettlementTask();
-        when(taskFactory.getSettlementTask(model, transactions.get(), callbackUrl)).thenReturn(settlementTask);
+        SettlementPlanningTask planningTask = new SettlementPlanningTask(job, jobId);
+        when(taskFactory.getPlanningTask(job, jobId)).thenReturn(planningTask);
 
         // Execute method
-        toTest.runSettlement(job);
-        
+        Assert.assertEquals(jobId, toTest.runSettlement(job));
+
         // Validate calls
         verify(modelsManager).checkValidAppProvider(aggregatorId, providerId);
-        verify(poolManager).submitTask(settlementTask, callbackUrl);
-        verify(poolManager).closeTaskPool(callbackUrl);
+        verify(poolManager).planTaskPool(planningTask);
+        verify(modelsManager, never()).getIndexedModels(aggregatorId, providerId, productClass);
     }
-    
+
+    @Test(expected = RSSException.class)
+    public void testRunSettlementNotExistingAggregator() throws RSSException {
+        this.job.setProviderId(null);
+        when(aggregatorManager.getAggregator(aggregatorId))
+                .thenThrow(new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, new String[] {aggregatorId}));
+
+        toTest.runSettlement(job);
+    }
+
     @Test
     /**
-     * Verifies the run settlement process when no transaction available for a 
-     * specific provider and product class
+     * Validates the units of a settlement job for the specific
+     * transactions of a provider product class
      */
-    public void testRunSettlementProviderNoTransactions() throws RSSException {
-        // Create Mocks
+    public void getSettlementUnitsProvider() throws RSSException {
         this.mockSingleModel();
-        when(transactionDao.getTransactions(aggregatorId, providerId, productClass)).thenReturn(Optional.empty());
-        
-        // Execute Mwethod
-        toTest.runSettlement(job);
-        
-        // Validate calls
-        verify(modelsManager).checkValidAppProvider(aggregatorId, providerId);
-        verify(poolManager, never()).submitTask(isA(ProductSettlementTask.class), isA(String.class));
-        verify(poolManager).closeTaskPool(callbackUrl);
+
+        List<TransactionSummary> summaries = new ArrayList<>();
+        summaries.add(this.buildSummary(model));
+        when(transactionDao.getSettlementSummaries(aggregatorId, providerId, productClass, "pending", 0))
+                .thenReturn(summaries);
+
+        List<SettlementUnit> result = toTest.getSettlementUnits(job);
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertSame(model, result.get(0).getModel());
+        Assert.assertEquals("EUR", result.get(0).getCurrency());
     }
-    
+
+    @Test
+    /**
+     * Verifies that no model is settled when no transaction is available
+     * for a specific provider and product class
+     */
+    public void getSettlementUnitsNoTransactions() throws RSSException {
+        this.mockSingleModel();
+        when(transactionDao.getSettlementSummaries(aggregatorId, providerId, productClass, "pending", 0))
+                .thenReturn(new ArrayList<>());
+
+        Assert.assertTrue(toTest.getSettlementUnits(job).isEmpty());
+        verify(modelsManager, never()).getIndexedModels(aggregatorId, providerId, productClass);
+    }
+
     /*
-     * Verifies the run settlement process for all pending transactions
+     * Verifies the units of a settlement job for all pending transactions,
+     * there is a unit for each model and currency
      */
     @Test
-    public void testRunSettlementAll() throws RSSException {
-        // Create Mocks
+    public void getSettlementUnitsAll() throws RSSException {
         this.job.setAggregatorId(null);
         this.job.setProviderId(null);
         this.job.setProductClass(null);
-        
-        // Mock aggregators
-        List<Aggregator> aggregators = this.buildAggregatorList("aggregator1@email.com", "aggregator2@email.com");
-        when(aggregatorManager.getAPIAggregators()).thenReturn(aggregators);
-        
-        // Mock providers
-        List<RSSProvider> providers1 = this.buildProviders("aggregator1@email.com", "provider1", "provider2");
-        List<RSSProvider> providers2 = this.buildProviders("aggregator2@email.com", "provider3", "provider4");
-        
-        when(providerManager.getAPIProviders("aggregator1@email.com")).thenReturn(providers1);
-        when(providerManager.getAPIProviders("aggregator2@email.com")).thenReturn(providers2);
 
         // Mock models
-        List<RSSModel> models1 = this.buildModels("aggregator1@email.com", "provider1", "class1", "class2");
-        List<RSSModel> models2 = this.buildModels("aggregator1@email.com", "provider2", "class3", "class4");
-        List<RSSModel> models3 = this.buildModels("aggregator2@email.com", "provider3", "class5", "class6");
-        List<RSSModel> models4 = this.buildModels("aggregator2@email.com", "provider4", "class7", "class8");
-        
-        when(modelsManager.getRssModels("aggregator1@email.com", "provider1", null, 0, -1)).thenReturn(models1);
-        when(modelsManager.getRssModels("aggregator1@email.com", "provider2", null, 0, -1)).thenReturn(models2);
-        when(modelsManager.getRssModels("aggregator2@email.com", "provider3", null, 0, -1)).thenReturn(models3);
-        when(modelsManager.getRssModels("aggregator2@email.com", "provider4", null, 0, -1)).thenReturn(models4);
-        
-        // Mock Transactions
-        List<ProductSettlementTask> tasks = new ArrayList<>();
-        tasks.add(this.buildTask(models1.get(0)));
-        tasks.add(this.buildTask(models1.get(1)));
-        tasks.add(this.buildTask(models2.get(0)));
-        tasks.add(this.buildTask(models2.get(1)));
-        tasks.add(this.buildTask(models3.get(0)));
-        tasks.add(this.buildTask(models3.get(1)));
-        tasks.add(this.buildTask(models4.get(0)));
-        tasks.add(this.buildTask(models4.get(1)));
-        
-        // Execute Method
-        toTest.runSettlement(job);
-        
-        // Validate calls
-        tasks.stream().forEach((task) -> {
-            verify(poolManager).submitTask(task, callbackUrl);
-        });
+        List<RSSModel> all = new ArrayList<>();
+        all.addAll(this.buildModels("aggregator1@email.com", "provider1", "class1", "class2"));
+        all.addAll(this.buildModels("aggregator1@email.com", "provider2", "class1", "class3"));
+        all.addAll(this.buildModels("aggregator2@email.com", "provider3", "class4"));
+        when(modelsManager.getIndexedModels(null, null, null)).thenReturn(all);
+
+        // Only some models have pending transactions, with several currencies
+        List<TransactionSummary> summaries = new ArrayList<>();
+        summaries.add(this.buildSummary(all.get(0), "EUR", 5));
+        summaries.add(this.buildSummary(all.get(0), "USD", 20));
+        summaries.add(this.buildSummary(all.get(3), "EUR", 10));
+        summaries.add(this.buildSummary(all.get(4), "EUR", 1));
+        summaries.add(this.buildModelessSummary());
+        when(transactionDao.getSettlementSummaries(null, null, null, "pending", 0))
+                .thenReturn(summaries);
+
+        List<SettlementUnit> result = toTest.getSettlementUnits(job);
+
+        // Bigger units are settled first
+        Assert.assertEquals(4, result.size());
+        Assert.assertSame(all.get(0), result.get(0).getModel());
+        Assert.assertEquals("USD", result.get(0).getCurrency());
+        Assert.assertSame(all.get(3), result.get(1).getModel());
+        Assert.assertSame(all.get(0), result.get(2).getModel());
+        Assert.assertEquals("EUR", result.get(2).getCurrency());
+        Assert.assertSame(all.get(4), result.get(3).getModel());
+        Assert.assertEquals(1, result.get(3).getTransactions());
+    }
 
-        verify(poolManager).closeTaskPool(callbackUrl);
+    private TransactionSummary buildModelessSummary() {
+        return new TransactionSummary("aggregator2@email.com", "provider3", "class9",
+                "EUR", BigDecimal.ONE, 100, 1, 1);
     }
 
     private SharingReport mockSharingReport(int id, boolean paid) {
@@ -362,25 +352,399 @@ public class SettlementManagerTest {
     }
 
     @Test
-    public void setTxStateTest() {
-        String state = "state";
-        List <DbeTransaction> transactions = new LinkedList<>();
+    public void aggregateTransactions() {
+        List<TransactionSummary> summaries = new ArrayList<>();
+        when(transactionDao.getClaimSummaries("owner")).thenReturn(summaries);
+
+        Assert.assertSame(summaries, toTest.aggregateTransactions("owner"));
+    }
+
+    @Test
+    public void claimTransactions() {
+        ReflectionTestUtils.setField(toTest, "chunkSize", 3);
+        ReflectionTestUtils.setField(toTest, "claimLease", 60000L);
+        when(transactionDao.claimTransactions(eq(aggregatorId), eq(providerId), eq(productClass),
+                eq("EUR"), eq("owner"), any(Date.class), eq(10), eq(3))).thenReturn(3);
+
+        long now = System.currentTimeMillis();
+        Assert.assertEquals(3, toTest.claimTransactions(model, "EUR", "owner", 10));
+
+        ArgumentCaptor<Date> expiry = ArgumentCaptor.forClass(Date.class);
+        verify(transactionDao).claimTransactions(eq(aggregatorId), eq(providerId), eq(productClass),
+                eq("EUR"), eq("owner"), expiry.capture(), eq(10), eq(3));
+        Assert.assertTrue(expiry.getValue().getTime() >= now + 60000);
+    }
+
+    @Test
+    public void releaseClaim() {
+        ReflectionTestUtils.setField(toTest, "chunkSize", 3);
+        when(transactionDao.releaseClaim("owner", "processed", 3)).thenReturn(2);
+
+        Assert.assertEquals(2, toTest.releaseClaim("owner", "processed"));
+    }
+
+    @Test
+    public void renewClaim() {
+        when(transactionDao.renewClaim(eq("owner"), any(Date.class))).thenReturn(7);
 
-        DbeTransaction transaction = new DbeTransaction();
-        transactions.add(transaction);
+        Assert.assertEquals(7, toTest.renewClaim("owner"));
+    }
+
+    @Test
+    public void recoverExpiredClaims() {
+        ReflectionTestUtils.setField(toTest, "chunkSize", 3);
+        Date now = new Date();
+        when(transactionDao.recoverExpiredClaims(now, 3)).thenReturn(3);
 
-        toTest.setTxState(transactions, state, true);
+        Assert.assertEquals(3, toTest.recoverExpiredClaims(now));
     }
 
     @Test
-    public void setTxStateNotFlushTest() {
-        String state = "state";
-        List <DbeTransaction> transactions = new LinkedList<>();
+    public void rewindExpiredClaims() {
+        ReflectionTestUtils.setField(toTest, "watermarkMargin", 100);
+        this.mockRevenueShareConf(5000);
+        Date now = new Date();
+
+        List<TransactionSummary> expired = new ArrayList<>();
+        expired.add(new TransactionSummary(aggregatorId, providerId, productClass,
+                "EUR", BigDecimal.ONE, 2, 4001, 4002));
+        when(transactionDao.getExpiredClaimSummaries(now)).thenReturn(expired);
+
+        toTest.rewindExpiredClaims(now);
+
+        // The next settlement starts from the first recovered transaction
+        Assert.assertEquals(4001, toTest.getSettlementStart(model));
+    }
+
+    @Test
+    public void rewindExpiredClaimsNotForward() {
+        SetRevenueShareConf conf = this.mockRevenueShareConf(10);
+        Date now = new Date();
+
+        List<TransactionSummary> expired = new ArrayList<>();
+        expired.add(new TransactionSummary(aggregatorId, providerId, productClass,
+                "EUR", BigDecimal.ONE, 2, 4001, 4002));
+        when(transactionDao.getExpiredClaimSummaries(now)).thenReturn(expired);
+
+        toTest.rewindExpiredClaims(now);
+
+        Assert.assertEquals(10, (int) conf.getLastSettledTxId());
+    }
+
+    @Test
+    public void getSettlementJob() throws RSSException {
+        TaskPool pool = mock(TaskPool.class);
+        when(pool.getJobId()).thenReturn(jobId);
+        when(pool.getAggregatorId()).thenReturn(aggregatorId);
+        when(pool.getState()).thenReturn(TaskPoolState.PENDING);
+        when(pool.getSize()).thenReturn(10);
+        when(pool.getStarted()).thenReturn(6);
+        when(pool.getCompleted()).thenReturn(4);
+        when(pool.getFailed()).thenReturn(1);
+        when(pool.getTransactions()).thenReturn(3000L);
+        when(pool.getElapsedTime()).thenReturn(2000L);
+        when(poolManager.findTaskPool(jobId)).thenReturn(pool);
+
+        SettlementJobStatus status = toTest.getSettlementJob(jobId);
+
+        Assert.assertEquals(jobId, status.getId());
+        Assert.assertEquals(aggregatorId, status.getAggregatorId());
+        Assert.assertEquals("PENDING", status.getState());
+        Assert.assertEquals(4, status.getQueued());
+        Assert.assertEquals(2, status.getRunning());
+        Assert.assertEquals(3, status.getCompleted());
+        Assert.assertEquals(1, status.getFailed());
+        Assert.assertEquals(3000L, status.getTransactions());
+        Assert.assertEquals(2000L, status.getElapsedTime());
+        Assert.assertEquals(1500.0, status.getThroughput(), 0.001);
+    }
+
+    @Test(expected = RSSException.class)
+    public void getSettlementJobNotExisting() throws RSSException {
+        toTest.getSettlementJob("unknown");
+    }
 
-        DbeTransaction transaction = new DbeTransaction();
-        transactions.add(transaction);
+    private SetRevenueShareConf mockRevenueShareConf(Integer lastSettledTxId) {
+        SetRevenueShareConf conf = new SetRevenueShareConf();
+        conf.setLastSettledTxId(lastSettledTxId);
 
-        toTest.setTxState(transactions, state, false);
+        List<SetRevenueShareConf> confs = new ArrayList<>();
+        confs.add(conf);
+        when(revenueShareConfDao.getRevenueModelsByParameters(aggregatorId, providerId, productClass))
+                .thenReturn(Optional.of(confs));
+        return conf;
     }
 
+    @Test
+    public void getSettlementStart() {
+        ReflectionTestUtils.setField(toTest, "watermarkMargin", 100);
+        this.mockRevenueShareConf(5000);
+
+        Assert.assertEquals(4901, toTest.getSettlementStart(model));
+    }
+
+    @Test
+    public void getSettlementStartNotSettled() {
+        this.mockRevenueShareConf(null);
+
+        Assert.assertEquals(0, toTest.getSettlementStart(model));
+    }
+
+    @Test
+    public void setSettlementWatermark() {
+        SetRevenueShareConf conf = this.mockRevenueShareConf(100);
+
+        toTest.setSettlementWatermark(model, 250);
+
+        Assert.assertEquals(250, (int) conf.getLastSettledTxId());
+        Assert.assertNotNull(conf.getLastSettlementDate());
+    }
+
+    @Test
+    public void setSettlementWatermarkUnsettledCurrency() {
+        ReflectionTestUtils.setField(toTest, "watermarkMargin", 50);
+        SetRevenueShareConf conf = this.mockRevenueShareConf(100);
+
+        // Transactions of other currency are still being settled, the ones
+        // below the settlement start are not scanned
+        when(transactionDao.getFirstUnsettledId(aggregatorId, providerId, productClass, 51))
+                .thenReturn(Optional.of(180));
+
+        toTest.setSettlementWatermark(model, 250);
+
+        Assert.assertEquals(179, (int) conf.getLastSettledTxId());
+    }
+
+    @Test
+    public void setSettlementWatermarkNotBackwards() {
+        SetRevenueShareConf conf = this.mockRevenueShareConf(300);
+
+        toTest.setSettlementWatermark(model, 250);
+
+        Assert.assertEquals(300, (int) conf.getLastSettledTxId());
+    }
+
+    @Test
+    public void getSettledVolume() {
+        SettlementVolume volume = new SettlementVolume();
+        volume.setVolume(new BigDecimal("1500"));
+        when(volumeDao.getVolume(aggregatorId, providerId, productClass, "EUR"))
+                .thenReturn(Optional.of(volume));
+
+        Assert.assertEquals(new BigDecimal("1500"), toTest.getSettledVolume(model, "EUR"));
+    }
+
+    @Test
+    public void getSettledVolumeNotSettled() {
+        when(volumeDao.getVolume(aggregatorId, providerId, productClass, "EUR"))
+                .thenReturn(Optional.empty());
+
+        Assert.assertEquals(BigDecimal.ZERO, toTest.getSettledVolume(model, "EUR"));
+    }
+
+    private DbeAppProvider buildProvider(String providerId) {
+        DbeAppProviderId id = new DbeAppProviderId();
+        id.setTxAppProviderId(providerId);
+
+        DbeAppProvider provider = new DbeAppProvider();
+        provider.setId(id);
+        return provider;
+    }
+
+    private void mockProviders(String... providerIds) {
+        List<DbeAppProvider> providers = new ArrayList<>();
+        for (String id: providerIds) {
+            providers.add(this.buildProvider(id));
+        }
+        when(appProviderDao.getProviders(eq(aggregatorId), anyCollection())).thenReturn(providers);
+    }
+
+    private SettlementVolume mockLockedVolume(BigDecimal value) {
+        SettlementVolume volume = new SettlementVolume();
+        volume.setVolume(value);
+
+        when(volumeDao.lockVolume(aggregatorId, providerId, productClass, "EUR"))
+                .thenReturn(Optional.of(volume));
+        return volume;
+    }
+
+    @Test
+    public void generateReportAddVolume() throws Exception {
+        this.mockProviders(providerId);
+        SettlementVolume volume = this.mockLockedVolume(new BigDecimal(5));
+
+        toTest.generateReport(model, "EUR", BigDecimal.TEN);
+
+        verify(sharingReportDao).create(any(SharingReport.class));
+        verify(volumeDao, never()).create(any(SettlementVolume.class));
+        Assert.assertEquals(new BigDecimal(15), volume.getVolume());
+    }
+
+    @Test
+    public void generateReportCreateVolume() throws Exception {
+        this.mockProviders(providerId);
+
+        toTest.generateReport(model, "EUR", BigDecimal.TEN);
+
+        ArgumentCaptor<SettlementVolume> volume = ArgumentCaptor.forClass(SettlementVolume.class);
+        verify(volumeDao).create(volume.capture());
+        Assert.assertEquals(aggregatorId, volume.getValue().getAggregatorId());
+        Assert.assertEquals(providerId, volume.getValue().getProviderId());
+        Assert.assertEquals(productClass, volume.getValue().getProductClass());
+        Assert.assertEquals("EUR", volume.getValue().getCurrency());
+        Assert.assertEquals(BigDecimal.TEN, volume.getValue().getVolume());
+    }
+
+    @Test
+    /**
+     * Validates that a batch of reports resolves its providers and currencies
+     * once and updates the volume of each model once per currency
+     */
+    public void generateReportsBatch() throws Exception {
+        StakeholderModel stakeholder = new StakeholderModel();
+        stakeholder.setStakeholderId("stakeholder@mail.com");
+        stakeholder.setModelValue(BigDecimal.ONE);
+        model.setStakeholders(Collections.singletonList(stakeholder));
+
+        BmCurrency eur = new BmCurrency();
+        this.mockProviders("PROVIDER@mail.com", "stakeholder@mail.com");
+        when(currencyDao.getByIso4217StringCode("EUR")).thenReturn(eur);
+        SettlementVolume volume = this.mockLockedVolume(BigDecimal.ZERO);
+
+        toTest.generateReports(Arrays.asList(
+                new SettlementReport(model, "EUR", BigDecimal.ONE),
+                new SettlementReport(model, "EUR", BigDecimal.TEN)));
+
+        verify(appProviderDao, times(1)).getProviders(eq(aggregatorId), anyCollection());
+        verify(appProviderDao, never()).getProvider(anyString(), anyString());
+        verify(currencyDao, times(1)).getByIso4217StringCode("EUR");
+
+        ArgumentCaptor<SharingReport> reports = ArgumentCaptor.forClass(SharingReport.class);
+        verify(sharingReportDao, times(2)).create(reports.capture());
+        reports.getAllValues().stream().forEach((report) -> {
+            Assert.assertEquals("PROVIDER@mail.com", report.getOwner().getId().getTxAppProviderId());
+            Assert.assertSame(eur, report.getCurrency());
+            Assert.assertEquals(1, report.getStakeholders().size());
+        });
+        verify(reportProviderDao, times(2)).create(any(ReportProvider.class));
+        verify(volumeDao, times(1)).lockVolume(aggregatorId, providerId, productClass, "EUR");
+        Assert.assertEquals(new BigDecimal(11), volume.getVolume());
+    }
+
+    @Test
+    public void generateReportsSettleClaim() throws Exception {
+        this.mockProviders(providerId);
+        when(transactionDao.settleClaim("owner")).thenReturn(5);
+
+        toTest.generateReports(Arrays.asList(
+                new SettlementReport(model, "EUR", BigDecimal.ONE, BigDecimal.ZERO, "owner", 2),
+                new SettlementReport(model, "USD", BigDecimal.TEN, BigDecimal.ZERO, "owner", 3)));
+
+        verify(transactionDao).settleClaim("owner");
+        verify(sharingReportDao, times(2)).create(any(SharingReport.class));
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void generateReportsExpiredClaim() throws Exception {
+        this.mockProviders(providerId);
+        when(transactionDao.settleClaim("owner")).thenReturn(1);
+
+        toTest.generateReports(Collections.singletonList(
+                new SettlementReport(model, "EUR", BigDecimal.ONE, BigDecimal.ZERO, "owner", 2)));
+    }
+
+    @Test
+    /**
+     * Validates that a report calculated with a volume changed by an
+     * overlapping job is rejected, so it is not stored with wrong tiers
+     */
+    public void generateReportsChangedVolume() throws Exception {
+        this.mockProviders(providerId);
+        this.mockLockedVolume(new BigDecimal(7));
+        when(transactionDao.settleClaim("owner")).thenReturn(2);
+
+        try {
+            toTest.generateReports(Collections.singletonList(
+                    new SettlementReport(model, "EUR", BigDecimal.ONE, new BigDecimal(5), "owner", 2)));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            verify(volumeDao).lockVolume(aggregatorId, providerId, productClass, "EUR");
+        }
+    }
+
+    @Test (expected = IllegalStateException.class)
+    public void generateReportUnknownProvider() throws Exception {
+        this.mockProviders();
+        toTest.generateReport(model, "EUR", BigDecimal.TEN);
+    }
+
+    @Test
+    /**
+     * Validates that the preview calculates the shares of the pending
+     * transactions without claiming them or writing reports
+     */
+    public void previewSettlement() throws RSSException {
+        ReflectionTestUtils.setField(toTest, "chunkSize", 1);
+
+        this.model.setAlgorithmType("FIXED_PERCENTAGE");
+        this.model.setAggregatorShare(new BigDecimal(20));
+        this.model.setOwnerValue(new BigDecimal(80));
+        this.mockSingleModel();
+
+        List<TransactionSummary> summaries = new ArrayList<>();
+        summaries.add(new TransactionSummary(aggregatorId, providerId, productClass,
+                "EUR", new BigDecimal(100), 2, 1, 2));
+        summaries.add(new TransactionSummary(aggregatorId, providerId, productClass,
+                "USD", new BigDecimal(50), 1, 3, 3));
+        summaries.add(new TransactionSummary(aggregatorId, providerId, "otherClass",
+                "EUR", new BigDecimal(10), 1, 4, 4));
+
+        when(transactionDao.getSettlementSummaries(aggregatorId, providerId, productClass, "pending", 0))
+                .thenReturn(summaries);
+        SettlementVolume volume = new SettlementVolume();
+        volume.setAggregatorId(aggregatorId);
+        volume.setProviderId(providerId);
+        volume.setProductClass(productClass);
+        volume.setCurrency("USD");
+        volume.setVolume(new BigDecimal(1000));
+
+        when(volumeDao.getVolumes(aggregatorId, providerId, productClass))
+                .thenReturn(Collections.singletonList(volume));
+        when(poolManager.getExecutor()).thenReturn(Runnable::run);
+
+        List<RSSReport> reports = toTest.previewSettlement(job).stream()
+                .flatMap((preview) -> preview.join().stream())
+                .collect(Collectors.toList());
+
+        // Transactions without model are ignored
+        Assert.assertEquals(2, reports.size());
+        Assert.assertEquals("EUR", reports.get(0).getCurrency());
+        Assert.assertEquals(0, new BigDecimal(20).compareTo(reports.get(0).getAggregatorValue()));
+        Assert.assertEquals(0, new BigDecimal(80).compareTo(reports.get(0).getOwnerValue()));
+        Assert.assertEquals("USD", reports.get(1).getCurrency());
+        Assert.assertEquals(0, new BigDecimal(10).compareTo(reports.get(1).getAggregatorValue()));
+        Assert.assertEquals(0, new BigDecimal(40).compareTo(reports.get(1).getOwnerValue()));
+        Assert.assertEquals(providerId, reports.get(1).getOwnerProviderId());
+
+        verify(transactionDao, never()).claimTransactions(anyString(), anyString(), anyString(), anyString(),
+                anyString(), any(Date.class), anyInt(), anyInt());
+        verify(sharingReportDao, never()).create(any(SharingReport.class));
+        verify(volumeDao, never()).lockVolume(anyString(), anyString(), anyString(), anyString());
+        verify(volumeDao, never()).getVolume(anyString(), anyString(), anyString(), anyString());
+        verify(poolManager, times(2)).getExecutor();
+    }
+
+    @Test(expected = RSSException.class)
+    public void previewSettlementUnknownAlgorithm() throws RSSException {
+        this.mockSingleModel();
+
+        List<TransactionSummary> summaries = new ArrayList<>();
+        summaries.add(this.buildSummary(model));
+        when(transactionDao.getSettlementSummaries(aggregatorId, providerId, productClass, "pending", 0))
+                .thenReturn(summaries);
+        when(volumeDao.getVolumes(aggregatorId, providerId, productClass))
+                .thenReturn(Collections.emptyList());
+
+        toTest.previewSettlement(job);
+    }
 }
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.service;
+
+import es.upm.fiware.rss.dao.DbeTransactionDao;
+import es.upm.fiware.rss.dao.IdSequenceDao;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.transaction.IllegalTransactionStateException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.EnableTransactionManagement;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+public class TransactionIdAllocatorTest {
+
+    /**
+     * Transaction manager without resources, only tracks whether the
+     * current thread is within a transaction
+     */
+    private static class ThreadTransactionManager extends AbstractPlatformTransactionManager {
+
+        private final ThreadLocal<Boolean> active = new ThreadLocal<>();
+
+        @Override
+        protected Object doGetTransaction() {
+            return Boolean.TRUE.equals(this.active.get());
+        }
+
+        @Override
+        protected boolean isExistingTransaction(Object transaction) {
+            return (Boolean) transaction;
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+            this.active.set(true);
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doCleanupAfterCompletion(Object transaction) {
+            this.active.remove();
+        }
+    }
+
+    @Configuration
+    @EnableTransactionManagement(proxyTargetClass = true)
+    static class Config {
+
+        /**
+         * Sequence whose row lock is released when the transaction that
+         * took it completes, as done by the database
+         */
+        @Bean
+        public IdSequenceDao sequenceDao() {
+            Semaphore rowLock = new Semaphore(1);
+            AtomicInteger next = new AtomicInteger(1);
+
+            IdSequenceDao dao = Mockito.mock(IdSequenceDao.class);
+            when(dao.reserve(anyString(), anyInt(), any(IntSupplier.class))).then((invocation) -> {
+                rowLock.acquireUninterruptibly();
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        rowLock.release();
+                    }
+                });
+                return next.getAndAdd((Integer) invocation.getArguments()[1]);
+            });
+            return dao;
+        }
+
+        @Bean
+        public DbeTransactionDao transactionDao() {
+            return Mockito.mock(DbeTransactionDao.class);
+        }
+
+        @Bean
+        public PlatformTransactionManager transactionManager() {
+            return new ThreadTransactionManager();
+        }
+
+        @Bean
+        public TransactionIdAllocator allocator() {
+            return new TransactionIdAllocator();
+        }
+    }
+
+    private AnnotationConfigApplicationContext context;
+    private TransactionIdAllocator toTest;
+    private TransactionTemplate template;
+
+    @Before
+    public void setUp() {
+        this.context = new AnnotationConfigApplicationContext(Config.class);
+        this.toTest = this.context.getBean(TransactionIdAllocator.class);
+        this.template = new TransactionTemplate(this.context.getBean(PlatformTransactionManager.class));
+    }
+
+    @After
+    public void tearDown() {
+        this.context.close();
+    }
+
+    @Test(expected = IllegalTransactionStateException.class)
+    public void reserveRequiresTransaction() {
+        this.toTest.reserve(10);
+    }
+
+    @Test
+    public void batchesCommitInIdOrder() throws Exception {
+        List<String> commits = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch largeReserved = new CountDownLatch(1);
+        CountDownLatch largeInserted = new CountDownLatch(1);
+        CountDownLatch smallReserved = new CountDownLatch(1);
+        int[] firstIds = new int[2];
+
+        // A large list reserves its ids first and takes longer to be inserted
+        Thread large = new Thread(() -> this.template.execute((status) -> {
+            firstIds[0] = this.toTest.reserve(10000);
+            this.onCommit(commits, "large");
+            largeReserved.countDown();
+            try {
+                largeInserted.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }));
+
+        // A small list received later would be inserted before the large one
+        Thread small = new Thread(() -> this.template.execute((status) -> {
+            firstIds[1] = this.toTest.reserve(100);
+            this.onCommit(commits, "small");
+            smallReserved.countDown();
+            return null;
+        }));
+
+        large.start();
+        Assert.assertTrue(largeReserved.await(5, TimeUnit.SECONDS));
+        small.start();
+
+        // The small list cannot take ids nor commit before the large one
+        Assert.assertFalse(smallReserved.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertTrue(commits.isEmpty());
+
+        largeInserted.countDown();
+        large.join(5000);
+        small.join(5000);
+
+        Assert.assertEquals(1, firstIds[0]);
+        Assert.assertEquals(10001, firstIds[1]);
+        Assert.assertEquals(2, commits.size());
+        Assert.assertEquals("large", commits.get(0));
+        Assert.assertEquals("small", commits.get(1));
+    }
+
+    private void onCommit(List<String> commits, String batch) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                commits.add(batch);
+            }
+        });
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import es.upm.fiware.rss.model.RSSModel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AggregatorFairQueueTest {
+
+    private ProductSettlementTask buildTask(String aggregatorId) {
+        RSSModel model = new RSSModel();
+        model.setAggregatorId(aggregatorId);
+        return new ProductSettlementTask(model, "EUR", "http://callback.com");
+    }
+
+    @Test
+    public void tasksTakenInRoundRobin() throws InterruptedException {
+        AggregatorFairQueue queue = new AggregatorFairQueue(10);
+
+        ProductSettlementTask a1 = this.buildTask("a@mail.com");
+        ProductSettlementTask a2 = this.buildTask("a@mail.com");
+        ProductSettlementTask a3 = this.buildTask("a@mail.com");
+        ProductSettlementTask b1 = this.buildTask("b@mail.com");
+        ProductSettlementTask c1 = this.buildTask("c@mail.com");
+
+        queue.put(a1);
+        queue.put(a2);
+        queue.put(a3);
+        queue.put(b1);
+        queue.put(c1);
+
+        Assert.assertEquals(5, queue.size());
+        Assert.assertSame(a1, queue.take());
+        Assert.assertSame(b1, queue.take());
+        Assert.assertSame(c1, queue.take());
+        Assert.assertSame(a2, queue.take());
+        Assert.assertSame(a3, queue.take());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void offerFailsWhenFull() throws InterruptedException {
+        AggregatorFairQueue queue = new AggregatorFairQueue(2);
+
+        Assert.assertTrue(queue.offer(this.buildTask("a@mail.com")));
+        Assert.assertTrue(queue.offer(this.buildTask("b@mail.com")));
+        Assert.assertFalse(queue.offer(this.buildTask("c@mail.com")));
+        Assert.assertFalse(queue.offer(this.buildTask("c@mail.com"), 10, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(0, queue.remainingCapacity());
+    }
+
+    @Test
+    public void removeAndDrain() {
+        AggregatorFairQueue queue = new AggregatorFairQueue(10);
+        ProductSettlementTask a1 = this.buildTask("a@mail.com");
+        ProductSettlementTask b1 = this.buildTask("b@mail.com");
+        ProductSettlementTask b2 = this.buildTask("b@mail.com");
+
+        queue.offer(a1);
+        queue.offer(b1);
+        queue.offer(b2);
+
+        Assert.assertTrue(queue.remove(a1));
+        Assert.assertFalse(queue.remove(a1));
+        Assert.assertSame(b1, queue.peek());
+
+        List<Runnable> drained = new ArrayList<>();
+        Assert.assertEquals(2, queue.drainTo(drained));
+        Assert.assertSame(b1, drained.get(0));
+        Assert.assertSame(b2, drained.get(1));
+        Assert.assertTrue(queue.isEmpty());
+    }
+}
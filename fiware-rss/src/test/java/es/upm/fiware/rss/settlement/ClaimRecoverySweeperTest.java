@@ -0,0 +1,64 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.Date;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import es.upm.fiware.rss.service.SettlementManager;
+
+public class ClaimRecoverySweeperTest {
+
+    @Mock private SettlementManager settlementManager;
+    @InjectMocks private ClaimRecoverySweeper toTest;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void sweep() {
+        when(this.settlementManager.recoverExpiredClaims(any(Date.class)))
+                .thenReturn(1000, 200, 0);
+
+        Assert.assertEquals(1200, this.toTest.sweep());
+
+        // Watermarks are rewound before recovering, with the same time
+        ArgumentCaptor<Date> now = ArgumentCaptor.forClass(Date.class);
+        verify(this.settlementManager).rewindExpiredClaims(now.capture());
+        verify(this.settlementManager, times(3)).recoverExpiredClaims(now.getValue());
+    }
+
+    @Test
+    public void sweepNothingExpired() {
+        Assert.assertEquals(0, this.toTest.sweep());
+        verify(this.settlementManager).recoverExpiredClaims(any(Date.class));
+    }
+}
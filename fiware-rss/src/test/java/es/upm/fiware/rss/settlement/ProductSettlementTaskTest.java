@@ -19,14 +19,14 @@ package es.upm.fiware.rss.settlement;
 import es.upm.fiware.rss.algorithm.AlgorithmFactory;
 import es.upm.fiware.rss.algorithm.AlgorithmProcessor;
 import es.upm.fiware.rss.exception.RSSException;
-import es.upm.fiware.rss.model.BmCurrency;
-import es.upm.fiware.rss.model.DbeTransaction;
 import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.TransactionSummary;
 import es.upm.fiware.rss.service.SettlementManager;
 import java.io.IOException;
 import java.math.BigDecimal;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
@@ -35,7 +35,15 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyLong;
 import static org.mockito.Mockito.isA;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.doThrow;
+import org.mockito.ArgumentCaptor;
 import org.mockito.MockitoAnnotations;
 
 /**
@@ -47,31 +55,25 @@ public class ProductSettlementTaskTest {
     @Mock private SettlementManager settlementManager;
     @Mock private ThreadPoolManager poolManager;
     @Mock private AlgorithmFactory algorithmFactory;
+    @Mock private SharingReportWriter reportWriter;
+    @Mock private SettlementThrottle throttle;
 
     @InjectMocks private ProductSettlementTask toTest;
 
-    private List<DbeTransaction> txs = new LinkedList<>();
     private RSSModel model;
-    private String callback = "http://callback.com";
+    private String jobId = "job";
     
     private AlgorithmProcessor processor;
     private RSSModel report = new RSSModel();
+    private List<TransactionSummary> summaries;
 
     @Before
-    public void setUp() throws RSSException {
-        // Build transactions
-        BmCurrency currency = new BmCurrency();
-        currency.setTxIso4217Code("EUR");
+    public void setUp() throws Exception {
+        // Build transactions summary
+        this.summaries = new ArrayList<>();
+        this.summaries.add(new TransactionSummary("agregator@mail.com", "owner@mail.com",
+                "productClass", "EUR", new BigDecimal(10), 3, 1, 3));
 
-        this.txs.add(this.buildTransaction(currency, new BigDecimal(10),
-                new BigDecimal(12), "C", 1, 1));
-        
-        this.txs.add(this.buildTransaction(currency, new BigDecimal(10),
-                new BigDecimal(12), "C", 2, 2));
-        
-        this.txs.add(this.buildTransaction(currency, new BigDecimal(10),
-                new BigDecimal(12), "R", 3, 3));
-        
         // Build revenue sharing model
         this.model = new RSSModel();
         this.model.setAggregatorId("agregator@mail.com");
@@ -79,7 +81,7 @@ public class ProductSettlementTaskTest {
         this.model.setOwnerProviderId("owner@mail.com");
         this.model.setProductClass("productClass");
         
-        this.toTest = new ProductSettlementTask(model, this.txs, this.callback);
+        this.toTest = new ProductSettlementTask(model, "EUR", this.jobId);
         MockitoAnnotations.initMocks(this);
         
         // Mock AlgorithmProcessor
@@ -87,40 +89,62 @@ public class ProductSettlementTaskTest {
         
         when(this.algorithmFactory.getAlgorithmProcessor(eq("FIXED_PERCENTAGE")))
                 .thenReturn(processor);
+        when(this.settlementManager.aggregateTransactions(anyString()))
+                .thenReturn(this.summaries);
+        when(this.settlementManager.renewClaim(anyString())).thenReturn(3);
+        when(this.settlementManager.getSettledVolume(eq(this.model), anyString()))
+                .thenReturn(BigDecimal.ZERO);
+        when(this.throttle.awaitResume()).thenReturn(true);
+        when(this.throttle.awaitTransactions(anyLong())).thenReturn(true);
     }
 
-    private DbeTransaction buildTransaction(BmCurrency currency, BigDecimal amount,
-            BigDecimal taxAmount, String type, Integer corrId, Integer txId) {
-        
-        DbeTransaction transaction = new DbeTransaction();
-        transaction.setBmCurrency(currency);
-        transaction.setFtChargedAmount(amount);
-        transaction.setFtChargedTaxAmount(taxAmount);
-        transaction.setTcTransactionType(type);
-        transaction.setTxPbCorrelationId(corrId);
-        transaction.setTxTransactionId(txId);
-        
-        return transaction;
+    @SuppressWarnings("unchecked")
+    private List<SettlementReport> captureReports() throws Exception {
+        ArgumentCaptor<List> reports = ArgumentCaptor.forClass(List.class);
+        verify(this.reportWriter).write(reports.capture());
+        return reports.getValue();
+    }
+
+    private void assertReport(SettlementReport report, RSSModel revenue,
+            String currency, BigDecimal value) {
+
+        Assert.assertSame(revenue, report.getRevenue());
+        Assert.assertEquals(currency, report.getCurrency());
+        Assert.assertEquals(value, report.getValue());
     }
+
     /*
      * Validates the run method of the product settlement task with correct 
      * transactions
      */
     @Test
-    public void testRunSettlementTask() throws IOException, RSSException {
+    public void testRunSettlementTask() throws Exception {
         // Mock processor behaviour
-        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class)))
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
                 .thenReturn(this.report);
 
         // Execute method
         this.toTest.run();
         
-        // Validate calls
-        verify(this.processor).calculateRevenue(eq(model), eq(new BigDecimal(10)));
-        verify(this.settlementManager).generateReport(eq(this.report), eq("EUR"));
-        verify(this.settlementManager).setTxState(eq(this.txs), eq("processed"), eq(Boolean.TRUE));
+        // Validate calls, the same owner token is used in every step
+        ArgumentCaptor<String> owner = ArgumentCaptor.forClass(String.class);
+        verify(this.poolManager).startTask(toTest, jobId);
+        verify(this.settlementManager).claimTransactions(eq(this.model), eq("EUR"), owner.capture(), eq(0));
+        verify(this.settlementManager).aggregateTransactions(owner.getValue());
+        verify(this.settlementManager).renewClaim(owner.getValue());
+        verify(this.processor).calculateRevenue(eq(model), eq(new BigDecimal(10)), eq(BigDecimal.ZERO));
+        List<SettlementReport> reports = this.captureReports();
+        Assert.assertEquals(1, reports.size());
+        this.assertReport(reports.get(0), this.report, "EUR", new BigDecimal(10));
+
+        // Transactions are set as processed together with the report
+        Assert.assertEquals(owner.getValue(), reports.get(0).getOwner());
+        Assert.assertEquals(3, reports.get(0).getTransactions());
+        Assert.assertEquals(BigDecimal.ZERO, reports.get(0).getSettled());
+        verify(this.settlementManager, never()).releaseClaim(anyString(), anyString());
+        verify(this.settlementManager).setSettlementWatermark(this.model, 3);
         
-        verify(this.poolManager).completeTask(toTest, callback, true);
+        verify(this.poolManager).completeTask(toTest, jobId, true);
     }
 
     /*
@@ -130,16 +154,243 @@ public class ProductSettlementTaskTest {
     @Test
     public void testRunSettlementTaskAlgException() throws IOException, RSSException {
         // Mock processor behaviour
-        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class)))
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
                 .thenThrow(new RSSException("Algorithm error"));
 
         // Execute method
         this.toTest.run();
         
         // Validate calls
-        verify(this.processor).calculateRevenue(eq(model), eq(new BigDecimal(10)));
-        verify(this.settlementManager).setTxState(eq(this.txs), eq("pending"), eq(Boolean.TRUE));
+        verify(this.processor).calculateRevenue(eq(model), eq(new BigDecimal(10)), eq(BigDecimal.ZERO));
+        verify(this.settlementManager).releaseClaim(anyString(), eq("pending"));
+        verify(this.settlementManager, never()).releaseClaim(anyString(), eq("processed"));
+        verify(this.settlementManager, never()).setSettlementWatermark(isA(RSSModel.class), anyInt());
         
-        verify(this.poolManager).completeTask(toTest, callback, false);
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that the claim is released if the reports cannot be stored
+     */
+    @Test
+    public void testRunSettlementTaskReportError() throws Exception {
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
+                .thenReturn(this.report);
+        doThrow(new IllegalStateException("Unknown provider")).when(this.reportWriter).write(anyList());
+
+        this.toTest.run();
+
+        verify(this.settlementManager).releaseClaim(anyString(), eq("pending"));
+        verify(this.settlementManager, never()).releaseClaim(anyString(), eq("processed"));
+        verify(this.settlementManager, never()).setSettlementWatermark(isA(RSSModel.class), anyInt());
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that the task pool is completed even if the task fails
+     * with an unexpected error
+     */
+    @Test
+    public void testRunSettlementTaskUnexpectedError() throws Exception {
+        doThrow(new IllegalStateException("Database error"))
+                .when(this.poolManager).startTask(toTest, jobId);
+
+        this.toTest.run();
+
+        verify(this.throttle).releaseTask();
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that transactions are claimed in chunks until no pending
+     * transaction remains
+     */
+    @Test
+    public void testRunSettlementTaskChunks() throws IOException, RSSException {
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
+                .thenReturn(this.report);
+        when(this.settlementManager.claimTransactions(eq(this.model), eq("EUR"), anyString(), eq(0)))
+                .thenReturn(1000, 1000, 500, 0);
+        this.toTest.run();
+
+        verify(this.settlementManager, times(4)).claimTransactions(eq(this.model), eq("EUR"), anyString(), eq(0));
+        verify(this.settlementManager, never()).releaseClaim(anyString(), eq("processed"));
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+    }
+
+    /*
+     * Validates that chunks are not claimed while settlement is paused, and
+     * that the claim on the chunks already taken is renewed meanwhile
+     */
+    @Test
+    public void testRunSettlementTaskPaused() throws Exception {
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
+                .thenReturn(this.report);
+        when(this.settlementManager.claimTransactions(eq(this.model), eq("EUR"), anyString(), eq(0)))
+                .thenReturn(3, 0);
+        when(this.throttle.awaitResume()).thenReturn(true, false, false, true);
+
+        this.toTest.run();
+
+        // Two renewals while paused and the one before generating reports
+        ArgumentCaptor<String> owner = ArgumentCaptor.forClass(String.class);
+        verify(this.throttle).acquireTask();
+        verify(this.settlementManager, times(2)).claimTransactions(eq(this.model), eq("EUR"), owner.capture(), eq(0));
+        verify(this.settlementManager, times(3)).renewClaim(owner.getValue());
+        verify(this.throttle).acquireTransactions(3);
+        verify(this.throttle).releaseTask();
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+    }
+
+    /*
+     * Validates that the claim is renewed while waiting for the transactions
+     * per second limit
+     */
+    @Test
+    public void testRunSettlementTaskRateLimited() throws Exception {
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
+                .thenReturn(this.report);
+        when(this.settlementManager.claimTransactions(eq(this.model), eq("EUR"), anyString(), eq(0)))
+                .thenReturn(3, 0);
+        when(this.throttle.acquireTransactions(3)).thenReturn(5000L);
+        when(this.throttle.awaitTransactions(5000L)).thenReturn(false, false, true);
+
+        this.toTest.run();
+
+        // Two renewals while waiting and the one before generating reports
+        ArgumentCaptor<String> owner = ArgumentCaptor.forClass(String.class);
+        verify(this.settlementManager, times(2)).claimTransactions(eq(this.model), eq("EUR"), owner.capture(), eq(0));
+        verify(this.throttle, times(3)).awaitTransactions(5000L);
+        verify(this.settlementManager, times(3)).renewClaim(owner.getValue());
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+    }
+
+    /*
+     * Validates that the task fails without claiming transactions if it is
+     * interrupted while waiting for the throttle
+     */
+    @Test
+    public void testRunSettlementTaskInterrupted() throws Exception {
+        doThrow(new InterruptedException()).when(this.throttle).acquireTask();
+
+        this.toTest.run();
+
+        Assert.assertTrue(Thread.interrupted());
+        verify(this.settlementManager, never()).claimTransactions(
+                isA(RSSModel.class), anyString(), anyString(), anyInt());
+        verify(this.throttle, never()).releaseTask();
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that no report is generated if the claim has expired and
+     * part of the transactions has been recovered
+     */
+    @Test
+    public void testRunSettlementTaskClaimLost() throws Exception {
+        when(this.settlementManager.renewClaim(anyString())).thenReturn(1);
+
+        this.toTest.run();
+
+        verify(this.reportWriter, never()).write(anyList());
+        verify(this.settlementManager).releaseClaim(anyString(), eq("pending"));
+        verify(this.settlementManager, never()).setSettlementWatermark(isA(RSSModel.class), anyInt());
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that the task fails even if the claim cannot be released, the
+     * transactions are then recovered by the sweeper
+     */
+    @Test
+    public void testRunSettlementTaskReleaseError() throws IOException, RSSException {
+        when(this.settlementManager.aggregateTransactions(anyString()))
+                .thenThrow(new RuntimeException("Database error"));
+        when(this.settlementManager.releaseClaim(anyString(), eq("pending")))
+                .thenThrow(new RuntimeException("Database error"));
+
+        this.toTest.run();
+
+        verify(this.poolManager).completeTask(toTest, jobId, false);
+    }
+
+    /*
+     * Validates that only the transactions past the watermark are settled
+     */
+    @Test
+    public void testRunSettlementTaskWatermark() throws IOException, RSSException {
+        this.summaries.clear();
+        this.summaries.add(new TransactionSummary("agregator@mail.com", "owner@mail.com",
+                "productClass", "EUR", new BigDecimal(10), 2, 501, 502));
+
+        when(this.settlementManager.getSettlementStart(this.model)).thenReturn(501);
+        when(this.settlementManager.renewClaim(anyString())).thenReturn(2);
+        when(this.processor.calculateRevenue(isA(RSSModel.class), isA(BigDecimal.class), isA(BigDecimal.class)))
+                .thenReturn(this.report);
+
+        this.toTest.run();
+
+        verify(this.settlementManager).claimTransactions(eq(this.model), eq("EUR"), anyString(), eq(501));
+        verify(this.settlementManager).setSettlementWatermark(this.model, 502);
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+    }
+
+    /*
+     * Validates that the volume settled for the model is provided to the
+     * algorithm processor
+     */
+    @Test
+    public void testRunSettlementTaskSettledVolume() throws Exception {
+        when(this.settlementManager.getSettledVolume(this.model, "EUR")).thenReturn(new BigDecimal(500));
+        when(this.processor.calculateRevenue(model, new BigDecimal(10), new BigDecimal(500)))
+                .thenReturn(this.report);
+
+        this.toTest.run();
+
+        List<SettlementReport> reports = this.captureReports();
+        Assert.assertEquals(1, reports.size());
+        this.assertReport(reports.get(0), this.report, "EUR", new BigDecimal(10));
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+    }
+
+    /*
+     * Validates that a report is generated for each currency
+     */
+    @Test
+    public void testRunSettlementTaskCurrencies() throws Exception {
+        this.summaries.add(new TransactionSummary("agregator@mail.com", "owner@mail.com",
+                "productClass", "USD", new BigDecimal(20), 2, 4, 5));
+
+        RSSModel usdReport = new RSSModel();
+        when(this.processor.calculateRevenue(model, new BigDecimal(10), BigDecimal.ZERO)).thenReturn(this.report);
+        when(this.processor.calculateRevenue(model, new BigDecimal(20), BigDecimal.ZERO)).thenReturn(usdReport);
+        when(this.settlementManager.renewClaim(anyString())).thenReturn(5);
+
+        this.toTest.run();
+
+        List<SettlementReport> reports = this.captureReports();
+        Assert.assertEquals(2, reports.size());
+        this.assertReport(reports.get(0), this.report, "EUR", new BigDecimal(10));
+        this.assertReport(reports.get(1), usdReport, "USD", new BigDecimal(20));
+        verify(this.settlementManager).setSettlementWatermark(this.model, 5);
+        verify(this.poolManager).completeTask(toTest, jobId, true);
+        Assert.assertEquals(5, this.toTest.getTransactions());
+    }
+
+    /*
+     * Validates that no report is generated when the model has no
+     * pending transactions
+     */
+    @Test
+    public void testRunSettlementTaskNoTransactions() throws Exception {
+        when(this.settlementManager.aggregateTransactions(anyString()))
+                .thenReturn(new ArrayList<>());
+
+        this.toTest.run();
+
+        verify(this.reportWriter, never()).write(anyList());
+        verify(this.settlementManager, never()).renewClaim(anyString());
+        verify(this.settlementManager, never()).releaseClaim(anyString(), eq("processed"));
+        verify(this.poolManager).completeTask(toTest, jobId, true);
     }
 }
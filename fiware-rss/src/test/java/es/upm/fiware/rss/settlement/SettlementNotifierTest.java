@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import com.sun.net.httpserver.HttpServer;
+import es.upm.fiware.rss.model.SettlementNotification;
+import es.upm.fiware.rss.service.SettlementNotificationManager;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SettlementNotifierTest {
+
+    @Mock private SettlementNotificationManager notificationManager;
+
+    @InjectMocks private SettlementNotifier toTest;
+
+    private HttpServer server;
+    private String callbackUrl;
+
+    // Status codes returned by the stub server, the last one is repeated
+    private final List<Integer> responses = new ArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final BlockingQueue<String> bodies = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/callback", (exchange) -> {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    body.write(buffer, 0, n);
+                }
+            }
+            this.bodies.add(body.toString("UTF-8"));
+
+            int i = Math.min(this.requests.getAndIncrement(), this.responses.size() - 1);
+            exchange.sendResponseHeaders(this.responses.get(i), -1);
+            exchange.close();
+        });
+        this.server.start();
+
+        this.callbackUrl = "http://localhost:" + this.server.getAddress().getPort() + "/callback";
+
+        ReflectionTestUtils.setField(this.toTest, "retryDelay", 10L);
+        ReflectionTestUtils.setField(this.toTest, "maxAttempts", 3);
+        when(this.notificationManager.getPendingNotifications()).thenReturn(new ArrayList<>());
+    }
+
+    @After
+    public void tearDown() {
+        this.toTest.cleanUp();
+        this.server.stop(0);
+    }
+
+    private SettlementNotification buildNotification(int id) {
+        SettlementNotification notification = new SettlementNotification();
+        notification.setId(id);
+        notification.setJobId("job");
+        notification.setCallbackUrl(this.callbackUrl);
+        notification.setPayload("{\"status\":\"COMPLETED\"}");
+        return notification;
+    }
+
+    private TaskPool buildPool() {
+        TaskPool pool = mock(TaskPool.class);
+        when(pool.getJobId()).thenReturn("job");
+        when(pool.getCallbackUrl()).thenReturn(this.callbackUrl);
+        when(pool.getState()).thenReturn(TaskPoolState.PARTIAL);
+        return pool;
+    }
+
+    @Test
+    public void notifyProvider() throws Exception {
+        this.responses.add(200);
+        SettlementNotification notification = this.buildNotification(1);
+        when(this.notificationManager.createNotification(eq("job"),
+                eq(this.callbackUrl), anyString())).thenAnswer((inv) -> {
+                    notification.setPayload((String) inv.getArguments()[2]);
+                    return notification;
+                });
+
+        this.toTest.init();
+        this.toTest.notifyProvider(this.buildPool());
+
+        JSONObject body = new JSONObject(this.bodies.poll(5, TimeUnit.SECONDS));
+        Assert.assertEquals("PARTIAL", body.getString("status"));
+        Assert.assertEquals("job", body.getString("jobId"));
+
+        verify(this.notificationManager, timeout(5000)).deleteNotification(1);
+    }
+
+    @Test
+    public void notifyProviderWithoutCallback() {
+        TaskPool pool = mock(TaskPool.class);
+
+        this.toTest.init();
+        this.toTest.notifyProvider(pool);
+
+        verify(this.notificationManager, never()).createNotification(anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void retryFailedNotification() throws Exception {
+        this.responses.add(500);
+        this.responses.add(503);
+        this.responses.add(200);
+        when(this.notificationManager.createNotification(anyString(), anyString(), anyString()))
+                .thenReturn(this.buildNotification(2));
+
+        this.toTest.init();
+        this.toTest.notifyProvider(this.buildPool());
+
+        verify(this.notificationManager, timeout(5000)).deleteNotification(2);
+        verify(this.notificationManager).updateAttempts(2, 1, false);
+        verify(this.notificationManager).updateAttempts(2, 2, false);
+        Assert.assertEquals(3, this.requests.get());
+    }
+
+    @Test
+    public void notificationFailed() throws Exception {
+        this.responses.add(500);
+        when(this.notificationManager.createNotification(anyString(), anyString(), anyString()))
+                .thenReturn(this.buildNotification(3));
+
+        this.toTest.init();
+        this.toTest.notifyProvider(this.buildPool());
+
+        verify(this.notificationManager, timeout(5000)).updateAttempts(3, 3, true);
+        verify(this.notificationManager, never()).deleteNotification(anyInt());
+    }
+
+    @Test
+    public void deliverPendingNotifications() throws Exception {
+        this.responses.add(200);
+
+        List<SettlementNotification> pending = new ArrayList<>();
+        pending.add(this.buildNotification(4));
+        pending.add(this.buildNotification(5));
+        when(this.notificationManager.getPendingNotifications()).thenReturn(pending);
+
+        this.toTest.init();
+
+        verify(this.notificationManager, timeout(5000)).deleteNotification(4);
+        verify(this.notificationManager, timeout(5000)).deleteNotification(5);
+    }
+}
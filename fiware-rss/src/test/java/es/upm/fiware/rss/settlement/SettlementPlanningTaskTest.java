@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.service.SettlementManager;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import static org.mockito.Mockito.isA;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SettlementPlanningTaskTest {
+
+    @Mock private SettlementManager settlementManager;
+    @Mock private ThreadPoolManager poolManager;
+    @Mock private SettlementTaskFactory taskFactory;
+
+    @InjectMocks private SettlementPlanningTask toTest;
+
+    private final String jobId = "job";
+    private SettlementJob job;
+
+    @Before
+    public void setUp() {
+        this.job = new SettlementJob();
+        this.job.setAggregatorId("aggregator@mail.com");
+
+        this.toTest = new SettlementPlanningTask(this.job, this.jobId);
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Test
+    public void planJob() throws RSSException {
+        // A model with transactions in two currencies is settled by two tasks
+        RSSModel model = new RSSModel();
+        List<SettlementUnit> units = new ArrayList<>();
+        units.add(new SettlementUnit(model, "EUR", 10));
+        units.add(new SettlementUnit(model, "USD", 5));
+        when(this.settlementManager.getSettlementUnits(this.job)).thenReturn(units);
+
+        ProductSettlementTask task1 = new ProductSettlementTask();
+        ProductSettlementTask task2 = new ProductSettlementTask();
+        when(this.taskFactory.getSettlementTask(model, "EUR", this.jobId)).thenReturn(task1);
+        when(this.taskFactory.getSettlementTask(model, "USD", this.jobId)).thenReturn(task2);
+
+        this.toTest.run();
+
+        verify(this.poolManager).submitTask(task1, this.jobId);
+        verify(this.poolManager).submitTask(task2, this.jobId);
+        verify(this.poolManager).closeTaskPool(this.jobId, true);
+    }
+
+    @Test
+    public void planJobError() throws RSSException {
+        when(this.settlementManager.getSettlementUnits(this.job))
+                .thenThrow(new RSSException(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, new String[] {"model"}));
+
+        this.toTest.run();
+
+        verify(this.poolManager, never()).submitTask(isA(ProductSettlementTask.class), isA(String.class));
+        verify(this.poolManager).closeTaskPool(this.jobId, false);
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import es.upm.fiware.rss.exception.RSSException;
+import es.upm.fiware.rss.exception.UNICAExceptionType;
+import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.model.SettlementSchedule;
+import es.upm.fiware.rss.service.SettlementManager;
+
+public class SettlementSchedulerTest {
+
+    @Mock private SettlementManager settlementManager;
+    @Mock private ThreadPoolManager poolManager;
+    @InjectMocks private SettlementScheduler toTest;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        this.toTest.init();
+    }
+
+    @After
+    public void tearDown() {
+        this.toTest.cleanUp();
+    }
+
+    private SettlementJob buildJob(String aggregatorId, String providerId, String schedule) {
+        SettlementJob job = new SettlementJob();
+        job.setAggregatorId(aggregatorId);
+        job.setProviderId(providerId);
+        job.setProductClass("productClass");
+        job.setCallbackUrl("http://callback.com");
+        job.setSchedule(schedule);
+        return job;
+    }
+
+    @Test
+    public void schedule() throws Exception {
+        SettlementSchedule schedule = this.toTest.schedule(
+                this.buildJob("aggregator@mail.com", "provider@mail.com", "0 0 1 1 * *"));
+
+        Assert.assertNotNull(schedule.getId());
+        Assert.assertEquals("aggregator@mail.com", schedule.getAggregatorId());
+        Assert.assertEquals("provider@mail.com", schedule.getProviderId());
+        Assert.assertEquals("0 0 1 1 * *", schedule.getSchedule());
+        Assert.assertNotNull(schedule.getNextExecution());
+        Assert.assertNull(schedule.getLastJobId());
+
+        Assert.assertEquals(schedule.getId(), this.toTest.getSchedule(schedule.getId()).getId());
+    }
+
+    @Test
+    public void scheduleInvalidExpression() {
+        try {
+            this.toTest.schedule(this.buildJob("aggregator@mail.com", null, "every month"));
+            Assert.fail("Invalid cron expression accepted");
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.CONTENT_NOT_WELL_FORMED, e.getExceptionType());
+        }
+    }
+
+    @Test
+    public void getSchedulesFiltered() throws Exception {
+        this.toTest.schedule(this.buildJob("aggregator@mail.com", "provider@mail.com", "0 0 1 1 * *"));
+        this.toTest.schedule(this.buildJob("aggregator@mail.com", null, "0 0 1 1 * *"));
+        this.toTest.schedule(this.buildJob("other@mail.com", "provider@mail.com", "0 0 1 1 * *"));
+
+        Assert.assertEquals(3, this.toTest.getSchedules(null, null).size());
+        Assert.assertEquals(2, this.toTest.getSchedules("aggregator@mail.com", null).size());
+
+        List<SettlementSchedule> schedules = this.toTest.getSchedules(
+                "aggregator@mail.com", "provider@mail.com");
+        Assert.assertEquals(1, schedules.size());
+        Assert.assertEquals("provider@mail.com", schedules.get(0).getProviderId());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        SettlementSchedule schedule = this.toTest.schedule(
+                this.buildJob("aggregator@mail.com", null, "0 0 1 1 * *"));
+
+        this.toTest.cancel(schedule.getId());
+
+        Assert.assertTrue(this.toTest.getSchedules(null, null).isEmpty());
+        try {
+            this.toTest.getSchedule(schedule.getId());
+            Assert.fail("Cancelled schedule found");
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_EXISTENT_RESOURCE_ID, e.getExceptionType());
+        }
+    }
+
+    @Test (expected = RSSException.class)
+    public void cancelNotExisting() throws Exception {
+        this.toTest.cancel("schedule");
+    }
+
+    /*
+     * Validates that the job is launched when the schedule fires, and that
+     * it is not launched again while the previous job is running
+     */
+    @Test
+    public void launchSkipsRunningJob() throws Exception {
+        TaskPool running = mock(TaskPool.class);
+        when(running.isFinished()).thenReturn(false);
+        when(this.poolManager.findTaskPool("job")).thenReturn(running);
+        when(this.settlementManager.runSettlement(any(SettlementJob.class))).thenReturn("job");
+
+        SettlementSchedule schedule = this.toTest.schedule(
+                this.buildJob("aggregator@mail.com", null, "* * * * * *"));
+
+        ArgumentCaptor<SettlementJob> job = ArgumentCaptor.forClass(SettlementJob.class);
+        verify(this.settlementManager, timeout(3000)).runSettlement(job.capture());
+        verify(this.poolManager, timeout(3000)).findTaskPool("job");
+
+        Assert.assertEquals("job", this.toTest.getSchedule(schedule.getId()).getLastJobId());
+        this.toTest.cancel(schedule.getId());
+
+        verify(this.settlementManager, times(1)).runSettlement(any(SettlementJob.class));
+        Assert.assertEquals("aggregator@mail.com", job.getValue().getAggregatorId());
+        Assert.assertNull(job.getValue().getSchedule());
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.time.Clock;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+public class SettlementThrottleTest {
+
+    private SettlementThrottle toTest;
+
+    @Before
+    public void setUp() {
+        this.toTest = new SettlementThrottle();
+    }
+
+    private void setTime(int hour, int minute) {
+        ZoneId zone = ZoneId.systemDefault();
+        LocalDateTime time = LocalDateTime.of(2016, 5, 31, hour, minute);
+
+        ReflectionTestUtils.setField(this.toTest, "clock",
+                Clock.fixed(time.atZone(zone).toInstant(), zone));
+    }
+
+    private void setWindows(String windows) {
+        ReflectionTestUtils.setField(this.toTest, "pauseWindows", windows);
+        this.toTest.init();
+    }
+
+    @Test
+    public void notPausedWithoutWindows() throws Exception {
+        this.setTime(12, 0);
+        this.toTest.init();
+
+        Assert.assertEquals(0, this.toTest.getPauseRemaining());
+        Assert.assertTrue(this.toTest.awaitResume());
+    }
+
+    @Test
+    public void pausedInWindow() {
+        this.setWindows("08:00-14:00, 17:00-20:00");
+
+        this.setTime(12, 30);
+        Assert.assertEquals(TimeUnit.MINUTES.toMillis(90), this.toTest.getPauseRemaining());
+
+        this.setTime(14, 0);
+        Assert.assertEquals(0, this.toTest.getPauseRemaining());
+
+        this.setTime(17, 0);
+        Assert.assertEquals(TimeUnit.HOURS.toMillis(3), this.toTest.getPauseRemaining());
+
+        this.setTime(7, 59);
+        Assert.assertEquals(0, this.toTest.getPauseRemaining());
+    }
+
+    @Test
+    public void pausedInWindowOverMidnight() {
+        this.setWindows("22:00-02:00");
+
+        this.setTime(23, 0);
+        Assert.assertEquals(TimeUnit.HOURS.toMillis(3), this.toTest.getPauseRemaining());
+
+        this.setTime(1, 0);
+        Assert.assertEquals(TimeUnit.HOURS.toMillis(1), this.toTest.getPauseRemaining());
+
+        this.setTime(12, 0);
+        Assert.assertEquals(0, this.toTest.getPauseRemaining());
+    }
+
+    @Test
+    public void awaitResumeRenewsBeforeLeaseExpires() throws Exception {
+        this.setWindows("08:00-14:00");
+        this.setTime(12, 0);
+        ReflectionTestUtils.setField(this.toTest, "claimLease", 2L);
+
+        // The clock is fixed, so the pause does not finish
+        Assert.assertFalse(this.toTest.awaitResume());
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void invalidWindow() {
+        this.setWindows("08:00");
+    }
+
+    @Test (expected = IllegalArgumentException.class)
+    public void invalidWindowTime() {
+        this.setWindows("08:00-25:00");
+    }
+
+    @Test
+    public void reserveTransactions() {
+        this.setTime(12, 0);
+        ReflectionTestUtils.setField(this.toTest, "transactionsPerSecond", 1000.0);
+
+        // The first chunk is not delayed, the next ones wait for the
+        // previous ones at the configured rate
+        Assert.assertEquals(0, this.toTest.reserveTransactions(500));
+        Assert.assertEquals(500, this.toTest.reserveTransactions(1000));
+        Assert.assertEquals(1500, this.toTest.reserveTransactions(1));
+    }
+
+    @Test
+    public void reserveTransactionsUnlimited() {
+        this.setTime(12, 0);
+
+        Assert.assertEquals(0, this.toTest.reserveTransactions(500));
+        Assert.assertEquals(0, this.toTest.reserveTransactions(1000));
+    }
+
+    @Test
+    public void awaitTransactions() throws Exception {
+        this.setTime(12, 0);
+        ReflectionTestUtils.setField(this.toTest, "transactionsPerSecond", 1000.0);
+        ReflectionTestUtils.setField(this.toTest, "claimLease", 2L);
+
+        long until = this.toTest.acquireTransactions(500);
+        Assert.assertTrue(this.toTest.awaitTransactions(until));
+
+        // The clock is fixed, so the wait does not finish and the caller
+        // is returned the control to renew its claim
+        until = this.toTest.acquireTransactions(1000);
+        Assert.assertFalse(this.toTest.awaitTransactions(until));
+    }
+
+    @Test
+    public void acquireTaskLimited() throws Exception {
+        this.setTime(12, 0);
+        ReflectionTestUtils.setField(this.toTest, "maxTasks", 1);
+        this.toTest.init();
+
+        this.toTest.acquireTask();
+
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+            try {
+                this.toTest.acquireTask();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try {
+            waiting.get(100, TimeUnit.MILLISECONDS);
+            Assert.fail("The task has not waited for a free slot");
+        } catch (TimeoutException e) {
+            // The second task waits
+        }
+
+        this.toTest.releaseTask();
+        waiting.get(5, TimeUnit.SECONDS);
+    }
+}
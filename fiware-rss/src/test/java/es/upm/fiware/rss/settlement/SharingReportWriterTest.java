@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import es.upm.fiware.rss.model.RSSModel;
+import es.upm.fiware.rss.service.SettlementManager;
+
+public class SharingReportWriterTest {
+
+    @Mock private SettlementManager settlementManager;
+    @InjectMocks private SharingReportWriter toTest;
+
+    private List<List<SettlementReport>> batches;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        this.batches = Collections.synchronizedList(new ArrayList<>());
+
+        doAnswer((invocation) -> {
+            List<SettlementReport> batch = new ArrayList<>(
+                    (List<SettlementReport>) invocation.getArguments()[0]);
+            this.batches.add(batch);
+            return null;
+        }).when(this.settlementManager).generateReports(anyList());
+    }
+
+    private SettlementReport buildReport(String productClass) {
+        RSSModel revenue = new RSSModel();
+        revenue.setAggregatorId("aggregator@mail.com");
+        revenue.setOwnerProviderId("provider@mail.com");
+        revenue.setProductClass(productClass);
+        return new SettlementReport(revenue, "EUR", BigDecimal.ONE);
+    }
+
+    /*
+     * Validates that the reports of a task are stored in the same batch, as
+     * they set the claimed transactions of the task as processed
+     */
+    @Test
+    public void writeTaskReportsTogether() throws Exception {
+        ReflectionTestUtils.setField(this.toTest, "batchSize", 2);
+
+        List<SettlementReport> reports = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            reports.add(this.buildReport("class" + i));
+        }
+        this.toTest.write(reports);
+
+        Assert.assertEquals(Collections.singletonList(reports), this.batches);
+    }
+
+    @Test
+    public void writeNothing() throws Exception {
+        this.toTest.write(Collections.emptyList());
+        verify(this.settlementManager, never()).generateReports(anyList());
+    }
+
+    /*
+     * Validates that a failing task is isolated, so the reports of the rest
+     * of the tasks of the batch are stored
+     */
+    @Test
+    public void writeFailingReport() throws Exception {
+        SettlementReport first = this.buildReport("first");
+        SettlementReport valid = this.buildReport("valid");
+        SettlementReport invalid = this.buildReport("invalid");
+        IllegalStateException error = new IllegalStateException("Unknown provider");
+        CountDownLatch storing = new CountDownLatch(1);
+        CountDownLatch submitted = new CountDownLatch(1);
+
+        doAnswer((invocation) -> {
+            List<SettlementReport> batch = (List<SettlementReport>) invocation.getArguments()[0];
+            if (batch.contains(first)) {
+                storing.countDown();
+                submitted.await(5, TimeUnit.SECONDS);
+            }
+            if (batch.contains(invalid)) {
+                throw error;
+            }
+            this.batches.add(new ArrayList<>(batch));
+            return null;
+        }).when(this.settlementManager).generateReports(anyList());
+
+        // The reports of the valid and invalid tasks are enqueued while
+        // the first task is storing, so they are stored in the same batch
+        CompletableFuture<Void> leader = this.writeAsync(first);
+        Assert.assertTrue(storing.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Void> validTask = this.writeAsync(valid);
+        CompletableFuture<Void> invalidTask = this.writeAsync(invalid);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((Queue<?>) ReflectionTestUtils.getField(this.toTest, "queue")).size() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        submitted.countDown();
+
+        leader.get(5, TimeUnit.SECONDS);
+        validTask.get(5, TimeUnit.SECONDS);
+        try {
+            invalidTask.get(5, TimeUnit.SECONDS);
+            Assert.fail("The error of the report has not been thrown");
+        } catch (ExecutionException e) {
+            Assert.assertSame(error, e.getCause().getCause());
+        }
+
+        Assert.assertEquals(2, this.batches.size());
+        Assert.assertEquals(Collections.singletonList(valid), this.batches.get(1));
+    }
+
+    private CompletableFuture<Void> writeAsync(SettlementReport report) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                this.toTest.write(Collections.singletonList(report));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /*
+     * Validates that reports submitted while other task is storing a batch
+     * are not stored by that task, but by their own task once it finishes
+     */
+    @Test
+    public void writeConcurrent() throws Exception {
+        SettlementReport first = this.buildReport("first");
+        SettlementReport second = this.buildReport("second");
+        CountDownLatch storing = new CountDownLatch(1);
+        CountDownLatch submitted = new CountDownLatch(1);
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+
+        doAnswer((invocation) -> {
+            List<SettlementReport> batch = (List<SettlementReport>) invocation.getArguments()[0];
+            threads.add(Thread.currentThread().getName());
+            this.batches.add(new ArrayList<>(batch));
+
+            if (batch.contains(first)) {
+                storing.countDown();
+                submitted.await(5, TimeUnit.SECONDS);
+            }
+            return null;
+        }).when(this.settlementManager).generateReports(anyList());
+
+        CompletableFuture<Void> leader = CompletableFuture.runAsync(() -> {
+            try {
+                this.toTest.write(Collections.singletonList(first));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assert.assertTrue(storing.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<Void> follower = CompletableFuture.runAsync(() -> {
+            try {
+                this.toTest.write(Collections.singletonList(second));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        // Wait until the follower has enqueued its report
+        long deadline = System.currentTimeMillis() + 5000;
+        while (((Queue<?>) ReflectionTestUtils.getField(this.toTest, "queue")).isEmpty()
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        submitted.countDown();
+
+        leader.get(5, TimeUnit.SECONDS);
+        follower.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(2, this.batches.size());
+        Assert.assertEquals(Collections.singletonList(second), this.batches.get(1));
+        Assert.assertNotEquals(threads.get(0), threads.get(1));
+    }
+
+    /*
+     * Validates that a task waiting for other task to store its reports
+     * renews its claim on the transactions
+     */
+    @Test
+    public void writeRenewsClaimWhileWaiting() throws Exception {
+        ReflectionTestUtils.setField(this.toTest, "claimLease", 20L);
+
+        SettlementReport first = this.buildReport("first");
+        SettlementReport second = new SettlementReport(this.buildReport("second").getRevenue(),
+                "EUR", BigDecimal.ONE, BigDecimal.ZERO, "owner", 1);
+        CountDownLatch storing = new CountDownLatch(1);
+        CountDownLatch renewed = new CountDownLatch(1);
+
+        doAnswer((invocation) -> {
+            renewed.countDown();
+            return 1;
+        }).when(this.settlementManager).renewClaim("owner");
+
+        doAnswer((invocation) -> {
+            List<SettlementReport> batch = (List<SettlementReport>) invocation.getArguments()[0];
+            if (batch.contains(first)) {
+                storing.countDown();
+                renewed.await(5, TimeUnit.SECONDS);
+            }
+            this.batches.add(new ArrayList<>(batch));
+            return null;
+        }).when(this.settlementManager).generateReports(anyList());
+
+        CompletableFuture<Void> leader = this.writeAsync(first);
+        Assert.assertTrue(storing.await(5, TimeUnit.SECONDS));
+
+        // The first task keeps storing until the second one renews its claim
+        CompletableFuture<Void> follower = this.writeAsync(second);
+
+        leader.get(5, TimeUnit.SECONDS);
+        follower.get(5, TimeUnit.SECONDS);
+
+        Assert.assertEquals(0, renewed.getCount());
+        Assert.assertEquals(2, this.batches.size());
+        Assert.assertEquals(Collections.singletonList(second), this.batches.get(1));
+    }
+}
@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.settlement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TaskPoolTest {
+
+    private TaskPool toTest;
+
+    @Before
+    public void setUp() {
+        this.toTest = new TaskPool();
+    }
+
+    private void addTasks(int n) {
+        for (int i = 0; i < n; i++) {
+            this.toTest.addTask(new ProductSettlementTask());
+        }
+    }
+
+    @Test
+    public void closeEmptyPool() {
+        Assert.assertTrue(this.toTest.close());
+        Assert.assertEquals(TaskPoolState.COMPLETED, this.toTest.getState());
+    }
+
+    @Test
+    public void closeEmptyPoolNotPlanned() {
+        Assert.assertTrue(this.toTest.close(false));
+        Assert.assertEquals(TaskPoolState.FAILED, this.toTest.getState());
+    }
+
+    @Test
+    public void completeNotPlanned() {
+        this.addTasks(1);
+
+        Assert.assertFalse(this.toTest.close(false));
+        Assert.assertTrue(this.toTest.completeTask(new ProductSettlementTask(), true));
+
+        // Some models of the job could not be settled
+        Assert.assertEquals(TaskPoolState.PARTIAL, this.toTest.getState());
+    }
+
+    @Test
+    public void completeAfterClose() {
+        this.addTasks(2);
+
+        Assert.assertFalse(this.toTest.close());
+        Assert.assertFalse(this.toTest.completeTask(new ProductSettlementTask(), true));
+        Assert.assertTrue(this.toTest.completeTask(new ProductSettlementTask(), true));
+
+        Assert.assertEquals(TaskPoolState.COMPLETED, this.toTest.getState());
+    }
+
+    @Test
+    public void completeBeforeClose() {
+        this.addTasks(2);
+
+        Assert.assertFalse(this.toTest.completeTask(new ProductSettlementTask(), true));
+        Assert.assertFalse(this.toTest.completeTask(new ProductSettlementTask(), false));
+        Assert.assertEquals(TaskPoolState.LOADING, this.toTest.getState());
+
+        // The pool finishes when closed
+        Assert.assertTrue(this.toTest.close());
+        Assert.assertEquals(TaskPoolState.PARTIAL, this.toTest.getState());
+    }
+
+    @Test
+    public void progress() {
+        this.addTasks(3);
+        this.toTest.close();
+
+        ProductSettlementTask task = new ProductSettlementTask() {
+            @Override
+            public long getTransactions() {
+                return 25;
+            }
+        };
+        this.toTest.startTask(task);
+        this.toTest.startTask(task);
+        this.toTest.completeTask(task, true);
+
+        Assert.assertEquals(2, this.toTest.getStarted());
+        Assert.assertEquals(1, this.toTest.getCompleted());
+        Assert.assertEquals(25, this.toTest.getTransactions());
+        Assert.assertFalse(this.toTest.isFinished());
+    }
+
+    @Test
+    public void allTasksFailed() {
+        this.addTasks(2);
+        this.toTest.close();
+
+        this.toTest.completeTask(new ProductSettlementTask(), false);
+        this.toTest.completeTask(new ProductSettlementTask(), false);
+
+        Assert.assertEquals(TaskPoolState.FAILED, this.toTest.getState());
+        Assert.assertEquals(2, this.toTest.getFailed());
+    }
+
+    @Test
+    public void finishedOnceWithConcurrentCompletions() throws Exception {
+        int tasks = 200;
+        this.addTasks(tasks);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Callable<Boolean>> calls = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            calls.add(() -> this.toTest.completeTask(new ProductSettlementTask(), true));
+        }
+        calls.add(() -> this.toTest.close());
+
+        int finished = 0;
+        for (Future<Boolean> result: executor.invokeAll(calls)) {
+            finished += result.get() ? 1 : 0;
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(1, finished);
+        Assert.assertEquals(TaskPoolState.COMPLETED, this.toTest.getState());
+        Assert.assertEquals(tasks, this.toTest.getCompleted());
+    }
+}
@@ -17,9 +17,10 @@
 
 package es.upm.fiware.rss.settlement;
 
-import es.upm.fiware.rss.settlement.ThreadPoolManager;
+import es.upm.fiware.rss.model.SettlementJob;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
+import org.apache.commons.dbcp.BasicDataSource;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -30,6 +31,7 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.springframework.test.util.ReflectionTestUtils;
 import static org.mockito.Mockito.when;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
@@ -44,12 +46,15 @@ import static org.mockito.Mockito.eq;
 public class ThreadPoolManagerTest {
 
     @Mock private ExecutorService executorService;
-    @Mock private Map<String, TaskPool> tasks;
+    @Mock private ExecutorService plannerService;
+    @Mock private Map<String, TaskPool> pendingTasks;
+    @Mock private SettlementNotifier notifier;
 
     @InjectMocks private ThreadPoolManager toTest;
     
     private TaskPool pool;
     private final String callbackUrl = "http://callbackurl.com";
+    private final String jobId = "job";
 
     public ThreadPoolManagerTest() {
     }
@@ -60,64 +65,150 @@ public class ThreadPoolManagerTest {
         
         this.pool = mock(TaskPool.class);
 
-        when(this.tasks.containsKey(this.callbackUrl)).thenReturn(true);
-        when(this.tasks.get(eq(this.callbackUrl))).thenReturn(this.pool);
+        when(this.pendingTasks.get(eq(this.jobId))).thenReturn(this.pool);
     }
 
     private void verifySubmited(ProductSettlementTask task) {
         verify(this.pool).addTask(task);
-        verify(this.executorService).submit(task);
+        verify(this.executorService).execute(task);
+    }
+
+    private SettlementJob buildJob() {
+        SettlementJob job = new SettlementJob();
+        job.setAggregatorId("aggregator@mail.com");
+        job.setProviderId("provider");
+        job.setCallbackUrl(this.callbackUrl);
+        return job;
     }
 
     @Test
-    public void submitFirstTask() {
-        // No task for the specified callback url has been submited yet
-        when(this.tasks.containsKey(eq(this.callbackUrl))).thenReturn(false);
-        
-        // Call method
-        ProductSettlementTask task = new ProductSettlementTask();
-        this.toTest.submitTask(task, callbackUrl);
-        
+    public void openTaskPool() {
+        String id = this.toTest.openTaskPool(this.buildJob());
+
         // Verify calls
         ArgumentCaptor<TaskPool> captor = ArgumentCaptor.forClass(TaskPool.class);
-        verify(this.tasks).put(eq(this.callbackUrl), captor.capture());
-        
+        verify(this.pendingTasks).put(eq(id), captor.capture());
+
+        Assert.assertEquals(id, captor.getValue().getJobId());
         Assert.assertEquals(this.callbackUrl, captor.getValue().getCallbackUrl());
-     
-        this.verifySubmited(task);
+        Assert.assertEquals("aggregator@mail.com", captor.getValue().getAggregatorId());
+        Assert.assertEquals("provider", captor.getValue().getProviderId());
     }
-    
+
     @Test
-    public void submitTaskExistingPool() {
-        // There is already an existing pool
-        when(this.tasks.containsKey(eq(this.callbackUrl))).thenReturn(true);
-        
+    public void openTaskPoolSameCallback() {
+        // Jobs with the same callback url do not share the pool
+        String id1 = this.toTest.openTaskPool(this.buildJob());
+        String id2 = this.toTest.openTaskPool(this.buildJob());
+
+        Assert.assertNotEquals(id1, id2);
+    }
+
+    @Test
+    public void submitTask() {
         // Call method
         ProductSettlementTask task = new ProductSettlementTask();
-        this.toTest.submitTask(task, callbackUrl);
+        this.toTest.submitTask(task, this.jobId);
         
         this.verifySubmited(task);
     }
 
+    @Test(expected = IllegalStateException.class)
+    public void submitTaskNotExistingPool() {
+        this.toTest.submitTask(new ProductSettlementTask(), "unknown");
+    }
+
     @Test
     public void completeTaskPoolFinished() {
-        
+        when(this.pool.completeTask(isA(ProductSettlementTask.class), eq(true))).thenReturn(true);
+        when(this.pool.getJobId()).thenReturn(this.jobId);
+
+        ProductSettlementTask task = new ProductSettlementTask();
+        this.toTest.completeTask(task, this.jobId, true);
+
+        // The pool is removed and its callback notified
+        verify(this.pendingTasks).remove(this.jobId);
+        verify(this.notifier).notifyProvider(this.pool);
+
+        // The status of the finished job can still be queried
+        Assert.assertSame(this.pool, this.toTest.findTaskPool(this.jobId));
+    }
+
+    @Test
+    public void planTaskPool() {
+        SettlementPlanningTask task = new SettlementPlanningTask(new SettlementJob(), this.jobId);
+        this.toTest.planTaskPool(task);
+
+        verify(this.plannerService).execute(task);
+        verify(this.executorService, never()).execute(task);
+    }
+
+    @Test
+    public void closeNotPlannedPool() {
+        this.toTest.closeTaskPool(this.jobId, false);
+
+        verify(this.pool).close(false);
+    }
+
+    @Test
+    public void startTask() {
+        ProductSettlementTask task = new ProductSettlementTask();
+        this.toTest.startTask(task, this.jobId);
+
+        verify(this.pool).startTask(task);
+    }
+
+    @Test
+    public void findTaskPoolNotExisting() {
+        Assert.assertNull(this.toTest.findTaskPool("unknown"));
     }
     
     @Test
     public void completeTaskPoolNotFinished() {
-        when(this.pool.isFinished()).thenReturn(false);
+        when(this.pool.completeTask(isA(ProductSettlementTask.class), eq(true))).thenReturn(false);
         
         ProductSettlementTask task = new ProductSettlementTask();
-        this.toTest.completeTask(task, this.callbackUrl, true);
+        this.toTest.completeTask(task, this.jobId, true);
         
         verify(this.pool).completeTask(task, true);
+        verify(this.pendingTasks, never()).remove(this.jobId);
     }
     
     @Test
     public void closePool() {
-        this.toTest.closeTaskPool(this.callbackUrl);
+        this.toTest.closeTaskPool(this.jobId);
         
-        verify(this.pool).close();
+        verify(this.pool).close(true);
+        verify(this.pendingTasks, never()).remove(this.jobId);
+    }
+
+    @Test
+    public void closeFinishedPool() {
+        when(this.pool.close(true)).thenReturn(true);
+        when(this.pool.getJobId()).thenReturn(this.jobId);
+
+        this.toTest.closeTaskPool(this.jobId);
+
+        verify(this.pendingTasks).remove(this.jobId);
+        verify(this.notifier).notifyProvider(this.pool);
+    }
+
+    @Test
+    public void workersLimitedByConnections() {
+        BasicDataSource ds = new BasicDataSource();
+        ds.setMaxActive(50);
+
+        ThreadPoolManager manager = new ThreadPoolManager();
+        ReflectionTestUtils.setField(manager, "dataSource", ds);
+
+        Assert.assertEquals(40, manager.getWorkers());
+    }
+
+    @Test
+    public void workersFromConfiguration() {
+        ThreadPoolManager manager = new ThreadPoolManager();
+        ReflectionTestUtils.setField(manager, "poolSize", 8);
+
+        Assert.assertEquals(8, manager.getWorkers());
     }
 }
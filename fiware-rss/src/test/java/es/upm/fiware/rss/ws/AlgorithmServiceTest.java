@@ -16,11 +16,14 @@
  */
 package es.upm.fiware.rss.ws;
 
+import es.upm.fiware.rss.algorithm.AlgorithmFactory;
+import es.upm.fiware.rss.model.Algorithm;
 import es.upm.fiware.rss.ws.AlgorithmService;
 import java.util.List;
 import javax.ws.rs.core.Response;
 import org.junit.Before;
 import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.util.Assert;
 
 /**
@@ -37,6 +40,7 @@ public class AlgorithmServiceTest {
     @Before
     public void setUp() {
         toTest = new AlgorithmService();
+        ReflectionTestUtils.setField(toTest, "algorithmFactory", new AlgorithmFactory());
     }
 
     @Test
@@ -46,5 +50,8 @@ public class AlgorithmServiceTest {
         org.junit.Assert.assertEquals(200, response.getStatus());
         Assert.isInstanceOf(List.class, response.getEntity());
 
+        List<Algorithm> algorithms = (List<Algorithm>) response.getEntity();
+        org.junit.Assert.assertEquals("FIXED_PERCENTAGE", algorithms.get(0).getAlgorithmId());
+
     }
 }
@@ -28,11 +28,21 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import es.upm.fiware.rss.model.CDR;
+import es.upm.fiware.rss.model.CdrBatchResult;
+import es.upm.fiware.rss.model.CdrChunkResult;
+import es.upm.fiware.rss.model.CdrError;
+import es.upm.fiware.rss.model.CdrImport;
+import es.upm.fiware.rss.model.CdrUploadResult;
 import es.upm.fiware.rss.model.Count;
 import es.upm.fiware.rss.model.ProductClasses;
 import es.upm.fiware.rss.model.RSUser;
+import es.upm.fiware.rss.service.CdrsBatchManager;
+import es.upm.fiware.rss.service.CdrsImporter;
 import es.upm.fiware.rss.service.CdrsManager;
+import es.upm.fiware.rss.service.CdrsUploader;
 import es.upm.fiware.rss.service.UserManager;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.HashMap;
@@ -40,6 +50,7 @@ import java.util.Map;
 
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import org.mockito.MockitoAnnotations;
@@ -49,6 +60,9 @@ public class CdrsServiceTest {
 
     @Mock private UserManager userManager;
     @Mock private CdrsManager cdrsManager;
+    @Mock private CdrsUploader cdrsUploader;
+    @Mock private CdrsImporter cdrsImporter;
+    @Mock private CdrsBatchManager batchManager;
     @InjectMocks private CdrsService toTest;
 
     private RSUser user;
@@ -89,6 +103,132 @@ public class CdrsServiceTest {
         }
     }
 
+    private void testCreateCdrBatch(int created, int errors, int status) throws Exception {
+        List<CDR> list = new LinkedList<>();
+        CdrBatchResult result = new CdrBatchResult();
+        result.setCreated(created);
+        for (int i = 0; i < errors; i++) {
+            result.getErrors().add(new CdrError(i, "error"));
+        }
+
+        when(userManager.isAggregator()).thenReturn(true);
+        when(batchManager.createCDRs(list)).thenReturn(result);
+
+        Response response = toTest.createCdrBatch(list);
+
+        Assert.assertEquals(status, response.getStatus());
+        Assert.assertEquals(result, response.getEntity());
+    }
+
+    @Test
+    public void shouldCreateCDRBatch() throws Exception {
+        this.testCreateCdrBatch(2, 0, 201);
+    }
+
+    @Test
+    public void shouldCreateCDRBatchPartially() throws Exception {
+        this.testCreateCdrBatch(1, 1, 200);
+    }
+
+    @Test
+    public void shouldRejectCDRBatch() throws Exception {
+        this.testCreateCdrBatch(0, 2, 400);
+    }
+
+    private CdrUploadResult mockUpload(InputStream body, String status) throws Exception {
+        CdrChunkResult chunk = new CdrChunkResult();
+        chunk.setStatus(status);
+
+        CdrUploadResult result = new CdrUploadResult();
+        result.getChunks().add(chunk);
+        when(cdrsUploader.upload(body)).thenReturn(result);
+        return result;
+    }
+
+    @Test
+    public void shouldUploadCDRs() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        CdrUploadResult result = this.mockUpload(body, CdrChunkResult.CREATED);
+        when(userManager.isAggregator()).thenReturn(true);
+
+        Response response = toTest.uploadCdrs(body);
+
+        Assert.assertEquals(201, response.getStatus());
+        Assert.assertEquals(result, response.getEntity());
+    }
+
+    @Test
+    public void shouldReturnBadRequestWhenUploadChunkFails() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        CdrUploadResult result = this.mockUpload(body, CdrChunkResult.FAILED);
+        when(userManager.isAdmin()).thenReturn(true);
+
+        Response response = toTest.uploadCdrs(body);
+
+        Assert.assertEquals(400, response.getStatus());
+        Assert.assertEquals(result, response.getEntity());
+    }
+
+    @Test
+    public void throwsExceptionWhenUserNoPermissionUpload() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        try {
+            toTest.uploadCdrs(body);
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(UNICAExceptionType.NON_ALLOWED_OPERATION, e.getExceptionType());
+        }
+        verify(cdrsUploader, never()).upload(body);
+    }
+
+    @Test
+    public void shouldImportServerFile() throws Exception {
+        CdrImport cdrImport = new CdrImport();
+        when(userManager.isAdmin()).thenReturn(true);
+        when(cdrsImporter.importFile("cdrs.csv", "csv")).thenReturn(cdrImport);
+
+        Response response = toTest.importCdrs("cdrs.csv", "csv", null);
+
+        Assert.assertEquals(202, response.getStatus());
+        Assert.assertEquals(cdrImport, response.getEntity());
+    }
+
+    @Test
+    public void shouldImportUploadedFile() throws Exception {
+        InputStream body = new ByteArrayInputStream(new byte[0]);
+        CdrImport cdrImport = new CdrImport();
+        when(userManager.isAggregator()).thenReturn(true);
+        when(cdrsImporter.importUpload(body, "ndjson")).thenReturn(cdrImport);
+
+        Response response = toTest.importCdrs(null, "ndjson", body);
+
+        Assert.assertEquals(202, response.getStatus());
+        Assert.assertEquals(cdrImport, response.getEntity());
+    }
+
+    @Test
+    public void shouldResumeImport() throws Exception {
+        CdrImport cdrImport = new CdrImport();
+        when(userManager.isAggregator()).thenReturn(true);
+        when(cdrsImporter.resume(1)).thenReturn(cdrImport);
+
+        Response response = toTest.resumeImport(1);
+
+        Assert.assertEquals(202, response.getStatus());
+        Assert.assertEquals(cdrImport, response.getEntity());
+    }
+
+    @Test
+    public void shouldReturnImport() throws Exception {
+        CdrImport cdrImport = new CdrImport();
+        when(cdrsImporter.getImport(1)).thenReturn(cdrImport);
+
+        Response response = toTest.getImport(1);
+
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(cdrImport, response.getEntity());
+    }
+
     private void mockIds() throws RSSException{
         Map<String, String> ids = new HashMap<>();
         ids.put("provider", this.providerId);
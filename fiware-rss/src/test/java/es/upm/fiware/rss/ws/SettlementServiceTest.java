@@ -21,21 +21,38 @@ import es.upm.fiware.rss.exception.UNICAExceptionType;
 import es.upm.fiware.rss.model.Count;
 import es.upm.fiware.rss.model.RSSReport;
 import es.upm.fiware.rss.model.SettlementJob;
+import es.upm.fiware.rss.model.SettlementJobStatus;
+import es.upm.fiware.rss.model.SettlementSchedule;
 import es.upm.fiware.rss.service.SettlementManager;
 import es.upm.fiware.rss.service.UserManager;
+import es.upm.fiware.rss.settlement.SettlementScheduler;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InjectMocks;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import javax.ws.rs.WebApplicationException;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -44,6 +61,8 @@ public class SettlementServiceTest {
 
     @Mock SettlementManager settlementManager;
     @Mock UserManager userManager;
+    @Mock SettlementScheduler scheduler;
+    @Spy ObjectMapper mapper = new ObjectMapper();
     @InjectMocks SettlementService toTest;
 
     private final String aggregatorId = "aggregator@mail.com";
@@ -74,10 +93,15 @@ public class SettlementServiceTest {
         when(userManager.getAllowedIds(
                 aggregatorId, providerId, "launch settlement")).thenReturn(ids);
 
+        SettlementJobStatus job = new SettlementJobStatus();
+        when(settlementManager.runSettlement(task)).thenReturn("job");
+        when(settlementManager.getSettlementJob("job")).thenReturn(job);
+
         Response response = toTest.launchSettlement(task);
 
         Assert.assertEquals(
                 Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+        Assert.assertSame(job, response.getEntity());
 
         Assert.assertEquals(effectiveProvider, task.getProviderId());
 
@@ -146,4 +170,166 @@ public class SettlementServiceTest {
         Count resp = (Count) response.getEntity();
         Assert.assertEquals(expResult, resp);
     }
+
+    private SettlementJobStatus mockJob(String providerId) throws Exception {
+        SettlementJobStatus job = new SettlementJobStatus();
+        job.setId("job");
+        job.setAggregatorId(aggregatorId);
+        job.setProviderId(providerId);
+
+        when(settlementManager.getSettlementJob("job")).thenReturn(job);
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement jobs")).thenReturn(ids);
+        return job;
+    }
+
+    @Test
+    public void jobRetrieved() throws Exception {
+        SettlementJobStatus job = this.mockJob(providerId);
+
+        Response response = toTest.getSettlementJob("job");
+
+        Assert.assertEquals(
+                Response.Status.OK.getStatusCode(), response.getStatus());
+        Assert.assertSame(job, response.getEntity());
+    }
+
+    @Test
+    public void jobOfOtherProvidersNotAllowed() throws Exception {
+        // The job settles all the providers of the aggregator
+        this.mockJob(null);
+
+        try {
+            toTest.getSettlementJob("job");
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(
+                    UNICAExceptionType.NON_ALLOWED_OPERATION,
+                    e.getExceptionType());
+        }
+    }
+
+    @Test
+    public void settlementScheduled() throws Exception {
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "launch settlement")).thenReturn(ids);
+        task.setSchedule("0 0 1 1 * *");
+
+        SettlementSchedule schedule = new SettlementSchedule();
+        when(scheduler.schedule(task)).thenReturn(schedule);
+
+        Response response = toTest.launchSettlement(task);
+
+        Assert.assertEquals(
+                Response.Status.CREATED.getStatusCode(), response.getStatus());
+        Assert.assertSame(schedule, response.getEntity());
+
+        verify(settlementManager).validateSettlementJob(task);
+        verify(settlementManager, never()).runSettlement(any(SettlementJob.class));
+    }
+
+    @Test
+    public void schedulesRetrieved() throws Exception {
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement schedules")).thenReturn(ids);
+
+        List<SettlementSchedule> schedules = new ArrayList<>();
+        when(scheduler.getSchedules(aggregatorId, effectiveProvider)).thenReturn(schedules);
+
+        Response response = toTest.getSettlementSchedules(aggregatorId, providerId);
+
+        Assert.assertEquals(
+                Response.Status.OK.getStatusCode(), response.getStatus());
+        Assert.assertSame(schedules, response.getEntity());
+    }
+
+    private SettlementSchedule mockSchedule(String providerId) throws Exception {
+        SettlementSchedule schedule = new SettlementSchedule();
+        schedule.setId("schedule");
+        schedule.setAggregatorId(aggregatorId);
+        schedule.setProviderId(providerId);
+
+        when(scheduler.getSchedule("schedule")).thenReturn(schedule);
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement schedules")).thenReturn(ids);
+        return schedule;
+    }
+
+    @Test
+    public void scheduleDeleted() throws Exception {
+        this.mockSchedule(providerId);
+
+        Response response = toTest.deleteSettlementSchedule("schedule");
+
+        Assert.assertEquals(
+                Response.Status.NO_CONTENT.getStatusCode(), response.getStatus());
+        verify(scheduler).cancel("schedule");
+    }
+
+    @Test
+    public void scheduleOfOtherProvidersNotDeleted() throws Exception {
+        this.mockSchedule(null);
+
+        try {
+            toTest.deleteSettlementSchedule("schedule");
+            Assert.fail();
+        } catch (RSSException e) {
+            Assert.assertEquals(
+                    UNICAExceptionType.NON_ALLOWED_OPERATION,
+                    e.getExceptionType());
+        }
+        verify(scheduler, never()).cancel("schedule");
+    }
+
+    @Test
+    public void previewStreamed() throws Exception {
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement preview")).thenReturn(ids);
+
+        RSSReport report = new RSSReport();
+        report.setOwnerProviderId(effectiveProvider);
+        report.setCurrency("EUR");
+
+        when(settlementManager.previewSettlement(any(SettlementJob.class))).thenReturn(Arrays.asList(
+                CompletableFuture.completedFuture(Collections.singletonList(report)),
+                CompletableFuture.completedFuture(Collections.singletonList(report))));
+
+        Response response = toTest.previewSettlement(aggregatorId, providerId, "productClass");
+
+        Assert.assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(output);
+
+        JsonNode result = mapper.readTree(output.toByteArray());
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals(effectiveProvider, result.get(0).get("ownerProviderId").asText());
+        Assert.assertEquals("EUR", result.get(1).get("currency").asText());
+
+        ArgumentCaptor<SettlementJob> captor = ArgumentCaptor.forClass(SettlementJob.class);
+        verify(settlementManager).validateSettlementJob(captor.capture());
+        Assert.assertEquals(effectiveProvider, captor.getValue().getProviderId());
+        Assert.assertEquals("productClass", captor.getValue().getProductClass());
+    }
+
+    @Test
+    public void previewFailedCalculation() throws Exception {
+        when(userManager.getAllowedIds(
+                aggregatorId, providerId, "settlement preview")).thenReturn(ids);
+
+        CompletableFuture<List<RSSReport>> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new CompletionException(new RSSException(
+                UNICAExceptionType.INVALID_PARAMETER, new String[] {"algorithm"})));
+
+        when(settlementManager.previewSettlement(any(SettlementJob.class)))
+                .thenReturn(Collections.singletonList(failed));
+
+        Response response = toTest.previewSettlement(aggregatorId, providerId, "productClass");
+        try {
+            ((StreamingOutput) response.getEntity()).write(new ByteArrayOutputStream());
+            Assert.fail();
+        } catch (WebApplicationException e) {
+            Assert.assertTrue(e.getCause() instanceof RSSException);
+        }
+    }
 }
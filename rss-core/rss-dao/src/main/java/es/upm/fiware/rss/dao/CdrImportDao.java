@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao;
+
+import java.util.List;
+
+import es.upm.fiware.rss.model.CdrImport;
+
+/**
+ * 
+ * Interface that extends GenericDao. Interface defines additional method.
+ * 
+ */
+public interface CdrImportDao extends GenericDao<CdrImport, Integer> {
+
+    /**
+     * Returns the CDR imports in a given state ordered by creation
+     * 
+     * @param state
+     * @return List of imports
+     */
+    List<CdrImport> getImportsByState(String state);
+}
@@ -23,6 +23,8 @@
 package es.upm.fiware.rss.dao;
 
 import es.upm.fiware.rss.model.DbeAppProvider;
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -34,4 +36,28 @@ public interface DbeAppProviderDao extends GenericDao<DbeAppProvider, String> {
     public List<DbeAppProvider> getProvidersByAggregator(String aggregatorId);
 
     public DbeAppProvider getProvider(String aggregatorId, String providerId);
+
+    /**
+     * Returns the providers of the given aggregator whose id is included
+     * in providerIds, loading all of them with a single query
+     * @param aggregatorId
+     * @param providerIds
+     * @return List with the existing providers, missing ids are ignored
+     */
+    public List<DbeAppProvider> getProviders(String aggregatorId, Collection<String> providerIds);
+
+    /**
+     * Advances the correlation number of a provider only if it still has the
+     * expected value, so concurrent batches of CDRs of the same provider
+     * cannot register the same correlation numbers
+     * @param aggregatorId
+     * @param providerId
+     * @param expected Correlation number validated for the batch
+     * @param next Correlation number following the batch
+     * @param timestamp Timestamp of the last CDR of the batch
+     * @return true if the correlation number has been advanced, false if it
+     * has been changed by other batch
+     */
+    public boolean advanceCorrelationNumber(String aggregatorId, String providerId,
+            int expected, int next, Date timestamp);
 }
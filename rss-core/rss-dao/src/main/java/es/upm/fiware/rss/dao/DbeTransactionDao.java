@@ -23,7 +23,9 @@ import java.util.List;
 
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.model.DbeTransaction;
+import es.upm.fiware.rss.model.TransactionSummary;
 import java.math.BigDecimal;
+import java.util.Date;
 import java.util.Optional;
 
 /**
@@ -85,4 +87,127 @@ public interface DbeTransactionDao extends GenericDao<DbeTransaction, String> {
     
     Optional<List<DbeTransaction>> getPagedTransactions(
             String aggregatorId, String providerId, String productClass, int offset, int size);
+
+    /**
+     * Aggregated value of the transactions in a given state, grouped by
+     * aggregator, provider, product class and currency. Charges are added
+     * and refunds subtracted by the database, so no transaction is loaded.
+     * 
+     * @param aggregatorId Optional aggregator filter
+     * @param providerId Optional provider filter, requires aggregatorId
+     * @param productClass Optional product class filter, requires providerId
+     * @param state State of the transactions
+     * @param fromId Only transactions with this or a greater id are aggregated
+     * @return List with a summary per group
+     */
+    List<TransactionSummary> getSettlementSummaries(String aggregatorId,
+            String providerId, String productClass, String state, int fromId);
+
+    /**
+     * Returns the lowest id of the transactions that are pending or being
+     * processed. Transactions of a RS model settled by other tasks are
+     * below it, so the watermark of the model must not pass it.
+     * 
+     * @param aggregatorId Optional aggregator filter
+     * @param providerId Optional provider filter, requires aggregatorId
+     * @param productClass Optional product class filter, requires providerId
+     * @param fromId Lowest transaction id to be considered
+     * @return Lowest id, empty if every transaction has been settled
+     */
+    Optional<Integer> getFirstUnsettledId(String aggregatorId, String providerId,
+            String productClass, int fromId);
+
+    /**
+     * Returns the highest transaction id, including the ids generated by
+     * the database before they were assigned by the application.
+     * 
+     * @return Highest id, 0 if there is no transaction
+     */
+    int getMaxTransactionId();
+
+    /**
+     * Saves a list of transactions with assigned ids and flushes them, so
+     * the inserts are sent to the database in JDBC batches.
+     * 
+     * @param transactions Transactions to be saved
+     */
+    void createTransactions(List<DbeTransaction> transactions);
+
+    /**
+     * Claims a chunk of pending transactions of a RS model in a currency for
+     * a settlement task with a single update statement. Claimed transactions
+     * are set as processing and tagged with the owner token and the lease
+     * expiry.
+     * 
+     * @param aggregatorId
+     * @param providerId
+     * @param productClass
+     * @param currency ISO 4217 code of the claimed transactions
+     * @param owner Token of the settlement task
+     * @param expiry Time when the claim expires
+     * @param fromId First transaction id to be claimed
+     * @param size Maximum number of transactions claimed
+     * @return Number of claimed transactions
+     */
+    int claimTransactions(String aggregatorId, String providerId, String productClass,
+            String currency, String owner, Date expiry, int fromId, int size);
+
+    /**
+     * Aggregated value of the transactions claimed by a settlement task,
+     * grouped the same way as getSettlementSummaries.
+     * 
+     * @param owner Token of the settlement task
+     * @return List with a summary per group
+     */
+    List<TransactionSummary> getClaimSummaries(String owner);
+
+    /**
+     * Extends the lease of the transactions claimed by a settlement task.
+     * 
+     * @param owner Token of the settlement task
+     * @param expiry New expiry of the claim
+     * @return Number of transactions still claimed by the task
+     */
+    int renewClaim(String owner, Date expiry);
+
+    /**
+     * Sets a chunk of the transactions claimed by a settlement task to a new
+     * state and removes their claim.
+     * 
+     * @param owner Token of the settlement task
+     * @param newState New state of the transactions
+     * @param size Maximum number of transactions updated
+     * @return Number of updated transactions
+     */
+    int releaseClaim(String owner, String newState, int size);
+
+    /**
+     * Sets every transaction claimed by a settlement task as processed and
+     * removes their claim. It is run in the database transaction storing
+     * the reports of the task, so the transactions cannot be recovered as
+     * pending once their report exists.
+     * 
+     * @param owner Token of the settlement task
+     * @return Number of updated transactions
+     */
+    int settleClaim(String owner);
+
+    /**
+     * Aggregated value of the processing transactions whose claim has
+     * expired, grouped the same way as getSettlementSummaries.
+     * 
+     * @param now Current time
+     * @return List with a summary per group
+     */
+    List<TransactionSummary> getExpiredClaimSummaries(Date now);
+
+    /**
+     * Sets a chunk of processing transactions whose claim has expired back
+     * to pending. Processing transactions without claim are recovered too.
+     * 
+     * @param now Current time
+     * @param size Maximum number of transactions recovered
+     * @return Number of recovered transactions
+     */
+    int recoverExpiredClaims(Date now, int size);
 }
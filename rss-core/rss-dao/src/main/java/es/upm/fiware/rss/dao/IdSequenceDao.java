@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao;
+
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import es.upm.fiware.rss.model.IdSequence;
+
+/**
+ * 
+ * Interface that extends GenericDao. Interface defines additional method.
+ * 
+ */
+public interface IdSequenceDao extends GenericDao<IdSequence, String> {
+
+    /**
+     * Reserves a block of consecutive identifiers of a sequence. The row of
+     * the sequence is locked until the end of the database transaction.
+     * 
+     * @param name Name of the sequence
+     * @param count Number of identifiers to be reserved
+     * @param initialValue First value of the sequence, used if it does not exist
+     * @return First reserved identifier
+     */
+    int reserve(String name, int count, IntSupplier initialValue);
+
+    /**
+     * Returns the sequences whose name starts with a prefix, without
+     * locking them
+     * 
+     * @param prefix Prefix of the names of the sequences
+     * @return List of sequences
+     */
+    List<IdSequence> getSequences(String prefix);
+}
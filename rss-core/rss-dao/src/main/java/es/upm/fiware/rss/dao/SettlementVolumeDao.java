@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao;
+
+import java.util.List;
+import java.util.Optional;
+
+import es.upm.fiware.rss.model.SettlementVolume;
+
+/**
+ * 
+ * Interface that extends GenericDao. Interface defines additional method.
+ * 
+ */
+public interface SettlementVolumeDao extends GenericDao<SettlementVolume, Integer> {
+
+    /**
+     * Returns the volume settled for a RS model in a currency
+     * 
+     * @param aggregatorId
+     * @param providerId
+     * @param productClass
+     * @param currency
+     * @return Settled volume if any
+     */
+    Optional<SettlementVolume> getVolume(String aggregatorId, String providerId,
+            String productClass, String currency);
+
+    /**
+     * Returns the volume settled for a RS model in a currency, locking it
+     * until the end of the database transaction
+     * 
+     * @param aggregatorId
+     * @param providerId
+     * @param productClass
+     * @param currency
+     * @return Settled volume if any
+     */
+    Optional<SettlementVolume> lockVolume(String aggregatorId, String providerId,
+            String productClass, String currency);
+
+    /**
+     * Returns the volumes settled in every currency for the RS models that
+     * fit the filters
+     * 
+     * @param aggregatorId Optional aggregator filter
+     * @param providerId Optional provider filter, requires aggregatorId
+     * @param productClass Optional product class filter, requires providerId
+     * @return List of settled volumes
+     */
+    List<SettlementVolume> getVolumes(String aggregatorId, String providerId, String productClass);
+}
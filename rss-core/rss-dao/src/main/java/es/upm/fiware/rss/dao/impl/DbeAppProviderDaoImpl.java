@@ -32,7 +32,9 @@ import org.springframework.stereotype.Repository;
 
 import es.upm.fiware.rss.dao.DbeAppProviderDao;
 import es.upm.fiware.rss.model.DbeAppProvider;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -83,4 +85,41 @@ public class DbeAppProviderDaoImpl extends GenericDaoImpl<DbeAppProvider, String
         
         return provider;
     }
+
+    @Override
+    public List<DbeAppProvider> getProviders(String aggregatorId, Collection<String> providerIds) {
+        if (providerIds == null || providerIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        String hql = "from DbeAppProvider as p where p.id.aggregator = :aggregator"
+                + " and p.id.txAppProviderId in (:providers)";
+
+        List list = this.getSession().createQuery(hql)
+                .setParameter("aggregator", aggregatorId)
+                .setParameterList("providers", providerIds)
+                .list();
+
+        return Collections.checkedList(list, DbeAppProvider.class);
+    }
+
+    @Override
+    public boolean advanceCorrelationNumber(String aggregatorId, String providerId,
+            int expected, int next, Date timestamp) {
+
+        String hql = "update DbeAppProvider p set p.txCorrelationNumber = :next, p.txTimeStamp = :timestamp"
+                + " where p.id.aggregator = :aggregator and p.id.txAppProviderId = :provider"
+                + " and p.txCorrelationNumber = :expected";
+
+        DbeAppProviderDaoImpl.LOGGER.debug(hql);
+        int updated = this.getSession().createQuery(hql)
+                .setParameter("next", next)
+                .setParameter("timestamp", timestamp)
+                .setParameter("aggregator", aggregatorId)
+                .setParameter("provider", providerId)
+                .setParameter("expected", expected)
+                .executeUpdate();
+
+        return updated == 1;
+    }
 }
@@ -21,10 +21,15 @@
 
 package es.upm.fiware.rss.dao.impl;
 
+import java.math.BigDecimal;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hibernate.Query;
+import org.hibernate.Session;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Repository;
@@ -32,7 +37,9 @@ import org.springframework.stereotype.Repository;
 import es.upm.fiware.rss.dao.DbeTransactionDao;
 import es.upm.fiware.rss.exception.RSSException;
 import es.upm.fiware.rss.model.DbeTransaction;
+import es.upm.fiware.rss.model.TransactionSummary;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * 
@@ -52,6 +59,17 @@ public class DbeTransactionDaoImpl extends GenericDaoImpl<DbeTransaction, String
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(DbeTransactionDaoImpl.class);
 
+    /**
+     * Aggregation of transactions by aggregator, provider, product class and currency
+     */
+    private static final String SUMMARY_SELECT = "select l.cdrSource.txEmail,"
+            + " l.appProvider.id.txAppProviderId,"
+            + " l.txProductClass, l.bmCurrency.txIso4217Code,"
+            + " sum(case when upper(l.tcTransactionType)='C' then l.ftChargedAmount"
+            + " else (0 - l.ftChargedAmount) end),"
+            + " count(l), min(l.txTransactionId), max(l.txTransactionId)"
+            + " from DbeTransaction l";
+
     @Override
     protected Class<DbeTransaction> getDomainClass() {
         return DbeTransaction.class;
@@ -153,7 +171,224 @@ public class DbeTransactionDaoImpl extends GenericDaoImpl<DbeTransaction, String
         return this.buildGetTransactionsQuery(aggregatorId, providerId, productClass, offset, size);
     }
 
+    @Override
+    public List<TransactionSummary> getSettlementSummaries(String aggregatorId,
+            String providerId, String productClass, String state, int fromId) {
+
+        DbeTransactionDaoImpl.LOGGER.debug("getSettlementSummaries..");
+        String hql = DbeTransactionDaoImpl.SUMMARY_SELECT
+                + " where l.state=:state"
+                + " and l.txTransactionId>=:fromId";
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("state", state);
+        params.put("fromId", fromId);
+        hql += this.buildFilters(aggregatorId, providerId, productClass, params);
+
+        return this.listSummaries(hql, params);
+    }
+
+    @Override
+    public Optional<Integer> getFirstUnsettledId(String aggregatorId,
+            String providerId, String productClass, int fromId) {
+
+        DbeTransactionDaoImpl.LOGGER.debug("getFirstUnsettledId..");
+        String hql = "select min(l.txTransactionId) from DbeTransaction l"
+                + " where l.state in ('pending', 'processing')"
+                + " and l.txTransactionId>=:fromId";
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("fromId", fromId);
+        hql += this.buildFilters(aggregatorId, providerId, productClass, params);
+
+        Query q = this.getSession().createQuery(hql);
+        this.setParameters(q, params);
+
+        return Optional.ofNullable((Integer) q.uniqueResult());
+    }
+
+    @Override
+    public int getMaxTransactionId() {
+        DbeTransactionDaoImpl.LOGGER.debug("getMaxTransactionId..");
+        String hql = "select max(l.txTransactionId) from DbeTransaction l";
+
+        Integer max = (Integer) this.getSession().createQuery(hql).uniqueResult();
+        return max != null ? max : 0;
+    }
+
+    @Override
+    public void createTransactions(List<DbeTransaction> transactions) {
+        DbeTransactionDaoImpl.LOGGER.debug("createTransactions..");
+        Session session = this.getSession();
+
+        transactions.stream().forEach((tx) -> {
+            session.save(tx);
+        });
+        session.flush();
+    }
+
+    @Override
+    public int claimTransactions(String aggregatorId, String providerId, String productClass,
+            String currency, String owner, Date expiry, int fromId, int size) {
+
+        DbeTransactionDaoImpl.LOGGER.debug("claimTransactions..");
+        // Native query, HQL does not support limits in bulk updates
+        String sql = "update dbe_transaction set TX_STATE='processing',"
+                + " CLAIM_OWNER=:owner, CLAIM_EXPIRY=:expiry"
+                + " where TX_STATE='pending'"
+                + " and SOURCE_AGGREGATOR=:aggregator"
+                + " and TX_APPPROVIDER_ID=:provider"
+                + " and PRODUCT_CLASS=:productClass"
+                + " and NU_CURRENCY_ID=:currency"
+                + " and txTransactionId>=:fromId"
+                + " order by txTransactionId limit :size";
+
+        return this.getSession().createSQLQuery(sql)
+                .setParameter("owner", owner)
+                .setParameter("expiry", expiry)
+                .setParameter("aggregator", aggregatorId)
+                .setParameter("provider", providerId)
+                .setParameter("productClass", productClass)
+                .setParameter("currency", currency)
+                .setParameter("fromId", fromId)
+                .setParameter("size", size)
+                .executeUpdate();
+    }
+
+    @Override
+    public List<TransactionSummary> getClaimSummaries(String owner) {
+        DbeTransactionDaoImpl.LOGGER.debug("getClaimSummaries..");
+        String hql = DbeTransactionDaoImpl.SUMMARY_SELECT
+                + " where l.state='processing' and l.claimOwner=:owner";
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("owner", owner);
+
+        return this.listSummaries(hql, params);
+    }
+
+    @Override
+    public int renewClaim(String owner, Date expiry) {
+        DbeTransactionDaoImpl.LOGGER.debug("renewClaim..");
+        String sql = "update dbe_transaction set CLAIM_EXPIRY=:expiry"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner";
+
+        return this.getSession().createSQLQuery(sql)
+                .setParameter("expiry", expiry)
+                .setParameter("owner", owner)
+                .executeUpdate();
+    }
+
+    @Override
+    public int releaseClaim(String owner, String newState, int size) {
+        DbeTransactionDaoImpl.LOGGER.debug("releaseClaim..");
+        String sql = "update dbe_transaction set TX_STATE=:newState,"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner"
+                + " limit :size";
+
+        return this.getSession().createSQLQuery(sql)
+                .setParameter("newState", newState)
+                .setParameter("owner", owner)
+                .setParameter("size", size)
+                .executeUpdate();
+    }
+
+    @Override
+    public int settleClaim(String owner) {
+        DbeTransactionDaoImpl.LOGGER.debug("settleClaim..");
+        String sql = "update dbe_transaction set TX_STATE='processed',"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner";
+
+        return this.getSession().createSQLQuery(sql)
+                .setParameter("owner", owner)
+                .executeUpdate();
+    }
+
+    @Override
+    public List<TransactionSummary> getExpiredClaimSummaries(Date now) {
+        DbeTransactionDaoImpl.LOGGER.debug("getExpiredClaimSummaries..");
+        String hql = DbeTransactionDaoImpl.SUMMARY_SELECT
+                + " where l.state='processing'"
+                + " and (l.claimExpiry is null or l.claimExpiry<:now)";
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("now", now);
+
+        return this.listSummaries(hql, params);
+    }
+
+    @Override
+    public int recoverExpiredClaims(Date now, int size) {
+        DbeTransactionDaoImpl.LOGGER.debug("recoverExpiredClaims..");
+        String sql = "update dbe_transaction set TX_STATE='pending',"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing'"
+                + " and (CLAIM_EXPIRY is null or CLAIM_EXPIRY<:now)"
+                + " limit :size";
+
+        return this.getSession().createSQLQuery(sql)
+                .setParameter("now", now)
+                .setParameter("size", size)
+                .executeUpdate();
+    }
+
     /* Private Methods */
+    private List<TransactionSummary> listSummaries(String hql, Map<String, Object> params) {
+        hql += " group by l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code";
+
+        Query q = this.getSession().createQuery(hql);
+        this.setParameters(q, params);
+
+        List<Object[]> rows = q.list();
+        return rows.stream().map((row) -> {
+            return new TransactionSummary((String) row[0], (String) row[1],
+                    (String) row[2], (String) row[3], this.toBigDecimal(row[4]),
+                    ((Number) row[5]).longValue(), ((Number) row[6]).intValue(),
+                    ((Number) row[7]).intValue());
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Builds the HQL filters by aggregator, provider and product class,
+     * filters are only applied if the previous one is provided
+     */
+    private String buildFilters(String aggregatorId, String providerId,
+            String productClass, Map<String, Object> params) {
+
+        String hql = "";
+        if (aggregatorId != null && !aggregatorId.isEmpty()) {
+            hql += " and l.cdrSource.txEmail=:aggregator";
+            params.put("aggregator", aggregatorId);
+
+            if (providerId != null && !providerId.isEmpty()) {
+                hql += " and l.appProvider.id.txAppProviderId=:provider";
+                params.put("provider", providerId);
+
+                if (productClass != null && !productClass.isEmpty()) {
+                    hql += " and l.txProductClass=:productClass";
+                    params.put("productClass", productClass);
+                }
+            }
+        }
+        return hql;
+    }
+
+    private void setParameters(Query q, Map<String, Object> params) {
+        params.entrySet().stream().forEach((param) -> {
+            q.setParameter(param.getKey(), param.getValue());
+        });
+    }
+
+    private BigDecimal toBigDecimal(Object value) {
+        if (value == null) {
+            return BigDecimal.ZERO;
+        }
+        return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+    }
+
     /**
      * Method executes HQL query.
      * 
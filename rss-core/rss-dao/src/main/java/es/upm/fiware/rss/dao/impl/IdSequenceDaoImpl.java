@@ -0,0 +1,69 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl;
+
+import java.util.List;
+import java.util.function.IntSupplier;
+
+import org.hibernate.LockOptions;
+import org.springframework.stereotype.Repository;
+
+import es.upm.fiware.rss.dao.IdSequenceDao;
+import es.upm.fiware.rss.model.IdSequence;
+
+/**
+ * 
+ * Class that extends GenericDaoImpl and implements IdSequenceDao.
+ * 
+ */
+@Repository
+public class IdSequenceDaoImpl extends GenericDaoImpl<IdSequence, String>
+    implements IdSequenceDao {
+
+    @Override
+    protected Class<IdSequence> getDomainClass() {
+        return IdSequence.class;
+    }
+
+    @Override
+    public int reserve(String name, int count, IntSupplier initialValue) {
+        IdSequence sequence = (IdSequence) this.getSession()
+                .get(IdSequence.class, name, LockOptions.UPGRADE);
+
+        int first;
+        if (sequence == null) {
+            first = initialValue.getAsInt();
+
+            sequence = new IdSequence();
+            sequence.setName(name);
+            sequence.setNextValue(first + count);
+            this.getSession().save(sequence);
+        } else {
+            first = sequence.getNextValue();
+            sequence.setNextValue(first + count);
+        }
+        return first;
+    }
+
+    @Override
+    public List<IdSequence> getSequences(String prefix) {
+        return this.getSession()
+                .createQuery("from IdSequence s where s.name like :prefix")
+                .setParameter("prefix", prefix + "%")
+                .list();
+    }
+}
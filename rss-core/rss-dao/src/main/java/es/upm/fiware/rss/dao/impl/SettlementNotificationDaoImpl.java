@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package es.upm.fiware.rss.dao.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import es.upm.fiware.rss.dao.SettlementNotificationDao;
+import es.upm.fiware.rss.model.SettlementNotification;
+
+/**
+ * 
+ * Class that extends GenericDaoImpl and implements SettlementNotificationDao.
+ * 
+ */
+@Repository
+public class SettlementNotificationDaoImpl extends GenericDaoImpl<SettlementNotification, Integer>
+    implements SettlementNotificationDao {
+
+    /**
+     * Variable to print the trace.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementNotificationDaoImpl.class);
+
+    @Override
+    protected Class<SettlementNotification> getDomainClass() {
+        return SettlementNotification.class;
+    }
+
+    @Override
+    public List<SettlementNotification> getNotificationsByState(String state) {
+        String hql = "from SettlementNotification n where n.state = :state order by n.id";
+        SettlementNotificationDaoImpl.LOGGER.debug(hql);
+
+        List list = this.getSession().createQuery(hql)
+                .setParameter("state", state)
+                .list();
+
+        return Collections.checkedList(list, SettlementNotification.class);
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl;
+
+import java.util.List;
+import java.util.Optional;
+
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Repository;
+
+import es.upm.fiware.rss.dao.SettlementVolumeDao;
+import es.upm.fiware.rss.model.SettlementVolume;
+
+/**
+ * 
+ * Class that extends GenericDaoImpl and implements SettlementVolumeDao.
+ * 
+ */
+@Repository
+public class SettlementVolumeDaoImpl extends GenericDaoImpl<SettlementVolume, Integer>
+    implements SettlementVolumeDao {
+
+    /**
+     * Variable to print the trace.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SettlementVolumeDaoImpl.class);
+
+    private static final String FILTERS = " where v.aggregatorId = :aggregator"
+            + " and v.providerId = :provider"
+            + " and v.productClass = :productClass"
+            + " and v.currency = :currency";
+
+    @Override
+    protected Class<SettlementVolume> getDomainClass() {
+        return SettlementVolume.class;
+    }
+
+    private Optional<SettlementVolume> findVolume(String aggregatorId, String providerId,
+            String productClass, String currency, LockOptions lockOptions) {
+
+        String hql = "from SettlementVolume v" + SettlementVolumeDaoImpl.FILTERS;
+        SettlementVolumeDaoImpl.LOGGER.debug(hql);
+
+        Query query = this.getSession().createQuery(hql)
+                .setParameter("aggregator", aggregatorId)
+                .setParameter("provider", providerId)
+                .setParameter("productClass", productClass)
+                .setParameter("currency", currency);
+
+        query.setLockOptions(lockOptions);
+        return Optional.ofNullable((SettlementVolume) query.uniqueResult());
+    }
+
+    @Override
+    public Optional<SettlementVolume> getVolume(String aggregatorId, String providerId,
+            String productClass, String currency) {
+
+        return this.findVolume(aggregatorId, providerId, productClass, currency, LockOptions.NONE);
+    }
+
+    @Override
+    public Optional<SettlementVolume> lockVolume(String aggregatorId, String providerId,
+            String productClass, String currency) {
+
+        return this.findVolume(aggregatorId, providerId, productClass, currency, LockOptions.UPGRADE);
+    }
+
+    @Override
+    public List<SettlementVolume> getVolumes(String aggregatorId, String providerId,
+            String productClass) {
+
+        String hql = "from SettlementVolume v";
+        boolean byAggregator = aggregatorId != null && !aggregatorId.isEmpty();
+        boolean byProvider = byAggregator && providerId != null && !providerId.isEmpty();
+        boolean byClass = byProvider && productClass != null && !productClass.isEmpty();
+
+        if (byAggregator) {
+            hql += " where v.aggregatorId = :aggregator";
+        }
+        if (byProvider) {
+            hql += " and v.providerId = :provider";
+        }
+        if (byClass) {
+            hql += " and v.productClass = :productClass";
+        }
+        SettlementVolumeDaoImpl.LOGGER.debug(hql);
+
+        Query query = this.getSession().createQuery(hql);
+        if (byAggregator) {
+            query.setParameter("aggregator", aggregatorId);
+        }
+        if (byProvider) {
+            query.setParameter("provider", providerId);
+        }
+        if (byClass) {
+            query.setParameter("productClass", productClass);
+        }
+        return query.list();
+    }
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2016 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl.test;
+
+import es.upm.fiware.rss.dao.impl.DbeAppProviderDaoImpl;
+import es.upm.fiware.rss.model.DbeAppProvider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = DbeAppProviderDaoImpl.class)
+public class DbeAppProviderDaoImplTest {
+
+    private DbeAppProviderDaoImpl toTest;
+    private Session session;
+    private Query query;
+
+    @Before
+    public void setUp() throws Exception {
+        this.toTest = PowerMockito.spy(new DbeAppProviderDaoImpl());
+        this.session = Mockito.mock(Session.class);
+        this.query = Mockito.mock(Query.class);
+
+        Mockito.when(this.session.createQuery(anyString())).thenReturn(this.query);
+        Mockito.when(this.query.setParameter(anyString(), anyObject())).thenReturn(this.query);
+        Mockito.when(this.query.setParameterList(anyString(), any(Collection.class))).thenReturn(this.query);
+
+        PowerMockito.doReturn(this.session).when(this.toTest, "getSession");
+    }
+
+    @Test
+    public void getProviders() {
+        List<DbeAppProvider> providers = new ArrayList<>();
+        providers.add(new DbeAppProvider());
+        Mockito.when(this.query.list()).thenReturn(providers);
+
+        List<String> ids = Arrays.asList("provider1", "provider2");
+        List<DbeAppProvider> result = this.toTest.getProviders("a@b.c", ids);
+
+        Assert.assertEquals(providers, result);
+        verify(this.session).createQuery("from DbeAppProvider as p where p.id.aggregator = :aggregator"
+                + " and p.id.txAppProviderId in (:providers)");
+        verify(this.query).setParameter("aggregator", "a@b.c");
+        verify(this.query).setParameterList("providers", ids);
+    }
+
+    @Test
+    public void getProvidersEmptyIds() {
+        Assert.assertTrue(this.toTest.getProviders("a@b.c", new ArrayList<>()).isEmpty());
+        verify(this.session, never()).createQuery(anyString());
+    }
+
+    @Test
+    public void advanceCorrelationNumber() {
+        Date timestamp = new Date();
+        Mockito.when(this.query.executeUpdate()).thenReturn(1);
+
+        Assert.assertTrue(this.toTest.advanceCorrelationNumber("a@b.c", "provider", 10, 13, timestamp));
+
+        verify(this.session).createQuery("update DbeAppProvider p set p.txCorrelationNumber = :next,"
+                + " p.txTimeStamp = :timestamp where p.id.aggregator = :aggregator"
+                + " and p.id.txAppProviderId = :provider and p.txCorrelationNumber = :expected");
+        verify(this.query).setParameter("next", 13);
+        verify(this.query).setParameter("timestamp", timestamp);
+        verify(this.query).setParameter("aggregator", "a@b.c");
+        verify(this.query).setParameter("provider", "provider");
+        verify(this.query).setParameter("expected", 10);
+    }
+
+    @Test
+    public void advanceCorrelationNumberConcurrentUpdate() {
+        Mockito.when(this.query.executeUpdate()).thenReturn(0);
+
+        Assert.assertFalse(this.toTest.advanceCorrelationNumber("a@b.c", "provider", 10, 13, new Date()));
+    }
+}
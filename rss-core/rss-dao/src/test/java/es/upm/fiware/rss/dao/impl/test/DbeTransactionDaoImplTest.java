@@ -0,0 +1,269 @@
+/**
+ * Copyright (C) 2016 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl.test;
+
+import es.upm.fiware.rss.dao.impl.DbeTransactionDaoImpl;
+import es.upm.fiware.rss.model.DbeTransaction;
+import es.upm.fiware.rss.model.TransactionSummary;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.verify;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = DbeTransactionDaoImpl.class)
+public class DbeTransactionDaoImplTest {
+
+    private DbeTransactionDaoImpl toTest;
+    private Session session;
+    private Query query;
+
+    @Before
+    public void setUp() throws Exception {
+        this.toTest = PowerMockito.spy(new DbeTransactionDaoImpl());
+        this.session = Mockito.mock(Session.class);
+        this.query = Mockito.mock(Query.class);
+
+        Mockito.when(this.session.createQuery(anyString())).thenReturn(this.query);
+        Mockito.when(this.query.setParameter(anyString(), anyObject())).thenReturn(this.query);
+        Mockito.when(this.query.list()).thenReturn(new ArrayList());
+
+        PowerMockito.doReturn(this.session).when(this.toTest, "getSession");
+    }
+
+    @Test
+    public void getFirstUnsettledId() {
+        Mockito.when(this.query.uniqueResult()).thenReturn(42);
+
+        Assert.assertEquals(Integer.valueOf(42),
+                this.toTest.getFirstUnsettledId("a@b.c", "provider", "class", 100).get());
+        verify(this.session).createQuery("select min(l.txTransactionId) from DbeTransaction l"
+                + " where l.state in ('pending', 'processing')"
+                + " and l.txTransactionId>=:fromId"
+                + " and l.cdrSource.txEmail=:aggregator"
+                + " and l.appProvider.id.txAppProviderId=:provider"
+                + " and l.txProductClass=:productClass");
+        verify(this.query).setParameter("productClass", "class");
+        verify(this.query).setParameter("fromId", 100);
+    }
+
+    @Test
+    public void getFirstUnsettledIdAllSettled() {
+        Mockito.when(this.query.uniqueResult()).thenReturn(null);
+
+        Assert.assertFalse(this.toTest.getFirstUnsettledId("a@b.c", "provider", "class", 0).isPresent());
+    }
+
+    @Test
+    public void getMaxTransactionId() {
+        Mockito.when(this.query.uniqueResult()).thenReturn(42);
+
+        Assert.assertEquals(42, this.toTest.getMaxTransactionId());
+        verify(this.session).createQuery("select max(l.txTransactionId) from DbeTransaction l");
+    }
+
+    @Test
+    public void getMaxTransactionIdEmpty() {
+        Mockito.when(this.query.uniqueResult()).thenReturn(null);
+        Assert.assertEquals(0, this.toTest.getMaxTransactionId());
+    }
+
+    @Test
+    public void createTransactions() {
+        DbeTransaction tx1 = new DbeTransaction();
+        DbeTransaction tx2 = new DbeTransaction();
+
+        this.toTest.createTransactions(Arrays.asList(tx1, tx2));
+
+        // Transactions are flushed together once all of them are saved
+        InOrder order = Mockito.inOrder(this.session);
+        order.verify(this.session).save(tx1);
+        order.verify(this.session).save(tx2);
+        order.verify(this.session).flush();
+    }
+
+    private SQLQuery mockSQLQuery(int updated) {
+        SQLQuery sqlQuery = Mockito.mock(SQLQuery.class);
+        Mockito.when(this.session.createSQLQuery(anyString())).thenReturn(sqlQuery);
+        Mockito.when(sqlQuery.setParameter(anyString(), anyObject())).thenReturn(sqlQuery);
+        Mockito.when(sqlQuery.executeUpdate()).thenReturn(updated);
+        return sqlQuery;
+    }
+
+    @Test
+    public void claimTransactions() {
+        SQLQuery sqlQuery = this.mockSQLQuery(20);
+        Date expiry = new Date();
+
+        int updated = this.toTest.claimTransactions("a@b.c", "provider", "class",
+                "EUR", "owner", expiry, 1, 20);
+
+        Assert.assertEquals(20, updated);
+        verify(this.session).createSQLQuery("update dbe_transaction set TX_STATE='processing',"
+                + " CLAIM_OWNER=:owner, CLAIM_EXPIRY=:expiry"
+                + " where TX_STATE='pending'"
+                + " and SOURCE_AGGREGATOR=:aggregator"
+                + " and TX_APPPROVIDER_ID=:provider"
+                + " and PRODUCT_CLASS=:productClass"
+                + " and NU_CURRENCY_ID=:currency"
+                + " and txTransactionId>=:fromId"
+                + " order by txTransactionId limit :size");
+
+        verify(sqlQuery).setParameter("currency", "EUR");
+        verify(sqlQuery).setParameter("owner", "owner");
+        verify(sqlQuery).setParameter("expiry", expiry);
+        verify(sqlQuery).setParameter("fromId", 1);
+        verify(sqlQuery).setParameter("size", 20);
+    }
+
+    @Test
+    public void releaseClaim() {
+        SQLQuery sqlQuery = this.mockSQLQuery(5);
+
+        Assert.assertEquals(5, this.toTest.releaseClaim("owner", "processed", 20));
+        verify(this.session).createSQLQuery("update dbe_transaction set TX_STATE=:newState,"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner"
+                + " limit :size");
+
+        verify(sqlQuery).setParameter("newState", "processed");
+        verify(sqlQuery).setParameter("owner", "owner");
+        verify(sqlQuery).setParameter("size", 20);
+    }
+
+    @Test
+    public void settleClaim() {
+        SQLQuery sqlQuery = this.mockSQLQuery(8);
+
+        Assert.assertEquals(8, this.toTest.settleClaim("owner"));
+        verify(this.session).createSQLQuery("update dbe_transaction set TX_STATE='processed',"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner");
+
+        verify(sqlQuery).setParameter("owner", "owner");
+    }
+
+    @Test
+    public void renewClaim() {
+        SQLQuery sqlQuery = this.mockSQLQuery(7);
+        Date expiry = new Date();
+
+        Assert.assertEquals(7, this.toTest.renewClaim("owner", expiry));
+        verify(this.session).createSQLQuery("update dbe_transaction set CLAIM_EXPIRY=:expiry"
+                + " where TX_STATE='processing' and CLAIM_OWNER=:owner");
+
+        verify(sqlQuery).setParameter("expiry", expiry);
+        verify(sqlQuery).setParameter("owner", "owner");
+    }
+
+    @Test
+    public void recoverExpiredClaims() {
+        SQLQuery sqlQuery = this.mockSQLQuery(3);
+        Date now = new Date();
+
+        Assert.assertEquals(3, this.toTest.recoverExpiredClaims(now, 100));
+        verify(this.session).createSQLQuery("update dbe_transaction set TX_STATE='pending',"
+                + " CLAIM_OWNER=null, CLAIM_EXPIRY=null"
+                + " where TX_STATE='processing'"
+                + " and (CLAIM_EXPIRY is null or CLAIM_EXPIRY<:now)"
+                + " limit :size");
+
+        verify(sqlQuery).setParameter("now", now);
+        verify(sqlQuery).setParameter("size", 100);
+    }
+
+    @Test
+    public void getExpiredClaimSummaries() {
+        Date now = new Date();
+        this.toTest.getExpiredClaimSummaries(now);
+
+        verify(this.session).createQuery("select l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code,"
+                + " sum(case when upper(l.tcTransactionType)='C' then l.ftChargedAmount"
+                + " else (0 - l.ftChargedAmount) end),"
+                + " count(l), min(l.txTransactionId), max(l.txTransactionId)"
+                + " from DbeTransaction l where l.state='processing'"
+                + " and (l.claimExpiry is null or l.claimExpiry<:now)"
+                + " group by l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code");
+        verify(this.query).setParameter("now", now);
+    }
+
+    @Test
+    public void getClaimSummaries() {
+        this.toTest.getClaimSummaries("owner");
+
+        verify(this.session).createQuery("select l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code,"
+                + " sum(case when upper(l.tcTransactionType)='C' then l.ftChargedAmount"
+                + " else (0 - l.ftChargedAmount) end),"
+                + " count(l), min(l.txTransactionId), max(l.txTransactionId)"
+                + " from DbeTransaction l where l.state='processing' and l.claimOwner=:owner"
+                + " group by l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code");
+        verify(this.query).setParameter("owner", "owner");
+    }
+
+    @Test
+    public void getSettlementSummaries() {
+        List<Object[]> rows = new ArrayList<>();
+        rows.add(new Object[] {"a@b.c", "provider", "class", "EUR", new BigDecimal("12.5"), 4L, 3, 9});
+        rows.add(new Object[] {"a@b.c", "provider", "class", "USD", null, 1L, 10, 10});
+        Mockito.when(this.query.list()).thenReturn(rows);
+
+        List<TransactionSummary> summaries = this.toTest
+                .getSettlementSummaries("a@b.c", "provider", null, "processing", 0);
+
+        verify(this.session).createQuery("select l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code,"
+                + " sum(case when upper(l.tcTransactionType)='C' then l.ftChargedAmount"
+                + " else (0 - l.ftChargedAmount) end),"
+                + " count(l), min(l.txTransactionId), max(l.txTransactionId)"
+                + " from DbeTransaction l where l.state=:state"
+                + " and l.txTransactionId>=:fromId"
+                + " and l.cdrSource.txEmail=:aggregator"
+                + " and l.appProvider.id.txAppProviderId=:provider"
+                + " group by l.cdrSource.txEmail, l.appProvider.id.txAppProviderId,"
+                + " l.txProductClass, l.bmCurrency.txIso4217Code");
+        verify(this.query).setParameter("state", "processing");
+
+        Assert.assertEquals(2, summaries.size());
+        Assert.assertEquals("EUR", summaries.get(0).getCurrency());
+        Assert.assertEquals(new BigDecimal("12.5"), summaries.get(0).getValue());
+        Assert.assertEquals(4L, summaries.get(0).getTransactions());
+        Assert.assertEquals(3, summaries.get(0).getMinTransactionId());
+        Assert.assertEquals(9, summaries.get(0).getMaxTransactionId());
+        Assert.assertEquals(BigDecimal.ZERO, summaries.get(1).getValue());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2016 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl.test;
+
+import es.upm.fiware.rss.dao.impl.IdSequenceDaoImpl;
+import es.upm.fiware.rss.model.IdSequence;
+import java.util.ArrayList;
+import java.util.List;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = IdSequenceDaoImpl.class)
+public class IdSequenceDaoImplTest {
+
+    private IdSequenceDaoImpl toTest;
+    private Session session;
+
+    @Before
+    public void setUp() throws Exception {
+        this.toTest = PowerMockito.spy(new IdSequenceDaoImpl());
+        this.session = Mockito.mock(Session.class);
+
+        PowerMockito.doReturn(this.session).when(this.toTest, "getSession");
+    }
+
+    @Test
+    public void reserve() {
+        IdSequence sequence = new IdSequence();
+        sequence.setName("sequence");
+        sequence.setNextValue(101);
+        Mockito.when(this.session.get(IdSequence.class, "sequence", LockOptions.UPGRADE))
+                .thenReturn(sequence);
+
+        int first = this.toTest.reserve("sequence", 50, () -> {
+            throw new AssertionError("The sequence already exists");
+        });
+
+        Assert.assertEquals(101, first);
+        Assert.assertEquals(151, sequence.getNextValue());
+        verify(this.session, never()).save(any());
+    }
+
+    @Test
+    public void reserveNewSequence() {
+        int first = this.toTest.reserve("sequence", 50, () -> 1001);
+
+        Assert.assertEquals(1001, first);
+
+        ArgumentCaptor<IdSequence> sequence = ArgumentCaptor.forClass(IdSequence.class);
+        verify(this.session).save(sequence.capture());
+        Assert.assertEquals("sequence", sequence.getValue().getName());
+        Assert.assertEquals(1051, sequence.getValue().getNextValue());
+    }
+
+    @Test
+    public void getSequences() {
+        Query query = Mockito.mock(Query.class);
+        List<IdSequence> sequences = new ArrayList<>();
+
+        Mockito.when(this.session.createQuery(anyString())).thenReturn(query);
+        Mockito.when(query.setParameter(anyString(), anyObject())).thenReturn(query);
+        Mockito.when(query.list()).thenReturn(sequences);
+
+        Assert.assertSame(sequences, this.toTest.getSequences("rs_models:"));
+        verify(this.session).createQuery("from IdSequence s where s.name like :prefix");
+        verify(query).setParameter("prefix", "rs_models:%");
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2016 CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.dao.impl.test;
+
+import es.upm.fiware.rss.dao.impl.SettlementVolumeDaoImpl;
+import es.upm.fiware.rss.model.SettlementVolume;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Mockito.verify;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest(value = SettlementVolumeDaoImpl.class)
+public class SettlementVolumeDaoImplTest {
+
+    private SettlementVolumeDaoImpl toTest;
+    private Session session;
+    private Query query;
+
+    @Before
+    public void setUp() throws Exception {
+        this.toTest = PowerMockito.spy(new SettlementVolumeDaoImpl());
+        this.session = Mockito.mock(Session.class);
+        this.query = Mockito.mock(Query.class);
+
+        Mockito.when(this.session.createQuery(anyString())).thenReturn(this.query);
+        Mockito.when(this.query.setParameter(anyString(), anyObject())).thenReturn(this.query);
+
+        PowerMockito.doReturn(this.session).when(this.toTest, "getSession");
+    }
+
+    @Test
+    public void getVolume() {
+        SettlementVolume volume = new SettlementVolume();
+        Mockito.when(this.query.uniqueResult()).thenReturn(volume);
+
+        Optional<SettlementVolume> result = this.toTest.getVolume("a@b.c", "provider", "class", "EUR");
+
+        Assert.assertSame(volume, result.get());
+        verify(this.session).createQuery("from SettlementVolume v where v.aggregatorId = :aggregator"
+                + " and v.providerId = :provider"
+                + " and v.productClass = :productClass"
+                + " and v.currency = :currency");
+        verify(this.query).setParameter("aggregator", "a@b.c");
+        verify(this.query).setParameter("provider", "provider");
+        verify(this.query).setParameter("productClass", "class");
+        verify(this.query).setParameter("currency", "EUR");
+        verify(this.query).setLockOptions(LockOptions.NONE);
+    }
+
+    @Test
+    public void getVolumeNotExisting() {
+        Assert.assertFalse(this.toTest.getVolume("a@b.c", "provider", "class", "EUR").isPresent());
+    }
+
+    @Test
+    public void lockVolume() {
+        SettlementVolume volume = new SettlementVolume();
+        Mockito.when(this.query.uniqueResult()).thenReturn(volume);
+
+        Optional<SettlementVolume> result = this.toTest.lockVolume("a@b.c", "provider", "class", "EUR");
+
+        Assert.assertSame(volume, result.get());
+        verify(this.query).setParameter("aggregator", "a@b.c");
+        verify(this.query).setLockOptions(LockOptions.UPGRADE);
+    }
+
+    @Test
+    public void getVolumes() {
+        List<SettlementVolume> volumes = new ArrayList<>();
+        Mockito.when(this.query.list()).thenReturn(volumes);
+
+        Assert.assertSame(volumes, this.toTest.getVolumes("a@b.c", "provider", "class"));
+        verify(this.session).createQuery("from SettlementVolume v where v.aggregatorId = :aggregator"
+                + " and v.providerId = :provider"
+                + " and v.productClass = :productClass");
+        verify(this.query).setParameter("aggregator", "a@b.c");
+        verify(this.query).setParameter("provider", "provider");
+        verify(this.query).setParameter("productClass", "class");
+    }
+
+    @Test
+    public void getAllVolumes() {
+        Mockito.when(this.query.list()).thenReturn(new ArrayList());
+
+        this.toTest.getVolumes(null, "provider", "class");
+        verify(this.session).createQuery("from SettlementVolume v");
+        verify(this.query, Mockito.never()).setParameter(anyString(), anyObject());
+    }
+}
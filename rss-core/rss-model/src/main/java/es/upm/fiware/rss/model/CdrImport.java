@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package es.upm.fiware.rss.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Bulk import of a file of CDRs. The byte position of the file up to which
+ * the CDRs have been saved is stored with them, so an interrupted import is
+ * resumed from that position.
+ */
+@Entity
+@Table(name = "cdr_import")
+public class CdrImport implements Serializable {
+
+    private int id;
+    private String path;
+
+    // ndjson or csv
+    private String format;
+
+    // Email of the user importing the CDRs, null for admins
+    private String owner;
+
+    // Whether the file has been uploaded, uploaded files are removed when imported
+    private boolean uploaded;
+
+    // running, completed or failed
+    private String state;
+    private long position;
+    private int cdrs;
+    private String error;
+    private Date created;
+
+    /**
+     * Constructor.
+     */
+    public CdrImport() {
+    }
+
+    @Id
+    @GeneratedValue(strategy=GenerationType.AUTO)
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @Column(name = "FILE_PATH", length = 1024, nullable = false)
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    @Column(name = "FORMAT", length = 16, nullable = false)
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    @Column(name = "OWNER", length = 100)
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    @Column(name = "UPLOADED", nullable = false)
+    public boolean isUploaded() {
+        return uploaded;
+    }
+
+    public void setUploaded(boolean uploaded) {
+        this.uploaded = uploaded;
+    }
+
+    @Column(name = "STATE", length = 16, nullable = false)
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    @Column(name = "FILE_POSITION", nullable = false)
+    public long getPosition() {
+        return position;
+    }
+
+    public void setPosition(long position) {
+        this.position = position;
+    }
+
+    @Column(name = "CDRS", nullable = false)
+    public int getCdrs() {
+        return cdrs;
+    }
+
+    public void setCdrs(int cdrs) {
+        this.cdrs = cdrs;
+    }
+
+    @Column(name = "ERROR", length = 1024)
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CREATED", nullable = false)
+    public Date getCreated() {
+        return created;
+    }
+
+    public void setCreated(Date created) {
+        this.created = created;
+    }
+}
@@ -29,9 +29,8 @@ import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
-import javax.persistence.GeneratedValue;
-import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.JoinColumn;
 import javax.persistence.JoinColumns;
 import javax.persistence.ManyToOne;
@@ -48,7 +47,12 @@ import org.hibernate.annotations.CacheConcurrencyStrategy;
 @Entity
 @DynamicUpdate(value=true)
 @DynamicInsert(value=true)
-@Table(name = "dbe_transaction")
+@Table(name = "dbe_transaction",
+        indexes = {
+            @Index(name = "IDX_TX_CLAIM_OWNER", columnList = "CLAIM_OWNER"),
+            // Pending transactions are summarized by RS model in id order
+            @Index(name = "IDX_TX_STATE_MODEL", columnList = "TX_STATE, SOURCE_AGGREGATOR,"
+                    + " TX_APPPROVIDER_ID, PRODUCT_CLASS, txTransactionId")})
 @Cacheable
 @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class DbeTransaction implements Serializable, Cloneable {
@@ -70,6 +74,8 @@ public class DbeTransaction implements Serializable, Cloneable {
     private BmCurrency bmCurrency;
     private String txEndUserId;
     private DbeAppProvider appProvider;
+    private String claimOwner;
+    private Date claimExpiry;
 
     public DbeTransaction() {        
     }
@@ -99,8 +105,12 @@ public class DbeTransaction implements Serializable, Cloneable {
         this.appProvider = appProvider;
     }
 
+    /**
+     * Ids are reserved in blocks from the dbe_transaction IdSequence before
+     * saving, instead of generated by the database, so the inserts can be
+     * sent in JDBC batches
+     */
     @Id
-    @GeneratedValue(strategy=GenerationType.AUTO)
     public int getTxTransactionId() {
         return txTransactionId;
     }
@@ -250,4 +260,32 @@ public class DbeTransaction implements Serializable, Cloneable {
     public void setAppProvider(DbeAppProvider appProvider) {
         this.appProvider = appProvider;
     }
+
+    /**
+     * Token of the settlement task processing the transaction
+     * @return
+     */
+    @Column(name = "CLAIM_OWNER", length = 36)
+    public String getClaimOwner() {
+        return claimOwner;
+    }
+
+    public void setClaimOwner(String claimOwner) {
+        this.claimOwner = claimOwner;
+    }
+
+    /**
+     * Time when the claim of the settlement task expires, so the transaction
+     * can be recovered if the task does not finish
+     * @return
+     */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "CLAIM_EXPIRY")
+    public Date getClaimExpiry() {
+        return claimExpiry;
+    }
+
+    public void setClaimExpiry(Date claimExpiry) {
+        this.claimExpiry = claimExpiry;
+    }
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package es.upm.fiware.rss.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+
+/**
+ * Next value of a sequence of identifiers assigned by the application, so
+ * the rows using them can be inserted in JDBC batches. Identifiers are
+ * reserved in blocks by updating the sequence row.
+ */
+@Entity
+@Table(name = "id_sequence")
+public class IdSequence implements Serializable {
+
+    private String name;
+    private int nextValue;
+
+    /**
+     * Constructor.
+     */
+    public IdSequence() {
+    }
+
+    @Id
+    @Column(name = "NAME", length = 100, nullable = false)
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Column(name = "NEXT_VALUE", nullable = false)
+    public int getNextValue() {
+        return nextValue;
+    }
+
+    public void setNextValue(int nextValue) {
+        this.nextValue = nextValue;
+    }
+}
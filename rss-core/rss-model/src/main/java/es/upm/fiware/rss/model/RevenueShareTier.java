@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package es.upm.fiware.rss.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * Volume tier of a revenue sharing model. Once the settled volume of the
+ * model reaches the threshold, the aggregator value of the tier is applied
+ * instead of the value of the model.
+ */
+@Embeddable
+public class RevenueShareTier implements Serializable {
+
+    private BigDecimal threshold;
+    private BigDecimal aggregatorValue;
+
+    /**
+     * Constructor.
+     */
+    public RevenueShareTier() {
+    }
+
+    public RevenueShareTier(BigDecimal threshold, BigDecimal aggregatorValue) {
+        this.threshold = threshold;
+        this.aggregatorValue = aggregatorValue;
+    }
+
+    @Column(name = "THRESHOLD", nullable = false, precision = 20, scale = 4)
+    public BigDecimal getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(BigDecimal threshold) {
+        this.threshold = threshold;
+    }
+
+    @Column(name = "AGGREGATOR_VALUE", nullable = false, precision = 8, scale = 4)
+    public BigDecimal getAggregatorValue() {
+        return aggregatorValue;
+    }
+
+    public void setAggregatorValue(BigDecimal aggregatorValue) {
+        this.aggregatorValue = aggregatorValue;
+    }
+}
@@ -23,16 +23,23 @@ package es.upm.fiware.rss.model;
 
 import java.io.Serializable;
 import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
+import javax.persistence.CollectionTable;
 import javax.persistence.Column;
+import javax.persistence.ElementCollection;
 import javax.persistence.EmbeddedId;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
+import javax.persistence.OrderBy;
 import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 
 @Entity
 @Table(name = "set_revenue_share_conf")
@@ -55,6 +62,13 @@ public class SetRevenueShareConf implements Serializable{
     // including its sharing value
     private Set<ModelProvider> stakeholders;
 
+    // Volume tiers of the aggregator value, used by volume based algorithms
+    private List<RevenueShareTier> tiers;
+
+    // Watermark of the settlement, transactions up to this id are settled
+    private Integer lastSettledTxId;
+    private Date lastSettlementDate;
+
     /**
      * Constructor.
      */
@@ -138,4 +152,37 @@ public class SetRevenueShareConf implements Serializable{
     public void setOwnerValue(BigDecimal ownerValue) {
         this.ownerValue = ownerValue;
     }
+
+    @ElementCollection(fetch = FetchType.EAGER)
+    @CollectionTable(name = "set_revenue_share_tier", joinColumns = {
+            @JoinColumn(name = "MODEL_OWNER_PROVIDER", referencedColumnName = "MODEL_OWNER_PROVIDER"),
+            @JoinColumn(name = "AGGREGATOR_ID", referencedColumnName = "AGGREGATOR_ID"),
+            @JoinColumn(name = "TX_PRODUCT_CLASS", referencedColumnName = "TX_PRODUCT_CLASS")})
+    @OrderBy("threshold")
+    public List<RevenueShareTier> getTiers() {
+        return this.tiers;
+    }
+
+    public void setTiers(List<RevenueShareTier> tiers) {
+        this.tiers = tiers;
+    }
+
+    @Column(name = "LAST_SETTLED_TX_ID")
+    public Integer getLastSettledTxId() {
+        return this.lastSettledTxId;
+    }
+
+    public void setLastSettledTxId(Integer lastSettledTxId) {
+        this.lastSettledTxId = lastSettledTxId;
+    }
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "LAST_SETTLEMENT_DATE")
+    public Date getLastSettlementDate() {
+        return this.lastSettlementDate;
+    }
+
+    public void setLastSettlementDate(Date lastSettlementDate) {
+        this.lastSettlementDate = lastSettlementDate;
+    }
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package es.upm.fiware.rss.model;
+
+import javax.persistence.*;
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Running total of the value settled for a revenue sharing model in a
+ * currency, so volume based algorithms do not need to read the settled
+ * transactions again.
+ */
+@Entity
+@Table(name = "settlement_volume", uniqueConstraints = @UniqueConstraint(
+        columnNames = {"AGGREGATOR_ID", "PROVIDER_ID", "PRODUCT_CLASS", "CURRENCY"}))
+public class SettlementVolume implements Serializable {
+
+    private int id;
+    private String aggregatorId;
+    private String providerId;
+    private String productClass;
+    private String currency;
+    private BigDecimal volume;
+
+    /**
+     * Constructor.
+     */
+    public SettlementVolume() {
+    }
+
+    @Id
+    @GeneratedValue(strategy=GenerationType.AUTO)
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @Column(name = "AGGREGATOR_ID", length = 255, nullable = false)
+    public String getAggregatorId() {
+        return aggregatorId;
+    }
+
+    public void setAggregatorId(String aggregatorId) {
+        this.aggregatorId = aggregatorId;
+    }
+
+    @Column(name = "PROVIDER_ID", length = 100, nullable = false)
+    public String getProviderId() {
+        return providerId;
+    }
+
+    public void setProviderId(String providerId) {
+        this.providerId = providerId;
+    }
+
+    @Column(name = "PRODUCT_CLASS", length = 40, nullable = false)
+    public String getProductClass() {
+        return productClass;
+    }
+
+    public void setProductClass(String productClass) {
+        this.productClass = productClass;
+    }
+
+    @Column(name = "CURRENCY", length = 3, nullable = false)
+    public String getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(String currency) {
+        this.currency = currency;
+    }
+
+    @Column(name = "VOLUME", nullable = false, precision = 20, scale = 4)
+    public BigDecimal getVolume() {
+        return volume;
+    }
+
+    public void setVolume(BigDecimal volume) {
+        this.volume = volume;
+    }
+}
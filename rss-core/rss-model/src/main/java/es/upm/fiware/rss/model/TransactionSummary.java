@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2016, CoNWeT Lab., Universidad Politécnica de Madrid
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package es.upm.fiware.rss.model;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+
+/**
+ * Aggregated value of a set of transactions of the same aggregator, provider,
+ * product class and currency, computed by the database.
+ */
+public class TransactionSummary implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private String aggregatorId;
+    private String providerId;
+    private String productClass;
+    private String currency;
+    private BigDecimal value;
+    private long transactions;
+    private int minTransactionId;
+    private int maxTransactionId;
+
+    public TransactionSummary() {
+    }
+
+    public TransactionSummary(String aggregatorId, String providerId,
+            String productClass, String currency, BigDecimal value,
+            long transactions, int minTransactionId, int maxTransactionId) {
+
+        this.aggregatorId = aggregatorId;
+        this.providerId = providerId;
+        this.productClass = productClass;
+        this.currency = currency;
+        this.value = value;
+        this.transactions = transactions;
+        this.minTransactionId = minTransactionId;
+        this.maxTransactionId = maxTransactionId;
+    }
+
+    public String getAggregatorId() {
+        return aggregatorId;
+    }
+
+    public void setAggregatorId(String aggregatorId) {
+        this.aggregatorId = aggregatorId;
+    }
+
+    public String getProviderId() {
+        return providerId;
+    }
+
+    public void setProviderId(String providerId) {
+        this.providerId = providerId;
+    }
+
+    public String getProductClass() {
+        return productClass;
+    }
+
+    public void setProductClass(String productClass) {
+        this.productClass = productClass;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public void setCurrency(String currency) {
+        this.currency = currency;
+    }
+
+    /**
+     * @return Charged amount minus refunded amount
+     */
+    public BigDecimal getValue() {
+        return value;
+    }
+
+    public void setValue(BigDecimal value) {
+        this.value = value;
+    }
+
+    public long getTransactions() {
+        return transactions;
+    }
+
+    public void setTransactions(long transactions) {
+        this.transactions = transactions;
+    }
+
+    public int getMinTransactionId() {
+        return minTransactionId;
+    }
+
+    public void setMinTransactionId(int minTransactionId) {
+        this.minTransactionId = minTransactionId;
+    }
+
+    public int getMaxTransactionId() {
+        return maxTransactionId;
+    }
+
+    public void setMaxTransactionId(int maxTransactionId) {
+        this.maxTransactionId = maxTransactionId;
+    }
+}